@@ -5,6 +5,7 @@ import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
@@ -15,13 +16,19 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.Face;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.ImageReader;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 
+import com.steigensoft.atcamera.mlkit.ViewTransform;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -34,10 +41,13 @@ import androidx.appcompat.app.AppCompatActivity;
 public class Camera2Source {
     private static final String TAG = Camera2Source.class.getSimpleName();
     private ImageReader.OnImageAvailableListener mImageAvailableListener;
+    private ImageReader.OnImageAvailableListener mAnalysisListener;
     private Handler mBackgroundHandler;
     private AutoFitTextureView mTextureView;
     private String mCameraId;
     private ImageReader mImageReader;
+    private ImageReader mAnalysisReader;
+    private Size mAnalysisSize;
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCaptureSession;
     private CameraCaptureSession mCaptureSessionForImage;
@@ -49,7 +59,22 @@ public class Camera2Source {
     private CaptureRequest mPreviewRequest;
     private STATE mState = STATE.STATE_PREVIEW;
     private int mSensorOrientation = 0;
+    private Rect mActiveArraySize;
+    // Maps detector boxes on frames grabbed from mTextureView to the active array.
+    private final MeteringRegionMapper mRegionMapper = new MeteringRegionMapper();
+    private volatile ViewTransform mViewTransform;
+    private int mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF;
+    private boolean mHardwareFaceDetectionEnabled = false;
+    private HardwareFaceListener mHardwareFaceListener;
+    private int mMaxAeRegions = 0;
+    private int mMaxAfRegions = 0;
+    private MeteringRectangle[] mMeteringRegions;
+    private Range<Integer>[] mAvailableFpsRanges;
+    private Range<Integer> mTargetFpsRange;
+    private StateListener mStateListener;
+    private volatile long mLastFrameMillis = 0;
     private static int MAX_IMAGES = 2;
+    private static int MAX_ANALYSIS_IMAGES = 3;
     // Max preview width and height is guaranteed by Camera2 API
     private static int MAX_PREVIEW_WIDTH = 1920;
     private static int MAX_PREVIEW_HEIGHT = 1080;
@@ -59,6 +84,34 @@ public class Camera2Source {
         this.mBackgroundHandler = mCameraHandler;
     }
 
+    /**
+     * Receives the faces found by the camera HAL's own face detector for each preview frame.
+     */
+    public interface HardwareFaceListener {
+        /**
+         * @param faces face rectangles in sensor active array coordinates, empty if none
+         * @param activeArray the sensor active array size
+         * @param sensorOrientation clockwise rotation from sensor to output, in degrees
+         */
+        void onHardwareFaces(Rect[] faces, Rect activeArray, int sensorOrientation);
+    }
+
+    /** Kinds of failure reported to a {@link StateListener}. */
+    public enum Failure {
+        OPEN_FAILED,
+        DISCONNECTED,
+        DEVICE_ERROR,
+        SESSION_CONFIGURE_FAILED,
+        STALLED,
+    }
+
+    /** Notified on the background handler about the health of the camera. */
+    public interface StateListener {
+        void onPreviewStarted();
+
+        void onFailure(Failure failure);
+    }
+
     enum STATE {
         STATE_PREVIEW,
         STATE_PICTURE_TAKEN,
@@ -74,6 +127,88 @@ public class Camera2Source {
         this.mTextureView = mTextureView;
     }
 
+    /**
+     * Selects the camera to open. When not set, or when the id is not present on the device,
+     * setUpCameraOutputs(...) falls back to the first camera reported by the CameraManager.
+     */
+    public void setCameraId(String cameraId) {
+        mCameraId = cameraId;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    /**
+     * Requests a YUV_420_888 analysis stream of at most the given size, delivered to the listener
+     * on the background handler. Should be called before setUpCameraOutputs(...).
+     */
+    public void setAnalysisListener(ImageReader.OnImageAvailableListener listener, Size maxSize) {
+        mAnalysisListener = listener;
+        mAnalysisSize = maxSize;
+    }
+
+    public Size getAnalysisSize() {
+        return mAnalysisReader != null
+                ? new Size(mAnalysisReader.getWidth(), mAnalysisReader.getHeight()) : null;
+    }
+
+    /**
+     * Returns all camera ids reported by the CameraManager, or an empty array if none could be
+     * queried.
+     */
+    public static String[] getCameraIds(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            return manager.getCameraIdList();
+        } catch (CameraAccessException e) {
+            Log.d(TAG, "Camera access exception getting IDs", e);
+            return new String[0];
+        }
+    }
+
+    /**
+     * Enables the HAL face statistics on the preview request when the camera supports them, and
+     * delivers the results to the listener. Should be called before openCamera(...).
+     */
+    public void setHardwareFaceDetection(boolean enabled, HardwareFaceListener listener) {
+        mHardwareFaceDetectionEnabled = enabled;
+        mHardwareFaceListener = listener;
+    }
+
+    /**
+     * The transform of the preview TextureView, which frames grabbed from it carry. Valid after
+     * configureTransform(...), null before.
+     */
+    public ViewTransform getViewTransform() {
+        return mViewTransform;
+    }
+
+    /** Valid after setUpCameraOutputs(...). */
+    public boolean isHardwareFaceDetectionSupported() {
+        return mFaceDetectMode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF;
+    }
+
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    /** Uptime at which the last preview frame completed, 0 before the first one. */
+    public long getLastFrameMillis() {
+        return mLastFrameMillis;
+    }
+
+    private void notifyFailure(Failure failure) {
+        StateListener listener = mStateListener;
+        if (listener != null) {
+            listener.onFailure(failure);
+        }
+    }
+
     class CompareSizeByArea implements Comparator<Size> {
         @Override
         public int compare(Size lhs, Size rhs) {
@@ -88,7 +223,11 @@ public class Camera2Source {
 
         private void progress(CaptureResult result, CameraCaptureSession session) {
             switch (mState) {
-                case STATE_PREVIEW: //do nothing
+                case STATE_PREVIEW:
+                    if (result instanceof TotalCaptureResult) {
+                        mLastFrameMillis = SystemClock.uptimeMillis();
+                        dispatchHardwareFaces(result);
+                    }
                     break;
                 case STATE_PICTURE_TAKEN:
                     if (mCaptureSessionForImage == session) {
@@ -122,6 +261,19 @@ public class Camera2Source {
     };
 
 
+    private void dispatchHardwareFaces(CaptureResult result) {
+        HardwareFaceListener listener = mHardwareFaceListener;
+        if (listener == null || !mHardwareFaceDetectionEnabled || !isHardwareFaceDetectionSupported()) {
+            return;
+        }
+        Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
+        Rect[] bounds = new Rect[faces != null ? faces.length : 0];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = faces[i].getBounds();
+        }
+        listener.onHardwareFaces(bounds, mActiveArraySize, mSensorOrientation);
+    }
+
     private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
 
         @Override
@@ -136,13 +288,17 @@ public class Camera2Source {
             Log.d(TAG, "Camera disconnected");
             camera.close();
             mCameraDevice = null;
+            mCaptureSession = null;
+            notifyFailure(Failure.DISCONNECTED);
         }
 
         @Override
         public void onError(@NonNull CameraDevice camera, int error) {
-            Log.d(TAG, "Camera error: $error");
+            Log.d(TAG, "Camera error: " + error);
             camera.close();
             mCameraDevice = null;
+            mCaptureSession = null;
+            notifyFailure(Failure.DEVICE_ERROR);
         }
 
     };
@@ -167,6 +323,10 @@ public class Camera2Source {
         } else {
             try {
                 String id = camIds[0];
+                if (mCameraId != null && Arrays.asList(camIds).contains(mCameraId)) {
+                    id = mCameraId;
+                }
+                Log.d(TAG, "Using camera id: " + id);
 
                 CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
                 StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
@@ -190,6 +350,14 @@ public class Camera2Source {
                     mImageReader.setOnImageAvailableListener(mImageAvailableListener, mBackgroundHandler);
                 }
 
+                if (mAnalysisListener != null) {
+                    Size analysisSize = chooseAnalysisSize(map.getOutputSizes(ImageFormat.YUV_420_888));
+                    mAnalysisReader = ImageReader.newInstance(analysisSize.getWidth(), analysisSize.getHeight(),
+                            ImageFormat.YUV_420_888, MAX_ANALYSIS_IMAGES);
+                    mAnalysisReader.setOnImageAvailableListener(mAnalysisListener, mBackgroundHandler);
+                    Log.d(TAG, "Camera analysis size: " + analysisSize.toString());
+                }
+
                 int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
                 Log.d(TAG, "Display rotation: " + displayRotation);
                 mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
@@ -273,6 +441,37 @@ public class Camera2Source {
                 }
 
 
+                mActiveArraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+                if (mActiveArraySize != null) {
+                    mRegionMapper.setSensor(mActiveArraySize, mSensorOrientation);
+                }
+                mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF;
+                int[] faceDetectModes = characteristics.get(CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
+                if (faceDetectModes != null) {
+                    for (int mode : faceDetectModes) {
+                        Log.d(TAG, "Supported face detect MODE: " + mode);
+                        // SIMPLE is enough for gating and cheaper than FULL.
+                        if (mode == CaptureRequest.STATISTICS_FACE_DETECT_MODE_SIMPLE
+                                || (mode == CaptureRequest.STATISTICS_FACE_DETECT_MODE_FULL
+                                && mFaceDetectMode == CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF)) {
+                            mFaceDetectMode = mode;
+                        }
+                    }
+                }
+
+                Integer maxAeRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+                Integer maxAfRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+                mMaxAeRegions = maxAeRegions != null ? maxAeRegions : 0;
+                mMaxAfRegions = maxAfRegions != null ? maxAfRegions : 0;
+                Log.d(TAG, "Max AE regions: " + mMaxAeRegions + ", max AF regions: " + mMaxAfRegions);
+
+                mAvailableFpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+                if (mAvailableFpsRanges != null) {
+                    for (Range<Integer> range : mAvailableFpsRanges) {
+                        Log.d(TAG, "Supported AE target fps range: " + range);
+                    }
+                }
+
                 mCameraId = id;
             } catch (CameraAccessException e) {
                 Log.e(TAG, Log.getStackTraceString(e));
@@ -307,6 +506,10 @@ public class Camera2Source {
             matrix.postRotate(180F, centerX, centerY);
         }
         mTextureView.setTransform(matrix);
+        float[] values = new float[9];
+        matrix.getValues(values);
+        mViewTransform = new ViewTransform(values, viewWidth, viewHeight);
+        mRegionMapper.setViewTransform(mViewTransform);
         Log.d(TAG, "End configureTransform");
     }
 
@@ -317,15 +520,60 @@ public class Camera2Source {
         try {
             Log.d(TAG, "Try open camera...");
             manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-        } catch (CameraAccessException e) {
+        } catch (CameraAccessException | IllegalArgumentException | SecurityException e) {
             Log.d(TAG, "Open camera error " + Log.getStackTraceString(e));
+            // Failures are reported on the background handler, also when opening on another
+            // thread.
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyFailure(Failure.OPEN_FAILED);
+                }
+            });
         }
     }
 
+    /**
+     * Closes the device and session and opens the same camera again. The image readers and
+     * everything derived from the camera characteristics in setUpCameraOutputs(...) are reused,
+     * so this is much cheaper than a full restart. Must run on the background handler.
+     */
+    public void reopenCamera(Context context) {
+        if (mCameraId == null) {
+            Log.d(TAG, "Cannot reopen camera, setUpCameraOutputs was never called");
+            return;
+        }
+        closeCamera();
+        mState = STATE.STATE_PREVIEW;
+        openCamera(context);
+    }
+
+    private void closeCamera() {
+        if (mCaptureSession != null) {
+            try {
+                mCaptureSession.close();
+            } catch (IllegalStateException e) {
+                Log.d(TAG, "Session already closed: " + e.getMessage());
+            }
+            mCaptureSession = null;
+        }
+        if (mCameraDevice != null) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        mPreviewRequestBuilder = null;
+    }
+
     public void shutDown() {
-        mImageReader.close();
-        mCaptureSession.close();
-        mCameraDevice.close();
+        closeCamera();
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mAnalysisReader != null) {
+            mAnalysisReader.close();
+            mAnalysisReader = null;
+        }
     }
 
     public void tackPicture() {
@@ -387,17 +635,26 @@ public class Camera2Source {
 
 
     private void createPreviewSession() {
-        if (mTextureView == null || mPreviewSize == null || mCameraDevice == null) {
+        if (mCameraDevice == null) {
+            return;
+        }
+        final List<Surface> surfaces = new ArrayList<>();
+        if (mTextureView != null && mPreviewSize != null) {
+            SurfaceTexture texture = mTextureView.getSurfaceTexture();
+            if (texture != null)
+                texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            surfaces.add(new Surface(texture));
+        }
+        if (mAnalysisReader != null) {
+            surfaces.add(mAnalysisReader.getSurface());
+        }
+        if (surfaces.isEmpty()) {
             return;
         }
-        SurfaceTexture texture = mTextureView.getSurfaceTexture();
-        if (texture != null)
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-        final Surface surface = new Surface(texture);
 
         //  V4L2CameraHAL: setupStreams:384: V4L2 only supports 1 stream configuration at a time
         try {
-            mCameraDevice.createCaptureSession(Collections.singletonList(surface),
+            mCameraDevice.createCaptureSession(surfaces,
                     new CameraCaptureSession.StateCallback() {
                         @Override
                         public void onClosed(@NonNull CameraCaptureSession session) {
@@ -417,32 +674,160 @@ public class Camera2Source {
 
                                 mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
 
-                                mPreviewRequestBuilder.addTarget(surface);
+                                for (Surface surface : surfaces) {
+                                    mPreviewRequestBuilder.addTarget(surface);
+                                }
                                 setAutoFlash(mPreviewRequestBuilder);
                                 if (Arrays.asList(mSupportedAFModes).contains(CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE)) {
                                     mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
                                 }
+                                if (mHardwareFaceDetectionEnabled && isHardwareFaceDetectionSupported()) {
+                                    mPreviewRequestBuilder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE, mFaceDetectMode);
+                                }
+                                applyMeteringRegions(mPreviewRequestBuilder);
+                                if (mTargetFpsRange != null) {
+                                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mTargetFpsRange);
+                                }
                                 mPreviewRequest = mPreviewRequestBuilder.build();
 
                                 mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+                                StateListener listener = mStateListener;
+                                if (listener != null) {
+                                    listener.onPreviewStarted();
+                                }
 
-                            } catch (CameraAccessException e) {
-                                e.printStackTrace();
+                            } catch (CameraAccessException | IllegalStateException e) {
+                                Log.d(TAG, "Could not start preview: " + e.getMessage());
+                                notifyFailure(Failure.SESSION_CONFIGURE_FAILED);
                             }
                         }
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-
+                            Log.d(TAG, "Failed to configure preview session: " + session.toString());
+                            notifyFailure(Failure.SESSION_CONFIGURE_FAILED);
                         }
                     }
-                    , null);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
+                    , mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.d(TAG, "Could not create preview session: " + e.getMessage());
+            notifyFailure(Failure.SESSION_CONFIGURE_FAILED);
+        }
+    }
+
+
+
+    /**
+     * Lets the capture rate follow what the pipeline can consume: picks the supported AE target
+     * fps range with the lowest upper bound that still covers the given rate, preferring the
+     * highest lower bound so that exposure doesn't stretch below it in low light. The repeating
+     * request is only re-issued when the chosen range changes.
+     */
+    public void setTargetFps(double fps) {
+        final Range<Integer> range = chooseFpsRange(fps);
+        if (range == null) {
+            return;
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (range.equals(mTargetFpsRange)) {
+                    return;
+                }
+                Log.d(TAG, "AE target fps range: " + range);
+                mTargetFpsRange = range;
+                if (mPreviewRequestBuilder != null) {
+                    mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, range);
+                    updateRepeatingRequest();
+                }
+            }
+        });
+    }
+
+    public Range<Integer> getTargetFpsRange() {
+        return mTargetFpsRange;
+    }
+
+    private Range<Integer> chooseFpsRange(double fps) {
+        Range<Integer>[] ranges = mAvailableFpsRanges;
+        if (ranges == null) {
+            return null;
+        }
+        int[] lowers = new int[ranges.length];
+        int[] uppers = new int[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            lowers[i] = ranges[i].getLower();
+            uppers[i] = ranges[i].getUpper();
         }
+        int chosen = FrameRatePolicy.chooseFpsRange(lowers, uppers, fps);
+        return chosen >= 0 ? ranges[chosen] : null;
     }
 
+    /**
+     * Meters exposure and focus on the given regions of the analysed frame, or on the whole scene
+     * again when the list is empty. The repeating request is updated in place, the session is not
+     * rebuilt.
+     *
+     * @param regions regions in the coordinates of a frameWidth x frameHeight frame grabbed from
+     *     the TextureView, e.g. detector bounding boxes; the view transform and the sensor
+     *     orientation are undone
+     */
+    public void setMeteringRegions(List<Rect> regions, int frameWidth, int frameHeight) {
+        if (!mRegionMapper.hasSensor() || (mMaxAeRegions == 0 && mMaxAfRegions == 0)) {
+            return;
+        }
+        int maxCount = Math.max(mMaxAeRegions, mMaxAfRegions);
+        List<MeteringRectangle> mapped = new ArrayList<>(Math.min(regions.size(), maxCount));
+        for (int i = 0; i < regions.size() && mapped.size() < maxCount; i++) {
+            Rect region = new Rect();
+            if (mRegionMapper.map(regions.get(i), frameWidth, frameHeight, region)) {
+                mapped.add(new MeteringRectangle(region, MeteringRectangle.METERING_WEIGHT_MAX));
+            }
+        }
+        final MeteringRectangle[] metering = mapped.toArray(new MeteringRectangle[0]);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMeteringRegions = metering.length > 0 ? metering : null;
+                if (mPreviewRequestBuilder != null) {
+                    applyMeteringRegions(mPreviewRequestBuilder);
+                    updateRepeatingRequest();
+                }
+            }
+        });
+    }
 
+    private void applyMeteringRegions(CaptureRequest.Builder requestBuilder) {
+        MeteringRectangle[] regions = mMeteringRegions;
+        if (regions == null) {
+            // A single zero weight region lets the camera meter the whole scene again.
+            regions = new MeteringRectangle[]{new MeteringRectangle(0, 0, 0, 0, MeteringRectangle.METERING_WEIGHT_DONT_CARE)};
+        }
+        if (mMaxAeRegions > 0) {
+            requestBuilder.set(CaptureRequest.CONTROL_AE_REGIONS,
+                    Arrays.copyOf(regions, Math.min(regions.length, mMaxAeRegions)));
+        }
+        if (mMaxAfRegions > 0) {
+            requestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS,
+                    Arrays.copyOf(regions, Math.min(regions.length, mMaxAfRegions)));
+        }
+    }
+
+    /**
+     * Re-issues the repeating preview request after mPreviewRequestBuilder has been changed.
+     * Must run on the background handler.
+     */
+    private void updateRepeatingRequest() {
+        if (mCaptureSession == null || mPreviewRequestBuilder == null || mState != STATE.STATE_PREVIEW) {
+            return;
+        }
+        try {
+            mPreviewRequest = mPreviewRequestBuilder.build();
+            mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.d(TAG, "Could not update repeating request: " + e.getMessage());
+        }
+    }
 
     private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
         if (mFlashSupported) {
@@ -452,6 +837,24 @@ public class Camera2Source {
 
 
 
+    /**
+     * Picks the largest analysis size that fits inside the requested one, or the smallest size
+     * available if none fits.
+     */
+    private Size chooseAnalysisSize(Size[] choices) {
+        List<Size> fitting = new ArrayList<>();
+        for (Size it : choices) {
+            if (mAnalysisSize == null || (it.getWidth() <= mAnalysisSize.getWidth()
+                    && it.getHeight() <= mAnalysisSize.getHeight())) {
+                fitting.add(it);
+            }
+        }
+        if (!fitting.isEmpty()) {
+            return Collections.max(fitting, compareSizeByArea);
+        }
+        return Collections.min(Arrays.asList(choices), compareSizeByArea);
+    }
+
     private Size chooseOptimalSize(Size[] choices, int textureViewWidth,int textureViewHeight,
                           int maxWidth, int maxHeight, Size aspectRatio){
         List<Size> bigEnough = new ArrayList<>();
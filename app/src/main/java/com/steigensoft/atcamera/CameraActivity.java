@@ -1,7 +1,7 @@
 package com.steigensoft.atcamera;
 
-import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.media.ImageReader;
 import android.os.Bundle;
@@ -11,12 +11,29 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.view.TextureView;
 
+import com.google.firebase.ml.vision.face.FirebaseVisionFace;
 import com.steigensoft.atcamera.mlkit.DefaultExecutorSupplier;
+import com.steigensoft.atcamera.mlkit.Frame;
+import com.steigensoft.atcamera.mlkit.FrameMetadata;
+import com.steigensoft.atcamera.mlkit.FrameQualityScorer;
 import com.steigensoft.atcamera.mlkit.GraphicOverlay;
-import com.steigensoft.atcamera.mlkit.VisionImageProcessor;
+import com.steigensoft.atcamera.mlkit.MemoryBudget;
+import com.steigensoft.atcamera.mlkit.ResultCache;
 import com.steigensoft.atcamera.mlkit.facedetection.FaceDetectionProcessor;
-
-import java.lang.ref.WeakReference;
+import com.steigensoft.atcamera.mlkit.facedetection.HardwareFaceGate;
+import com.steigensoft.atcamera.mlkit.pipeline.Emitter;
+import com.steigensoft.atcamera.mlkit.pipeline.Pipeline;
+import com.steigensoft.atcamera.mlkit.pipeline.PipelineConfig;
+import com.steigensoft.atcamera.mlkit.pipeline.ProcessorStage;
+import com.steigensoft.atcamera.mlkit.pipeline.Stage;
+import com.steigensoft.atcamera.mlkit.tiling.StillAnalyzer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
 
 import androidx.appcompat.app.AppCompatActivity;
 
@@ -44,15 +61,23 @@ public class CameraActivity extends AppCompatActivity {
     private HandlerThread mCameraThread;
     private static final String TAG = CameraActivity.class.getSimpleName();
     private Camera2Source  mCamera;
-    private Object processorLock = new Object();
-    private Thread processingThread = null;
-    private FrameProcessingRunnable processingRunnable = null;
+    private Pipeline mPipeline;
     private AutoFitTextureView  mTextureView;
     private GraphicOverlay fireFaceOverlay;
+    private FaceDetectionProcessor mFaceProcessor;
+    private final HardwareFaceGate mHardwareFaceGate = new HardwareFaceGate();
+    private MeteringController mMeteringController;
+    private FrameRateController mFrameRateController;
+    private PresenceController mPresenceController;
+    private CameraSupervisor mCameraSupervisor;
+    private volatile StillAnalyzer mStillAnalyzer;
+    // Grabbed preview bitmaps, from the grab until the processor is done with them.
+    private final MemoryBudget.Stage mGrabBudget = MemoryBudget.getInstance().stage("grab");
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Frame.setLeakDetection(BuildConfig.DEBUG);
         setContentView(R.layout.activity_camera);
         fireFaceOverlay = (GraphicOverlay) findViewById(R.id.fireFaceOverlay);
         mTextureView = (AutoFitTextureView) findViewById(R.id.texture);
@@ -61,122 +86,85 @@ public class CameraActivity extends AppCompatActivity {
 
 
 
-    private class FrameProcessingRunnable implements Runnable {
-        private final GraphicOverlay mGraphicOverlay;
-        private VisionImageProcessor mProcessor;
-        private long mStartTimeMillis = SystemClock.elapsedRealtime();
-
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
-
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private Bitmap mPendingBitmap;
-
-        FrameProcessingRunnable(VisionImageProcessor processor, GraphicOverlay overlay) {
-            this.mProcessor = processor;
-            this.mGraphicOverlay = overlay;
-        }
-
-        /**
-         * Releases the underlying receiver.  This is only safe to do after the associated thread
-         * has completed, which is managed in camera source's release method above.
-         */
-        @SuppressLint("Assert")
-        void release() {
-            assert (processingThread.getState() == Thread.State.TERMINATED);
-            mProcessor = null;
-        }
-
-        /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
-         */
-        void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
+    /**
+     * The stages the camera flow is assembled from. The graph itself, its queue sizes and drop
+     * policies come from res/raw/camera_pipeline.properties.
+     */
+    private Pipeline createPipeline() {
+        Map<String, PipelineConfig.StageFactory> factories = new HashMap<>();
+        factories.put("grab", new PipelineConfig.StageFactory() {
+            @Override
+            public Stage create(String nodeName, Properties settings) {
+                return mGrabStage;
             }
-        }
-
-        /**
-         * Sets the frame data received from the camera.
-         */
-        void setNextFrame(Bitmap bmp) {
-            synchronized (mLock) {
-                if (mPendingBitmap != null) {
-                    mPendingBitmap = null;
-                }
-
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingBitmap = bmp;
-
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
+        });
+        factories.put("faces", new PipelineConfig.StageFactory() {
+            @Override
+            public Stage create(String nodeName, Properties settings) {
+                return new ProcessorStage(mFaceProcessor, fireFaceOverlay);
             }
+        });
+        Map<String, Executor> executors = new HashMap<>();
+        executors.put("background", DefaultExecutorSupplier.getInstance().forBackgroundTasks());
+        try {
+            Properties config = PipelineConfig.read(
+                    getResources().openRawResource(R.raw.camera_pipeline));
+            return PipelineConfig.load(config, factories, executors).build();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the camera pipeline", e);
         }
+    }
 
-        /**
-         * As long as the processing thread is active, this executes detection on frames
-         * continuously.  The next pending frame is either immediately available or hasn't been
-         * received yet.  Once it is available, we transfer the frame info to local variables and
-         * run detection on that frame.  It immediately loops back for the next frame without
-         * pausing.
-         * <p/>
-         * If detection takes longer than the time in between new frames from the camera, this will
-         * mean that this loop will run without ever waiting on a frame, avoiding any context
-         * switching or frame acquisition time latency.
-         * <p/>
-         * If you find that this is using more CPU than you'd like, you should probably decrease the
-         * FPS setting above to allow for some idle time in between frames.
-         */
+    /**
+     * Grabs the preview frame of the timestamp it gets from the texture listener. While idle
+     * only a small bitmap is grabbed and checked for motion, nothing is emitted.
+     */
+    private final Stage mGrabStage = new Stage() {
         @Override
-        public void run() {
-            Bitmap outputFrame;
-
-            while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingBitmap == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
-                    }
-
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
-
-                    outputFrame = mPendingBitmap;
-                    // We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    mPendingBitmap = null;
-                }
-
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
-
+        public void process(Object item, Emitter out) {
+            long now = (Long) item;
+            boolean idle = mPresenceController.isIdle();
+            final long bytes = idle
+                    ? MemoryBudget.bitmapBytes(PresenceController.IDLE_FRAME_WIDTH,
+                            PresenceController.IDLE_FRAME_HEIGHT)
+                    : MemoryBudget.bitmapBytes(mTextureView.getWidth(), mTextureView.getHeight());
+            if (!mGrabBudget.tryReserve(bytes)) {
+                return;
+            }
+            if (idle) {
+                // Motion wakes the pipeline, the next full frame goes to the detector.
                 try {
-                    mProcessor.process(outputFrame, mGraphicOverlay);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Exception thrown from receiver.", t);
+                    mPresenceController.onIdleFrame(mTextureView.getBitmap(
+                            PresenceController.IDLE_FRAME_WIDTH,
+                            PresenceController.IDLE_FRAME_HEIGHT), now);
+                } finally {
+                    mGrabBudget.release(bytes);
                 }
+                return;
+            }
+            Bitmap bitmap = mTextureView.getBitmap();
+            if (bitmap == null) {
+                mGrabBudget.release(bytes);
+                return;
+            }
+            FrameMetadata metadata = new FrameMetadata.Builder()
+                    .setWidth(bitmap.getWidth())
+                    .setHeight(bitmap.getHeight())
+                    .build();
+            Frame frame = Frame.ofBitmap(bitmap, metadata, new Frame.Releaser() {
+                @Override
+                public void release(Bitmap bitmap) {
+                    // Released once the detect stage is done with the frame.
+                    mGrabBudget.release(bytes);
+                }
+            });
+            try {
+                out.emit(frame);
+            } finally {
+                frame.release();
             }
         }
-    }
+    };
 
 
     @Override
@@ -187,12 +175,39 @@ public class CameraActivity extends AppCompatActivity {
         if (fireFaceOverlay != null)
             fireFaceOverlay.setCameraInfo(mTextureView.getWidth(), mTextureView.getHeight());
 
-        processingRunnable = new FrameProcessingRunnable(new FaceDetectionProcessor(), fireFaceOverlay);
-        processingThread = new Thread(processingRunnable);
-        processingRunnable.setActive(true);
-        processingThread.start();
+        mFaceProcessor = new FaceDetectionProcessor();
+        // Blurred and badly exposed frames cost a full inference and find nothing.
+        mFaceProcessor.setQualityScorer(new FrameQualityScorer());
+        // A still scene keeps its faces, no need to look for them again on every frame.
+        mFaceProcessor.setResultCache(new ResultCache<List<FirebaseVisionFace>>());
         startBackgroundThread();
+        mStillAnalyzer = new StillAnalyzer(null);
         mCamera = new Camera2Source(mOnImageAvailableListener, mCameraHandler, mTextureView);
+        mCamera.setHardwareFaceDetection(true, new Camera2Source.HardwareFaceListener() {
+            @Override
+            public void onHardwareFaces(Rect[] faces, Rect activeArray, int sensorOrientation) {
+                mHardwareFaceGate.onHardwareFaces(faces, activeArray, sensorOrientation);
+                mPresenceController.onHardwareFaces(faces.length, SystemClock.elapsedRealtime());
+            }
+        });
+        mMeteringController = new MeteringController(mCamera);
+        mFaceProcessor.addDetectionListener(mMeteringController);
+        mFaceProcessor.addFailureListener(mMeteringController);
+        mFrameRateController = new FrameRateController(mCamera, mFaceProcessor.getInferenceMetrics(), mCameraHandler);
+        mFrameRateController.start();
+        // Nobody in front of the kiosk: keep only a trickle of small frames to watch for motion.
+        mPresenceController = new PresenceController();
+        mPresenceController.setListener(new PresenceController.Listener() {
+            @Override
+            public void onStateChanged(PresenceController.State state) {
+                mFrameRateController.setMaxFps(state == PresenceController.State.IDLE
+                        ? mPresenceController.getIdleFps() : Double.MAX_VALUE);
+            }
+        });
+        mFaceProcessor.addDetectionListener(mPresenceController);
+        mPipeline = createPipeline();
+        mCameraSupervisor = new CameraSupervisor(this, mCamera, mCameraHandler);
+        mCameraSupervisor.start();
 
         if (mTextureView.isAvailable()) {
             startCameraPreview(mTextureView.getWidth(), mTextureView.getHeight());
@@ -222,7 +237,11 @@ public class CameraActivity extends AppCompatActivity {
 
         @Override
         public void onImageAvailable(ImageReader reader) {
-
+            // Full resolution stills are too large for one pass, they are recognized in tiles.
+            StillAnalyzer analyzer = mStillAnalyzer;
+            if (analyzer != null) {
+                analyzer.onImageAvailable(reader);
+            }
         }
     };
 
@@ -237,6 +256,7 @@ public class CameraActivity extends AppCompatActivity {
         @Override
         public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
             mCamera.configureTransform(CameraActivity.this, width, height);
+            mHardwareFaceGate.setViewTransform(mCamera.getViewTransform());
         }
 
         @Override
@@ -247,28 +267,50 @@ public class CameraActivity extends AppCompatActivity {
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surface) {
             Log.d(TAG, "onSurfaceTextureUpdated");
-            DefaultExecutorSupplier.getInstance().forBackgroundTasks().execute(new Runnable() {
-                @Override
-                public void run() {
-                    WeakReference<Bitmap> weakWidget = new WeakReference<Bitmap>(mTextureView.getBitmap());
-                    processingRunnable.setNextFrame(weakWidget.get());
-                }
-            });
+            long now = SystemClock.elapsedRealtime();
+            if (!mPresenceController.shouldAnalyze(now)) {
+                return;
+            }
+            // The grab node keeps the latest couple of grabs, older ones are dropped unseen.
+            mPipeline.submit("grab", now);
         }
     };
 
     private void startCameraPreview( int width, int height) {
         mCamera.setUpCameraOutputs(this, width, height);
+        // Only gate the ML Kit face detector on boards whose HAL reports face statistics, and
+        // let the HAL faces steer its crop until it finds faces of its own.
+        boolean hardwareFaces = mCamera.isHardwareFaceDetectionSupported();
+        mFaceProcessor.setFrameGate(hardwareFaces ? mHardwareFaceGate : null);
+        mFaceProcessor.setRegionOfInterestSource(hardwareFaces ? mHardwareFaceGate : null);
         mCamera.configureTransform(this, width, height);
+        // The grabbed TextureView bitmaps carry the view transform, and so do their faces.
+        mHardwareFaceGate.setViewTransform(mCamera.getViewTransform());
         mCamera.openCamera(this);
     }
 
     @Override
     protected void onPause() {
         Log.d(TAG, "onPause");
+        Log.d(TAG, "Face detection success rate per inference: " + mFaceProcessor.getDetectionSuccessRate()
+                + " over " + mFaceProcessor.getInferenceCount() + " inferences, "
+                + mFaceProcessor.getQualityRejectCount() + " frames dropped for quality, cache "
+                + mFaceProcessor.getResultCache() + ", woken " + mPresenceController.getWakeCount()
+                + " times from idle");
+        Log.d(TAG, "Frame memory: " + MemoryBudget.getInstance());
+        Log.d(TAG, "Pipeline:\n" + mPipeline);
+        mFaceProcessor.removeDetectionListener(mMeteringController);
+        mFaceProcessor.removeFailureListener(mMeteringController);
+        mMeteringController.stop();
+        mFaceProcessor.removeDetectionListener(mPresenceController);
+        mFrameRateController.stop();
+        mCameraSupervisor.stop();
+        mPipeline.shutdown();
 
         mCamera.shutDown();
         stopBackgroundThread();
+        mStillAnalyzer.close();
+        mStillAnalyzer = null;
         super.onPause();
     }
 
@@ -0,0 +1,163 @@
+package com.steigensoft.atcamera;
+
+import android.util.Log;
+
+/**
+ * The decisions behind {@link CameraSupervisor}: when the camera counts as stalled, when to
+ * reopen it and with what backoff, and when it counts as recovered, together with the failure and
+ * recovery statistics. The stall clock only starts once a preview session has been configured,
+ * so a camera waiting for its surface is not taken for a stalled one.
+ *
+ * <p>Times are uptime milliseconds. Thread safe: the supervisor drives it from the camera
+ * handler, the statistics may be read from anywhere.
+ */
+public class CameraRecovery {
+    private static final String TAG = CameraRecovery.class.getSimpleName();
+
+    public static final long INITIAL_BACKOFF_MILLIS = 250;
+    public static final long MAX_BACKOFF_MILLIS = 30000;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 3000;
+    /** Returned when no reopen has to be scheduled. */
+    public static final long NO_REOPEN = -1;
+
+    private final long mStallTimeoutMillis;
+
+    // Guarded by this.
+    private boolean mRunning = false;
+    private boolean mPreviewStarted = false;
+    private boolean mRecovering = false;
+    private boolean mReopenScheduled = false;
+    private long mBackoffMillis = INITIAL_BACKOFF_MILLIS;
+    private long mFailureStartMillis;
+    private long mLastReopenMillis;
+    private long mPreviewStartMillis;
+
+    private final int[] mFailureCounts = new int[Camera2Source.Failure.values().length];
+    private int mRecoveryCount;
+    private long mLastRecoveryMillis;
+    private long mTotalRecoveryMillis;
+
+    public CameraRecovery() {
+        this(DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    /** @param stallTimeoutMillis time without preview frames after which the camera is reopened */
+    public CameraRecovery(long stallTimeoutMillis) {
+        this.mStallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    /** Starts supervising a camera that is about to be opened. */
+    public synchronized void start() {
+        mRunning = true;
+        mPreviewStarted = false;
+    }
+
+    /** Stops supervising, e.g. before the camera is shut down. */
+    public synchronized void stop() {
+        mRunning = false;
+        mReopenScheduled = false;
+    }
+
+    public synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /** Called once the preview session is configured and the repeating request is set. */
+    public synchronized void onPreviewStarted(long now) {
+        mPreviewStarted = true;
+        mPreviewStartMillis = now;
+    }
+
+    /**
+     * Counts a failure and decides on a reopen. Failures while a reopen is already scheduled only
+     * count; each reopen that follows a failure waits twice as long as the one before, until the
+     * camera delivers frames again.
+     *
+     * @return the delay after which the camera should be reopened, or {@link #NO_REOPEN}
+     */
+    public synchronized long onFailure(Camera2Source.Failure failure, long now) {
+        mFailureCounts[failure.ordinal()]++;
+        Log.w(TAG, "Camera failure " + failure + ", count " + mFailureCounts[failure.ordinal()]);
+        if (!mRunning || mReopenScheduled) {
+            return NO_REOPEN;
+        }
+        if (!mRecovering) {
+            mRecovering = true;
+            mFailureStartMillis = now;
+            mBackoffMillis = INITIAL_BACKOFF_MILLIS;
+        }
+        mReopenScheduled = true;
+        long delay = mBackoffMillis;
+        mBackoffMillis = Math.min(mBackoffMillis * 2, MAX_BACKOFF_MILLIS);
+        return delay;
+    }
+
+    /**
+     * Called when a scheduled reopen is due.
+     *
+     * @return whether the camera should be reopened now
+     */
+    public synchronized boolean onReopen(long now) {
+        mReopenScheduled = false;
+        if (!mRunning) {
+            return false;
+        }
+        mLastReopenMillis = now;
+        return true;
+    }
+
+    /**
+     * Called periodically with the time of the last preview frame, 0 before the first one.
+     * Notices recoveries, and stalls both of a running preview and of reopens that produce no
+     * frames.
+     *
+     * @return the delay after which the camera should be reopened, or {@link #NO_REOPEN}
+     */
+    public synchronized long checkFrames(long now, long lastFrameMillis) {
+        if (!mRunning) {
+            return NO_REOPEN;
+        }
+        if (mRecovering) {
+            if (lastFrameMillis > mFailureStartMillis) {
+                mRecovering = false;
+                mRecoveryCount++;
+                mLastRecoveryMillis = lastFrameMillis - mFailureStartMillis;
+                mTotalRecoveryMillis += mLastRecoveryMillis;
+                Log.d(TAG, "Camera recovered in " + mLastRecoveryMillis + " ms");
+            } else if (!mReopenScheduled && now - mLastReopenMillis > mStallTimeoutMillis) {
+                // The reopen didn't produce frames, try again with a longer backoff.
+                return onFailure(Camera2Source.Failure.STALLED, now);
+            }
+            return NO_REOPEN;
+        }
+        if (!mPreviewStarted) {
+            return NO_REOPEN;
+        }
+        long since = Math.max(lastFrameMillis, mPreviewStartMillis);
+        if (now - since > mStallTimeoutMillis) {
+            return onFailure(Camera2Source.Failure.STALLED, now);
+        }
+        return NO_REOPEN;
+    }
+
+    public synchronized boolean isRecovering() {
+        return mRecovering;
+    }
+
+    public synchronized int getFailureCount(Camera2Source.Failure failure) {
+        return mFailureCounts[failure.ordinal()];
+    }
+
+    public synchronized int getRecoveryCount() {
+        return mRecoveryCount;
+    }
+
+    /** Time from the last failure to the first frame after it, in milliseconds. */
+    public synchronized long getLastRecoveryMillis() {
+        return mLastRecoveryMillis;
+    }
+
+    public synchronized long getAverageRecoveryMillis() {
+        return mRecoveryCount == 0 ? 0 : mTotalRecoveryMillis / mRecoveryCount;
+    }
+}
@@ -0,0 +1,123 @@
+package com.steigensoft.atcamera;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps an unattended camera alive. Lost devices, failed session configurations and stalled frame
+ * delivery are all handled the same way: the camera is reopened on its background handler with an
+ * exponential backoff, reusing the outputs set up from the cached characteristics.
+ *
+ * <p>The decisions are taken by a {@link CameraRecovery}, which also records the failure counts
+ * per kind and the time from failure to the first frame after recovery.
+ */
+public class CameraSupervisor implements Camera2Source.StateListener {
+    private static final String TAG = CameraSupervisor.class.getSimpleName();
+
+    private static final long WATCHDOG_PERIOD_MILLIS = 1000;
+
+    private final Context mContext;
+    private final Camera2Source mCamera;
+    private final Handler mHandler;
+    private final CameraRecovery mRecovery;
+
+    private final Runnable mReopen = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRecovery.onReopen(SystemClock.uptimeMillis())) {
+                return;
+            }
+            Log.d(TAG, "Reopening camera " + mCamera.getCameraId());
+            mCamera.reopenCamera(mContext);
+        }
+    };
+
+    private final Runnable mWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRecovery.isRunning()) {
+                return;
+            }
+            scheduleReopen(mRecovery.checkFrames(SystemClock.uptimeMillis(),
+                    mCamera.getLastFrameMillis()));
+            mHandler.postDelayed(this, WATCHDOG_PERIOD_MILLIS);
+        }
+    };
+
+    public CameraSupervisor(Context context, Camera2Source camera, Handler cameraHandler) {
+        this(context, camera, cameraHandler, CameraRecovery.DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param cameraHandler the background handler the camera was created with
+     * @param stallTimeoutMillis time without preview frames after which the camera is reopened
+     */
+    public CameraSupervisor(Context context, Camera2Source camera, Handler cameraHandler,
+                            long stallTimeoutMillis) {
+        this.mContext = context.getApplicationContext();
+        this.mCamera = camera;
+        this.mHandler = cameraHandler;
+        this.mRecovery = new CameraRecovery(stallTimeoutMillis);
+    }
+
+    /** Should be called before the camera is opened. */
+    public void start() {
+        mCamera.setStateListener(this);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRecovery.start();
+                mHandler.postDelayed(mWatchdog, WATCHDOG_PERIOD_MILLIS);
+            }
+        });
+    }
+
+    /** Should be called before the camera is shut down, so the shutdown isn't taken for a failure. */
+    public void stop() {
+        mCamera.setStateListener(null);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRecovery.stop();
+                mHandler.removeCallbacks(mWatchdog);
+                mHandler.removeCallbacks(mReopen);
+            }
+        });
+    }
+
+    @Override
+    public void onPreviewStarted() {
+        mRecovery.onPreviewStarted(SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void onFailure(Camera2Source.Failure failure) {
+        scheduleReopen(mRecovery.onFailure(failure, SystemClock.uptimeMillis()));
+    }
+
+    private void scheduleReopen(long delayMillis) {
+        if (delayMillis != CameraRecovery.NO_REOPEN) {
+            Log.d(TAG, "Reopening camera in " + delayMillis + " ms");
+            mHandler.postDelayed(mReopen, delayMillis);
+        }
+    }
+
+    public int getFailureCount(Camera2Source.Failure failure) {
+        return mRecovery.getFailureCount(failure);
+    }
+
+    public int getRecoveryCount() {
+        return mRecovery.getRecoveryCount();
+    }
+
+    /** Time from the last failure to the first frame after it, in milliseconds. */
+    public long getLastRecoveryMillis() {
+        return mRecovery.getLastRecoveryMillis();
+    }
+
+    public long getAverageRecoveryMillis() {
+        return mRecovery.getAverageRecoveryMillis();
+    }
+}
@@ -0,0 +1,92 @@
+package com.steigensoft.atcamera;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+/**
+ * Periodically matches the camera capture rate to the inference capacity of a processor, so the
+ * HAL doesn't produce frames that are thrown away and doesn't slow down below what the detector
+ * can use.
+ *
+ * <p>Capacity is derived from the average inference time rather than from the processed frame
+ * rate, which is itself bounded by the capture rate and would otherwise only ever go down. The
+ * arithmetic is in {@link FrameRatePolicy}.
+ */
+public class FrameRateController {
+    private static final String TAG = FrameRateController.class.getSimpleName();
+
+    private static final long DEFAULT_PERIOD_MILLIS = 2000;
+
+    private final Camera2Source mCamera;
+    private final StreamMetrics mInferenceMetrics;
+    private final Handler mHandler;
+    private final long mPeriodMillis;
+    private volatile double mMaxFps = Double.MAX_VALUE;
+    private volatile boolean mRunning = false;
+
+    private final Runnable mUpdate = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+            update();
+            mHandler.postDelayed(this, mPeriodMillis);
+        }
+    };
+
+    private final Runnable mApply = new Runnable() {
+        @Override
+        public void run() {
+            if (mRunning) {
+                update();
+            }
+        }
+    };
+
+    public FrameRateController(Camera2Source camera, StreamMetrics inferenceMetrics, Handler handler) {
+        this(camera, inferenceMetrics, handler, DEFAULT_PERIOD_MILLIS);
+    }
+
+    public FrameRateController(Camera2Source camera, StreamMetrics inferenceMetrics, Handler handler,
+                               long periodMillis) {
+        this.mCamera = camera;
+        this.mInferenceMetrics = inferenceMetrics;
+        this.mHandler = handler;
+        this.mPeriodMillis = periodMillis;
+    }
+
+    /**
+     * Caps the requested capture rate, e.g. while the pipeline runs in a low power mode. Applied
+     * right away rather than at the next periodic update. May be called from any thread.
+     */
+    public void setMaxFps(double maxFps) {
+        mMaxFps = maxFps;
+        if (mRunning) {
+            mHandler.post(mApply);
+        }
+    }
+
+    public void start() {
+        mRunning = true;
+        mHandler.postDelayed(mUpdate, mPeriodMillis);
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mUpdate);
+        mHandler.removeCallbacks(mApply);
+    }
+
+    private void update() {
+        double inferenceMillis = mInferenceMetrics.getAverageLatencyMillis();
+        double targetFps = FrameRatePolicy.targetFps(inferenceMillis, mMaxFps);
+        if (targetFps == FrameRatePolicy.UNKNOWN) {
+            return;
+        }
+        Log.d(TAG, "Inference time " + inferenceMillis + " ms, requesting " + targetFps + " fps");
+        mCamera.setTargetFps(targetFps);
+    }
+}
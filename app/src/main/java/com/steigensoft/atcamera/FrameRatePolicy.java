@@ -0,0 +1,65 @@
+package com.steigensoft.atcamera;
+
+/**
+ * The arithmetic behind {@link FrameRateController} and {@link Camera2Source#setTargetFps}:
+ * the capture rate a processor can use, and the AE target fps range that comes closest to it.
+ * Plain Java so it runs on the JVM, ranges are given as arrays of their bounds.
+ */
+public final class FrameRatePolicy {
+
+    // Capture a little faster than the detector consumes so it never waits on the camera.
+    public static final double HEADROOM = 1.25;
+    public static final double MIN_FPS = 1.0;
+    /** Returned by {@link #targetFps} while there is no inference time to go by. */
+    public static final double UNKNOWN = -1;
+
+    private FrameRatePolicy() {
+    }
+
+    /**
+     * Capacity is derived from the average inference time rather than from the processed frame
+     * rate, which is itself bounded by the capture rate and would otherwise only ever go down.
+     *
+     * @param inferenceMillis average inference time, 0 or less before the first one
+     * @param maxFps cap on the rate, e.g. while the pipeline runs in a low power mode
+     * @return the capture rate to request, or {@link #UNKNOWN}
+     */
+    public static double targetFps(double inferenceMillis, double maxFps) {
+        if (inferenceMillis <= 0) {
+            return UNKNOWN;
+        }
+        double capacityFps = 1000.0 / inferenceMillis;
+        return Math.max(MIN_FPS, Math.min(capacityFps * HEADROOM, maxFps));
+    }
+
+    /**
+     * Picks the range with the lowest upper bound that still covers the given rate, preferring
+     * the highest lower bound so that exposure doesn't stretch below it in low light. When no
+     * range is fast enough, the fastest one.
+     *
+     * @param lowers lower bounds of the supported ranges
+     * @param uppers upper bounds of the supported ranges, in the same order
+     * @return the index of the chosen range, or -1 if there are none
+     */
+    public static int chooseFpsRange(int[] lowers, int[] uppers, double fps) {
+        if (uppers.length == 0) {
+            return -1;
+        }
+        int wanted = (int) Math.ceil(fps);
+        int best = -1;
+        int fastest = 0;
+        for (int i = 0; i < uppers.length; i++) {
+            if (uppers[i] > uppers[fastest]) {
+                fastest = i;
+            }
+            if (uppers[i] < wanted) {
+                continue;
+            }
+            if (best < 0 || uppers[i] < uppers[best]
+                    || (uppers[i] == uppers[best] && lowers[i] > lowers[best])) {
+                best = i;
+            }
+        }
+        return best >= 0 ? best : fastest;
+    }
+}
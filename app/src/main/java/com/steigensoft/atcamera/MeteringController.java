@@ -0,0 +1,131 @@
+package com.steigensoft.atcamera;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionFailureListener;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Feeds detection results back into the camera: AE and AF are metered on the current faces or
+ * barcodes so that a backlit subject is exposed for the detector rather than for the scene.
+ * Updates are rate limited, and metering returns to the whole scene once nothing has been
+ * detected for a while, when the detector fails, or when its results stop arriving. The
+ * decisions are taken by a {@link MeteringPolicy}.
+ *
+ * <p>Must be created on the main thread, results are delivered there.
+ */
+public class MeteringController implements DetectionListener, DetectionFailureListener {
+    private static final String TAG = MeteringController.class.getSimpleName();
+
+    private static final long DEFAULT_MIN_INTERVAL_MILLIS = 500;
+    private static final long DEFAULT_RESET_AFTER_MILLIS = 3000;
+    // Boxes are grown a little so the metering region covers the whole subject.
+    private static final float REGION_MARGIN = 0.1f;
+
+    private final Camera2Source mCamera;
+    private final MeteringPolicy mPolicy;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mEnabled = true;
+
+    // Resets the regions once the results they came from are stale.
+    private final Runnable mStaleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            apply(mPolicy.checkStale(now), null);
+            scheduleStaleCheck(now);
+        }
+    };
+
+    public MeteringController(Camera2Source camera) {
+        this(camera, DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_RESET_AFTER_MILLIS);
+    }
+
+    /**
+     * @param minIntervalMillis minimum time between two updates of the repeating request
+     * @param resetAfterMillis time without detections, or without any results, after which the
+     *     whole scene is metered again
+     */
+    public MeteringController(Camera2Source camera, long minIntervalMillis, long resetAfterMillis) {
+        this.mCamera = camera;
+        this.mPolicy = new MeteringPolicy(minIntervalMillis, resetAfterMillis);
+    }
+
+    /** Allows comparing detection success rates with and without steering. */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled && mPolicy.disable()) {
+            resetMetering();
+        }
+    }
+
+    /** Should be called once the controller no longer gets results. */
+    public void stop() {
+        mHandler.removeCallbacks(mStaleCheck);
+    }
+
+    @Override
+    public void onDetections(@NonNull DetectionEvent event) {
+        if (!mEnabled) {
+            return;
+        }
+        int type = event.getDetectorType();
+        if (type != DetectionEvent.DETECTOR_FACE && type != DetectionEvent.DETECTOR_BARCODE) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        apply(mPolicy.onResults(event.getCount(), now), event);
+        scheduleStaleCheck(now);
+    }
+
+    @Override
+    public void onDetectionFailed(@NonNull Exception e) {
+        if (mEnabled) {
+            apply(mPolicy.onFailure(SystemClock.elapsedRealtime()), null);
+        }
+    }
+
+    private void apply(MeteringPolicy.Action action, DetectionEvent event) {
+        switch (action) {
+            case UPDATE:
+                List<Rect> regions = new ArrayList<>(event.getCount());
+                for (int i = 0; i < event.getCount(); i++) {
+                    Rect box = new Rect(event.getBox(i));
+                    int dx = Math.round(box.width() * REGION_MARGIN);
+                    int dy = Math.round(box.height() * REGION_MARGIN);
+                    box.inset(-dx, -dy);
+                    regions.add(box);
+                }
+                mCamera.setMeteringRegions(regions, event.getFrameWidth(), event.getFrameHeight());
+                break;
+            case RESET:
+                resetMetering();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void scheduleStaleCheck(long now) {
+        mHandler.removeCallbacks(mStaleCheck);
+        long delay = mPolicy.millisUntilStale(now);
+        if (delay != MeteringPolicy.NOT_ON_REGIONS) {
+            mHandler.postDelayed(mStaleCheck, delay);
+        }
+    }
+
+    private void resetMetering() {
+        Log.d(TAG, "Metering the whole scene again");
+        mCamera.setMeteringRegions(new ArrayList<Rect>(), 1, 1);
+    }
+}
@@ -0,0 +1,107 @@
+package com.steigensoft.atcamera;
+
+/**
+ * The decisions behind {@link MeteringController}: when the metering regions are moved to the
+ * latest detections, and when metering goes back to the whole scene. It does so after a while
+ * without detections, when the detector fails, and when no results arrive at all any more, so
+ * regions of a subject that left are not kept while the detector is stalled.
+ *
+ * <p>Times are {@link android.os.SystemClock#elapsedRealtime()} milliseconds. Thread safe.
+ */
+public class MeteringPolicy {
+
+    public enum Action {
+        /** Leave the metering as it is. */
+        NONE,
+        /** Meter on the regions of the current results. */
+        UPDATE,
+        /** Meter the whole scene again. */
+        RESET
+    }
+
+    /** Returned by {@link #millisUntilStale(long)} while the whole scene is metered. */
+    public static final long NOT_ON_REGIONS = -1;
+
+    private static final long NEVER = Long.MIN_VALUE / 2;
+
+    private final long mMinIntervalMillis;
+    private final long mResetAfterMillis;
+
+    // Guarded by this.
+    private long mLastUpdateMillis = NEVER;
+    private long mLastDetectionMillis = NEVER;
+    private long mLastResultsMillis = NEVER;
+    private boolean mMeteringOnRegions = false;
+
+    /**
+     * @param minIntervalMillis minimum time between two updates of the repeating request
+     * @param resetAfterMillis time without detections, or without any results, after which the
+     *     whole scene is metered again
+     */
+    public MeteringPolicy(long minIntervalMillis, long resetAfterMillis) {
+        this.mMinIntervalMillis = minIntervalMillis;
+        this.mResetAfterMillis = resetAfterMillis;
+    }
+
+    /** Called with every result set, count being the number of objects found. */
+    public synchronized Action onResults(int count, long now) {
+        mLastResultsMillis = now;
+        if (count == 0) {
+            if (mMeteringOnRegions && now - mLastDetectionMillis >= mResetAfterMillis) {
+                return reset(now);
+            }
+            return Action.NONE;
+        }
+        mLastDetectionMillis = now;
+        if (now - mLastUpdateMillis < mMinIntervalMillis) {
+            return Action.NONE;
+        }
+        mMeteringOnRegions = true;
+        mLastUpdateMillis = now;
+        return Action.UPDATE;
+    }
+
+    /** Called when an inference failed: the regions can't be trusted to follow the subject. */
+    public synchronized Action onFailure(long now) {
+        return mMeteringOnRegions ? reset(now) : Action.NONE;
+    }
+
+    /** Called periodically while metering on regions, see {@link #millisUntilStale(long)}. */
+    public synchronized Action checkStale(long now) {
+        if (mMeteringOnRegions && now - mLastResultsMillis >= mResetAfterMillis) {
+            return reset(now);
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * @return the time after which the results in use go stale, or {@link #NOT_ON_REGIONS}
+     */
+    public synchronized long millisUntilStale(long now) {
+        if (!mMeteringOnRegions) {
+            return NOT_ON_REGIONS;
+        }
+        return Math.max(0, mLastResultsMillis + mResetAfterMillis - now);
+    }
+
+    /**
+     * Forgets the regions, e.g. when steering is disabled.
+     *
+     * @return whether metering was on regions and has to be reset
+     */
+    public synchronized boolean disable() {
+        boolean wasOnRegions = mMeteringOnRegions;
+        mMeteringOnRegions = false;
+        return wasOnRegions;
+    }
+
+    public synchronized boolean isMeteringOnRegions() {
+        return mMeteringOnRegions;
+    }
+
+    private Action reset(long now) {
+        mMeteringOnRegions = false;
+        mLastUpdateMillis = now;
+        return Action.RESET;
+    }
+}
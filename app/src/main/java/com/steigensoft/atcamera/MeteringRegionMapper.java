@@ -0,0 +1,124 @@
+package com.steigensoft.atcamera;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.ViewTransform;
+
+/**
+ * Maps boxes found on analysed frames to sensor active array coordinates for the AE and AF
+ * regions.
+ *
+ * <p>Frames grabbed from the preview TextureView are in view coordinates: the camera image,
+ * upright for the natural orientation of the display, stretched over the view and then moved by
+ * the {@link ViewTransform} configureTransform() set for the display rotation. That transform is
+ * undone first, then the sensor orientation. Frames of the analysis stream have no view
+ * transform and only the sensor orientation is undone.
+ *
+ * <p>Only the fields of {@link Rect} are used, so the arithmetic runs on the JVM. Thread safe.
+ */
+public class MeteringRegionMapper {
+    private static final String TAG = MeteringRegionMapper.class.getSimpleName();
+
+    // Guarded by this.
+    private final Rect mActiveArray = new Rect();
+    private boolean mHasSensor = false;
+    private int mSensorOrientation;
+    private ViewTransform mViewTransform;
+    private final float[] mRect = new float[4];
+
+    /**
+     * Sets the geometry of the sensor, from the camera characteristics.
+     *
+     * @param sensorOrientation clockwise rotation of the sensor image to upright, in degrees
+     */
+    public synchronized void setSensor(Rect activeArray, int sensorOrientation) {
+        mActiveArray.left = activeArray.left;
+        mActiveArray.top = activeArray.top;
+        mActiveArray.right = activeArray.right;
+        mActiveArray.bottom = activeArray.bottom;
+        mSensorOrientation = sensorOrientation;
+        mHasSensor = true;
+    }
+
+    public synchronized boolean hasSensor() {
+        return mHasSensor;
+    }
+
+    /** Sets the transform of the view frames are grabbed from. */
+    public synchronized void setViewTransform(ViewTransform transform) {
+        if (!transform.isInvertible()) {
+            Log.w(TAG, "Ignoring a view transform that cannot be inverted");
+            clearViewTransform();
+            return;
+        }
+        mViewTransform = transform;
+    }
+
+    /** Frames are not grabbed from a view, e.g. they come from the analysis stream. */
+    public synchronized void clearViewTransform() {
+        mViewTransform = null;
+    }
+
+    /**
+     * Maps a box of a frameWidth x frameHeight frame to the active array, clipped to it.
+     *
+     * @return false if nothing of the box is left, or the sensor is not known yet
+     */
+    public synchronized boolean map(Rect box, int frameWidth, int frameHeight, Rect out) {
+        if (!mHasSensor || frameWidth <= 0 || frameHeight <= 0) {
+            return false;
+        }
+        // Normalized coordinates of the upright camera image.
+        mRect[0] = box.left / (float) frameWidth;
+        mRect[1] = box.top / (float) frameHeight;
+        mRect[2] = box.right / (float) frameWidth;
+        mRect[3] = box.bottom / (float) frameHeight;
+        if (mViewTransform != null) {
+            mViewTransform.fromView(mRect, 0);
+        }
+        float left = Math.max(0f, mRect[0]);
+        float top = Math.max(0f, mRect[1]);
+        float right = Math.min(1f, mRect[2]);
+        float bottom = Math.min(1f, mRect[3]);
+        if (right <= left || bottom <= top) {
+            return false;
+        }
+
+        // Undo the clockwise rotation that turns the sensor image upright.
+        float sensorLeft, sensorTop, sensorRight, sensorBottom;
+        switch (mSensorOrientation) {
+            case 90:
+                sensorLeft = top;
+                sensorTop = 1f - right;
+                sensorRight = bottom;
+                sensorBottom = 1f - left;
+                break;
+            case 180:
+                sensorLeft = 1f - right;
+                sensorTop = 1f - bottom;
+                sensorRight = 1f - left;
+                sensorBottom = 1f - top;
+                break;
+            case 270:
+                sensorLeft = 1f - bottom;
+                sensorTop = left;
+                sensorRight = 1f - top;
+                sensorBottom = right;
+                break;
+            default:
+                sensorLeft = left;
+                sensorTop = top;
+                sensorRight = right;
+                sensorBottom = bottom;
+                break;
+        }
+        int width = mActiveArray.right - mActiveArray.left;
+        int height = mActiveArray.bottom - mActiveArray.top;
+        out.left = mActiveArray.left + Math.round(sensorLeft * width);
+        out.top = mActiveArray.top + Math.round(sensorTop * height);
+        out.right = mActiveArray.left + Math.round(sensorRight * width);
+        out.bottom = mActiveArray.top + Math.round(sensorBottom * height);
+        return true;
+    }
+}
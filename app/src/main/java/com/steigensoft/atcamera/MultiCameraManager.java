@@ -0,0 +1,217 @@
+package com.steigensoft.atcamera;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+
+import com.google.firebase.ml.common.FirebaseMLException;
+import com.steigensoft.atcamera.mlkit.DefaultExecutorSupplier;
+import com.steigensoft.atcamera.mlkit.FairDetectorPool;
+import com.steigensoft.atcamera.mlkit.Frame;
+import com.steigensoft.atcamera.mlkit.FrameMetadata;
+import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+import com.steigensoft.atcamera.mlkit.VisionImageProcessor;
+import com.steigensoft.atcamera.mlkit.pipeline.ProcessorStage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Opens every camera reported by the device at once. Each camera gets its own Camera2Source,
+ * HandlerThread, analysis stream and processor, while detection runs on a single bounded
+ * {@link FairDetectorPool} so that a busy camera cannot starve the others.
+ */
+public class MultiCameraManager {
+    private static final String TAG = MultiCameraManager.class.getSimpleName();
+
+    /** Creates the processor used for one camera. */
+    public interface ProcessorFactory {
+        VisionImageProcessor create(String cameraId);
+    }
+
+    private final AppCompatActivity mActivity;
+    private final ProcessorFactory mProcessorFactory;
+    private final Map<String, GraphicOverlay> mOverlays = new LinkedHashMap<>();
+    private final Map<String, CameraPipeline> mPipelines = new LinkedHashMap<>();
+    private FairDetectorPool mDetectorPool;
+
+    public MultiCameraManager(AppCompatActivity activity, ProcessorFactory processorFactory) {
+        this.mActivity = activity;
+        this.mProcessorFactory = processorFactory;
+    }
+
+    /** Draws the results of the given camera on the overlay. Should be called before start(). */
+    public void setGraphicOverlay(String cameraId, GraphicOverlay overlay) {
+        mOverlays.put(cameraId, overlay);
+    }
+
+    /**
+     * Opens all cameras with an analysis stream of at most the given size.
+     *
+     * @param cameraIds cameras to open, or null for every camera on the device
+     */
+    public void start(String[] cameraIds, int analysisWidth, int analysisHeight) {
+        if (cameraIds == null) {
+            cameraIds = Camera2Source.getCameraIds(mActivity);
+        }
+        if (cameraIds.length == 0) {
+            Log.d(TAG, "No cameras found");
+            return;
+        }
+        int workers = Math.min(cameraIds.length, DefaultExecutorSupplier.NUMBER_OF_CORES);
+        mDetectorPool = new FairDetectorPool(workers);
+        for (String id : cameraIds) {
+            CameraPipeline pipeline = new CameraPipeline(id);
+            mPipelines.put(id, pipeline);
+            pipeline.start(analysisWidth, analysisHeight);
+        }
+        Log.d(TAG, "Started " + mPipelines.size() + " cameras with " + workers + " detector workers");
+    }
+
+    public void stop() {
+        // Closing a camera closes the images of its reader, detection has to be done with them.
+        if (mDetectorPool != null) {
+            mDetectorPool.shutdown();
+            mDetectorPool = null;
+        }
+        for (CameraPipeline pipeline : mPipelines.values()) {
+            pipeline.stopCamera();
+        }
+        for (CameraPipeline pipeline : mPipelines.values()) {
+            pipeline.release();
+        }
+        mPipelines.clear();
+    }
+
+    public List<String> getCameraIds() {
+        return Collections.unmodifiableList(new ArrayList<>(mPipelines.keySet()));
+    }
+
+    /** Returns the frame rate and latency counters of one camera, or null if it isn't open. */
+    public StreamMetrics getMetrics(String cameraId) {
+        CameraPipeline pipeline = mPipelines.get(cameraId);
+        return pipeline != null ? pipeline.mMetrics : null;
+    }
+
+    public Map<String, StreamMetrics> getAllMetrics() {
+        Map<String, StreamMetrics> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, CameraPipeline> entry : mPipelines.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().mMetrics);
+        }
+        return metrics;
+    }
+
+    /** One camera with its own handler thread, analysis stream and processor. */
+    private class CameraPipeline implements ImageReader.OnImageAvailableListener {
+        private final String mCameraId;
+        private final StreamMetrics mMetrics;
+        private final HandlerThread mCameraThread;
+        private final Handler mCameraHandler;
+        private final VisionImageProcessor mProcessor;
+        private final GraphicOverlay mOverlay;
+        private final ProcessorStage mDetectStage;
+        private final Camera2Source mCamera;
+        private int mRotation;
+
+        CameraPipeline(String cameraId) {
+            mCameraId = cameraId;
+            mMetrics = new StreamMetrics("camera-" + cameraId);
+            mCameraThread = new HandlerThread("CameraBackground-" + cameraId);
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+            mProcessor = mProcessorFactory.create(cameraId);
+            mOverlay = mOverlays.get(cameraId);
+            mDetectStage = new ProcessorStage(mProcessor, mOverlay);
+            mCamera = new Camera2Source(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                }
+            }, mCameraHandler);
+            mCamera.setCameraId(cameraId);
+        }
+
+        void start(int analysisWidth, int analysisHeight) {
+            mCamera.setAnalysisListener(this, new Size(analysisWidth, analysisHeight));
+            mCamera.setUpCameraOutputs(mActivity, analysisWidth, analysisHeight);
+            // FirebaseVisionImageMetadata rotations are expressed in quarter turns.
+            mRotation = mCamera.getSensorOrientation() / 90;
+            mCamera.openCamera(mActivity);
+        }
+
+        void stopCamera() {
+            try {
+                long timeout = ProcessorStage.DEFAULT_INFERENCE_TIMEOUT_MILLIS;
+                if (!mDetectStage.releaseLingering(timeout)) {
+                    Log.w(TAG, "Camera " + mCameraId + " closed with an inference still running");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mCamera.shutDown();
+        }
+
+        void release() {
+            mProcessor.stop();
+            mCameraThread.quitSafely();
+            try {
+                mCameraThread.join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            final Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            final long arrivalNanos = System.nanoTime();
+            mMetrics.onFrameReceived();
+            final Frame frame = Frame.ofImage(image, new FrameMetadata.Builder()
+                    .setWidth(image.getWidth())
+                    .setHeight(image.getHeight())
+                    .setRotation(mRotation)
+                    .build());
+            FairDetectorPool pool = mDetectorPool;
+            if (pool == null) {
+                frame.release();
+                mMetrics.onFrameDropped();
+                return;
+            }
+            pool.submit(mCameraId, new FairDetectorPool.Job() {
+                @Override
+                public void run() {
+                    // The worker, and the image ML Kit reads from, are held until the inference
+                    // is done, so the pool's shares bound detector work and not just submissions.
+                    try {
+                        mDetectStage.detect(frame);
+                    } catch (FirebaseMLException e) {
+                        Log.e(TAG, "Failed to process frame from camera " + mCameraId, e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        frame.release();
+                    }
+                    // From arrival in the lane until the result.
+                    mMetrics.onFrameProcessed(System.nanoTime() - arrivalNanos);
+                }
+
+                @Override
+                public void discard() {
+                    frame.release();
+                    mMetrics.onFrameDropped();
+                }
+            });
+        }
+    }
+}
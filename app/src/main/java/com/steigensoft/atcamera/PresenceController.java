@@ -0,0 +1,192 @@
+package com.steigensoft.atcamera;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+import com.steigensoft.atcamera.mlkit.LumaSampler;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Duty cycles the pipeline on whether anybody is in front of the camera. While detections are
+ * recent the pipeline is {@link State#ACTIVE} and every frame is analysed. Once nothing has been
+ * detected for a while it goes {@link State#IDLE}: only a couple of small frames per second are
+ * looked at, and only for motion. Motion in one of them, or a face in the HAL statistics, which
+ * keep arriving at the capture rate, makes it active again at once, so the frame after the wake
+ * up already goes to the detector.
+ *
+ * <p>Times are {@link SystemClock#elapsedRealtime()} milliseconds.
+ */
+public class PresenceController implements DetectionListener {
+    private static final String TAG = PresenceController.class.getSimpleName();
+
+    public enum State { ACTIVE, IDLE }
+
+    /**
+     * Called on the thread that caused the transition, with the controller locked so that
+     * transitions are reported in order. Must not block.
+     */
+    public interface Listener {
+        void onStateChanged(State state);
+    }
+
+    public static final long DEFAULT_IDLE_AFTER_MILLIS = 15000;
+    public static final double DEFAULT_IDLE_FPS = 2.0;
+    // Size of the frames looked at while idle.
+    public static final int IDLE_FRAME_WIDTH = 160;
+    public static final int IDLE_FRAME_HEIGHT = 120;
+
+    private static final int SAMPLE_STEP = 4;
+    // A sample changed by more than this much luma counts as moved...
+    private static final int MOTION_DELTA = 24;
+    // ...and a frame with more than this fraction of moved samples counts as motion.
+    private static final float DEFAULT_MOTION_FRACTION = 0.01f;
+    private static final long NEVER = Long.MIN_VALUE / 2;
+
+    private final long mIdleAfterMillis;
+    private final double mIdleFps;
+    private final long mIdleIntervalMillis;
+    private final float mMotionFraction;
+    private final LumaSampler mSampler = new LumaSampler(SAMPLE_STEP);
+    private volatile Listener mListener;
+
+    // Guarded by this.
+    private State mState = State.ACTIVE;
+    private long mLastPresenceMillis = NEVER;
+    private long mLastIdleFrameMillis = NEVER;
+    private byte[] mReference = new byte[0];
+    private boolean mHasReference = false;
+    private long mWakeCount;
+
+    public PresenceController() {
+        this(DEFAULT_IDLE_AFTER_MILLIS, DEFAULT_IDLE_FPS, DEFAULT_MOTION_FRACTION);
+    }
+
+    /**
+     * @param idleAfterMillis time without detections after which the pipeline goes idle
+     * @param idleFps rate of the frames checked for motion while idle
+     * @param motionFraction fraction of the frame that has to change to wake the pipeline
+     */
+    public PresenceController(long idleAfterMillis, double idleFps, float motionFraction) {
+        this.mIdleAfterMillis = idleAfterMillis;
+        this.mIdleFps = idleFps;
+        this.mIdleIntervalMillis = Math.round(1000.0 / idleFps);
+        this.mMotionFraction = motionFraction;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public double getIdleFps() {
+        return mIdleFps;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized boolean isIdle() {
+        return mState == State.IDLE;
+    }
+
+    /** Number of times the pipeline was woken up from idle. */
+    public synchronized long getWakeCount() {
+        return mWakeCount;
+    }
+
+    /**
+     * Called for every frame the camera delivers. Goes idle once presence is too old, and
+     * tells whether the frame should be analysed at all: always while active, at the idle rate
+     * while idle. Idle frames go to {@link #onIdleFrame(Bitmap, long)} instead of the detector.
+     */
+    public synchronized boolean shouldAnalyze(long now) {
+        if (mLastPresenceMillis == NEVER) {
+            mLastPresenceMillis = now;
+        }
+        if (mState == State.ACTIVE) {
+            if (now - mLastPresenceMillis < mIdleAfterMillis) {
+                return true;
+            }
+            mState = State.IDLE;
+            mHasReference = false;
+            notifyState(State.IDLE);
+        } else if (now - mLastIdleFrameMillis < mIdleIntervalMillis) {
+            return false;
+        }
+        // The frame that found the pipeline idle is the first reference for motion.
+        mLastIdleFrameMillis = now;
+        return true;
+    }
+
+    /** Looks for motion in a small frame taken while idle, waking the pipeline if there is any. */
+    public synchronized void onIdleFrame(Bitmap frame, long now) {
+        mSampler.sample(frame);
+        onIdleSamples(mSampler.getSamples(), mSampler.getGridWidth() * mSampler.getGridHeight(),
+                now);
+    }
+
+    /** Looks for motion in the luma samples of an idle frame. */
+    synchronized boolean onIdleSamples(byte[] samples, int count, long now) {
+        if (!compareWithReference(samples, count)) {
+            return false;
+        }
+        onPresence(now);
+        return true;
+    }
+
+    // Guarded by this. The reference is replaced by every frame, so slow changes such as dusk
+    // never add up to motion.
+    private boolean compareWithReference(byte[] samples, int count) {
+        boolean comparable = mHasReference && mReference.length == count;
+        int moved = 0;
+        if (comparable) {
+            for (int i = 0; i < count; i++) {
+                if (Math.abs((samples[i] & 0xff) - (mReference[i] & 0xff)) > MOTION_DELTA) {
+                    moved++;
+                }
+            }
+        }
+        if (mReference.length != count) {
+            mReference = new byte[count];
+        }
+        System.arraycopy(samples, 0, mReference, 0, count);
+        mHasReference = true;
+        return comparable && moved > mMotionFraction * count;
+    }
+
+    /** Called with the number of faces in the STATISTICS_FACES of each capture result. */
+    public void onHardwareFaces(int count, long now) {
+        if (count > 0) {
+            onPresence(now);
+        }
+    }
+
+    @Override
+    public void onDetections(@NonNull DetectionEvent event) {
+        if (event.getCount() > 0) {
+            onPresence(SystemClock.elapsedRealtime());
+        }
+    }
+
+    private synchronized void onPresence(long now) {
+        mLastPresenceMillis = now;
+        if (mState == State.ACTIVE) {
+            return;
+        }
+        mState = State.ACTIVE;
+        mWakeCount++;
+        notifyState(State.ACTIVE);
+    }
+
+    private void notifyState(State state) {
+        Log.d(TAG, "Pipeline " + state);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onStateChanged(state);
+        }
+    }
+}
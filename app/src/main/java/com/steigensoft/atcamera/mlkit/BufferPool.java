@@ -0,0 +1,119 @@
+package com.steigensoft.atcamera.mlkit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of array backed ByteBuffers for frame data. Buffers only grow when a frame larger
+ * than any seen before arrives, after which the larger buffers are the ones kept in the pool, so
+ * a stream of similar frames runs without allocating.
+ *
+ * <p>A pool given a {@link MemoryBudget.Stage} accounts every buffer it allocated and has not
+ * dropped yet, whether pooled or handed out.
+ */
+public class BufferPool {
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final int maxPooled;
+    private final MemoryBudget.Stage stage;
+    private int capacity;
+    private int allocated;
+
+    /**
+     * @param initialCapacity size of newly allocated buffers until a larger one is requested
+     * @param maxPooled maximum number of free buffers kept for reuse
+     */
+    public BufferPool(int initialCapacity, int maxPooled) {
+        this(initialCapacity, maxPooled, null);
+    }
+
+    /**
+     * @param stage accounts the pool's buffers, or null for none
+     */
+    public BufferPool(int initialCapacity, int maxPooled, MemoryBudget.Stage stage) {
+        this.capacity = initialCapacity;
+        this.maxPooled = maxPooled;
+        this.stage = stage;
+    }
+
+    /**
+     * Returns a cleared buffer with at least the given capacity. Any new buffer is accounted
+     * even above the budget's ceiling, for callers that cannot drop what they are reading.
+     */
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        ByteBuffer buffer = take(minCapacity);
+        if (buffer == null) {
+            buffer = allocate();
+            if (stage != null) {
+                stage.reserve(buffer.capacity());
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Like {@link #acquire(int)}, but returns null instead of allocating a buffer the budget has
+     * no room for. For sources that can drop the frame.
+     */
+    public synchronized ByteBuffer tryAcquire(int minCapacity) {
+        ByteBuffer buffer = take(minCapacity);
+        if (buffer == null) {
+            if (stage != null && !stage.tryReserve(capacity)) {
+                return null;
+            }
+            buffer = allocate();
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private ByteBuffer take(int minCapacity) {
+        if (minCapacity > capacity) {
+            // Everything pooled is now too small, let it go. Grow with some headroom so a stream
+            // of slowly growing frames does not reallocate on every frame.
+            capacity = Math.max(minCapacity, capacity + capacity / 2);
+            while (!free.isEmpty()) {
+                drop(free.pollFirst());
+            }
+        }
+        return free.pollFirst();
+    }
+
+    private ByteBuffer allocate() {
+        allocated++;
+        return ByteBuffer.allocate(capacity);
+    }
+
+    private void drop(ByteBuffer buffer) {
+        if (stage != null) {
+            stage.release(buffer.capacity());
+        }
+    }
+
+    /** Returns a buffer to the pool. Buffers smaller than the current size are dropped. */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer.capacity() >= capacity && free.size() < maxPooled) {
+            free.addLast(buffer);
+        } else {
+            drop(buffer);
+        }
+    }
+
+    /** Drops the pooled buffers, e.g. when the stream stops. Buffers handed out stay accounted. */
+    public synchronized void clear() {
+        while (!free.isEmpty()) {
+            drop(free.pollFirst());
+        }
+    }
+
+    /** Capacity of the buffers currently handed out. */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** Number of buffers allocated over the lifetime of the pool. */
+    public synchronized int getAllocatedCount() {
+        return allocated;
+    }
+}
@@ -0,0 +1,165 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Rect;
+
+/**
+ * Detector neutral description of one result set, filled by {@link VisionProcessorBase}
+ * subclasses and handed to every {@link DetectionListener}.
+ *
+ * <p>Instances are preallocated and reused for every result set of a processor, so listeners
+ * must copy whatever they want to keep before returning.
+ */
+public class DetectionEvent {
+
+    public static final int MAX_DETECTIONS = 32;
+
+    public static final int DETECTOR_UNKNOWN = 0;
+    public static final int DETECTOR_FACE = 1;
+    public static final int DETECTOR_BARCODE = 2;
+    public static final int DETECTOR_TEXT = 3;
+
+    /** Value used for probabilities and tracking ids the detector didn't compute. */
+    public static final int UNCOMPUTED = -1;
+
+    private long timestampMillis;
+    private int cameraId;
+    private int detectorType;
+    private int frameWidth;
+    private int frameHeight;
+    private int count;
+
+    private final Rect[] boxes = new Rect[MAX_DETECTIONS];
+    private final int[] trackingIds = new int[MAX_DETECTIONS];
+    private final int[] formats = new int[MAX_DETECTIONS];
+    private final float[] smilingProbabilities = new float[MAX_DETECTIONS];
+    private final float[] leftEyeOpenProbabilities = new float[MAX_DETECTIONS];
+    private final float[] rightEyeOpenProbabilities = new float[MAX_DETECTIONS];
+    private final String[] rawValues = new String[MAX_DETECTIONS];
+
+    public DetectionEvent() {
+        for (int i = 0; i < MAX_DETECTIONS; i++) {
+            boxes[i] = new Rect();
+        }
+    }
+
+    /** Clears all detections and starts describing a new result set. */
+    public void reset(int detectorType, long timestampMillis, int frameWidth, int frameHeight) {
+        this.detectorType = detectorType;
+        this.timestampMillis = timestampMillis;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        for (int i = 0; i < count; i++) {
+            rawValues[i] = null;
+        }
+        count = 0;
+    }
+
+    /** Sets the camera the results came from. Kept across {@link #reset}. */
+    public void setCameraId(int cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    public void setDetectorType(int detectorType) {
+        this.detectorType = detectorType;
+    }
+
+    /**
+     * Appends a detection with the given bounding box.
+     *
+     * @return index of the new detection, or -1 once {@link #MAX_DETECTIONS} is reached
+     */
+    public int add(Rect box) {
+        return add(box.left, box.top, box.right, box.bottom);
+    }
+
+    /** Appends a detection with the given bounding box, see {@link #add(Rect)}. */
+    public int add(int left, int top, int right, int bottom) {
+        if (count == MAX_DETECTIONS) {
+            return -1;
+        }
+        int index = count++;
+        // Fields rather than set(), so events can be filled and encoded on the JVM too.
+        Rect box = boxes[index];
+        box.left = left;
+        box.top = top;
+        box.right = right;
+        box.bottom = bottom;
+        trackingIds[index] = UNCOMPUTED;
+        formats[index] = UNCOMPUTED;
+        smilingProbabilities[index] = UNCOMPUTED;
+        leftEyeOpenProbabilities[index] = UNCOMPUTED;
+        rightEyeOpenProbabilities[index] = UNCOMPUTED;
+        rawValues[index] = null;
+        return index;
+    }
+
+    public void setTrackingId(int index, int trackingId) {
+        trackingIds[index] = trackingId;
+    }
+
+    public void setFormat(int index, int format) {
+        formats[index] = format;
+    }
+
+    public void setProbabilities(int index, float smiling, float leftEyeOpen, float rightEyeOpen) {
+        smilingProbabilities[index] = smiling;
+        leftEyeOpenProbabilities[index] = leftEyeOpen;
+        rightEyeOpenProbabilities[index] = rightEyeOpen;
+    }
+
+    public void setRawValue(int index, String rawValue) {
+        rawValues[index] = rawValue;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public int getCameraId() {
+        return cameraId;
+    }
+
+    public int getDetectorType() {
+        return detectorType;
+    }
+
+    public int getFrameWidth() {
+        return frameWidth;
+    }
+
+    public int getFrameHeight() {
+        return frameHeight;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public Rect getBox(int index) {
+        return boxes[index];
+    }
+
+    public int getTrackingId(int index) {
+        return trackingIds[index];
+    }
+
+    public int getFormat(int index) {
+        return formats[index];
+    }
+
+    public float getSmilingProbability(int index) {
+        return smilingProbabilities[index];
+    }
+
+    public float getLeftEyeOpenProbability(int index) {
+        return leftEyeOpenProbabilities[index];
+    }
+
+    public float getRightEyeOpenProbability(int index) {
+        return rightEyeOpenProbabilities[index];
+    }
+
+    public String getRawValue(int index) {
+        return rawValues[index];
+    }
+}
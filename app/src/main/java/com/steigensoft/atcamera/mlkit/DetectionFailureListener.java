@@ -0,0 +1,9 @@
+package com.steigensoft.atcamera.mlkit;
+
+import androidx.annotation.NonNull;
+
+/** Learns about inferences of a {@link VisionProcessorBase} that failed, on the main thread. */
+public interface DetectionFailureListener {
+
+    void onDetectionFailed(@NonNull Exception e);
+}
@@ -0,0 +1,13 @@
+package com.steigensoft.atcamera.mlkit;
+
+import androidx.annotation.NonNull;
+
+/** Receives every result set of a {@link VisionProcessorBase}, on the thread delivering results. */
+public interface DetectionListener {
+
+    /**
+     * Called once per completed inference, including inferences that found nothing. The event is
+     * reused by the processor and is only valid until this method returns.
+     */
+    void onDetections(@NonNull DetectionEvent event);
+}
@@ -0,0 +1,248 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A bounded pool of detector workers shared by several frame sources.
+ *
+ * <p>Every source submits to its own lane. A lane holds at most one pending job and runs at most
+ * one job at a time, a newer submission replaces (and discards) the pending one. Lanes with work
+ * are served by stride scheduling: each lane advances a virtual clock by the inverse of its
+ * weight whenever it runs, and the ready lane with the earliest clock goes next. With equal
+ * weights this is plain round robin, so a source producing frames faster than the others cannot
+ * starve them; a lane with weight 2 gets twice the turns of a lane with weight 1 under load.
+ *
+ * <p>Optionally an {@link InferenceTokenBucket} caps the total rate, lanes can be boosted for a
+ * while (e.g. after a detection), and a lane whose processor is still busy is passed over.
+ */
+public class FairDetectorPool {
+    private static final String TAG = FairDetectorPool.class.getSimpleName();
+
+    // Virtual time a lane of weight 1 advances per job.
+    private static final long STRIDE = 1 << 20;
+    private static final int BOOST_FACTOR = 2;
+    // How often workers look again at lanes passed over because their processor was busy.
+    private static final long BUSY_POLL_MILLIS = 5;
+
+    /** A unit of work for one frame. Exactly one of run() or discard() is called. */
+    public interface Job {
+        void run();
+
+        void discard();
+    }
+
+    private static class Lane {
+        final String id;
+        Job pending;
+        boolean queued;
+        boolean running;
+        int weight = 1;
+        long boostUntilMillis;
+        long pass;
+        VisionImageProcessor processor;
+
+        Lane(String id) {
+            this.id = id;
+        }
+
+        long stride(long now) {
+            int effective = now < boostUntilMillis ? weight * BOOST_FACTOR : weight;
+            return STRIDE / effective;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Map<String, Lane> lanes = new HashMap<>();
+    private final List<Lane> readyLanes = new ArrayList<>();
+    private final Thread[] workers;
+    private boolean active = true;
+    // Virtual time of the last lane started, idle lanes rejoin from here.
+    private long globalPass;
+    private InferenceTokenBucket tokenBucket;
+
+    public FairDetectorPool(int workerCount) {
+        ThreadFactory threadFactory = new PriorityThreadFactory(Process.THREAD_PRIORITY_BACKGROUND);
+        workers = new Thread[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = threadFactory.newThread(new Worker());
+            workers[i].setName("DetectorWorker-" + i);
+            workers[i].start();
+        }
+    }
+
+    /** Caps the rate at which jobs start across all lanes, or null for no cap. */
+    public void setTokenBucket(InferenceTokenBucket bucket) {
+        synchronized (lock) {
+            tokenBucket = bucket;
+            lock.notifyAll();
+        }
+    }
+
+    /** Sets the share of a lane relative to the others, 1 by default. */
+    public void setWeight(String laneId, int weight) {
+        synchronized (lock) {
+            getLane(laneId).weight = Math.max(1, weight);
+        }
+    }
+
+    /** Doubles the weight of a lane for the given time. */
+    public void boost(String laneId, long durationMillis) {
+        synchronized (lock) {
+            getLane(laneId).boostUntilMillis = SystemClock.uptimeMillis() + durationMillis;
+        }
+    }
+
+    /**
+     * Associates the processor a lane's jobs feed. While it is not ready for a frame the lane is
+     * passed over, so its job waits and keeps being replaced by newer frames instead of spending
+     * a turn, and a token, on a frame the processor would drop.
+     */
+    public void setLaneProcessor(String laneId, VisionImageProcessor processor) {
+        synchronized (lock) {
+            getLane(laneId).processor = processor;
+        }
+    }
+
+    private Lane getLane(String laneId) {
+        Lane lane = lanes.get(laneId);
+        if (lane == null) {
+            lane = new Lane(laneId);
+            lanes.put(laneId, lane);
+        }
+        return lane;
+    }
+
+    /**
+     * Queues the job on the given lane. If the lane already has a pending job, that job is
+     * discarded in favour of the new one.
+     */
+    public void submit(String laneId, Job job) {
+        Job replaced;
+        synchronized (lock) {
+            if (!active) {
+                replaced = job;
+            } else {
+                Lane lane = getLane(laneId);
+                replaced = lane.pending;
+                lane.pending = job;
+                if (!lane.queued && !lane.running) {
+                    enqueue(lane);
+                }
+            }
+        }
+        if (replaced != null) {
+            replaced.discard();
+        }
+    }
+
+    private void enqueue(Lane lane) {
+        // A lane that sat idle does not get to spend the turns it missed all at once.
+        lane.pass = Math.max(lane.pass, globalPass);
+        lane.queued = true;
+        readyLanes.add(lane);
+        lock.notify();
+    }
+
+    /** Stops all workers. Pending jobs are discarded, running ones are allowed to finish. */
+    public void shutdown() {
+        List<Job> discarded = new ArrayList<>();
+        synchronized (lock) {
+            active = false;
+            for (Lane lane : lanes.values()) {
+                if (lane.pending != null) {
+                    discarded.add(lane.pending);
+                    lane.pending = null;
+                }
+            }
+            readyLanes.clear();
+            lock.notifyAll();
+        }
+        for (Job job : discarded) {
+            job.discard();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** The ready lane with the earliest virtual time whose processor can take a frame. */
+    private Lane pickLane() {
+        Lane best = null;
+        for (Lane lane : readyLanes) {
+            if (lane.processor != null && !lane.processor.isReadyForFrame()) {
+                continue;
+            }
+            if (best == null || lane.pass < best.pass) {
+                best = lane;
+            }
+        }
+        return best;
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Lane lane;
+                Job job;
+                synchronized (lock) {
+                    while (true) {
+                        if (!active) {
+                            return;
+                        }
+                        long waitMillis = 0;
+                        if (!readyLanes.isEmpty()) {
+                            lane = pickLane();
+                            if (lane == null) {
+                                waitMillis = BUSY_POLL_MILLIS;
+                            } else if (tokenBucket == null || tokenBucket.tryAcquire()) {
+                                break;
+                            } else {
+                                waitMillis = Math.max(1, tokenBucket.millisUntilAvailable());
+                            }
+                        }
+                        try {
+                            lock.wait(waitMillis);
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Detector worker interrupted.", e);
+                            return;
+                        }
+                    }
+                    readyLanes.remove(lane);
+                    job = lane.pending;
+                    lane.pending = null;
+                    lane.queued = false;
+                    lane.running = true;
+                    globalPass = lane.pass;
+                    lane.pass += lane.stride(SystemClock.uptimeMillis());
+                }
+
+                try {
+                    job.run();
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from detector job on lane " + lane.id, t);
+                }
+
+                synchronized (lock) {
+                    lane.running = false;
+                    if (active && lane.pending != null && !lane.queued) {
+                        enqueue(lane);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A camera frame shared by several consumers without copies: a media Image, a pooled buffer or
+ * a bitmap, together with its {@link FrameMetadata} and a reference count. The frame starts
+ * with one reference, owned by its creator. A consumer keeping the frame beyond the call that
+ * handed it over calls {@link #retain()}, and every reference ends with one {@link #release()}.
+ * Once the last one is released the Image is closed, the buffer goes back to its pool or the
+ * bitmap's releaser runs, exactly once.
+ *
+ * <p>With {@link #setLeakDetection(boolean)} on, e.g. in debug builds, frames that become
+ * unreachable without being released are reported together with where they were created, and
+ * their Image or buffer is freed after all so the camera does not run out of them.
+ */
+public final class Frame {
+    private static final String TAG = Frame.class.getSimpleName();
+
+    /** Frees the data of a bitmap frame, e.g. returns the bitmap to a pool. */
+    public interface Releaser {
+        void release(Bitmap bitmap);
+    }
+
+    private static volatile boolean sLeakDetection = false;
+    private static final ReferenceQueue<Frame> sLeakQueue = new ReferenceQueue<>();
+    // Keeps the trackers reachable until their frame is released or collected.
+    private static final Set<LeakTracker> sTrackers =
+            Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+    private static final AtomicInteger sLeakCount = new AtomicInteger();
+
+    private final Payload payload;
+    private final FrameMetadata metadata;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final LeakTracker tracker;
+
+    private Frame(Payload payload, FrameMetadata metadata) {
+        this.payload = payload;
+        this.metadata = metadata;
+        if (sLeakDetection) {
+            reportLeaks();
+            tracker = new LeakTracker(this, payload);
+            sTrackers.add(tracker);
+        } else {
+            tracker = null;
+        }
+    }
+
+    /** Wraps an Image, which is closed once the frame is released. */
+    public static Frame ofImage(Image image, FrameMetadata metadata) {
+        return new Frame(new Payload(image, null, null, null, null), metadata);
+    }
+
+    /**
+     * Wraps a buffer from a pool, to which it goes back once the frame is released.
+     *
+     * @param pool takes the buffer back, or null if nobody does
+     */
+    public static Frame ofBuffer(ByteBuffer buffer, BufferPool pool, FrameMetadata metadata) {
+        return new Frame(new Payload(null, buffer, pool, null, null), metadata);
+    }
+
+    /**
+     * Wraps a bitmap.
+     *
+     * @param releaser called once the frame is released, or null if the bitmap is simply left
+     *     to the garbage collector
+     */
+    public static Frame ofBitmap(Bitmap bitmap, FrameMetadata metadata, Releaser releaser) {
+        return new Frame(new Payload(null, null, null, bitmap, releaser), metadata);
+    }
+
+    /**
+     * Turns reporting of frames that are never released on or off. Only frames created while it
+     * is on are tracked. Capturing where each frame was created is not free, keep it to debug
+     * builds.
+     */
+    public static void setLeakDetection(boolean enabled) {
+        sLeakDetection = enabled;
+    }
+
+    /**
+     * Logs and frees frames found leaked since the last call. Also runs whenever a tracked frame
+     * is created.
+     *
+     * @return the number of leaks reported over the lifetime of the process
+     */
+    public static int reportLeaks() {
+        LeakTracker leaked;
+        while ((leaked = (LeakTracker) sLeakQueue.poll()) != null) {
+            if (sTrackers.remove(leaked)) {
+                sLeakCount.incrementAndGet();
+                Log.e(TAG, "Frame was never released", leaked.createdAt);
+                leaked.payload.free();
+            }
+        }
+        return sLeakCount.get();
+    }
+
+    /**
+     * Adds a reference for a consumer that keeps the frame.
+     *
+     * @throws IllegalStateException if the frame has already been released
+     */
+    public Frame retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame already released");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference, freeing the frame's data with the last one.
+     *
+     * @return whether this was the last reference
+     * @throws IllegalStateException if the frame was released more often than retained
+     */
+    public boolean release() {
+        int count = refCount.decrementAndGet();
+        if (count > 0) {
+            return false;
+        }
+        if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Frame released more often than retained");
+        }
+        if (tracker != null) {
+            sTrackers.remove(tracker);
+            tracker.clear();
+        }
+        payload.free();
+        return true;
+    }
+
+    public int getRefCount() {
+        return refCount.get();
+    }
+
+    public FrameMetadata getMetadata() {
+        return metadata;
+    }
+
+    /** The wrapped Image, or null. Only valid while a reference is held. */
+    public Image getImage() {
+        return payload.image;
+    }
+
+    /** The wrapped buffer, or null. Only valid while a reference is held. */
+    public ByteBuffer getBuffer() {
+        return payload.buffer;
+    }
+
+    /** The wrapped bitmap, or null. Only valid while a reference is held. */
+    public Bitmap getBitmap() {
+        return payload.bitmap;
+    }
+
+    /** Number of frames currently tracked by leak detection, i.e. created and not released. */
+    static int getTrackedCount() {
+        return sTrackers.size();
+    }
+
+    /**
+     * The data behind a frame. Kept apart from the frame so that leak detection can still free
+     * it once the frame itself is gone.
+     */
+    private static final class Payload {
+        final Image image;
+        final ByteBuffer buffer;
+        final BufferPool pool;
+        final Bitmap bitmap;
+        final Releaser releaser;
+        private final AtomicBoolean freed = new AtomicBoolean();
+
+        Payload(Image image, ByteBuffer buffer, BufferPool pool, Bitmap bitmap, Releaser releaser) {
+            this.image = image;
+            this.buffer = buffer;
+            this.pool = pool;
+            this.bitmap = bitmap;
+            this.releaser = releaser;
+        }
+
+        void free() {
+            if (!freed.compareAndSet(false, true)) {
+                return;
+            }
+            if (image != null) {
+                image.close();
+            }
+            if (buffer != null && pool != null) {
+                pool.release(buffer);
+            }
+            if (releaser != null) {
+                releaser.release(bitmap);
+            }
+        }
+    }
+
+    private static final class LeakTracker extends PhantomReference<Frame> {
+        final Payload payload;
+        final Throwable createdAt = new Throwable("Frame created here");
+
+        LeakTracker(Frame frame, Payload payload) {
+            super(frame, sLeakQueue);
+            this.payload = payload;
+        }
+    }
+}
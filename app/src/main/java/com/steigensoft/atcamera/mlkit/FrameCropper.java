@@ -0,0 +1,105 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies a region of a frame into reused storage, resized by a scale factor. Two outputs of each
+ * kind are kept and used in turn, so the crop handed to the detector is not overwritten while the
+ * results of the previous one are still being drawn. Not thread safe, meant for the single thread
+ * feeding a {@link VisionProcessorBase}.
+ */
+class FrameCropper {
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect target = new Rect();
+    private final Bitmap[] bitmaps = new Bitmap[2];
+    private final Canvas[] canvases = new Canvas[2];
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+    private int next;
+    // Source column of each output column, for the NV21 copy.
+    private int[] columns = new int[0];
+    private int width;
+    private int height;
+
+    /** Width of the last crop, after scaling. */
+    int getWidth() {
+        return width;
+    }
+
+    /** Height of the last crop, after scaling. */
+    int getHeight() {
+        return height;
+    }
+
+    private void size(Rect crop, float scale) {
+        width = Math.max(2, Math.round(crop.width() * scale) & ~1);
+        height = Math.max(2, Math.round(crop.height() * scale) & ~1);
+        next ^= 1;
+    }
+
+    /** Returns the region of the source, scaled, in one of the reused bitmaps. */
+    Bitmap crop(Bitmap source, Rect crop, float scale) {
+        size(crop, scale);
+        Bitmap bitmap = bitmaps[next];
+        if (bitmap != null && bitmap.getAllocationByteCount() >= width * height * 4) {
+            if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+                bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                canvases[next] = new Canvas(bitmap);
+            }
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmaps[next] = bitmap;
+            canvases[next] = new Canvas(bitmap);
+        }
+        target.set(0, 0, width, height);
+        canvases[next].drawBitmap(source, crop, target, paint);
+        return bitmap;
+    }
+
+    /**
+     * Returns the region of an NV21 frame, scaled with nearest neighbour sampling, in one of the
+     * reused buffers. The crop must have even coordinates.
+     */
+    ByteBuffer crop(ByteBuffer nv21, int frameWidth, int frameHeight, Rect crop, float scale) {
+        size(crop, scale);
+        int size = width * height * 3 / 2;
+        ByteBuffer out = buffers[next];
+        if (out == null || out.capacity() < size) {
+            out = ByteBuffer.allocateDirect(size);
+            buffers[next] = out;
+        }
+        if (columns.length < width) {
+            columns = new int[width];
+        }
+        float step = crop.width() / (float) width;
+        for (int x = 0; x < width; x++) {
+            columns[x] = Math.min(crop.right - 1, crop.left + (int) (x * step));
+        }
+        out.clear();
+        float rowStep = crop.height() / (float) height;
+        for (int y = 0; y < height; y++) {
+            int row = Math.min(crop.bottom - 1, crop.top + (int) (y * rowStep)) * frameWidth;
+            for (int x = 0; x < width; x++) {
+                out.put(nv21.get(row + columns[x]));
+            }
+        }
+        // Interleaved V/U pairs at half resolution, the pair is taken from the even column.
+        int chroma = frameWidth * frameHeight;
+        for (int y = 0; y < height / 2; y++) {
+            int row = chroma + (Math.min(crop.bottom - 1, crop.top + (int) (2 * y * rowStep)) / 2)
+                    * frameWidth;
+            for (int x = 0; x < width; x += 2) {
+                int column = row + (columns[x] & ~1);
+                out.put(nv21.get(column));
+                out.put(nv21.get(column + 1));
+            }
+        }
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,13 @@
+package com.steigensoft.atcamera.mlkit;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides, before any inference is started, whether a frame is worth handing to the detector.
+ * Gates are consulted by {@link VisionProcessorBase} on the thread calling process().
+ */
+public interface FrameGate {
+
+    /** Returns false to drop the frame without calling the detector. */
+    boolean shouldProcess(@NonNull FrameMetadata frameMetadata);
+}
@@ -13,13 +13,30 @@
 // limitations under the License.
 package com.steigensoft.atcamera.mlkit;
 
-/** Describing a frame info. */
+import android.graphics.Rect;
+
+/**
+ * Describing a frame info. When only a region of the frame went to the detector, the crop tells
+ * how to map result coordinates back to the frame: a point (x, y) of the detector input is
+ * (cropLeft + x / cropScale, cropTop + y / cropScale) in the frame.
+ *
+ * <p>Frames scored by a {@link FrameQualityScorer} also carry its sharpness and exposure figures.
+ */
 public class FrameMetadata {
 
   private final int width;
   private final int height;
   private final int rotation;
   private final int cameraFacing;
+  private final int cropLeft;
+  private final int cropTop;
+  private final int cropWidth;
+  private final int cropHeight;
+  private final float cropScale;
+  private final float sharpness;
+  private final float meanLuma;
+  private final float darkFraction;
+  private final float brightFraction;
 
   public int getWidth() {
     return width;
@@ -37,11 +54,90 @@ public class FrameMetadata {
     return cameraFacing;
   }
 
-  private FrameMetadata(int width, int height, int rotation, int facing) {
-    this.width = width;
-    this.height = height;
-    this.rotation = rotation;
-    cameraFacing = facing;
+  /** Whether the detector saw a crop of the frame rather than all of it. */
+  public boolean isCropped() {
+    return cropWidth > 0;
+  }
+
+  public int getCropLeft() {
+    return cropLeft;
+  }
+
+  public int getCropTop() {
+    return cropTop;
+  }
+
+  /** Writes the region of the frame the detector saw, all of it when not cropped. */
+  public void getCropRegion(Rect out) {
+    out.left = cropLeft;
+    out.top = cropTop;
+    out.right = cropLeft + (cropWidth > 0 ? cropWidth : width);
+    out.bottom = cropTop + (cropHeight > 0 ? cropHeight : height);
+  }
+
+  /** Detector input pixels per frame pixel, above 1 when the crop was upscaled. */
+  public float getCropScale() {
+    return cropScale;
+  }
+
+  /** Maps a rectangle in place from detector input to frame coordinates. */
+  public void mapToFrame(Rect rect) {
+    rect.left = cropLeft + Math.round(rect.left / cropScale);
+    rect.top = cropTop + Math.round(rect.top / cropScale);
+    rect.right = cropLeft + Math.round(rect.right / cropScale);
+    rect.bottom = cropTop + Math.round(rect.bottom / cropScale);
+  }
+
+  /** Whether the frame went through a {@link FrameQualityScorer}. */
+  public boolean hasQuality() {
+    return sharpness >= 0;
+  }
+
+  /** Variance of the Laplacian of the luma, higher is sharper, or -1 if not scored. */
+  public float getSharpness() {
+    return sharpness;
+  }
+
+  /** Average luma from 0 to 255. */
+  public float getMeanLuma() {
+    return meanLuma;
+  }
+
+  /** Fraction of the sampled pixels clipped to black. */
+  public float getDarkFraction() {
+    return darkFraction;
+  }
+
+  /** Fraction of the sampled pixels clipped to white. */
+  public float getBrightFraction() {
+    return brightFraction;
+  }
+
+  /**
+   * One figure to pick the best frame of a burst by: the sharpness, discounted by the share of
+   * clipped pixels. 0 for unscored frames.
+   */
+  public float getQualityScore() {
+    if (!hasQuality()) {
+      return 0f;
+    }
+    return sharpness * Math.max(0f, 1f - darkFraction - brightFraction);
+  }
+
+  private FrameMetadata(Builder builder) {
+    width = builder.width;
+    height = builder.height;
+    rotation = builder.rotation;
+    cameraFacing = builder.cameraFacing;
+    cropLeft = builder.cropLeft;
+    cropTop = builder.cropTop;
+    cropWidth = builder.cropWidth;
+    cropHeight = builder.cropHeight;
+    cropScale = builder.cropScale;
+    sharpness = builder.sharpness;
+    meanLuma = builder.meanLuma;
+    darkFraction = builder.darkFraction;
+    brightFraction = builder.brightFraction;
   }
 
   /** Builder of {@link FrameMetadata}. */
@@ -51,6 +147,35 @@ public class FrameMetadata {
     private int height;
     private int rotation;
     private int cameraFacing;
+    private int cropLeft;
+    private int cropTop;
+    private int cropWidth;
+    private int cropHeight;
+    private float cropScale = 1f;
+    private float sharpness = -1f;
+    private float meanLuma;
+    private float darkFraction;
+    private float brightFraction;
+
+    public Builder() {
+    }
+
+    /** Starts from a copy of the given metadata. */
+    public Builder(FrameMetadata metadata) {
+      width = metadata.width;
+      height = metadata.height;
+      rotation = metadata.rotation;
+      cameraFacing = metadata.cameraFacing;
+      cropLeft = metadata.cropLeft;
+      cropTop = metadata.cropTop;
+      cropWidth = metadata.cropWidth;
+      cropHeight = metadata.cropHeight;
+      cropScale = metadata.cropScale;
+      sharpness = metadata.sharpness;
+      meanLuma = metadata.meanLuma;
+      darkFraction = metadata.darkFraction;
+      brightFraction = metadata.brightFraction;
+    }
 
     public Builder setWidth(int width) {
       this.width = width;
@@ -72,8 +197,30 @@ public class FrameMetadata {
       return this;
     }
 
+    /**
+     * Records that the detector got the given region of the frame, resized by the given scale.
+     */
+    public Builder setCrop(int left, int top, int width, int height, float scale) {
+      cropLeft = left;
+      cropTop = top;
+      cropWidth = width;
+      cropHeight = height;
+      cropScale = scale;
+      return this;
+    }
+
+    /** Records the figures of a {@link FrameQualityScorer}. */
+    public Builder setQuality(float sharpness, float meanLuma, float darkFraction,
+        float brightFraction) {
+      this.sharpness = sharpness;
+      this.meanLuma = meanLuma;
+      this.darkFraction = darkFraction;
+      this.brightFraction = brightFraction;
+      return this;
+    }
+
     public FrameMetadata build() {
-      return new FrameMetadata(width, height, rotation, cameraFacing);
+      return new FrameMetadata(this);
     }
   }
 }
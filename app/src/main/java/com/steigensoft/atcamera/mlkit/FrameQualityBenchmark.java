@@ -0,0 +1,59 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Times {@link FrameQualityScorer} on a luma plane, to see what the quality gate costs per frame
+ * at a given resolution. As many untimed rounds as timed ones come first so the scorer runs
+ * compiled, the timed ones are averaged. Nothing is checked, the numbers depend on the device.
+ */
+public final class FrameQualityBenchmark {
+    private static final String TAG = FrameQualityBenchmark.class.getSimpleName();
+
+    /** Average cost of scoring one frame. */
+    public static final class Result {
+        public final int width;
+        public final int height;
+        public final int rounds;
+        public final double microsPerFrame;
+
+        Result(int width, int height, int rounds, double microsPerFrame) {
+            this.width = width;
+            this.height = height;
+            this.rounds = rounds;
+            this.microsPerFrame = microsPerFrame;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d scored in %.1f us per frame over %d rounds",
+                    width, height, microsPerFrame, rounds);
+        }
+    }
+
+    private FrameQualityBenchmark() {
+    }
+
+    /** Scores the plane on the calling thread and logs the result. */
+    public static Result run(FrameQualityScorer scorer, ByteBuffer luma, int width, int height,
+                             int rowStride, int rounds) {
+        if (rounds < 1) {
+            throw new IllegalArgumentException("rounds " + rounds);
+        }
+        for (int i = 0; i < rounds; i++) {
+            scorer.score(luma, width, height, rowStride);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            scorer.score(luma, width, height, rowStride);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / rounds;
+
+        Result result = new Result(width, height, rounds, micros);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+}
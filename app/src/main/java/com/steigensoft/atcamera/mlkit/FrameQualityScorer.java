@@ -0,0 +1,237 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap sharpness and exposure figures for a frame, from the luma of every {@code step}-th pixel
+ * of every {@code step}-th row:
+ *
+ * <ul>
+ *   <li>sharpness, the variance of the 4-neighbour Laplacian over the sampled grid. Motion blur
+ *       and defocus flatten edges and drive it towards 0;
+ *   <li>the fractions of samples clipped to black and to white, and the mean luma.
+ * </ul>
+ *
+ * <p>{@link #isAcceptable()} compares the last score with configurable thresholds, so that
+ * {@link VisionProcessorBase} can drop hopeless frames before inference. Scoring allocates
+ * nothing once the row buffers fit the frame width. Not thread safe, one scorer per processor.
+ */
+public class FrameQualityScorer {
+    public static final int DEFAULT_STEP = 2;
+    public static final float DEFAULT_MIN_SHARPNESS = 20f;
+    public static final float DEFAULT_MAX_CLIPPED = 0.6f;
+    // Luma levels counted as clipped, with some room for sensor black level and compression.
+    private static final int DARK_LEVEL = 16;
+    private static final int BRIGHT_LEVEL = 240;
+
+    private final int step;
+    private volatile float minSharpness = DEFAULT_MIN_SHARPNESS;
+    private volatile float maxDarkFraction = DEFAULT_MAX_CLIPPED;
+    private volatile float maxBrightFraction = DEFAULT_MAX_CLIPPED;
+
+    // Bitmap scoring: one row of pixels and three rows of sampled luma, rolled.
+    private int[] pixels = new int[0];
+    private int[] above = new int[0];
+    private int[] current = new int[0];
+    private int[] below = new int[0];
+
+    private float sharpness;
+    private float meanLuma;
+    private float darkFraction;
+    private float brightFraction;
+
+    // Running sums of one scoring pass.
+    private long lumaSum;
+    private int samples;
+    private int dark;
+    private int bright;
+    private long laplacianSum;
+    private long laplacianSquares;
+    private int laplacians;
+
+    public FrameQualityScorer() {
+        this(DEFAULT_STEP);
+    }
+
+    /** @param step distance between sampled pixels and rows */
+    public FrameQualityScorer(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("step " + step);
+        }
+        this.step = step;
+    }
+
+    /** Frames with a sharpness below this are not acceptable. */
+    public void setMinSharpness(float minSharpness) {
+        this.minSharpness = minSharpness;
+    }
+
+    /** Frames with more of their samples clipped to black than this are not acceptable. */
+    public void setMaxDarkFraction(float maxDarkFraction) {
+        this.maxDarkFraction = maxDarkFraction;
+    }
+
+    /** Frames with more of their samples clipped to white than this are not acceptable. */
+    public void setMaxBrightFraction(float maxBrightFraction) {
+        this.maxBrightFraction = maxBrightFraction;
+    }
+
+    /** Whether the last frame scored meets the thresholds. */
+    public boolean isAcceptable() {
+        return sharpness >= minSharpness && darkFraction <= maxDarkFraction
+                && brightFraction <= maxBrightFraction;
+    }
+
+    public float getSharpness() {
+        return sharpness;
+    }
+
+    public float getMeanLuma() {
+        return meanLuma;
+    }
+
+    public float getDarkFraction() {
+        return darkFraction;
+    }
+
+    public float getBrightFraction() {
+        return brightFraction;
+    }
+
+    /** Copies the figures of the last frame scored into the builder. */
+    public FrameMetadata.Builder applyTo(FrameMetadata.Builder builder) {
+        return builder.setQuality(sharpness, meanLuma, darkFraction, brightFraction);
+    }
+
+    private void begin() {
+        lumaSum = 0;
+        samples = 0;
+        dark = 0;
+        bright = 0;
+        laplacianSum = 0;
+        laplacianSquares = 0;
+        laplacians = 0;
+    }
+
+    private void count(int luma) {
+        lumaSum += luma;
+        samples++;
+        if (luma <= DARK_LEVEL) {
+            dark++;
+        } else if (luma >= BRIGHT_LEVEL) {
+            bright++;
+        }
+    }
+
+    private void laplacian(int value) {
+        laplacianSum += value;
+        laplacianSquares += value * value;
+        laplacians++;
+    }
+
+    private void end() {
+        meanLuma = samples > 0 ? lumaSum / (float) samples : 0f;
+        darkFraction = samples > 0 ? dark / (float) samples : 0f;
+        brightFraction = samples > 0 ? bright / (float) samples : 0f;
+        if (laplacians > 0) {
+            double mean = laplacianSum / (double) laplacians;
+            sharpness = (float) (laplacianSquares / (double) laplacians - mean * mean);
+        } else {
+            sharpness = 0f;
+        }
+    }
+
+    /**
+     * Scores a luma plane, e.g. the start of an NV21 frame or the Y plane of a YUV_420_888 Image.
+     *
+     * @param rowStride bytes from one row to the next
+     */
+    public void score(ByteBuffer luma, int width, int height, int rowStride) {
+        begin();
+        int base = luma.position();
+        int s = step;
+        int rowStep = s * rowStride;
+        for (int y = 0; y < height; y += s) {
+            int row = base + y * rowStride;
+            if (y < s || y + s >= height) {
+                for (int x = 0; x < width; x += s) {
+                    count(luma.get(row + x) & 0xff);
+                }
+                continue;
+            }
+            // Inner rows: the Laplacian needs a sample on each side, the edge columns only count.
+            count(luma.get(row) & 0xff);
+            int x = s;
+            int left = luma.get(row) & 0xff;
+            int center = luma.get(row + s) & 0xff;
+            for (; x + s < width; x += s) {
+                int right = luma.get(row + x + s) & 0xff;
+                int value = 4 * center - left - right - (luma.get(row - rowStep + x) & 0xff)
+                        - (luma.get(row + rowStep + x) & 0xff);
+                lumaSum += center;
+                if (center <= DARK_LEVEL) {
+                    dark++;
+                } else if (center >= BRIGHT_LEVEL) {
+                    bright++;
+                }
+                laplacianSum += value;
+                laplacianSquares += value * value;
+                left = center;
+                center = right;
+            }
+            int inner = (x - s) / s;
+            samples += inner;
+            laplacians += inner;
+            for (; x < width; x += s) {
+                count(luma.get(row + x) & 0xff);
+            }
+        }
+        end();
+    }
+
+    /** Scores an ARGB bitmap, reading one row of pixels at a time. */
+    public void score(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int columns = (width + step - 1) / step;
+        if (pixels.length < width) {
+            pixels = new int[width];
+        }
+        if (current.length < columns) {
+            above = new int[columns];
+            current = new int[columns];
+            below = new int[columns];
+        }
+        begin();
+        int rows = (height + step - 1) / step;
+        readRow(bitmap, 0, columns, current);
+        for (int r = 0; r < rows; r++) {
+            if (r + 1 < rows) {
+                readRow(bitmap, (r + 1) * step, columns, below);
+            }
+            for (int c = 0; c < columns; c++) {
+                count(current[c]);
+                if (r > 0 && r + 1 < rows && c > 0 && c + 1 < columns) {
+                    laplacian(4 * current[c] - current[c - 1] - current[c + 1] - above[c] - below[c]);
+                }
+            }
+            int[] recycled = above;
+            above = current;
+            current = below;
+            below = recycled;
+        }
+        end();
+    }
+
+    private void readRow(Bitmap bitmap, int y, int columns, int[] out) {
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, y, bitmap.getWidth(), 1);
+        for (int c = 0; c < columns; c++) {
+            int pixel = pixels[c * step];
+            // BT.601 weights, scaled by 256.
+            out[c] = (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff))
+                    >> 8;
+        }
+    }
+}
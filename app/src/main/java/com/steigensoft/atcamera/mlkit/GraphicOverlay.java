@@ -46,6 +46,8 @@ public class GraphicOverlay extends View {
   private float widthScaleFactor = 1.0f;
   private int previewHeight;
   private float heightScaleFactor = 1.0f;
+  // Width of the canvas currently drawn on, the view or a frame being annotated.
+  private int canvasWidth;
   private Set<Graphic> graphics = new HashSet<>();
 
   /**
@@ -55,11 +57,31 @@ public class GraphicOverlay extends View {
    */
   public abstract static class Graphic {
     private GraphicOverlay overlay;
+    // Where the detector input sat in the frame, for results of a cropped frame.
+    private float sourceLeft;
+    private float sourceTop;
+    private float sourceScale = 1f;
 
     public Graphic(GraphicOverlay overlay) {
       this.overlay = overlay;
     }
 
+    /**
+     * Declares the coordinates passed to the scale and translate methods to be those of the
+     * detector input described by the metadata, which may be a crop of the frame.
+     */
+    public void setSourceCrop(FrameMetadata metadata) {
+      if (metadata == null) {
+        sourceLeft = 0;
+        sourceTop = 0;
+        sourceScale = 1f;
+      } else {
+        sourceLeft = metadata.getCropLeft();
+        sourceTop = metadata.getCropTop();
+        sourceScale = metadata.getCropScale();
+      }
+    }
+
     /**
      * Draw the graphic on the supplied canvas. Drawing should use the following methods to convert
      * to view coordinates for the graphics that are drawn:
@@ -79,12 +101,12 @@ public class GraphicOverlay extends View {
      * Adjusts a horizontal value of the supplied value from the preview scale to the view scale.
      */
     public float scaleX(float horizontal) {
-      return horizontal * overlay.widthScaleFactor;
+      return horizontal / sourceScale * overlay.widthScaleFactor;
     }
 
     /** Adjusts a vertical value of the supplied value from the preview scale to the view scale. */
     public float scaleY(float vertical) {
-      return vertical * overlay.heightScaleFactor;
+      return vertical / sourceScale * overlay.heightScaleFactor;
     }
 
     /** Returns the application context of the app. */
@@ -96,14 +118,15 @@ public class GraphicOverlay extends View {
      * Adjusts the x coordinate from the preview's coordinate system to the view coordinate system.
      */
     public float translateX(float x) {
-      return overlay.getWidth() - scaleX(x);
+      int width = overlay.canvasWidth != 0 ? overlay.canvasWidth : overlay.getWidth();
+      return width - sourceLeft * overlay.widthScaleFactor - scaleX(x);
     }
 
     /**
      * Adjusts the y coordinate from the preview's coordinate system to the view coordinate system.
      */
     public float translateY(float y) {
-      return scaleY(y);
+      return sourceTop * overlay.heightScaleFactor + scaleY(y);
     }
 
     public void postInvalidate() {
@@ -161,10 +184,36 @@ public class GraphicOverlay extends View {
         widthScaleFactor = (float) canvas.getWidth() / (float) previewWidth;
         heightScaleFactor = (float) canvas.getHeight() / (float) previewHeight;
       }
+      canvasWidth = canvas.getWidth();
+
+      for (Graphic graphic : graphics) {
+        graphic.draw(canvas);
+      }
+    }
+  }
+
+  /**
+   * Draws the current graphics onto another canvas, e.g. a copy of the camera frame, scaled to
+   * that canvas the same way they are scaled to the view. Can be called from any thread.
+   */
+  public void drawGraphics(Canvas canvas) {
+    synchronized (lock) {
+      float viewWidthScale = widthScaleFactor;
+      float viewHeightScale = heightScaleFactor;
+      int viewCanvasWidth = canvasWidth;
+      if ((previewWidth != 0) && (previewHeight != 0)) {
+        widthScaleFactor = (float) canvas.getWidth() / (float) previewWidth;
+        heightScaleFactor = (float) canvas.getHeight() / (float) previewHeight;
+      }
+      canvasWidth = canvas.getWidth();
 
       for (Graphic graphic : graphics) {
         graphic.draw(canvas);
       }
+
+      widthScaleFactor = viewWidthScale;
+      heightScaleFactor = viewHeightScale;
+      canvasWidth = viewCanvasWidth;
     }
   }
 }
@@ -0,0 +1,61 @@
+package com.steigensoft.atcamera.mlkit;
+
+/**
+ * Caps how many inferences per second all streams together may start. Tokens refill at a steady
+ * rate up to a small burst, and each inference takes one.
+ */
+public class InferenceTokenBucket {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private double tokensPerSecond;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * @param tokensPerSecond sustained inference rate across all streams
+     * @param burst how many inferences may start back to back after an idle period
+     */
+    public InferenceTokenBucket(double tokensPerSecond, int burst) {
+        this.tokensPerSecond = tokensPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    public synchronized void setRate(double tokensPerSecond) {
+        refill();
+        this.tokensPerSecond = tokensPerSecond;
+    }
+
+    public synchronized double getRate() {
+        return tokensPerSecond;
+    }
+
+    /** Takes a token if one is available. */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /** Time until the next token is available, 0 if one is available now. */
+    public synchronized long millisUntilAvailable() {
+        refill();
+        if (tokens >= 1) {
+            return 0;
+        }
+        if (tokensPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.ceil((1 - tokens) * 1000 / tokensPerSecond);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerSecond / NANOS_PER_SECOND);
+        lastRefillNanos = now;
+    }
+}
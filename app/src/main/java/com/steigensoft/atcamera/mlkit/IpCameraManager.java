@@ -0,0 +1,187 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.ipcamera.IngestThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Watches several IP cameras at once with a fixed number of threads. All streams are read by a
+ * small {@link IngestThreadPool}, and their frames compete for one {@link FairDetectorPool}
+ * whose total rate is capped by an {@link InferenceTokenBucket}. Streams can be given a larger
+ * share with a weight, and a stream that detected something recently gets its share doubled for
+ * a few seconds so that a scene with activity is followed closely.
+ */
+public class IpCameraManager {
+    private static final String TAG = IpCameraManager.class.getSimpleName();
+    private static final long DETECTION_BOOST_MILLIS = 3000;
+    private static final double DEFAULT_INFERENCES_PER_SECOND = 10;
+    private static final int INFERENCE_BURST = 2;
+
+    /** Creates the processor used for one stream. */
+    public interface ProcessorFactory {
+        VisionImageProcessor create(String streamId);
+    }
+
+    private final Context mContext;
+    private final ProcessorFactory mProcessorFactory;
+    private final Map<String, Stream> mStreams = new LinkedHashMap<>();
+    private final InferenceTokenBucket mTokenBucket =
+            new InferenceTokenBucket(DEFAULT_INFERENCES_PER_SECOND, INFERENCE_BURST);
+    private IngestThreadPool mIngestPool;
+    private FairDetectorPool mDetectorPool;
+
+    public IpCameraManager(Context context, ProcessorFactory processorFactory) {
+        this.mContext = context;
+        this.mProcessorFactory = processorFactory;
+    }
+
+    /**
+     * Adds a stream. Should be called before start().
+     *
+     * @param streamId name of the stream in metrics and logs
+     * @param url an http:// MJPEG or rtp:// H.264 address, see {@link IpCameraSource}
+     * @param overlay draws the results, may be null
+     * @param weight share of the detector relative to the other streams, 1 by default
+     */
+    public void addStream(String streamId, String url, GraphicOverlay overlay, int weight) {
+        mStreams.put(streamId, new Stream(streamId, mStreams.size(), url, overlay, weight));
+    }
+
+    /**
+     * The id of a stream in its {@link DetectionEvent}s, its position in the order of addStream()
+     * calls, or -1 if there is no such stream.
+     */
+    public int getCameraId(String streamId) {
+        Stream stream = mStreams.get(streamId);
+        return stream != null ? stream.mCameraId : -1;
+    }
+
+    /** Caps the inferences per second of all streams together. */
+    public void setInferenceRate(double inferencesPerSecond) {
+        mTokenBucket.setRate(inferencesPerSecond);
+    }
+
+    public void start() throws IOException {
+        if (mStreams.isEmpty()) {
+            Log.d(TAG, "No streams added");
+            return;
+        }
+        int ingestThreads = Math.max(1, Math.min(2, DefaultExecutorSupplier.NUMBER_OF_CORES / 2));
+        int workers = Math.min(mStreams.size(), DefaultExecutorSupplier.NUMBER_OF_CORES);
+        mIngestPool = new IngestThreadPool("IpIngest", ingestThreads);
+        mIngestPool.start();
+        mDetectorPool = new FairDetectorPool(workers);
+        mDetectorPool.setTokenBucket(mTokenBucket);
+        for (Stream stream : mStreams.values()) {
+            stream.start();
+        }
+        Log.d(TAG, "Started " + mStreams.size() + " streams on " + ingestThreads
+                + " ingest threads and " + workers + " detector workers");
+    }
+
+    public void stop() {
+        // Detector jobs hold frames from the streams' buffer pools: the workers have to be done
+        // with them, and the pending jobs have to hand them back, before the pools are cleared.
+        if (mDetectorPool != null) {
+            mDetectorPool.shutdown();
+            mDetectorPool = null;
+        }
+        for (Stream stream : mStreams.values()) {
+            stream.stop();
+        }
+        if (mIngestPool != null) {
+            mIngestPool.shutdown();
+            mIngestPool = null;
+        }
+    }
+
+    /** Stops all streams and their processors. */
+    public void release() {
+        stop();
+        for (Stream stream : mStreams.values()) {
+            stream.release();
+        }
+        mStreams.clear();
+    }
+
+    public List<String> getStreamIds() {
+        return Collections.unmodifiableList(new ArrayList<>(mStreams.keySet()));
+    }
+
+    /** Frames received, skipped and processed by one stream, or null if there is no such stream. */
+    public StreamMetrics getMetrics(String streamId) {
+        Stream stream = mStreams.get(streamId);
+        return stream != null ? stream.mSource.getMetrics() : null;
+    }
+
+    public Map<String, StreamMetrics> getAllMetrics() {
+        Map<String, StreamMetrics> metrics = new LinkedHashMap<>();
+        for (Map.Entry<String, Stream> entry : mStreams.entrySet()) {
+            metrics.put(entry.getKey(), entry.getValue().mSource.getMetrics());
+        }
+        return metrics;
+    }
+
+    /** All streams added up. */
+    public StreamMetrics getAggregateMetrics() {
+        return StreamMetrics.sum("all", getAllMetrics().values());
+    }
+
+    /** One camera with its source and processor. */
+    private class Stream implements DetectionListener {
+        private final String mId;
+        private final int mCameraId;
+        private final int mWeight;
+        private final IpCameraSource mSource;
+        private final VisionImageProcessor mProcessor;
+
+        Stream(String id, int cameraId, String url, GraphicOverlay overlay, int weight) {
+            mId = id;
+            mCameraId = cameraId;
+            mWeight = weight;
+            mSource = new IpCameraSource(mContext, overlay, url);
+            mProcessor = mProcessorFactory.create(id);
+            mSource.setMachineLearningFrameProcessor(mProcessor);
+            if (mProcessor instanceof VisionProcessorBase) {
+                ((VisionProcessorBase<?>) mProcessor).setCameraId(cameraId);
+                ((VisionProcessorBase<?>) mProcessor).addDetectionListener(this);
+            }
+        }
+
+        void start() throws IOException {
+            mDetectorPool.setWeight(mId, mWeight);
+            mDetectorPool.setLaneProcessor(mId, mProcessor);
+            mSource.setSharedResources(mIngestPool, mDetectorPool, mId);
+            mSource.start();
+        }
+
+        void stop() {
+            mSource.stop();
+        }
+
+        void release() {
+            if (mProcessor instanceof VisionProcessorBase) {
+                ((VisionProcessorBase<?>) mProcessor).removeDetectionListener(this);
+            }
+            mSource.release();
+        }
+
+        @Override
+        public void onDetections(@NonNull DetectionEvent event) {
+            FairDetectorPool pool = mDetectorPool;
+            if (event.getCount() > 0 && pool != null) {
+                pool.boost(mId, DETECTION_BOOST_MILLIS);
+            }
+        }
+    }
+}
@@ -1,41 +1,441 @@
-
 package com.steigensoft.atcamera.mlkit;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.util.Log;
 import android.view.SurfaceHolder;
 
 import com.google.android.gms.common.images.Size;
+import com.google.firebase.ml.common.FirebaseMLException;
+import com.steigensoft.atcamera.mlkit.ipcamera.H264Depacketizer;
+import com.steigensoft.atcamera.mlkit.ipcamera.IngestConnection;
+import com.steigensoft.atcamera.mlkit.ipcamera.IngestSelectorThread;
+import com.steigensoft.atcamera.mlkit.ipcamera.IngestThreadPool;
+import com.steigensoft.atcamera.mlkit.ipcamera.JpegFrameDecoder;
+import com.steigensoft.atcamera.mlkit.ipcamera.MediaCodecVideoDecoder;
+import com.steigensoft.atcamera.mlkit.ipcamera.MjpegConnection;
+import com.steigensoft.atcamera.mlkit.ipcamera.MjpegParser;
+import com.steigensoft.atcamera.mlkit.ipcamera.ParallelFrameDecoder;
+import com.steigensoft.atcamera.mlkit.ipcamera.RtpConnection;
+import com.steigensoft.atcamera.mlkit.ipcamera.VideoDecoder;
+import com.steigensoft.atcamera.mlkit.ipcamera.YuvImages;
+import com.steigensoft.atcamera.mlkit.pipeline.ProcessorStage;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
 
+/**
+ * Feeds an IP camera into a {@link VisionImageProcessor}.
+ *
+ * <p>For {@code http://} addresses the MJPEG stream is read by a non-blocking
+ * {@link MjpegConnection} into pooled buffers. Only frame boundaries are parsed on ingest; a JPEG
+ * is decoded only once the processor is ready for it, and then at the smallest scale that covers
+ * the detector's target size. Decode work thus follows the inference rate, not the stream rate.
+ *
+ * <p>For {@code rtp://} and {@code rtp+tcp://} addresses an {@link RtpConnection} reassembles
+ * H.264 access units which go to a {@link VideoDecoder}, by default the hardware decoder. Every
+ * decoded frame is offered to the processor, which skips those arriving while it is busy.
+ *
+ * <p>When every frame is needed, e.g. for display or recording, a {@link DecodedFrameListener}
+ * switches MJPEG streams to a {@link ParallelFrameDecoder}: all frames are decoded across the
+ * cores and delivered in order, and the processor gets those it is ready for. Recording needs no
+ * decoding at all: an {@link EncodedFrameListener} gets the JPEGs as they arrive.
+ *
+ * <p>On its own a source uses an ingest thread and a processing thread. Sources managed by an
+ * {@link IpCameraManager} share both through {@link #setSharedResources}: ingest runs on an
+ * {@link IngestThreadPool}, and frames are handed to a {@link FairDetectorPool} lane which decides
+ * when this stream gets its turn with the detector.
+ */
 public class IpCameraSource {
     private static final String TAG = IpCameraSource.class.getSimpleName();
-    private final Context mContext;
+
+    /** Receives every decoded frame of an MJPEG stream, in order, on a decode thread. */
+    public interface DecodedFrameListener {
+        void onDecodedFrame(Bitmap frame, long sequence);
+    }
+
+    /**
+     * Receives every JPEG of an MJPEG stream as it arrives, before any decoding, on the ingest
+     * thread. The buffer is only valid until the method returns.
+     */
+    public interface EncodedFrameListener {
+        void onEncodedFrame(ByteBuffer jpeg, long timestampMillis);
+    }
+
+    // Finished frames that may wait for a slower earlier one before it is skipped.
+    private static final int REORDER_WINDOW = 4;
+    private static final int MAX_DECODE_WIDTH = 1920;
+    private static final int MAX_DECODE_HEIGHT = 1080;
+    private static final long RTP_CLOCK_RATE = 90000;
+    // How often the processing thread checks whether a busy processor is ready again.
+    private static final long READY_POLL_MILLIS = 5;
+    private static final int DEFAULT_TARGET_WIDTH = 640;
+    private static final int DEFAULT_TARGET_HEIGHT = 480;
     private final GraphicOverlay mGraphicOverlay;
     private final String mStreamPath;
     private final FrameProcessingRunnable processingRunnable;
+    private final StreamMetrics metrics;
     private Size previewSize;
     private int cameraFacing;
     private Thread processingThread;
-    private VisionImageProcessor frameProcessor;
+    private volatile VisionImageProcessor frameProcessor;
     private final Object processorLock = new Object();
+    // Runs the detector pool's frames through frameProcessor, one lane job at a time.
+    private volatile ProcessorStage detectStage;
+    private IngestSelectorThread ingestThread;
+    private IngestConnection connection;
+    private BufferPool framePool;
+    private VideoDecoder videoDecoder;
+    private IngestThreadPool sharedIngest;
+    private FairDetectorPool detectorPool;
+    private String laneId;
+    // Decoded RTP frames copied for a detector pool lane.
+    private final BufferPool nv21Pool =
+            new BufferPool(0, 2, MemoryBudget.getInstance().stage("nv21"));
+    private DecodedFrameListener decodedFrameListener;
+    private int decodeThreads;
+    private ParallelFrameDecoder<Bitmap> parallelDecoder;
+    private volatile EncodedFrameListener encodedFrameListener;
 
     public IpCameraSource(Context context, GraphicOverlay graphicOverlay, String streamPath) {
-        this.mContext = context;
         this.mGraphicOverlay = graphicOverlay;
-        mGraphicOverlay.clear();
+        cleanScreen();
         processingRunnable = new FrameProcessingRunnable();
         this.mStreamPath = streamPath;
+        this.metrics = new StreamMetrics(streamPath);
     }
 
-    public void stop() {
-
+    public synchronized void stop() {
+        if (ingestThread != null) {
+            ingestThread.shutdown();
+            ingestThread = null;
+        } else if (sharedIngest != null && connection != null) {
+            sharedIngest.remove(connection);
+        }
+        connection = null;
+        processingRunnable.setActive(false);
+        if (processingThread != null) {
+            try {
+                // Wait for the thread to complete to ensure that we can't have multiple threads
+                // executing at the same time.
+                processingThread.join();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Frame processing thread interrupted on stop.");
+            }
+            processingThread = null;
+        }
+        processingRunnable.clearPendingFrame();
+        if (parallelDecoder != null) {
+            parallelDecoder.shutdown();
+            parallelDecoder = null;
+        }
+        if (videoDecoder != null) {
+            videoDecoder.release();
+        }
+        // The detector pool is shut down before this, only frames of timed out inferences may
+        // still be held.
+        ProcessorStage stage = detectStage;
+        if (stage != null) {
+            try {
+                if (!stage.releaseLingering(ProcessorStage.DEFAULT_INFERENCE_TIMEOUT_MILLIS)) {
+                    Log.w(TAG, "Inference on " + mStreamPath + " still running on stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (framePool != null) {
+            framePool.clear();
+        }
+        nv21Pool.clear();
+        framePool = null;
     }
 
     public void release() {
+        synchronized (processorLock) {
+            stop();
+            cleanScreen();
+            if (frameProcessor != null) {
+                frameProcessor.stop();
+                frameProcessor = null;
+            }
+        }
+    }
 
+    /** Starts reading the stream. The IP camera has no local preview, the holder is not used. */
+    public void start(SurfaceHolder holder) throws IOException {
+        start();
     }
 
-    public void start(SurfaceHolder holder) {
+    public synchronized void start() throws IOException {
+        if (connection != null) {
+            return;
+        }
+        URI uri = URI.create(mStreamPath);
+        if (RtpConnection.SCHEME_UDP.equals(uri.getScheme())
+                || RtpConnection.SCHEME_TCP.equals(uri.getScheme())) {
+            connection = startRtp(uri);
+        } else if (decodedFrameListener != null) {
+            connection = startParallelDecoding(uri);
+        } else if (detectorPool != null) {
+            MjpegConnection mjpeg = new MjpegConnection(uri, tap(new MjpegParser.FrameListener() {
+                @Override
+                public void onFrame(ByteBuffer jpeg) {
+                    submitJpeg(jpeg);
+                }
+            }), metrics);
+            framePool = mjpeg.getBufferPool();
+            connection = mjpeg;
+        } else {
+            MjpegConnection mjpeg = new MjpegConnection(uri, tap(processingRunnable), metrics);
+            framePool = mjpeg.getBufferPool();
+            processingThread = new Thread(processingRunnable, "IpCameraProcessing");
+            processingRunnable.setActive(true);
+            processingThread.start();
+            connection = mjpeg;
+        }
+        if (sharedIngest != null) {
+            sharedIngest.add(connection);
+        } else {
+            ingestThread = new IngestSelectorThread("IpCameraIngest");
+            ingestThread.start();
+            ingestThread.add(connection);
+        }
+    }
+
+    /**
+     * Decodes every frame of an MJPEG stream and passes it to the listener. Takes effect on the
+     * next start.
+     *
+     * @param listener receives the frames, or null to decode only what the processor takes
+     * @param threads decode threads, typically the number of cores
+     */
+    public synchronized void setDecodedFrameListener(DecodedFrameListener listener, int threads) {
+        decodedFrameListener = listener;
+        decodeThreads = threads;
+    }
+
+    /**
+     * Passes the JPEGs of MJPEG streams to the listener, e.g. an event recorder, as they arrive.
+     *
+     * @param listener receives every frame, or null to stop
+     */
+    public void setEncodedFrameListener(EncodedFrameListener listener) {
+        encodedFrameListener = listener;
+    }
+
+    /** Lets the encoded frame listener see each JPEG before it goes on to the given listener. */
+    private MjpegParser.FrameListener tap(final MjpegParser.FrameListener next) {
+        return new MjpegParser.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer jpeg) {
+                EncodedFrameListener listener = encodedFrameListener;
+                if (listener != null) {
+                    listener.onEncodedFrame(jpeg.duplicate(), System.currentTimeMillis());
+                }
+                next.onFrame(jpeg);
+            }
+        };
+    }
 
+    private IngestConnection startParallelDecoding(URI uri) {
+        final DecodedFrameListener listener = decodedFrameListener;
+        parallelDecoder = new ParallelFrameDecoder<>(decodeThreads, REORDER_WINDOW,
+                new ParallelFrameDecoder.FrameDecoderFactory<Bitmap>() {
+                    @Override
+                    public ParallelFrameDecoder.FrameDecoder<Bitmap> create() {
+                        final JpegFrameDecoder decoder = new JpegFrameDecoder(0, 0);
+                        decoder.setReuseBitmaps(false);
+                        return new ParallelFrameDecoder.FrameDecoder<Bitmap>() {
+                            @Override
+                            public Bitmap decode(ByteBuffer data) {
+                                decoder.setTargetSize(processingRunnable.mTargetWidth,
+                                        processingRunnable.mTargetHeight);
+                                return decoder.decode(data);
+                            }
+                        };
+                    }
+                },
+                new ParallelFrameDecoder.Listener<Bitmap>() {
+                    @Override
+                    public void onFrame(Bitmap frame, long sequence) {
+                        long startNanos = System.nanoTime();
+                        listener.onDecodedFrame(frame, sequence);
+                        VisionImageProcessor processor = frameProcessor;
+                        if (processor != null && processor.isReadyForFrame()) {
+                            processor.process(frame, mGraphicOverlay);
+                            metrics.onFrameProcessed(System.nanoTime() - startNanos);
+                        }
+                    }
+
+                    @Override
+                    public void onFrameDropped(Bitmap frame, long sequence) {
+                        metrics.onFrameDropped();
+                    }
+                });
+        final ParallelFrameDecoder<Bitmap> decoder = parallelDecoder;
+        final MjpegConnection[] mjpeg = new MjpegConnection[1];
+        mjpeg[0] = new MjpegConnection(uri, tap(new MjpegParser.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer jpeg) {
+                if (decoder.submit(jpeg, mjpeg[0].getBufferPool()) < 0) {
+                    metrics.onFrameDropped();
+                }
+            }
+        }), metrics);
+        framePool = mjpeg[0].getBufferPool();
+        return mjpeg[0];
+    }
+
+    /**
+     * Runs this source on shared threads instead of its own. Must be called before start().
+     *
+     * @param ingest reads the stream, or null for a thread of its own
+     * @param detectors schedules frames to the processor, or null for a thread of its own
+     * @param laneId this stream's lane in the detector pool
+     */
+    public synchronized void setSharedResources(IngestThreadPool ingest, FairDetectorPool detectors,
+                                                String laneId) {
+        this.sharedIngest = ingest;
+        this.detectorPool = detectors;
+        this.laneId = laneId;
+    }
+
+    /** Hands a JPEG to the detector pool; it is only decoded once this stream gets its turn. */
+    private void submitJpeg(final ByteBuffer jpeg) {
+        final long arrivalNanos = System.nanoTime();
+        final BufferPool pool = framePool;
+        detectorPool.submit(laneId, new FairDetectorPool.Job() {
+            @Override
+            public void run() {
+                Bitmap bitmap = processingRunnable.decode(jpeg, pool);
+                ProcessorStage stage = detectStage;
+                if (bitmap == null || stage == null) {
+                    metrics.onFrameDropped();
+                    return;
+                }
+                Frame frame = Frame.ofBitmap(bitmap, new FrameMetadata.Builder()
+                        .setWidth(bitmap.getWidth())
+                        .setHeight(bitmap.getHeight())
+                        .setCameraFacing(cameraFacing)
+                        .build(), null);
+                detect(stage, frame, arrivalNanos);
+            }
+
+            @Override
+            public void discard() {
+                pool.release(jpeg);
+                metrics.onFrameDropped();
+            }
+        });
+    }
+
+    /**
+     * Copies a decoded frame and hands it to the detector pool. The decoder's image has to go
+     * back right away, so frames the processor is not ready for are dropped before copying.
+     */
+    private void submitImage(Image image) {
+        VisionImageProcessor processor = frameProcessor;
+        final ProcessorStage stage = detectStage;
+        if (processor == null || stage == null || !processor.isReadyForFrame()) {
+            metrics.onFrameDropped();
+            return;
+        }
+        final long arrivalNanos = System.nanoTime();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final ByteBuffer nv21 = nv21Pool.tryAcquire(YuvImages.nv21Size(width, height));
+        if (nv21 == null) {
+            metrics.onFrameDropped();
+            return;
+        }
+        YuvImages.toNv21(image, nv21);
+        final Frame frame = Frame.ofBuffer(nv21, nv21Pool, new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setCameraFacing(cameraFacing)
+                .build());
+        detectorPool.submit(laneId, new FairDetectorPool.Job() {
+            @Override
+            public void run() {
+                detect(stage, frame, arrivalNanos);
+            }
+
+            @Override
+            public void discard() {
+                frame.release();
+                metrics.onFrameDropped();
+            }
+        });
+    }
+
+    /**
+     * Runs a frame through the stage and releases it. The stage holds the pool worker until the
+     * inference is done, so the pool's shares bound detector work and a shut down pool has no
+     * inference left reading this stream's buffers.
+     */
+    private void detect(ProcessorStage stage, Frame frame, long arrivalNanos) {
+        try {
+            if (stage.detect(frame)) {
+                metrics.onFrameProcessed(System.nanoTime() - arrivalNanos);
+            }
+        } catch (FirebaseMLException e) {
+            Log.e(TAG, "Failed to process frame from " + mStreamPath, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            frame.release();
+        }
+    }
+
+    private IngestConnection startRtp(URI uri) {
+        if (videoDecoder == null) {
+            videoDecoder = new MediaCodecVideoDecoder(MAX_DECODE_WIDTH, MAX_DECODE_HEIGHT);
+        }
+        final VideoDecoder decoder = videoDecoder;
+        decoder.start(new VideoDecoder.FrameListener() {
+            @Override
+            public void onFrame(Image image, long presentationTimeUs) {
+                if (detectorPool != null) {
+                    submitImage(image);
+                    return;
+                }
+                long startNanos = System.nanoTime();
+                try {
+                    synchronized (processorLock) {
+                        if (frameProcessor != null) {
+                            frameProcessor.process(image, 0, mGraphicOverlay);
+                        }
+                    }
+                    metrics.onFrameProcessed(System.nanoTime() - startNanos);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from receiver.", t);
+                }
+            }
+        });
+        final RtpConnection[] rtp = new RtpConnection[1];
+        rtp[0] = new RtpConnection(uri, new H264Depacketizer.AccessUnitListener() {
+            @Override
+            public void onAccessUnit(ByteBuffer accessUnit, long rtpTimestamp, boolean keyFrame) {
+                if (!decoder.decode(accessUnit, rtpTimestamp * 1000000 / RTP_CLOCK_RATE, keyFrame)) {
+                    metrics.onFrameDropped();
+                }
+                rtp[0].getBufferPool().release(accessUnit);
+            }
+        }, metrics);
+        return rtp[0];
+    }
+
+    /** Replaces the H.264 decoder used for RTP streams. Takes effect on the next start. */
+    public synchronized void setVideoDecoder(VideoDecoder decoder) {
+        videoDecoder = decoder;
+    }
+
+    /** Frames and megabytes per second read from the camera, and frames skipped before decoding. */
+    public StreamMetrics getMetrics() {
+        return metrics;
     }
 
     public Size getPreviewSize() {
@@ -55,7 +455,15 @@ public class IpCameraSource {
     }
 
     public void setRequestedPreviewSize(int width, int height) {
+        previewSize = new Size(width, height);
+    }
 
+    /**
+     * Sets the smallest frame size the detector should get. MJPEG frames are decoded at the
+     * largest power of two reduction that stays at or above this size.
+     */
+    public void setTargetSize(int width, int height) {
+        processingRunnable.setTargetSize(width, height);
     }
 
     public void setMachineLearningFrameProcessor(VisionImageProcessor machineLearningFrameProcessor) {
@@ -65,6 +473,8 @@ public class IpCameraSource {
                 frameProcessor.stop();
             }
             frameProcessor = machineLearningFrameProcessor;
+            detectStage = machineLearningFrameProcessor != null
+                    ? new ProcessorStage(machineLearningFrameProcessor, mGraphicOverlay) : null;
         }
     }
 
@@ -72,13 +482,129 @@ public class IpCameraSource {
 
     /** Cleans up graphicOverlay and child classes can do their cleanups as well . */
     private void cleanScreen() {
-        mGraphicOverlay.clear();
+        if (mGraphicOverlay != null) {
+            mGraphicOverlay.clear();
+        }
     }
 
-    private class FrameProcessingRunnable implements Runnable{
+    /**
+     * Holds the newest complete JPEG from the ingest thread and decodes it once the processor is
+     * ready. Frames arriving in the meantime replace the pending one without being decoded.
+     */
+    private class FrameProcessingRunnable implements Runnable, MjpegParser.FrameListener {
+
+        // This lock guards all of the member variables below.
+        private final Object mLock = new Object();
+        private boolean mActive = true;
+        private ByteBuffer mPendingFrame;
+        // Only used by one thread at a time, see decode().
+        private final JpegFrameDecoder mDecoder =
+                new JpegFrameDecoder(DEFAULT_TARGET_WIDTH, DEFAULT_TARGET_HEIGHT);
+        private volatile int mTargetWidth = DEFAULT_TARGET_WIDTH;
+        private volatile int mTargetHeight = DEFAULT_TARGET_HEIGHT;
+
+        void setTargetSize(int width, int height) {
+            mTargetWidth = width;
+            mTargetHeight = height;
+        }
+
+        void setActive(boolean active) {
+            synchronized (mLock) {
+                mActive = active;
+                mLock.notifyAll();
+            }
+        }
+
+        void clearPendingFrame() {
+            synchronized (mLock) {
+                if (mPendingFrame != null) {
+                    framePool.release(mPendingFrame);
+                    mPendingFrame = null;
+                }
+            }
+        }
+
+        /** Called on the ingest thread with a complete JPEG. */
+        @Override
+        public void onFrame(ByteBuffer jpeg) {
+            synchronized (mLock) {
+                if (mPendingFrame != null) {
+                    framePool.release(mPendingFrame);
+                    metrics.onFrameDropped();
+                }
+                mPendingFrame = jpeg;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Decodes a JPEG at the target scale and returns the buffer to the pool. Calls must not
+         * overlap, they run on the processing thread or one detector pool lane at a time.
+         */
+        Bitmap decode(ByteBuffer jpeg, BufferPool pool) {
+            try {
+                mDecoder.setTargetSize(mTargetWidth, mTargetHeight);
+                return mDecoder.decode(jpeg);
+            } finally {
+                pool.release(jpeg);
+            }
+        }
+
+        // Called with mLock held, so it must not take processorLock.
+        private boolean isProcessorReady() {
+            VisionImageProcessor processor = frameProcessor;
+            return processor == null || processor.isReadyForFrame();
+        }
+
         @Override
         public void run() {
+            ByteBuffer jpeg;
 
+            while (true) {
+                synchronized (mLock) {
+                    while (mActive && (mPendingFrame == null || !isProcessorReady())) {
+                        try {
+                            // Wait for the next frame to be received from the camera, since we
+                            // don't have it yet. With a frame pending, wait for the processor to
+                            // finish its current one; it does not tell us, so check again shortly.
+                            if (mPendingFrame == null) {
+                                mLock.wait();
+                            } else {
+                                mLock.wait(READY_POLL_MILLIS);
+                            }
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Frame processing loop terminated.", e);
+                            return;
+                        }
+                    }
+
+                    if (!mActive) {
+                        return;
+                    }
+
+                    jpeg = mPendingFrame;
+                    mPendingFrame = null;
+                }
+
+                long startNanos = System.nanoTime();
+                Bitmap bitmap = decode(jpeg, framePool);
+                if (bitmap == null) {
+                    Log.d(TAG, "Could not decode frame from " + mStreamPath);
+                    metrics.onFrameDropped();
+                    continue;
+                }
+
+                try {
+                    synchronized (processorLock) {
+                        if (frameProcessor != null) {
+                            frameProcessor.process(bitmap, mGraphicOverlay);
+                        }
+                    }
+                    metrics.onFrameProcessed(System.nanoTime() - startNanos);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from receiver.", t);
+                }
+            }
         }
     }
 }
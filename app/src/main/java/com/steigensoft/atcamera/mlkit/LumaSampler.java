@@ -0,0 +1,82 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the luma of every {@code step}-th pixel of every {@code step}-th row into a small grid,
+ * a cheap summary of a frame for change detection. The grid and row buffers are reused between
+ * frames. Not thread safe.
+ */
+public class LumaSampler {
+
+    private final int step;
+    private byte[] samples = new byte[0];
+    private int[] row = new int[0];
+    private int gridWidth;
+    private int gridHeight;
+
+    public LumaSampler(int step) {
+        if (step < 1) {
+            throw new IllegalArgumentException("step " + step);
+        }
+        this.step = step;
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    /** The samples of the last frame, row by row, {@link #getGridWidth()} per row. */
+    public byte[] getSamples() {
+        return samples;
+    }
+
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
+    private void resize(int width, int height) {
+        gridWidth = (width + step - 1) / step;
+        gridHeight = (height + step - 1) / step;
+        if (samples.length != gridWidth * gridHeight) {
+            samples = new byte[gridWidth * gridHeight];
+        }
+    }
+
+    /** Samples an ARGB bitmap, one row of pixels read at a time. */
+    public void sample(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        resize(width, bitmap.getHeight());
+        if (row.length < width) {
+            row = new int[width];
+        }
+        int index = 0;
+        for (int y = 0; y < gridHeight; y++) {
+            bitmap.getPixels(row, 0, width, 0, y * step, width, 1);
+            for (int x = 0; x < gridWidth; x++) {
+                int pixel = row[x * step];
+                // BT.601 weights, scaled by 256.
+                samples[index++] = (byte) ((77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff)
+                        + 29 * (pixel & 0xff)) >> 8);
+            }
+        }
+    }
+
+    /** Samples the Y plane of an NV21 frame. */
+    public void sample(ByteBuffer nv21, int width, int height) {
+        resize(width, height);
+        int index = 0;
+        for (int y = 0; y < gridHeight; y++) {
+            int rowStart = y * step * width;
+            for (int x = 0; x < gridWidth; x++) {
+                samples[index++] = nv21.get(rowStart + x * step);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounds the frame memory live across the pipeline: grabbed bitmaps, pooled stream buffers,
+ * images held by running inferences and decoded stills. Each part of the pipeline accounts its
+ * bytes in a named {@link Stage}. Sources ask before they create a frame and drop it when the
+ * ceiling would be exceeded, so a backlog ends in dropped frames rather than in an
+ * OutOfMemoryError. Memory that already exists, e.g. a stream buffer in the middle of a frame,
+ * is accounted unconditionally.
+ *
+ * <p>Live bytes and high-water marks are kept per stage and for the whole budget. Thread safe.
+ */
+public class MemoryBudget {
+    private static final String TAG = MemoryBudget.class.getSimpleName();
+
+    // Room for a few 1080p ARGB frames, a full resolution still and the stream pools.
+    public static final long DEFAULT_CEILING_BYTES = 96L * 1024 * 1024;
+
+    private static final MemoryBudget sInstance = new MemoryBudget(DEFAULT_CEILING_BYTES);
+
+    /** The bytes one part of the pipeline holds. */
+    public final class Stage {
+        private final String name;
+        // Guarded by the budget.
+        private long liveBytes;
+        private long highWaterBytes;
+        private long refusedCount;
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Accounts bytes about to be allocated, unless that would take the budget over its
+         * ceiling.
+         *
+         * @return false if the caller must not allocate, e.g. drop the frame instead
+         */
+        public boolean tryReserve(long bytes) {
+            synchronized (MemoryBudget.this) {
+                if (liveBytesTotal + bytes > ceilingBytes) {
+                    refusedCount++;
+                    refusedTotal++;
+                    return false;
+                }
+                add(bytes);
+                return true;
+            }
+        }
+
+        /** Accounts bytes that are allocated regardless of the ceiling. */
+        public void reserve(long bytes) {
+            synchronized (MemoryBudget.this) {
+                add(bytes);
+            }
+        }
+
+        /** Gives back bytes reserved earlier, once they are no longer referenced. */
+        public void release(long bytes) {
+            synchronized (MemoryBudget.this) {
+                if (bytes > liveBytes) {
+                    Log.w(TAG, name + " released " + bytes + " bytes but held " + liveBytes);
+                    bytes = liveBytes;
+                }
+                liveBytes -= bytes;
+                liveBytesTotal -= bytes;
+            }
+        }
+
+        // Called with the budget locked.
+        private void add(long bytes) {
+            liveBytes += bytes;
+            highWaterBytes = Math.max(highWaterBytes, liveBytes);
+            liveBytesTotal += bytes;
+            highWaterTotal = Math.max(highWaterTotal, liveBytesTotal);
+        }
+
+        public long getLiveBytes() {
+            synchronized (MemoryBudget.this) {
+                return liveBytes;
+            }
+        }
+
+        public long getHighWaterBytes() {
+            synchronized (MemoryBudget.this) {
+                return highWaterBytes;
+            }
+        }
+
+        /** Number of reservations refused to this stage. */
+        public long getRefusedCount() {
+            synchronized (MemoryBudget.this) {
+                return refusedCount;
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (MemoryBudget.this) {
+                return String.format(Locale.US, "%s: %.1f MB live, %.1f MB peak, %d refused",
+                        name, megabytes(liveBytes), megabytes(highWaterBytes), refusedCount);
+            }
+        }
+    }
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private long ceilingBytes;
+    private long liveBytesTotal;
+    private long highWaterTotal;
+    private long refusedTotal;
+
+    /** The budget shared by the whole app. */
+    public static MemoryBudget getInstance() {
+        return sInstance;
+    }
+
+    /** Separate budgets are for tests; the pipeline shares {@link #getInstance()}. */
+    MemoryBudget(long ceilingBytes) {
+        this.ceilingBytes = ceilingBytes;
+    }
+
+    /** Returns the stage of the given name, creating it on first use. */
+    public synchronized Stage stage(String name) {
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            stage = new Stage(name);
+            stages.put(name, stage);
+        }
+        return stage;
+    }
+
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages.values());
+    }
+
+    /** Changes the ceiling. Bytes already live above a lowered ceiling stay until released. */
+    public synchronized void setCeilingBytes(long bytes) {
+        ceilingBytes = bytes;
+    }
+
+    public synchronized long getCeilingBytes() {
+        return ceilingBytes;
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytesTotal;
+    }
+
+    public synchronized long getHighWaterBytes() {
+        return highWaterTotal;
+    }
+
+    public synchronized long getRefusedCount() {
+        return refusedTotal;
+    }
+
+    /** Bytes of an ARGB_8888 bitmap of the given size. */
+    public static long bitmapBytes(int width, int height) {
+        return 4L * width * height;
+    }
+
+    private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "%.1f of %.1f MB live, %.1f MB peak, %d refused", megabytes(liveBytesTotal),
+                megabytes(ceilingBytes), megabytes(highWaterTotal), refusedTotal));
+        for (Stage stage : stages.values()) {
+            sb.append("; ").append(stage);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,86 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 64 bit difference hash (dHash) of a frame's luma: the frame is shrunk to 9 x 8 cells and each
+ * bit tells whether a cell is brighter than its right neighbour. Near identical frames, differing
+ * only by noise or slight exposure changes, hash to values a few bits apart, see
+ * {@link #distance(long, long)}. Cells are averaged over a 4 x 4 grid of samples rather than all
+ * their pixels. Allocates nothing once the row buffer fits the bitmap width. Not thread safe.
+ */
+public class PerceptualHash {
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+    private static final int SAMPLES = 4;
+
+    private final int[] cells = new int[COLUMNS * ROWS];
+    private int[] row = new int[0];
+
+    /** Number of bits that differ between two hashes. */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static int sampleX(int index, int width) {
+        // Sample centres, spread evenly over the frame.
+        return (2 * index + 1) * width / (2 * COLUMNS * SAMPLES);
+    }
+
+    private static int sampleY(int index, int height) {
+        return (2 * index + 1) * height / (2 * ROWS * SAMPLES);
+    }
+
+    /** Hashes a luma plane, e.g. the start of an NV21 frame or the Y plane of an Image. */
+    public long hash(ByteBuffer luma, int width, int height, int rowStride) {
+        int base = luma.position();
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = 0;
+        }
+        for (int sy = 0; sy < ROWS * SAMPLES; sy++) {
+            int rowStart = base + sampleY(sy, height) * rowStride;
+            int cellRow = (sy / SAMPLES) * COLUMNS;
+            for (int sx = 0; sx < COLUMNS * SAMPLES; sx++) {
+                cells[cellRow + sx / SAMPLES] += luma.get(rowStart + sampleX(sx, width)) & 0xff;
+            }
+        }
+        return bits();
+    }
+
+    /** Hashes an ARGB bitmap, reading only the sampled rows. */
+    public long hash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (row.length < width) {
+            row = new int[width];
+        }
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = 0;
+        }
+        for (int sy = 0; sy < ROWS * SAMPLES; sy++) {
+            bitmap.getPixels(row, 0, width, 0, sampleY(sy, height), width, 1);
+            int cellRow = (sy / SAMPLES) * COLUMNS;
+            for (int sx = 0; sx < COLUMNS * SAMPLES; sx++) {
+                int pixel = row[sampleX(sx, width)];
+                cells[cellRow + sx / SAMPLES] += (77 * ((pixel >> 16) & 0xff)
+                        + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8;
+            }
+        }
+        return bits();
+    }
+
+    private long bits() {
+        long hash = 0;
+        int bit = 0;
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLUMNS - 1; c++, bit++) {
+                if (cells[r * COLUMNS + c] > cells[r * COLUMNS + c + 1]) {
+                    hash |= 1L << bit;
+                }
+            }
+        }
+        return hash;
+    }
+}
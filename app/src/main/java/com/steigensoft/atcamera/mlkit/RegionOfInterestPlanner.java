@@ -0,0 +1,211 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Rect;
+
+import java.util.List;
+
+/**
+ * Chooses the part of the next frame worth running the detector on. Objects found in one frame
+ * are almost always close to the same place in the next, so while there are recent results only
+ * their bounding box plus a margin is scanned, upscaled when the objects are small. The whole
+ * frame is still scanned every {@code fullScanInterval} inferences so that new objects are found,
+ * and whenever nothing is known or the crop would cover most of the frame anyway.
+ *
+ * <p>Results are reported with {@link #beginResults()}, {@link #addResult(int, int, int, int)}
+ * and {@link #endResults(boolean, long)} in frame coordinates. All methods are synchronized,
+ * plan() is called on the thread feeding the processor and results arrive on the listener thread.
+ */
+public class RegionOfInterestPlanner {
+
+    private static final int DEFAULT_FULL_SCAN_INTERVAL = 10;
+    private static final long DEFAULT_MAX_AGE_MILLIS = 500;
+    private static final float DEFAULT_MARGIN = 0.5f;
+    private static final int DEFAULT_MIN_TARGET_SIZE = 120;
+    private static final float DEFAULT_MAX_UPSCALE = 2f;
+    // Margins never shrink below this many pixels, so tiny objects still get some context.
+    private static final int MIN_MARGIN = 16;
+    // Crops larger than this fraction of the frame save too little to be worth the copy.
+    private static final float MAX_CROP_AREA = 0.5f;
+
+    private final int fullScanInterval;
+    private final long maxAgeMillis;
+    private final float margin;
+    private final int minTargetSize;
+    private final float maxUpscale;
+
+    private int inferencesSinceFullScan = Integer.MAX_VALUE / 2;
+
+    // Union and smallest side of the last results, in frame coordinates.
+    private boolean known;
+    private int knownLeft;
+    private int knownTop;
+    private int knownRight;
+    private int knownBottom;
+    private int knownMinSide;
+    private long knownAtMillis;
+
+    // Results being collected between beginResults() and endResults().
+    private int pendingCount;
+    private int pendingLeft;
+    private int pendingTop;
+    private int pendingRight;
+    private int pendingBottom;
+    private int pendingMinSide;
+
+    private long cropCount;
+    private long fullCount;
+
+    public RegionOfInterestPlanner() {
+        this(DEFAULT_FULL_SCAN_INTERVAL, DEFAULT_MAX_AGE_MILLIS, DEFAULT_MARGIN,
+                DEFAULT_MIN_TARGET_SIZE, DEFAULT_MAX_UPSCALE);
+    }
+
+    /**
+     * @param fullScanInterval at most this many inferences in a row run on crops
+     * @param maxAgeMillis results older than this no longer steer the crop
+     * @param margin added around the objects on each side, as a fraction of their size
+     * @param minTargetSize objects whose smaller side is below this many pixels are upscaled
+     * @param maxUpscale the largest upscale factor applied to small objects
+     */
+    public RegionOfInterestPlanner(int fullScanInterval, long maxAgeMillis, float margin,
+            int minTargetSize, float maxUpscale) {
+        if (fullScanInterval < 1 || maxUpscale < 1f) {
+            throw new IllegalArgumentException("fullScanInterval " + fullScanInterval
+                    + ", maxUpscale " + maxUpscale);
+        }
+        this.fullScanInterval = fullScanInterval;
+        this.maxAgeMillis = maxAgeMillis;
+        this.margin = margin;
+        this.minTargetSize = minTargetSize;
+        this.maxUpscale = maxUpscale;
+    }
+
+    /**
+     * Plans the next inference on a frame of the given size.
+     *
+     * @param seeds regions known from elsewhere, used while there are no recent results, or null
+     * @param outCrop receives the region to scan when a crop is planned
+     * @return the factor to resize the crop by, or 0 to scan the whole frame
+     */
+    public synchronized float plan(int frameWidth, int frameHeight, List<Rect> seeds, long now,
+            Rect outCrop) {
+        if (++inferencesSinceFullScan >= fullScanInterval) {
+            return fullScan();
+        }
+        int left;
+        int top;
+        int right;
+        int bottom;
+        int minSide;
+        if (known && now - knownAtMillis <= maxAgeMillis) {
+            left = knownLeft;
+            top = knownTop;
+            right = knownRight;
+            bottom = knownBottom;
+            minSide = knownMinSide;
+        } else if (seeds != null && !seeds.isEmpty()) {
+            left = Integer.MAX_VALUE;
+            top = Integer.MAX_VALUE;
+            right = Integer.MIN_VALUE;
+            bottom = Integer.MIN_VALUE;
+            minSide = Integer.MAX_VALUE;
+            for (int i = 0; i < seeds.size(); i++) {
+                Rect seed = seeds.get(i);
+                left = Math.min(left, seed.left);
+                top = Math.min(top, seed.top);
+                right = Math.max(right, seed.right);
+                bottom = Math.max(bottom, seed.bottom);
+                minSide = Math.min(minSide, Math.min(seed.right - seed.left, seed.bottom - seed.top));
+            }
+        } else {
+            return fullScan();
+        }
+
+        int marginX = Math.max(MIN_MARGIN, Math.round((right - left) * margin));
+        int marginY = Math.max(MIN_MARGIN, Math.round((bottom - top) * margin));
+        // Even offsets and sizes keep NV21 chroma rows and columns aligned.
+        left = Math.max(0, left - marginX) & ~1;
+        top = Math.max(0, top - marginY) & ~1;
+        right = Math.min(frameWidth, right + marginX) & ~1;
+        bottom = Math.min(frameHeight, bottom + marginY) & ~1;
+        int width = right - left;
+        int height = bottom - top;
+        if (width <= 0 || height <= 0
+                || width * (long) height > MAX_CROP_AREA * frameWidth * (long) frameHeight) {
+            return fullScan();
+        }
+
+        float scale = 1f;
+        if (minSide > 0 && minSide < minTargetSize) {
+            scale = Math.min(maxUpscale, minTargetSize / (float) minSide);
+            // Never feed the detector more pixels than the full frame would have been.
+            scale = Math.min(scale, Math.min(frameWidth / (float) width, frameHeight / (float) height));
+            scale = Math.max(1f, scale);
+        }
+        outCrop.left = left;
+        outCrop.top = top;
+        outCrop.right = right;
+        outCrop.bottom = bottom;
+        cropCount++;
+        return scale;
+    }
+
+    private float fullScan() {
+        inferencesSinceFullScan = 0;
+        fullCount++;
+        return 0f;
+    }
+
+    /** Starts reporting the results of one inference. */
+    public synchronized void beginResults() {
+        pendingCount = 0;
+        pendingLeft = Integer.MAX_VALUE;
+        pendingTop = Integer.MAX_VALUE;
+        pendingRight = Integer.MIN_VALUE;
+        pendingBottom = Integer.MIN_VALUE;
+        pendingMinSide = Integer.MAX_VALUE;
+    }
+
+    /** Adds one object found by the inference, in frame coordinates. */
+    public synchronized void addResult(int left, int top, int right, int bottom) {
+        pendingCount++;
+        pendingLeft = Math.min(pendingLeft, left);
+        pendingTop = Math.min(pendingTop, top);
+        pendingRight = Math.max(pendingRight, right);
+        pendingBottom = Math.max(pendingBottom, bottom);
+        pendingMinSide = Math.min(pendingMinSide, Math.min(right - left, bottom - top));
+    }
+
+    /**
+     * Ends the results of one inference. An empty crop forgets the previous results, so the next
+     * frame is scanned in full to find where the objects went.
+     *
+     * @param fullFrame whether the inference ran on the whole frame
+     */
+    public synchronized void endResults(boolean fullFrame, long now) {
+        if (pendingCount == 0) {
+            known = false;
+            if (!fullFrame) {
+                inferencesSinceFullScan = fullScanInterval;
+            }
+            return;
+        }
+        known = true;
+        knownLeft = pendingLeft;
+        knownTop = pendingTop;
+        knownRight = pendingRight;
+        knownBottom = pendingBottom;
+        knownMinSide = pendingMinSide;
+        knownAtMillis = now;
+    }
+
+    /** Number of inferences planned on a crop. */
+    public synchronized long getCropCount() {
+        return cropCount;
+    }
+
+    /** Number of inferences planned on the whole frame. */
+    public synchronized long getFullScanCount() {
+        return fullCount;
+    }
+}
@@ -0,0 +1,16 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Rect;
+
+import java.util.List;
+
+/**
+ * Something outside the detector that knows where objects probably are, e.g. the camera HAL face
+ * statistics. Used by {@link RegionOfInterestPlanner} while the detector itself has no recent
+ * results.
+ */
+public interface RegionOfInterestSource {
+
+    /** Returns the regions in the coordinates of a frame of the given size, possibly empty. */
+    List<Rect> getRegionsOfInterest(int frameWidth, int frameHeight);
+}
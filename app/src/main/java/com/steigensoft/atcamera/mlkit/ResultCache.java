@@ -0,0 +1,114 @@
+package com.steigensoft.atcamera.mlkit;
+
+import java.util.Locale;
+
+/**
+ * Remembers the last result of one processor together with the {@link PerceptualHash} of its
+ * frame. A later frame whose hash is at most {@code maxDistance} bits away gets the same result
+ * back without running the detector, as long as the result is younger than
+ * {@code maxAgeMillis}, so a static scene is still looked at again every so often.
+ *
+ * <p>Keeps hit counts and an estimate of the inference time saved, based on the average
+ * duration of the inferences that did run. Thread safe.
+ *
+ * @param <T> the processor's result type
+ */
+public class ResultCache<T> {
+    public static final int DEFAULT_MAX_DISTANCE = 4;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 2000;
+    private static final double SMOOTHING = 0.1;
+
+    private final int maxDistance;
+    private final long maxAgeMillis;
+
+    private T result;
+    private FrameMetadata metadata;
+    private long hash;
+    private long storedAtMillis;
+
+    private long hits;
+    private long misses;
+    private double averageInferenceNanos;
+    private long inferences;
+    private double savedNanos;
+
+    public ResultCache() {
+        this(DEFAULT_MAX_DISTANCE, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxDistance the largest hash distance in bits still counted as the same frame
+     * @param maxAgeMillis how long a result may be reused
+     */
+    public ResultCache(int maxDistance, long maxAgeMillis) {
+        this.maxDistance = maxDistance;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /** Returns the cached result if the frame with this hash may reuse it, otherwise null. */
+    public synchronized T lookup(long frameHash, long now) {
+        if (result != null && now - storedAtMillis <= maxAgeMillis
+                && PerceptualHash.distance(frameHash, hash) <= maxDistance) {
+            hits++;
+            savedNanos += averageInferenceNanos;
+            return result;
+        }
+        misses++;
+        return null;
+    }
+
+    /** Metadata of the frame the cached result was computed on, e.g. its crop. */
+    public synchronized FrameMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Stores the result of an inference that did run.
+     *
+     * @param metadata the metadata the result was computed with, may be null
+     * @param inferenceNanos how long the inference took
+     */
+    public synchronized void store(long frameHash, T result, FrameMetadata metadata, long now,
+                                   long inferenceNanos) {
+        this.hash = frameHash;
+        this.result = result;
+        this.metadata = metadata;
+        storedAtMillis = now;
+        inferences++;
+        if (inferences == 1) {
+            averageInferenceNanos = inferenceNanos;
+        } else {
+            averageInferenceNanos += SMOOTHING * (inferenceNanos - averageInferenceNanos);
+        }
+    }
+
+    /** Forgets the cached result, e.g. when the scene is known to have changed. */
+    public synchronized void clear() {
+        result = null;
+        metadata = null;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0f : hits / (float) total;
+    }
+
+    /** Estimated inference time saved by hits so far. */
+    public synchronized double getSavedMillis() {
+        return savedNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "hits %d of %d (%.0f%%), saved %.0f ms of inference",
+                hits, hits + misses, 100f * getHitRate(), getSavedMillis());
+    }
+}
@@ -0,0 +1,161 @@
+package com.steigensoft.atcamera.mlkit;
+
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Thread safe frame counters for one stream of the pipeline. Rates are recomputed once per
+ * second from the frames seen during that window, latency is kept as an exponential moving
+ * average plus the worst value seen.
+ */
+public class StreamMetrics {
+    private static final long WINDOW_NANOS = 1000000000L;
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final String name;
+
+    private long framesReceived;
+    private long framesProcessed;
+    private long framesDropped;
+    private long bytesReceived;
+
+    private long windowStartNanos = System.nanoTime();
+    private int windowReceived;
+    private int windowProcessed;
+    private long windowBytes;
+    private double inputFps;
+    private double processedFps;
+    private double megabytesPerSecond;
+
+    private double averageLatencyMillis;
+    private double maxLatencyMillis;
+
+    public StreamMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** A frame arrived from the source. */
+    public synchronized void onFrameReceived() {
+        framesReceived++;
+        windowReceived++;
+        rollWindow();
+    }
+
+    /** Raw bytes read from the source, for network streams. */
+    public synchronized void onBytesReceived(long bytes) {
+        bytesReceived += bytes;
+        windowBytes += bytes;
+        rollWindow();
+    }
+
+    /** A frame was discarded before it reached the detector. */
+    public synchronized void onFrameDropped() {
+        framesDropped++;
+        rollWindow();
+    }
+
+    /**
+     * A frame went through the detector.
+     *
+     * @param latencyNanos time from arrival at the source until processing finished
+     */
+    public synchronized void onFrameProcessed(long latencyNanos) {
+        framesProcessed++;
+        windowProcessed++;
+        double latencyMillis = latencyNanos / 1000000.0;
+        if (framesProcessed == 1) {
+            averageLatencyMillis = latencyMillis;
+        } else {
+            averageLatencyMillis += LATENCY_SMOOTHING * (latencyMillis - averageLatencyMillis);
+        }
+        maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+        rollWindow();
+    }
+
+    private void rollWindow() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStartNanos;
+        if (elapsed >= WINDOW_NANOS) {
+            inputFps = windowReceived * 1e9 / elapsed;
+            processedFps = windowProcessed * 1e9 / elapsed;
+            megabytesPerSecond = windowBytes * 1e9 / elapsed / (1024.0 * 1024.0);
+            windowReceived = 0;
+            windowProcessed = 0;
+            windowBytes = 0;
+            windowStartNanos = now;
+        }
+    }
+
+    public synchronized long getFramesReceived() {
+        return framesReceived;
+    }
+
+    public synchronized long getFramesProcessed() {
+        return framesProcessed;
+    }
+
+    public synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized double getMegabytesPerSecond() {
+        return megabytesPerSecond;
+    }
+
+    public synchronized double getInputFps() {
+        return inputFps;
+    }
+
+    public synchronized double getProcessedFps() {
+        return processedFps;
+    }
+
+    public synchronized double getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+
+    public synchronized double getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    /**
+     * Returns a snapshot adding up several streams: counts and rates are summed, the average
+     * latency is weighted by processed frame rate and the maximum is the worst of all.
+     */
+    public static StreamMetrics sum(String name, Collection<StreamMetrics> parts) {
+        StreamMetrics total = new StreamMetrics(name);
+        double latencyWeight = 0;
+        for (StreamMetrics part : parts) {
+            synchronized (part) {
+                total.framesReceived += part.framesReceived;
+                total.framesProcessed += part.framesProcessed;
+                total.framesDropped += part.framesDropped;
+                total.bytesReceived += part.bytesReceived;
+                total.inputFps += part.inputFps;
+                total.processedFps += part.processedFps;
+                total.megabytesPerSecond += part.megabytesPerSecond;
+                total.averageLatencyMillis += part.averageLatencyMillis * part.processedFps;
+                latencyWeight += part.processedFps;
+                total.maxLatencyMillis = Math.max(total.maxLatencyMillis, part.maxLatencyMillis);
+            }
+        }
+        total.averageLatencyMillis = latencyWeight > 0 ? total.averageLatencyMillis / latencyWeight : 0;
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "%s: in %.1f fps (%.2f MB/s), processed %.1f fps, dropped %d, latency avg %.1f ms max %.1f ms",
+                name, inputFps, megabytesPerSecond, processedFps, framesDropped, averageLatencyMillis,
+                maxLatencyMillis);
+    }
+}
@@ -0,0 +1,102 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Matrix;
+
+/**
+ * The transform a TextureView applies to the camera image for the display rotation, as set by
+ * configureTransform(). The image, upright for the natural orientation of the display, is
+ * stretched over the view and then moved by the matrix; frames grabbed from the view carry it.
+ *
+ * <p>Rectangles are mapped normalized to the view, to the box around their transformed corners.
+ * Plain arithmetic so it runs on the JVM. Immutable.
+ */
+public final class ViewTransform {
+
+    private final int viewWidth;
+    private final int viewHeight;
+    // Forward and inverse as {a, b, c, d, e, f}: x' = a x + b y + c, y' = d x + e y + f in view
+    // pixels. The inverse is only valid while invertible.
+    private final float[] forward = new float[6];
+    private final float[] inverse = new float[6];
+    private final boolean invertible;
+
+    /** @param values the 3x3 matrix as {@link Matrix#getValues(float[])} returns it */
+    public ViewTransform(float[] values, int viewWidth, int viewHeight) {
+        this.viewWidth = viewWidth;
+        this.viewHeight = viewHeight;
+        float a = values[Matrix.MSCALE_X];
+        float b = values[Matrix.MSKEW_X];
+        float c = values[Matrix.MTRANS_X];
+        float d = values[Matrix.MSKEW_Y];
+        float e = values[Matrix.MSCALE_Y];
+        float f = values[Matrix.MTRANS_Y];
+        set(forward, a, b, c, d, e, f);
+        float det = a * e - b * d;
+        invertible = Math.abs(det) >= 1e-6f && viewWidth > 0 && viewHeight > 0;
+        if (invertible) {
+            float ia = e / det;
+            float ib = -b / det;
+            float id = -d / det;
+            float ie = a / det;
+            set(inverse, ia, ib, -(ia * c + ib * f), id, ie, -(id * c + ie * f));
+        }
+    }
+
+    private static void set(float[] m, float a, float b, float c, float d, float e, float f) {
+        m[0] = a;
+        m[1] = b;
+        m[2] = c;
+        m[3] = d;
+        m[4] = e;
+        m[5] = f;
+    }
+
+    /** Whether view coordinates can be mapped back to the image. */
+    public boolean isInvertible() {
+        return invertible;
+    }
+
+    /**
+     * Maps a rectangle of the upright camera image to where the view shows it, in place.
+     *
+     * @param rect left, top, right and bottom from offset on, normalized
+     */
+    public void toView(float[] rect, int offset) {
+        if (viewWidth > 0 && viewHeight > 0) {
+            map(rect, offset, forward);
+        }
+    }
+
+    /**
+     * Maps a rectangle of the view back to the upright camera image, in place. Left as it is
+     * unless {@link #isInvertible()}.
+     *
+     * @param rect left, top, right and bottom from offset on, normalized
+     */
+    public void fromView(float[] rect, int offset) {
+        if (invertible) {
+            map(rect, offset, inverse);
+        }
+    }
+
+    private void map(float[] rect, int offset, float[] m) {
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            float x = rect[offset + ((corner & 1) == 0 ? 0 : 2)] * viewWidth;
+            float y = rect[offset + (corner < 2 ? 1 : 3)] * viewHeight;
+            float mappedX = m[0] * x + m[1] * y + m[2];
+            float mappedY = m[3] * x + m[4] * y + m[5];
+            left = Math.min(left, mappedX);
+            top = Math.min(top, mappedY);
+            right = Math.max(right, mappedX);
+            bottom = Math.max(bottom, mappedY);
+        }
+        rect[offset] = left / viewWidth;
+        rect[offset + 1] = top / viewHeight;
+        rect[offset + 2] = right / viewWidth;
+        rect[offset + 3] = bottom / viewHeight;
+    }
+}
@@ -36,6 +36,21 @@ public interface VisionImageProcessor {
   /** Processes the images. */
   void process(Image bitmap, int rotation, GraphicOverlay graphicOverlay);
 
+  /**
+   * Whether a frame handed over now would be processed rather than dropped. Sources with costly
+   * frame preparation check this first and only prepare frames the model will actually see.
+   */
+  boolean isReadyForFrame();
+
+  /**
+   * Waits until the detector is done with every frame handed over so far, for at most the given
+   * time. Callers that hold the frame, or a worker, for the whole inference wait here after
+   * process() returns.
+   *
+   * @return false if an inference was still running when the time ran out
+   */
+  boolean awaitIdle(long timeoutMillis) throws InterruptedException;
+
   /** Stops the underlying machine learning model and release resources. */
   void stop();
 }
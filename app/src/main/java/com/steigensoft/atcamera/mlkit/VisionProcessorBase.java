@@ -14,8 +14,11 @@
 package com.steigensoft.atcamera.mlkit;
 
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.media.Image;
 
+import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
 import com.google.android.gms.tasks.Task;
@@ -23,9 +26,13 @@ import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
 
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * Abstract base class for ML Kit frame processors. Subclasses need to implement {@link
@@ -36,26 +43,352 @@ import androidx.annotation.NonNull;
  */
 public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
 
+    // Bitmaps carry no facing, processors treat them as CameraSource.CAMERA_FACING_FRONT.
+    private static final int BITMAP_FACING = 1;
+
+    // Runs completion listeners on whichever thread completes the task.
+    private static final Executor COMPLETION_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
     // Whether we should ignore process(). This is usually caused by feeding input data faster than
     // the model can handle.
     private final AtomicBoolean shouldThrottle = new AtomicBoolean(false);
 
+    // Optional check run before each inference, e.g. a hardware pre-detector.
+    private volatile FrameGate frameGate;
+
+    // Optional sharpness and exposure check, scores end up in the FrameMetadata.
+    private volatile FrameQualityScorer qualityScorer;
+
+    // Optional region of interest stage, cropping frames to the area of recent results.
+    private volatile RegionOfInterestPlanner roiPlanner;
+    private volatile RegionOfInterestSource roiSource;
+    // Used only on the thread calling process().
+    private final FrameCropper cropper = new FrameCropper();
+    private final Rect cropRect = new Rect();
+
+    // Optional reuse of the last result on near identical frames.
+    private volatile ResultCache<T> resultCache;
+    // Used only on the thread calling process().
+    private final PerceptualHash perceptualHash = new PerceptualHash();
+    // Runs the listeners of cached results, on the main thread like those of fresh ones.
+    private volatile Executor cachedResultExecutor = new MainThreadExecutor();
+
+    // Frames held by running inferences, shared by all processors.
+    private final MemoryBudget.Stage inferenceBudget =
+            MemoryBudget.getInstance().stage("inference");
+
+    // Inferences started and not completed yet, guarded by inferenceLock. Completion is tracked
+    // on the thread finishing the task, so waiting for it does not depend on the main thread.
+    private final Object inferenceLock = new Object();
+    private int runningInferences;
+
+    private final List<DetectionListener> detectionListeners = new CopyOnWriteArrayList<>();
+    private final List<DetectionFailureListener> failureListeners =
+            new CopyOnWriteArrayList<>();
+    // Reused for every result set, results are delivered one at a time on the listener thread.
+    private final DetectionEvent detectionEvent = new DetectionEvent();
+    private volatile int cameraId;
+
+    // Frames offered to process() versus inferences actually run, and their duration.
+    private final StreamMetrics inferenceMetrics = new StreamMetrics(getClass().getSimpleName());
+    private final Object statsLock = new Object();
+    private long inferenceCount;
+    private long successfulInferenceCount;
+    private long qualityRejectCount;
+
     public VisionProcessorBase() {
     }
 
+    public void addDetectionListener(DetectionListener listener) {
+        detectionListeners.add(listener);
+    }
+
+    public void removeDetectionListener(DetectionListener listener) {
+        detectionListeners.remove(listener);
+    }
+
+    public void addFailureListener(DetectionFailureListener listener) {
+        failureListeners.add(listener);
+    }
+
+    public void removeFailureListener(DetectionFailureListener listener) {
+        failureListeners.remove(listener);
+    }
+
+    /** Identifies the camera this processor watches in the {@link DetectionEvent}s. */
+    public void setCameraId(int cameraId) {
+        this.cameraId = cameraId;
+    }
+
+    /** Frame rate, drop and inference time counters of this processor. */
+    public StreamMetrics getInferenceMetrics() {
+        return inferenceMetrics;
+    }
+
+    /** Fraction of completed inferences that found at least one object. */
+    public float getDetectionSuccessRate() {
+        synchronized (statsLock) {
+            return inferenceCount == 0 ? 0f : successfulInferenceCount / (float) inferenceCount;
+        }
+    }
+
+    public long getInferenceCount() {
+        synchronized (statsLock) {
+            return inferenceCount;
+        }
+    }
+
+    /**
+     * Sets a scorer run on every frame that is not throttled, or null for none. Frames failing
+     * its thresholds are dropped before the frame gate and the detector see them; the others
+     * carry its figures in their {@link FrameMetadata}. Used only on the thread calling process().
+     */
+    public void setQualityScorer(FrameQualityScorer scorer) {
+        qualityScorer = scorer;
+    }
+
+    /** Number of frames dropped by the quality scorer. */
+    public long getQualityRejectCount() {
+        synchronized (statsLock) {
+            return qualityRejectCount;
+        }
+    }
+
+    /** Sets a gate consulted before every inference, or null to process every frame. */
+    public void setFrameGate(FrameGate gate) {
+        frameGate = gate;
+    }
+
+    /**
+     * Sets the planner deciding which part of each frame to scan, or null to always scan the
+     * whole frame. Bitmaps and unrotated NV21 frames can be cropped, media Images are always
+     * scanned whole.
+     */
+    public void setRegionOfInterestPlanner(RegionOfInterestPlanner planner) {
+        roiPlanner = planner;
+    }
+
+    public RegionOfInterestPlanner getRegionOfInterestPlanner() {
+        return roiPlanner;
+    }
+
+    /** Sets where to look while there are no recent results, or null to scan the whole frame. */
+    public void setRegionOfInterestSource(RegionOfInterestSource source) {
+        roiSource = source;
+    }
+
+    /**
+     * Sets a cache serving the last result again for frames whose {@link PerceptualHash} is
+     * close to that of the frame it was computed on, or null to run the detector on every frame.
+     * Only for processors whose results depend on nothing but the frame. Bitmaps, NV21 frames and
+     * YUV_420_888 Images are hashed, other Images always go to the detector.
+     */
+    public void setResultCache(ResultCache<T> cache) {
+        resultCache = cache;
+    }
+
+    public ResultCache<T> getResultCache() {
+        return resultCache;
+    }
+
+    /** Tests deliver cached results on their own thread instead of the main thread. */
+    void setCachedResultExecutor(Executor executor) {
+        cachedResultExecutor = executor;
+    }
+
     @Override
-    public void process(Bitmap bitmap) {
+    public boolean isReadyForFrame() {
+        return !shouldThrottle.get();
+    }
+
+    @Override
+    public boolean awaitIdle(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        synchronized (inferenceLock) {
+            while (runningInferences > 0) {
+                long leftMillis = (deadline - System.nanoTime()) / 1000000L;
+                if (leftMillis <= 0) {
+                    return false;
+                }
+                inferenceLock.wait(leftMillis);
+            }
+            return true;
+        }
+    }
+
+    private boolean isThrottled() {
+        inferenceMetrics.onFrameReceived();
         if (shouldThrottle.get()) {
+            inferenceMetrics.onFrameDropped();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isGatedOut(FrameMetadata frameMetadata) {
+        FrameGate gate = frameGate;
+        if (gate != null && !gate.shouldProcess(frameMetadata)) {
+            inferenceMetrics.onFrameDropped();
+            return true;
+        }
+        return false;
+    }
+
+    /** Drops the frame last scored if it fails the thresholds. */
+    private boolean isPoorQuality(FrameQualityScorer scorer) {
+        if (scorer.isAcceptable()) {
+            return false;
+        }
+        inferenceMetrics.onFrameDropped();
+        synchronized (statsLock) {
+            qualityRejectCount++;
+        }
+        return true;
+    }
+
+    private static FrameMetadata.Builder bitmapMetadata(int width, int height) {
+        return new FrameMetadata.Builder()
+                .setWidth(width)
+                .setHeight(height)
+                .setCameraFacing(BITMAP_FACING);
+    }
+
+    /**
+     * Chooses the region of the next frame to scan, by default with the
+     * {@link RegionOfInterestPlanner}. Called on the thread calling process(), only for frames
+     * that can be cropped. Subclasses may override to choose regions their own way.
+     *
+     * @param outCrop receives the region to scan, with even coordinates
+     * @return the scale for the crop, or 0 for the whole frame
+     */
+    protected float planCrop(int frameWidth, int frameHeight, Rect outCrop) {
+        RegionOfInterestPlanner planner = roiPlanner;
+        if (planner == null) {
+            return 0f;
+        }
+        RegionOfInterestSource source = roiSource;
+        return planner.plan(frameWidth, frameHeight,
+                source != null ? source.getRegionsOfInterest(frameWidth, frameHeight) : null,
+                System.currentTimeMillis(), outCrop);
+    }
+
+    /**
+     * Called on the thread calling process() once a frame is sure to go to the detector, after
+     * the quality, gate, cache and memory budget checks. Frames dropped by any of them, or by
+     * the throttle, never get here. Subclasses that plan work for a frame before process() may
+     * commit it here.
+     */
+    protected void onInferenceStarted() {
+    }
+
+    /** Adds the crop in cropRect to the frame's metadata, if any, or to that of a bitmap. */
+    private FrameMetadata cropMetadata(FrameMetadata frame, int frameWidth, int frameHeight) {
+        FrameMetadata.Builder builder = frame != null
+                ? new FrameMetadata.Builder(frame) : bitmapMetadata(frameWidth, frameHeight);
+        return builder
+                .setCrop(cropRect.left, cropRect.top, cropRect.width(), cropRect.height(),
+                        cropper.getWidth() / (float) cropRect.width())
+                .build();
+    }
+
+    private void processBitmap(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+        if (isThrottled()) {
             return;
         }
-        detectInVisionImage(FirebaseVisionImage.fromBitmap(bitmap), null, null);
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        // Bitmaps only get metadata when something needs it.
+        FrameMetadata frameMetadata = null;
+        FrameQualityScorer scorer = qualityScorer;
+        if (scorer != null) {
+            scorer.score(bitmap);
+            if (isPoorQuality(scorer)) {
+                return;
+            }
+            frameMetadata = scorer.applyTo(bitmapMetadata(width, height)).build();
+        }
+        if (frameGate != null) {
+            if (frameMetadata == null) {
+                frameMetadata = bitmapMetadata(width, height).build();
+            }
+            if (isGatedOut(frameMetadata)) {
+                return;
+            }
+        }
+        ResultCache<T> cache = resultCache;
+        long hash = 0;
+        if (cache != null) {
+            hash = perceptualHash.hash(bitmap);
+            if (reuseCachedResult(cache, hash, graphicOverlay, width, height)) {
+                return;
+            }
+        }
+        float scale = planCrop(width, height, cropRect);
+        if (scale > 0f) {
+            Bitmap crop = cropper.crop(bitmap, cropRect, scale);
+            detectInVisionImage(FirebaseVisionImage.fromBitmap(crop),
+                    cropMetadata(frameMetadata, width, height), graphicOverlay, width, height,
+                    MemoryBudget.bitmapBytes(width, height), cache, hash);
+        } else {
+            detectInVisionImage(FirebaseVisionImage.fromBitmap(bitmap), frameMetadata,
+                    graphicOverlay, width, height, MemoryBudget.bitmapBytes(width, height),
+                    cache, hash);
+        }
+    }
+
+    @Override
+    public void process(Bitmap bitmap) {
+        processBitmap(bitmap, null);
     }
 
     @Override
     public void process(
-            ByteBuffer data, final FrameMetadata frameMetadata, final GraphicOverlay
+            ByteBuffer data, FrameMetadata frameMetadata, final GraphicOverlay
             graphicOverlay) {
-        if (shouldThrottle.get()) {
+        if (isThrottled()) {
+            return;
+        }
+        FrameQualityScorer scorer = qualityScorer;
+        if (scorer != null) {
+            scorer.score(data, frameMetadata.getWidth(), frameMetadata.getHeight(),
+                    frameMetadata.getWidth());
+            if (isPoorQuality(scorer)) {
+                return;
+            }
+            frameMetadata = scorer.applyTo(new FrameMetadata.Builder(frameMetadata)).build();
+        }
+        if (isGatedOut(frameMetadata)) {
+            return;
+        }
+        int width = frameMetadata.getWidth();
+        int height = frameMetadata.getHeight();
+        ResultCache<T> cache = resultCache;
+        long hash = 0;
+        if (cache != null) {
+            hash = perceptualHash.hash(data, width, height, width);
+            if (reuseCachedResult(cache, hash, graphicOverlay, width, height)) {
+                return;
+            }
+        }
+        float scale = frameMetadata.getRotation() == FirebaseVisionImageMetadata.ROTATION_0
+                ? planCrop(width, height, cropRect) : 0f;
+        if (scale > 0f) {
+            ByteBuffer crop = cropper.crop(data, width, height, cropRect, scale);
+            FirebaseVisionImageMetadata metadata =
+                    new FirebaseVisionImageMetadata.Builder()
+                            .setFormat(FirebaseVisionImageMetadata.IMAGE_FORMAT_NV21)
+                            .setWidth(cropper.getWidth())
+                            .setHeight(cropper.getHeight())
+                            .setRotation(FirebaseVisionImageMetadata.ROTATION_0)
+                            .build();
+            detectInVisionImage(FirebaseVisionImage.fromByteBuffer(crop, metadata),
+                    cropMetadata(frameMetadata, width, height), graphicOverlay, width, height,
+                    data.capacity(), cache, hash);
             return;
         }
         FirebaseVisionImageMetadata metadata =
@@ -67,17 +400,15 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
                         .build();
 
         detectInVisionImage(
-                FirebaseVisionImage.fromByteBuffer(data, metadata), frameMetadata, graphicOverlay);
+                FirebaseVisionImage.fromByteBuffer(data, metadata), frameMetadata, graphicOverlay,
+                frameMetadata.getWidth(), frameMetadata.getHeight(), data.capacity(), cache, hash);
     }
 
     // Bitmap version
     @Override
     public void process(Bitmap bitmap, final GraphicOverlay
             graphicOverlay) {
-        if (shouldThrottle.get()) {
-            return;
-        }
-        detectInVisionImage(FirebaseVisionImage.fromBitmap(bitmap), null, graphicOverlay);
+        processBitmap(bitmap, graphicOverlay);
     }
 
     /**
@@ -87,32 +418,149 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
      */
     @Override
     public void process(Image image, int rotation, final GraphicOverlay graphicOverlay) {
-        if (shouldThrottle.get()) {
+        if (isThrottled()) {
             return;
         }
         // This is for overlay display's usage
-        FrameMetadata frameMetadata =
+        FrameMetadata.Builder builder =
                 new FrameMetadata.Builder().setWidth(image.getWidth()).setHeight(image.getHeight
-                        ()).build();
+                        ());
+        FrameQualityScorer scorer = qualityScorer;
+        if (scorer != null && image.getFormat() == ImageFormat.YUV_420_888) {
+            Image.Plane luma = image.getPlanes()[0];
+            scorer.score(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                    luma.getRowStride());
+            if (isPoorQuality(scorer)) {
+                return;
+            }
+            scorer.applyTo(builder);
+        }
+        FrameMetadata frameMetadata = builder.build();
+        if (isGatedOut(frameMetadata)) {
+            return;
+        }
+        ResultCache<T> cache = image.getFormat() == ImageFormat.YUV_420_888 ? resultCache : null;
+        long hash = 0;
+        if (cache != null) {
+            Image.Plane luma = image.getPlanes()[0];
+            hash = perceptualHash.hash(luma.getBuffer(), image.getWidth(), image.getHeight(),
+                    luma.getRowStride());
+            if (reuseCachedResult(cache, hash, graphicOverlay, image.getWidth(),
+                    image.getHeight())) {
+                return;
+            }
+        }
         FirebaseVisionImage fbVisionImage =
                 FirebaseVisionImage.fromMediaImage(image, rotation);
-        detectInVisionImage(fbVisionImage, frameMetadata, graphicOverlay);
+        detectInVisionImage(fbVisionImage, frameMetadata, graphicOverlay,
+                image.getWidth(), image.getHeight(), image.getWidth() * image.getHeight() * 3L / 2,
+                cache, hash);
+    }
+
+    /**
+     * Serves the cached result if it was computed on a frame close enough to this one. It is
+     * delivered through the same listeners as a fresh result, on the main thread, with the
+     * metadata of the frame it came from and no image. No inference runs, so the processor is
+     * not throttled for it.
+     */
+    private boolean reuseCachedResult(ResultCache<T> cache, long hash,
+                                      final GraphicOverlay graphicOverlay, final int frameWidth,
+                                      final int frameHeight) {
+        final T cached = cache.lookup(hash, System.currentTimeMillis());
+        if (cached == null) {
+            return false;
+        }
+        final FrameMetadata metadata = cache.getMetadata();
+        cachedResultExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                VisionProcessorBase.this.onSuccess(cached, metadata, graphicOverlay, null);
+                dispatchDetections(cached, metadata, frameWidth, frameHeight, false);
+            }
+        });
+        return true;
     }
 
+    /**
+     * Runs the detector on the image, unless the memory budget has no room for the frame it
+     * holds while the inference runs.
+     *
+     * @param frameBytes size of the frame behind the image
+     * @param cache receives the result under the frame's hash, may be null
+     */
     private void detectInVisionImage(
             final FirebaseVisionImage image,
             final FrameMetadata metadata,
-            final GraphicOverlay graphicOverlay) {
-        detectInImage(image)
+            final GraphicOverlay graphicOverlay,
+            final int frameWidth,
+            final int frameHeight,
+            final long frameBytes,
+            final ResultCache<T> cache,
+            final long hash) {
+        if (!inferenceBudget.tryReserve(frameBytes)) {
+            inferenceMetrics.onFrameDropped();
+            return;
+        }
+        // Begin throttling until this frame of input has been processed, either in onSuccess or
+        // onFailure. Set before any listener is added, a task that completes at once would
+        // otherwise run them before this and leave the processor throttled for good.
+        shouldThrottle.set(true);
+        synchronized (inferenceLock) {
+            runningInferences++;
+        }
+        onInferenceStarted();
+        Task<T> task;
+        try {
+            task = detectInImage(image);
+        } catch (RuntimeException e) {
+            endInference(frameBytes);
+            shouldThrottle.set(false);
+            throw e;
+        }
+        task.addOnCompleteListener(COMPLETION_EXECUTOR, new OnCompleteListener<T>() {
+            @Override
+            public void onComplete(@NonNull Task<T> task) {
+                endInference(frameBytes);
+            }
+        });
+        deliverResults(task, image, metadata, graphicOverlay, frameWidth, frameHeight, cache,
+                hash);
+    }
+
+    private void endInference(long frameBytes) {
+        inferenceBudget.release(frameBytes);
+        synchronized (inferenceLock) {
+            runningInferences--;
+            inferenceLock.notifyAll();
+        }
+    }
+
+    private void deliverResults(
+            Task<T> task,
+            final FirebaseVisionImage image,
+            final FrameMetadata metadata,
+            final GraphicOverlay graphicOverlay,
+            final int frameWidth,
+            final int frameHeight,
+            final ResultCache<T> cache,
+            final long hash) {
+        final long startNanos = System.nanoTime();
+        task
                 .addOnSuccessListener(
                         new OnSuccessListener<T>() {
                             @Override
                             public void onSuccess(T results) {
-
-
                                 shouldThrottle.set(false);
+                                long elapsed = System.nanoTime() - startNanos;
+                                inferenceMetrics.onFrameProcessed(elapsed);
+                                if (cache != null) {
+                                    cache.store(hash, results, metadata,
+                                            System.currentTimeMillis(), elapsed);
+                                }
                                 VisionProcessorBase.this.onSuccess(results, metadata,
                                         graphicOverlay, image);
+                                dispatchDetections(results, metadata, frameWidth, frameHeight,
+                                        true);
                             }
                         })
                 .addOnFailureListener(
@@ -120,12 +568,61 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
                             @Override
                             public void onFailure(@NonNull Exception e) {
                                 shouldThrottle.set(false);
+                                inferenceMetrics.onFrameProcessed(System.nanoTime() - startNanos);
                                 VisionProcessorBase.this.onFailure(e);
+                                for (DetectionFailureListener listener : failureListeners) {
+                                    listener.onDetectionFailed(e);
+                                }
                             }
                         });
-        // Begin throttling until this frame of input has been processed, either in onSuccess or
-        // onFailure.
-        shouldThrottle.set(true);
+    }
+
+    /**
+     * @param inferred false for results reused from the cache, which count toward neither the
+     *     inference time nor the detection success rate
+     */
+    private void dispatchDetections(T results, FrameMetadata metadata, int frameWidth,
+                                    int frameHeight, boolean inferred) {
+        long now = System.currentTimeMillis();
+        detectionEvent.reset(DetectionEvent.DETECTOR_UNKNOWN, now, frameWidth, frameHeight);
+        detectionEvent.setCameraId(cameraId);
+        describeResults(results, detectionEvent);
+        boolean cropped = metadata != null && metadata.isCropped();
+        RegionOfInterestPlanner planner = roiPlanner;
+        if (planner != null) {
+            planner.beginResults();
+        }
+        for (int i = 0; i < detectionEvent.getCount(); i++) {
+            Rect box = detectionEvent.getBox(i);
+            if (cropped) {
+                metadata.mapToFrame(box);
+            }
+            if (planner != null) {
+                planner.addResult(box.left, box.top, box.right, box.bottom);
+            }
+        }
+        if (planner != null) {
+            planner.endResults(!cropped, now);
+        }
+        if (inferred) {
+            synchronized (statsLock) {
+                inferenceCount++;
+                if (detectionEvent.getCount() > 0) {
+                    successfulInferenceCount++;
+                }
+            }
+        }
+        for (DetectionListener listener : detectionListeners) {
+            listener.onDetections(detectionEvent);
+        }
+    }
+
+    /**
+     * Describes the results in detector neutral terms for the {@link DetectionListener}s.
+     * Subclasses set the detector type and add one entry per detected object, in the coordinates
+     * of the detector input; boxes found on a crop are mapped back to the frame afterwards.
+     */
+    protected void describeResults(@NonNull T results, @NonNull DetectionEvent event) {
     }
 
     @Override
@@ -134,10 +631,17 @@ public abstract class VisionProcessorBase<T> implements VisionImageProcessor {
 
     protected abstract Task<T> detectInImage(FirebaseVisionImage image);
 
+    /**
+     * Called on the main thread with the results of an inference, or with results reused from
+     * the {@link ResultCache}.
+     *
+     * @param image the image the results were found on, or null for results reused from the
+     *     cache
+     */
     protected abstract void onSuccess(
             @NonNull T results,
             @NonNull FrameMetadata frameMetadata,
-            @NonNull GraphicOverlay graphicOverlay, FirebaseVisionImage image);
+            @NonNull GraphicOverlay graphicOverlay, @Nullable FirebaseVisionImage image);
 
     protected abstract void onFailure(@NonNull Exception e);
 }
@@ -0,0 +1,254 @@
+package com.steigensoft.atcamera.mlkit.barcodescanning;
+
+import android.graphics.Rect;
+
+import androidx.annotation.NonNull;
+
+import com.steigensoft.atcamera.mlkit.FrameGate;
+import com.steigensoft.atcamera.mlkit.FrameMetadata;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the barcodes seen recently, keyed by raw value and format, so that a code held in
+ * front of the camera is handled once rather than on every frame. A repeat sighting within the
+ * TTL only updates the code's last-seen time and box. At most {@code maxEntries} codes are kept,
+ * the least recently seen go first.
+ *
+ * <p>A code is settled once it has been seen a few times and its box has stayed put for a while.
+ * As a {@link FrameGate} the cache lowers the scan rate while every code in view is settled, and
+ * goes back to scanning every frame as soon as a code moves, a new one shows up, or a scan finds
+ * nothing. The throttling applies to whole frames, not to regions: a settled code only saves
+ * scans while all the others in view have settled too, and one moving code brings every frame
+ * back to the detector.
+ */
+public class BarcodeDedupCache implements FrameGate {
+
+    // Sightings before a code counts as confirmed.
+    private static final int CONFIRM_SIGHTINGS = 3;
+    // How long a confirmed code has to stay put before scanning slows down.
+    private static final long SETTLE_MILLIS = 1000;
+    // Box movement tolerated as the same position, relative to the box size, and at least in px.
+    private static final float MOVE_TOLERANCE = 0.05f;
+    private static final int MIN_MOVE_TOLERANCE_PX = 4;
+
+    /** What is known about one code. Accessed on the thread delivering results only. */
+    public static final class Entry {
+        private final String rawValue;
+        private final int format;
+        private final Rect box = new Rect();
+        // Where the code was when it last moved.
+        private final Rect anchor = new Rect();
+        private long firstSeenMillis;
+        private long lastSeenMillis;
+        private long stationarySinceMillis;
+        private int sightings;
+        // Reused for drawing the code on every frame it is seen.
+        BarcodeGraphic graphic;
+
+        Entry(String rawValue, int format) {
+            this.rawValue = rawValue;
+            this.format = format;
+        }
+
+        public String getRawValue() {
+            return rawValue;
+        }
+
+        public int getFormat() {
+            return format;
+        }
+
+        /** Latest bounding box, updated in place on every sighting. */
+        public Rect getBox() {
+            return box;
+        }
+
+        public long getFirstSeenMillis() {
+            return firstSeenMillis;
+        }
+
+        public long getLastSeenMillis() {
+            return lastSeenMillis;
+        }
+
+        /** Sightings since the code was first seen, 1 for a code that is new. */
+        public int getSightings() {
+            return sightings;
+        }
+
+        public boolean isNew() {
+            return sightings == 1;
+        }
+
+        public boolean isSettled(long nowMillis) {
+            return sightings >= CONFIRM_SIGHTINGS
+                    && nowMillis - stationarySinceMillis >= SETTLE_MILLIS;
+        }
+    }
+
+    /** Map key; one instance is reused for lookups. */
+    private static final class Key {
+        String rawValue;
+        int format;
+
+        Key(String rawValue, int format) {
+            this.rawValue = rawValue;
+            this.format = format;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return format == other.format && rawValue.equals(other.rawValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return rawValue.hashCode() * 31 + format;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long settledScanIntervalMillis;
+    private final Key probe = new Key("", 0);
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private long hits;
+    private long misses;
+    private int frameSightings;
+    private boolean frameSettled;
+    private boolean viewSettled;
+    private long lastScanMillis;
+
+    /**
+     * @param maxEntries codes remembered at most
+     * @param ttlMillis how long after its last sighting a code counts as new again
+     * @param settledScanIntervalMillis time between scans while every code in view is settled
+     */
+    public BarcodeDedupCache(final int maxEntries, long ttlMillis, long settledScanIntervalMillis) {
+        this.ttlMillis = ttlMillis;
+        this.settledScanIntervalMillis = settledScanIntervalMillis;
+        // Access order keeps the least recently seen code at the head.
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** Starts a new result set, see {@link #endFrame}. */
+    public synchronized void beginFrame() {
+        frameSightings = 0;
+        frameSettled = true;
+    }
+
+    /**
+     * Records a sighting and returns the code's entry. When the entry {@link Entry#isNew() is new}
+     * the code needs handling, otherwise only its box and time were updated.
+     */
+    public synchronized Entry onSighting(@NonNull String rawValue, int format, @NonNull Rect box,
+                                         long nowMillis) {
+        probe.rawValue = rawValue;
+        probe.format = format;
+        Entry entry = entries.get(probe);
+        if (entry != null && nowMillis - entry.lastSeenMillis <= ttlMillis) {
+            hits++;
+            entry.sightings++;
+            if (moved(entry.anchor, box)) {
+                copy(box, entry.anchor);
+                entry.stationarySinceMillis = nowMillis;
+            }
+        } else {
+            misses++;
+            if (entry == null) {
+                entry = new Entry(rawValue, format);
+                entries.put(new Key(rawValue, format), entry);
+            }
+            entry.sightings = 1;
+            entry.firstSeenMillis = nowMillis;
+            entry.stationarySinceMillis = nowMillis;
+            copy(box, entry.anchor);
+        }
+        entry.lastSeenMillis = nowMillis;
+        copy(box, entry.box);
+        frameSightings++;
+        frameSettled &= entry.isSettled(nowMillis);
+        return entry;
+    }
+
+    /** Ends a result set, dropping expired codes and deciding on the scan rate. */
+    public synchronized void endFrame(long nowMillis) {
+        viewSettled = frameSightings > 0 && frameSettled;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (nowMillis - it.next().lastSeenMillis <= ttlMillis) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    @Override
+    public boolean shouldProcess(@NonNull FrameMetadata frameMetadata) {
+        return shouldScan(System.currentTimeMillis());
+    }
+
+    /** Whether a frame taken now should be scanned. */
+    public synchronized boolean shouldScan(long nowMillis) {
+        if (viewSettled && nowMillis - lastScanMillis < settledScanIntervalMillis) {
+            return false;
+        }
+        lastScanMillis = nowMillis;
+        return true;
+    }
+
+    /** Whether scanning is slowed down because every code in view is settled. */
+    public synchronized boolean isViewSettled() {
+        return viewSettled;
+    }
+
+    private static boolean moved(Rect from, Rect to) {
+        int size = Math.max(from.right - from.left, from.bottom - from.top);
+        int tolerance = Math.max(MIN_MOVE_TOLERANCE_PX, (int) (size * MOVE_TOLERANCE));
+        return Math.abs(to.left - from.left) > tolerance || Math.abs(to.top - from.top) > tolerance
+                || Math.abs(to.right - from.right) > tolerance
+                || Math.abs(to.bottom - from.bottom) > tolerance;
+    }
+
+    private static void copy(Rect from, Rect to) {
+        to.left = from.left;
+        to.top = from.top;
+        to.right = from.right;
+        to.bottom = from.bottom;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        viewSettled = false;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** Fraction of sightings that were repeats, the work saved downstream. */
+    public synchronized float getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0f : hits / (float) total;
+    }
+}
@@ -0,0 +1,106 @@
+package com.steigensoft.atcamera.mlkit.barcodescanning;
+
+/**
+ * Learns which barcode formats a deployment actually sees, so the detector can be limited to
+ * those. Scanning starts with the full configured set. After a learning window the set narrows to
+ * the formats found during it. A streak of empty scans, or the probe interval running out, widens
+ * it to the full set again for another learning window, so a format that was left out is picked up
+ * again.
+ *
+ * <p>Formats are the {@code FirebaseVisionBarcode.FORMAT_*} bit flags. Not thread safe; the
+ * processor calls it from the thread delivering results.
+ */
+public class BarcodeFormatLearner {
+
+    private final int allFormats;
+    private final int learningScans;
+    private final int missStreak;
+    private final long probeIntervalMillis;
+
+    private int activeFormats;
+    private boolean narrowed;
+    private int seenFormats;
+    private int scans;
+    private int misses;
+    private long narrowedAtMillis;
+    private long narrowings;
+    private long widenings;
+
+    /**
+     * @param allFormats every format the deployment may need
+     * @param learningScans scans with the full set before narrowing
+     * @param missStreak empty scans in a row with the narrowed set that widen it again
+     * @param probeIntervalMillis how long the set stays narrowed at most before widening again
+     */
+    public BarcodeFormatLearner(int allFormats, int learningScans, int missStreak,
+                                long probeIntervalMillis) {
+        this.allFormats = allFormats;
+        this.learningScans = learningScans;
+        this.missStreak = missStreak;
+        this.probeIntervalMillis = probeIntervalMillis;
+        activeFormats = allFormats;
+    }
+
+    /**
+     * Records the formats found by one scan.
+     *
+     * @return true if the active set changed and the detector needs rebuilding
+     */
+    public boolean onScan(int foundFormats, long nowMillis) {
+        foundFormats &= allFormats;
+        if (!narrowed) {
+            seenFormats |= foundFormats;
+            if (++scans < learningScans) {
+                return false;
+            }
+            scans = 0;
+            if (seenFormats == 0 || seenFormats == allFormats) {
+                // Nothing to narrow down to, keep listening with everything.
+                seenFormats = 0;
+                return false;
+            }
+            activeFormats = seenFormats;
+            narrowed = true;
+            narrowedAtMillis = nowMillis;
+            misses = 0;
+            narrowings++;
+            return true;
+        }
+        misses = foundFormats == 0 ? misses + 1 : 0;
+        if (misses >= missStreak || nowMillis - narrowedAtMillis >= probeIntervalMillis) {
+            widen();
+            return true;
+        }
+        return false;
+    }
+
+    /** Goes back to the full set and starts learning again. */
+    public void widen() {
+        activeFormats = allFormats;
+        narrowed = false;
+        seenFormats = 0;
+        scans = 0;
+        widenings++;
+    }
+
+    /** Formats the detector should look for now. */
+    public int getActiveFormats() {
+        return activeFormats;
+    }
+
+    public int getAllFormats() {
+        return allFormats;
+    }
+
+    public boolean isNarrowed() {
+        return narrowed;
+    }
+
+    public long getNarrowingCount() {
+        return narrowings;
+    }
+
+    public long getWideningCount() {
+        return widenings;
+    }
+}
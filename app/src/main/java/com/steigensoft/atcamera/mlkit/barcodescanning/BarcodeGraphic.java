@@ -16,12 +16,16 @@ package com.steigensoft.atcamera.mlkit.barcodescanning;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.RectF;
 
-import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
 import com.steigensoft.atcamera.mlkit.GraphicOverlay;
 
-/** Graphic instance for rendering Barcode position and content information in an overlay view. */
+/**
+ * Graphic instance for rendering Barcode position and content information in an overlay view.
+ * Draws the box of a {@link BarcodeDedupCache.Entry}, so one graphic follows a code for as long
+ * as it stays in view.
+ */
 public class BarcodeGraphic extends GraphicOverlay.Graphic {
 
   private static final int TEXT_COLOR = Color.WHITE;
@@ -30,9 +34,10 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
 
   private final Paint rectPaint;
   private final Paint barcodePaint;
-  private final FirebaseVisionBarcode barcode;
+  private final RectF rect = new RectF();
+  private final BarcodeDedupCache.Entry barcode;
 
-  BarcodeGraphic(GraphicOverlay overlay, FirebaseVisionBarcode barcode) {
+  BarcodeGraphic(GraphicOverlay overlay, BarcodeDedupCache.Entry barcode) {
     super(overlay);
 
     this.barcode = barcode;
@@ -59,11 +64,11 @@ public class BarcodeGraphic extends GraphicOverlay.Graphic {
     }
 
     // Draws the bounding box around the BarcodeBlock.
-    RectF rect = new RectF(barcode.getBoundingBox());
-    rect.left = translateX(rect.left);
-    rect.top = translateY(rect.top);
-    rect.right = translateX(rect.right);
-    rect.bottom = translateY(rect.bottom);
+    Rect box = barcode.getBox();
+    rect.left = translateX(box.left);
+    rect.top = translateY(box.top);
+    rect.right = translateX(box.right);
+    rect.bottom = translateY(box.bottom);
     canvas.drawRect(rect, rectPaint);
 
     // Renders the barcode at the bottom of the box.
@@ -14,6 +14,7 @@
 package com.steigensoft.atcamera.mlkit.barcodescanning;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.util.Log;
 
 import com.google.android.gms.tasks.Task;
@@ -22,12 +23,15 @@ import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
 import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetectorOptions;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
 import com.steigensoft.atcamera.mlkit.FrameMetadata;
 import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.RegionOfInterestPlanner;
 import com.steigensoft.atcamera.mlkit.VisionProcessorBase;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 
 import androidx.annotation.NonNull;
 
@@ -38,15 +42,87 @@ public class BarcodeScanningProcessor extends VisionProcessorBase<List<FirebaseV
 
     private static final String TAG = "BarcodeScanProc";
 
-    private final FirebaseVisionBarcodeDetector detector;
+    private static final int MAX_TRACKED_CODES = 64;
+    private static final long DEDUP_TTL_MILLIS = 2000;
+    private static final long SETTLED_SCAN_INTERVAL_MILLIS = 500;
+
+    // Adaptive format set: scans before narrowing, empty scans and time before widening again.
+    private static final int LEARNING_SCANS = 60;
+    private static final int MISS_STREAK = 30;
+    private static final long PROBE_INTERVAL_MILLIS = 60000;
+    private static final double TIMING_SMOOTHING = 0.1;
+
+    // Replaced in detectInImage() when the format set changes.
+    private volatile FirebaseVisionBarcodeDetector detector;
+    private int detectorFormats;
+    private volatile int wantedFormats;
+    private final BarcodeFormatLearner formatLearner;
+    // Formats and start of the scan in flight, and its duration averaged per kind of set.
+    private volatile int scanFormats;
+    private volatile long scanStartNanos;
+    private final Object timingLock = new Object();
+    private double fullSetMillis;
+    private double narrowedSetMillis;
+    private final BarcodeDedupCache dedupCache = new BarcodeDedupCache(
+            MAX_TRACKED_CODES, DEDUP_TTL_MILLIS, SETTLED_SCAN_INTERVAL_MILLIS);
+    // Results that are new sightings, one bit per index, from onSuccess for describeResults.
+    private long newSightings;
+    // Box of the barcode being cached, in frame coordinates.
+    private final Rect frameBox = new Rect();
 
     public BarcodeScanningProcessor() {
+        this(FirebaseVisionBarcode.FORMAT_QR_CODE, false);
+    }
+
+    /**
+     * @param formats the {@code FirebaseVisionBarcode.FORMAT_*} flags to scan for
+     * @param adaptive whether to narrow the set down to the formats that actually show up, see
+     *     {@link BarcodeFormatLearner}
+     */
+    public BarcodeScanningProcessor(int formats, boolean adaptive) {
         // Note that if you know which format of barcode your app is dealing with, detection will be
-        // faster to specify the supported barcode formats one by one, e.g.
+        // faster to specify the supported barcode formats one by one. The adaptive mode finds out.
+        formatLearner = adaptive ? new BarcodeFormatLearner(
+                formats, LEARNING_SCANS, MISS_STREAK, PROBE_INTERVAL_MILLIS) : null;
+        wantedFormats = formats;
+        detectorFormats = formats;
+        detector = createDetector(formats);
+        // Scans less often while the codes in view stay where they are.
+        setFrameGate(dedupCache);
+        // Codes rarely jump around the frame, and small ones read better upscaled.
+        setRegionOfInterestPlanner(new RegionOfInterestPlanner());
+    }
+
+    private static FirebaseVisionBarcodeDetector createDetector(int formats) {
+        // The builder ORs the flags together, a combined set can be passed as one.
         FirebaseVisionBarcodeDetectorOptions options = new FirebaseVisionBarcodeDetectorOptions.Builder()
-                .setBarcodeFormats(FirebaseVisionBarcode.FORMAT_QR_CODE)
+                .setBarcodeFormats(formats)
                 .build();
-        detector = FirebaseVision.getInstance().getVisionBarcodeDetector(options);
+        return FirebaseVision.getInstance().getVisionBarcodeDetector(options);
+    }
+
+    /** Formats the detector currently looks for. */
+    public int getActiveFormats() {
+        return wantedFormats;
+    }
+
+    /** Average scan time with the full format set, 0 until measured. */
+    public double getFullSetMillis() {
+        synchronized (timingLock) {
+            return fullSetMillis;
+        }
+    }
+
+    /** Average scan time with a narrowed format set, 0 until measured. */
+    public double getNarrowedSetMillis() {
+        synchronized (timingLock) {
+            return narrowedSetMillis;
+        }
+    }
+
+    /** Codes seen recently, with hit and miss counts. */
+    public BarcodeDedupCache getDedupCache() {
+        return dedupCache;
     }
 
     @Override
@@ -56,6 +132,10 @@ public class BarcodeScanningProcessor extends VisionProcessorBase<List<FirebaseV
 
     @Override
     public void stop() {
+        close(detector);
+    }
+
+    private static void close(FirebaseVisionBarcodeDetector detector) {
         try {
             detector.close();
         } catch (IOException e) {
@@ -65,22 +145,105 @@ public class BarcodeScanningProcessor extends VisionProcessorBase<List<FirebaseV
 
     @Override
     protected Task<List<FirebaseVisionBarcode>> detectInImage(FirebaseVisionImage image) {
+        int formats = wantedFormats;
+        if (formats != detectorFormats) {
+            // Nothing is in flight on the old detector, the base class only starts a scan once
+            // the previous one has finished.
+            FirebaseVisionBarcodeDetector old = detector;
+            detector = createDetector(formats);
+            detectorFormats = formats;
+            close(old);
+        }
+        scanFormats = formats;
+        scanStartNanos = System.nanoTime();
         return detector.detectInImage(image);
     }
 
+    private void recordScanTime(int formats, long nanos) {
+        double millis = nanos / 1000000.0;
+        boolean fullSet = formatLearner == null || formats == formatLearner.getAllFormats();
+        synchronized (timingLock) {
+            if (fullSet) {
+                fullSetMillis = fullSetMillis == 0 ? millis
+                        : fullSetMillis + TIMING_SMOOTHING * (millis - fullSetMillis);
+            } else {
+                narrowedSetMillis = narrowedSetMillis == 0 ? millis
+                        : narrowedSetMillis + TIMING_SMOOTHING * (millis - narrowedSetMillis);
+            }
+        }
+    }
+
+    private void learnFormats(List<FirebaseVisionBarcode> barcodes, long now) {
+        int found = 0;
+        for (int i = 0; i < barcodes.size(); ++i) {
+            found |= barcodes.get(i).getFormat();
+        }
+        if (formatLearner.onScan(found, now)) {
+            wantedFormats = formatLearner.getActiveFormats();
+            Log.d(TAG, String.format(Locale.US,
+                    "Scanning for formats 0x%x, full set %.1f ms, narrowed %.1f ms per frame",
+                    wantedFormats, getFullSetMillis(), getNarrowedSetMillis()));
+        }
+    }
+
     @Override
     protected void onSuccess(
             @NonNull List<FirebaseVisionBarcode> barcodes,
             @NonNull FrameMetadata frameMetadata,
             GraphicOverlay graphicOverlay, FirebaseVisionImage image) {
+        // Results reused from the cache took no scan, and scanStartNanos is an older scan's.
+        if (image != null) {
+            recordScanTime(scanFormats, System.nanoTime() - scanStartNanos);
+        }
         if (graphicOverlay != null)
             graphicOverlay.clear();
+        long now = System.currentTimeMillis();
+        if (formatLearner != null) {
+            learnFormats(barcodes, now);
+        }
+        newSightings = 0;
+        dedupCache.beginFrame();
         for (int i = 0; i < barcodes.size(); ++i) {
             FirebaseVisionBarcode barcode = barcodes.get(i);
+            if (barcode.getRawValue() == null || barcode.getBoundingBox() == null) {
+                continue;
+            }
+            frameBox.set(barcode.getBoundingBox());
+            if (frameMetadata != null) {
+                frameMetadata.mapToFrame(frameBox);
+            }
+            // Repeats only update the cached box, which their graphic follows.
+            BarcodeDedupCache.Entry entry = dedupCache.onSighting(barcode.getRawValue(),
+                    barcode.getFormat(), frameBox, now);
+            if (entry.isNew() && i < Long.SIZE) {
+                newSightings |= 1L << i;
+            }
             if (graphicOverlay != null) {
-                BarcodeGraphic barcodeGraphic = new BarcodeGraphic(graphicOverlay, barcode);
-                graphicOverlay.add(barcodeGraphic);
+                if (entry.graphic == null) {
+                    entry.graphic = new BarcodeGraphic(graphicOverlay, entry);
+                }
+                graphicOverlay.add(entry.graphic);
+            }
+        }
+        dedupCache.endFrame(now);
+    }
+
+    @Override
+    protected void describeResults(
+            @NonNull List<FirebaseVisionBarcode> barcodes, @NonNull DetectionEvent event) {
+        event.setDetectorType(DetectionEvent.DETECTOR_BARCODE);
+        // Only codes not seen within the dedup TTL are reported.
+        for (int i = 0; i < barcodes.size() && i < Long.SIZE; ++i) {
+            FirebaseVisionBarcode barcode = barcodes.get(i);
+            if ((newSightings & 1L << i) == 0) {
+                continue;
+            }
+            int index = event.add(barcode.getBoundingBox());
+            if (index < 0) {
+                break;
             }
+            event.setFormat(index, barcode.getFormat());
+            event.setRawValue(index, barcode.getRawValue());
         }
     }
 
@@ -0,0 +1,201 @@
+package com.steigensoft.atcamera.mlkit.eventlog;
+
+import android.graphics.Rect;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary form of a {@link DetectionEvent}, shared by the event log and anything sending
+ * events over the network. Encoding writes straight into the target buffer and allocates nothing.
+ *
+ * <pre>
+ * long   timestamp (ms)
+ * int    camera id
+ * byte   detector type
+ * short  frame width, frame height
+ * byte   detection count, then per detection:
+ *   short  left, top, right, bottom
+ *   int    tracking id, format
+ *   float  smiling, left eye open, right eye open
+ *   short  raw value length in UTF-8 bytes, -1 for none, then the bytes
+ * </pre>
+ *
+ * Raw values longer than {@link #MAX_RAW_VALUE_BYTES} are cut off at a character boundary.
+ */
+public final class DetectionEventCodec {
+
+    public static final int MAX_RAW_VALUE_BYTES = 1024;
+
+    private static final int HEADER_SIZE = 8 + 4 + 1 + 2 + 2 + 1;
+    private static final int DETECTION_SIZE = 4 * 2 + 2 * 4 + 3 * 4 + 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Largest encoding of any event. */
+    public static final int MAX_ENCODED_SIZE =
+            HEADER_SIZE + DetectionEvent.MAX_DETECTIONS * (DETECTION_SIZE + MAX_RAW_VALUE_BYTES);
+
+    private DetectionEventCodec() {
+    }
+
+    /** Number of bytes {@link #encode} will write for the event. */
+    public static int encodedSize(DetectionEvent event) {
+        int size = HEADER_SIZE + event.getCount() * DETECTION_SIZE;
+        for (int i = 0; i < event.getCount(); i++) {
+            String raw = event.getRawValue(i);
+            if (raw != null) {
+                size += utf8Length(raw, MAX_RAW_VALUE_BYTES);
+            }
+        }
+        return size;
+    }
+
+    /** Writes the event at the buffer's position, which must have {@link #encodedSize} room. */
+    public static void encode(DetectionEvent event, ByteBuffer out) {
+        out.putLong(event.getTimestampMillis());
+        out.putInt(event.getCameraId());
+        out.put((byte) event.getDetectorType());
+        out.putShort((short) event.getFrameWidth());
+        out.putShort((short) event.getFrameHeight());
+        out.put((byte) event.getCount());
+        for (int i = 0; i < event.getCount(); i++) {
+            Rect box = event.getBox(i);
+            out.putShort(clampToShort(box.left));
+            out.putShort(clampToShort(box.top));
+            out.putShort(clampToShort(box.right));
+            out.putShort(clampToShort(box.bottom));
+            out.putInt(event.getTrackingId(i));
+            out.putInt(event.getFormat(i));
+            out.putFloat(event.getSmilingProbability(i));
+            out.putFloat(event.getLeftEyeOpenProbability(i));
+            out.putFloat(event.getRightEyeOpenProbability(i));
+            String raw = event.getRawValue(i);
+            if (raw == null) {
+                out.putShort((short) -1);
+            } else {
+                int lengthPosition = out.position();
+                out.putShort((short) 0);
+                int length = putUtf8(raw, out, MAX_RAW_VALUE_BYTES);
+                out.putShort(lengthPosition, (short) length);
+            }
+        }
+    }
+
+    /**
+     * Reads an event written by {@link #encode} from the buffer's position into the given event,
+     * advancing the position past it. Only the raw values allocate.
+     *
+     * @return false if the data is not a well formed event
+     */
+    public static boolean decode(ByteBuffer in, DetectionEvent event) {
+        if (in.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        long timestampMillis = in.getLong();
+        int cameraId = in.getInt();
+        int detectorType = in.get();
+        int frameWidth = in.getShort() & 0xffff;
+        int frameHeight = in.getShort() & 0xffff;
+        int count = in.get() & 0xff;
+        if (count > DetectionEvent.MAX_DETECTIONS) {
+            return false;
+        }
+        event.reset(detectorType, timestampMillis, frameWidth, frameHeight);
+        event.setCameraId(cameraId);
+        for (int i = 0; i < count; i++) {
+            if (in.remaining() < DETECTION_SIZE) {
+                return false;
+            }
+            int index = event.add(in.getShort(), in.getShort(), in.getShort(), in.getShort());
+            event.setTrackingId(index, in.getInt());
+            event.setFormat(index, in.getInt());
+            event.setProbabilities(index, in.getFloat(), in.getFloat(), in.getFloat());
+            int length = in.getShort();
+            if (length > in.remaining() || length > MAX_RAW_VALUE_BYTES) {
+                return false;
+            }
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                event.setRawValue(index, new String(bytes, UTF_8));
+            }
+        }
+        return true;
+    }
+
+    private static short clampToShort(int value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    /** Length of the UTF-8 encoding of the string, cut off at whole characters within max. */
+    static int utf8Length(String s, int max) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int bytes;
+            if (c < 0x80) {
+                bytes = 1;
+            } else if (c < 0x800) {
+                bytes = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes = 4;
+            } else {
+                bytes = 3;
+            }
+            if (length + bytes > max) {
+                break;
+            }
+            length += bytes;
+            if (bytes == 4) {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /** Writes the UTF-8 encoding of the string, cut off like {@link #utf8Length}. */
+    private static int putUtf8(String s, ByteBuffer out, int max) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int c = s.charAt(i);
+            if (c < 0x80) {
+                if (length + 1 > max) {
+                    break;
+                }
+                out.put((byte) c);
+                length += 1;
+            } else if (c < 0x800) {
+                if (length + 2 > max) {
+                    break;
+                }
+                out.put((byte) (0xc0 | c >> 6));
+                out.put((byte) (0x80 | c & 0x3f));
+                length += 2;
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                if (length + 4 > max) {
+                    break;
+                }
+                int cp = Character.toCodePoint((char) c, s.charAt(++i));
+                out.put((byte) (0xf0 | cp >> 18));
+                out.put((byte) (0x80 | cp >> 12 & 0x3f));
+                out.put((byte) (0x80 | cp >> 6 & 0x3f));
+                out.put((byte) (0x80 | cp & 0x3f));
+                length += 4;
+            } else {
+                if (length + 3 > max) {
+                    break;
+                }
+                // A lone surrogate is written as is and reads back as a replacement character.
+                out.put((byte) (0xe0 | c >> 12));
+                out.put((byte) (0x80 | c >> 6 & 0x3f));
+                out.put((byte) (0x80 | c & 0x3f));
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
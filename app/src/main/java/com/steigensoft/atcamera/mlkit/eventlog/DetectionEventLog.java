@@ -0,0 +1,203 @@
+package com.steigensoft.atcamera.mlkit.eventlog;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of detection results, written through memory-mapped segment files. Register it
+ * as a {@link DetectionListener} with any number of processors; every result set with at least one
+ * detection is appended in the {@link DetectionEventCodec} format. Appending encodes straight into
+ * the mapping and does not allocate, only starting a new segment does.
+ *
+ * <p>Records reach the page cache as they are written and survive the app crashing. On opening,
+ * the newest segment is scanned and whatever follows the last intact record, e.g. a record torn
+ * by a power loss, is cleared before appending resumes. {@link #flush()} forces the current
+ * segment to storage.
+ *
+ * <p>Full segments are kept up to {@code maxSegments}, the oldest are deleted. Use a
+ * {@link DetectionEventLogReader} to read events back.
+ */
+public class DetectionEventLog implements DetectionListener {
+    private static final String TAG = DetectionEventLog.class.getSimpleName();
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final CRC32 crc = new CRC32();
+
+    private MappedByteBuffer segment;
+    private long segmentIndex = -1;
+    private int writePosition;
+    private long eventsWritten;
+    private long eventsDropped;
+
+    /**
+     * @param segmentSize bytes per segment file, large enough for the largest event
+     * @param maxSegments segment files kept, including the one being written
+     */
+    public DetectionEventLog(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < LogSegment.HEADER_SIZE + LogSegment.RECORD_HEADER_SIZE
+                + DetectionEventCodec.MAX_ENCODED_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        recover();
+    }
+
+    /** Reopens the newest segment and finds the end of its last intact record. */
+    private void recover() throws IOException {
+        File[] files = LogSegment.list(directory);
+        if (files.length == 0) {
+            return;
+        }
+        File last = files[files.length - 1];
+        segmentIndex = LogSegment.index(last);
+        MappedByteBuffer mapped = map(last, (int) Math.min(Integer.MAX_VALUE, last.length()));
+        if (!LogSegment.hasValidHeader(mapped)) {
+            Log.w(TAG, "Ignoring damaged segment " + last.getName());
+            return;
+        }
+        int position = LogSegment.HEADER_SIZE;
+        int length;
+        while ((length = LogSegment.recordLength(mapped, position, crc)) > 0) {
+            position += LogSegment.RECORD_HEADER_SIZE + length;
+        }
+        if (clearTail(mapped, position)) {
+            Log.w(TAG, "Discarded a torn record at " + position + " of " + last.getName());
+            mapped.force();
+        }
+        segment = mapped;
+        writePosition = position;
+    }
+
+    /** Zeroes everything from the position on. Returns whether there was anything to clear. */
+    private static boolean clearTail(MappedByteBuffer mapped, int position) {
+        boolean dirty = false;
+        for (int i = position; i < mapped.capacity(); i++) {
+            if (mapped.get(i) != 0) {
+                mapped.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        return dirty;
+    }
+
+    private MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public void onDetections(@NonNull DetectionEvent event) {
+        if (event.getCount() == 0) {
+            return;
+        }
+        try {
+            append(event);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to log detections", e);
+            synchronized (this) {
+                eventsDropped++;
+            }
+        }
+    }
+
+    /** Appends the event, starting a new segment if it does not fit the current one. */
+    public synchronized void append(DetectionEvent event) throws IOException {
+        int size = LogSegment.RECORD_HEADER_SIZE + DetectionEventCodec.encodedSize(event);
+        if (segment == null || writePosition + size > segment.capacity()) {
+            rotate(event.getTimestampMillis());
+        }
+        int start = writePosition;
+        segment.position(start + LogSegment.RECORD_HEADER_SIZE);
+        DetectionEventCodec.encode(event, segment);
+        int end = segment.position();
+
+        segment.limit(end);
+        segment.position(start + LogSegment.RECORD_HEADER_SIZE);
+        crc.reset();
+        crc.update(segment);
+        segment.limit(segment.capacity());
+        segment.putInt(start + 4, (int) crc.getValue());
+        // The length goes last, it is what makes the record part of the log.
+        segment.putInt(start, end - start - LogSegment.RECORD_HEADER_SIZE);
+        writePosition = end;
+        eventsWritten++;
+    }
+
+    private void rotate(long firstTimestampMillis) throws IOException {
+        if (segment != null) {
+            segment.force();
+        }
+        segment = null;
+        segmentIndex++;
+        File file = new File(directory, LogSegment.fileName(segmentIndex));
+        boolean stale = file.exists();
+        MappedByteBuffer mapped = map(file, segmentSize);
+        if (stale) {
+            clearTail(mapped, 0);
+        }
+        LogSegment.writeHeader(mapped, firstTimestampMillis);
+        segment = mapped;
+        writePosition = LogSegment.HEADER_SIZE;
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() {
+        File[] files = LogSegment.list(directory);
+        for (int i = 0; i < files.length - maxSegments; i++) {
+            if (!files[i].delete()) {
+                Log.w(TAG, "Failed to delete " + files[i].getName());
+            }
+        }
+    }
+
+    /** Forces the current segment to storage. */
+    public synchronized void flush() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /** Flushes and lets go of the current segment. Appending afterwards starts a new one. */
+    public synchronized void close() {
+        flush();
+        segment = null;
+    }
+
+    public synchronized long getEventsWritten() {
+        return eventsWritten;
+    }
+
+    /** Events that could not be written, e.g. because a new segment could not be created. */
+    public synchronized long getEventsDropped() {
+        return eventsDropped;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
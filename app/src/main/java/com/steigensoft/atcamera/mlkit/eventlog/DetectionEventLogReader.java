@@ -0,0 +1,106 @@
+package com.steigensoft.atcamera.mlkit.eventlog;
+
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams events back from the segments of a {@link DetectionEventLog}, which may still be
+ * written to. Segments that cannot hold events of the requested time range are skipped by
+ * their first timestamp, the others are mapped read-only and scanned up to the first incomplete
+ * record.
+ */
+public class DetectionEventLogReader {
+    private static final String TAG = DetectionEventLogReader.class.getSimpleName();
+
+    private final File directory;
+    private final CRC32 crc = new CRC32();
+    private final DetectionEvent event = new DetectionEvent();
+
+    public DetectionEventLogReader(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Passes every logged event taken from {@code fromMillis} up to and including
+     * {@code toMillis} to the listener, oldest first. As with processors, the event is reused and
+     * only valid during the call.
+     *
+     * @return the number of events passed on
+     */
+    public synchronized long read(long fromMillis, long toMillis, DetectionListener listener)
+            throws IOException {
+        File[] files = LogSegment.list(directory);
+        long[] firstTimestamps = new long[files.length];
+        for (int i = 0; i < files.length; i++) {
+            firstTimestamps[i] = readFirstTimestamp(files[i]);
+        }
+        long count = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (firstTimestamps[i] > toMillis) {
+                break;
+            }
+            // Everything in this segment came before the next one started.
+            if (i + 1 < files.length && firstTimestamps[i + 1] < fromMillis) {
+                continue;
+            }
+            count += readSegment(files[i], fromMillis, toMillis, listener);
+        }
+        return count;
+    }
+
+    private static long readFirstTimestamp(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < LogSegment.HEADER_SIZE || raf.readInt() != LogSegment.MAGIC
+                    || raf.readInt() != LogSegment.VERSION) {
+                return Long.MAX_VALUE;
+            }
+            return raf.readLong();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private long readSegment(File file, long fromMillis, long toMillis, DetectionListener listener)
+            throws IOException {
+        MappedByteBuffer segment;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (!LogSegment.hasValidHeader(segment)) {
+            return 0;
+        }
+        long count = 0;
+        int position = LogSegment.HEADER_SIZE;
+        int length;
+        while ((length = LogSegment.recordLength(segment, position, crc)) > 0) {
+            ByteBuffer record = segment.duplicate();
+            record.position(position + LogSegment.RECORD_HEADER_SIZE);
+            record.limit(position + LogSegment.RECORD_HEADER_SIZE + length);
+            position += LogSegment.RECORD_HEADER_SIZE + length;
+            if (!DetectionEventCodec.decode(record, event)) {
+                Log.w(TAG, "Skipping malformed record in " + file.getName());
+                continue;
+            }
+            long timestampMillis = event.getTimestampMillis();
+            if (timestampMillis >= fromMillis && timestampMillis <= toMillis) {
+                listener.onDetections(event);
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,108 @@
+package com.steigensoft.atcamera.mlkit.eventlog;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of one event log segment file, shared by the writer and the reader.
+ *
+ * <pre>
+ * int  magic, int version, long timestamp of the first event
+ * records: int payload length, int CRC32 of the payload, payload
+ * </pre>
+ *
+ * The file is preallocated with zeros, so a zero length ends the segment. The length is written
+ * last, which makes a record visible only once it is complete; a record torn by a crash fails
+ * its checksum and ends the segment as well.
+ */
+final class LogSegment {
+
+    static final int MAGIC = 0x4154454c;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 8;
+    static final int FIRST_TIMESTAMP_OFFSET = 8;
+
+    private static final String PREFIX = "events-";
+    private static final String SUFFIX = ".log";
+
+    private LogSegment() {
+    }
+
+    static String fileName(long index) {
+        return String.format(Locale.US, "%s%012d%s", PREFIX, index, SUFFIX);
+    }
+
+    /** Index of a segment file, or -1 if the file is not one. */
+    static long index(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** The segment files in the directory, oldest first. */
+    static File[] list(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return index(file) >= 0;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(index(a), index(b));
+            }
+        });
+        return files;
+    }
+
+    static boolean hasValidHeader(ByteBuffer segment) {
+        return segment.capacity() >= HEADER_SIZE && segment.getInt(0) == MAGIC
+                && segment.getInt(4) == VERSION;
+    }
+
+    static void writeHeader(ByteBuffer segment, long firstTimestampMillis) {
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putLong(FIRST_TIMESTAMP_OFFSET, firstTimestampMillis);
+    }
+
+    /**
+     * Checks the record at the given offset. Leaves the buffer's position and limit as found.
+     *
+     * @return the payload length, or -1 if there is no complete record
+     */
+    static int recordLength(ByteBuffer segment, int offset, CRC32 crc) {
+        if (offset + RECORD_HEADER_SIZE > segment.capacity()) {
+            return -1;
+        }
+        int length = segment.getInt(offset);
+        if (length <= 0 || length > segment.capacity() - offset - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        int position = segment.position();
+        int limit = segment.limit();
+        segment.limit(offset + RECORD_HEADER_SIZE + length);
+        segment.position(offset + RECORD_HEADER_SIZE);
+        crc.reset();
+        crc.update(segment);
+        segment.limit(limit);
+        segment.position(position);
+        return (int) crc.getValue() == segment.getInt(offset + 4) ? length : -1;
+    }
+}
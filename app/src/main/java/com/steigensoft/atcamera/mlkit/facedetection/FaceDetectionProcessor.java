@@ -21,8 +21,10 @@ import com.google.firebase.ml.vision.common.FirebaseVisionImage;
 import com.google.firebase.ml.vision.face.FirebaseVisionFace;
 import com.google.firebase.ml.vision.face.FirebaseVisionFaceDetector;
 import com.google.firebase.ml.vision.face.FirebaseVisionFaceDetectorOptions;
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
 import com.steigensoft.atcamera.mlkit.FrameMetadata;
 import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.RegionOfInterestPlanner;
 import com.steigensoft.atcamera.mlkit.VisionProcessorBase;
 
 import java.io.IOException;
@@ -46,6 +48,8 @@ public class FaceDetectionProcessor extends VisionProcessorBase<List<FirebaseVis
             .build();
 
     detector = FirebaseVision.getInstance().getVisionFaceDetector(options);
+    // Faces move little between frames, scan around the last ones and upscale small ones.
+    setRegionOfInterestPlanner(new RegionOfInterestPlanner());
   }
 
   @Override
@@ -66,16 +70,36 @@ public class FaceDetectionProcessor extends VisionProcessorBase<List<FirebaseVis
   protected void onSuccess(
           @NonNull List<FirebaseVisionFace> faces,
           @NonNull FrameMetadata frameMetadata,
-          @NonNull GraphicOverlay graphicOverlay, FirebaseVisionImage image) {
+          GraphicOverlay graphicOverlay, FirebaseVisionImage image) {
+    if (graphicOverlay == null) {
+      return;
+    }
     graphicOverlay.clear();
     for (int i = 0; i < faces.size(); ++i) {
       FirebaseVisionFace face = faces.get(i);
       FaceGraphic faceGraphic = new FaceGraphic(graphicOverlay);
+      faceGraphic.setSourceCrop(frameMetadata);
       graphicOverlay.add(faceGraphic);
       faceGraphic.updateFace(face, frameMetadata!=null ? frameMetadata.getCameraFacing():1);
     }
   }
 
+  @Override
+  protected void describeResults(
+          @NonNull List<FirebaseVisionFace> faces, @NonNull DetectionEvent event) {
+    event.setDetectorType(DetectionEvent.DETECTOR_FACE);
+    for (int i = 0; i < faces.size(); ++i) {
+      FirebaseVisionFace face = faces.get(i);
+      int index = event.add(face.getBoundingBox());
+      if (index < 0) {
+        break;
+      }
+      event.setTrackingId(index, face.getTrackingId());
+      event.setProbabilities(index, face.getSmilingProbability(),
+              face.getLeftEyeOpenProbability(), face.getRightEyeOpenProbability());
+    }
+  }
+
   @Override
   protected void onFailure(@NonNull Exception e) {
     Log.e(TAG, "Face detection failed " + e);
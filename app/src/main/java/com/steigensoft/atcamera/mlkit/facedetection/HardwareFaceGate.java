@@ -0,0 +1,180 @@
+package com.steigensoft.atcamera.mlkit.facedetection;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import com.steigensoft.atcamera.mlkit.FrameGate;
+import com.steigensoft.atcamera.mlkit.FrameMetadata;
+import com.steigensoft.atcamera.mlkit.RegionOfInterestSource;
+import com.steigensoft.atcamera.mlkit.ViewTransform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Uses the face statistics reported by the camera HAL as a free pre-detector. Frames are only let
+ * through to the ML Kit face detector while the HAL sees faces (plus a short hold time), or once
+ * per refresh interval so that faces the HAL misses are still picked up eventually.
+ *
+ * <p>The HAL rectangles are kept normalized to the upright camera image so they can also be used
+ * as regions of interest. Frames grabbed from the preview TextureView are moved by the view's
+ * {@link ViewTransform}, which is then applied to the regions as well. Times are
+ * {@link SystemClock#elapsedRealtime()} milliseconds; only the fields of {@link Rect} are used, so
+ * the logic runs on the JVM.
+ */
+public class HardwareFaceGate implements FrameGate, RegionOfInterestSource {
+
+    private static final long DEFAULT_HOLD_MILLIS = 500;
+    private static final long DEFAULT_REFRESH_MILLIS = 2000;
+
+    private final long holdMillis;
+    private final long refreshMillis;
+
+    private volatile long lastFaceSeenMillis = Long.MIN_VALUE / 2;
+    private volatile long lastRefreshMillis = Long.MIN_VALUE / 2;
+    // Left, top, right and bottom of each face, normalized to the upright camera image.
+    private volatile float[] faces = new float[0];
+    private volatile ViewTransform viewTransform;
+
+    private long framesPassed;
+    private long framesSkipped;
+
+    public HardwareFaceGate() {
+        this(DEFAULT_HOLD_MILLIS, DEFAULT_REFRESH_MILLIS);
+    }
+
+    /**
+     * @param holdMillis how long the detector keeps running after the HAL last reported a face
+     * @param refreshMillis interval of the unconditional detector runs on empty scenes
+     */
+    public HardwareFaceGate(long holdMillis, long refreshMillis) {
+        this.holdMillis = holdMillis;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * Sets the transform of the view frames are grabbed from.
+     *
+     * @param transform the transform, or null if frames come straight from the camera
+     */
+    public void setViewTransform(ViewTransform transform) {
+        viewTransform = transform;
+    }
+
+    /**
+     * Called with the STATISTICS_FACES of each capture result.
+     *
+     * @param bounds face rectangles in sensor active array coordinates
+     * @param activeArray the sensor active array size
+     * @param sensorOrientation clockwise rotation of the sensor image to upright, in degrees
+     */
+    public void onHardwareFaces(Rect[] bounds, Rect activeArray, int sensorOrientation) {
+        onHardwareFaces(bounds, activeArray, sensorOrientation, SystemClock.elapsedRealtime());
+    }
+
+    void onHardwareFaces(Rect[] bounds, Rect activeArray, int sensorOrientation, long now) {
+        if (bounds.length == 0 || activeArray == null
+                || activeArray.right <= activeArray.left || activeArray.bottom <= activeArray.top) {
+            faces = new float[0];
+            return;
+        }
+        float[] normalized = new float[bounds.length * 4];
+        for (int i = 0; i < bounds.length; i++) {
+            normalize(bounds[i], activeArray, sensorOrientation, normalized, i * 4);
+        }
+        faces = normalized;
+        lastFaceSeenMillis = now;
+    }
+
+    private static void normalize(Rect bounds, Rect activeArray, int sensorOrientation,
+                                  float[] out, int offset) {
+        float width = activeArray.right - activeArray.left;
+        float height = activeArray.bottom - activeArray.top;
+        float left = (bounds.left - activeArray.left) / width;
+        float top = (bounds.top - activeArray.top) / height;
+        float right = (bounds.right - activeArray.left) / width;
+        float bottom = (bounds.bottom - activeArray.top) / height;
+        switch (sensorOrientation) {
+            case 90:
+                set(out, offset, 1f - bottom, left, 1f - top, right);
+                break;
+            case 180:
+                set(out, offset, 1f - right, 1f - bottom, 1f - left, 1f - top);
+                break;
+            case 270:
+                set(out, offset, top, 1f - right, bottom, 1f - left);
+                break;
+            default:
+                set(out, offset, left, top, right, bottom);
+                break;
+        }
+    }
+
+    private static void set(float[] out, int offset, float left, float top, float right,
+                            float bottom) {
+        out[offset] = left;
+        out[offset + 1] = top;
+        out[offset + 2] = right;
+        out[offset + 3] = bottom;
+    }
+
+    @Override
+    public boolean shouldProcess(@NonNull FrameMetadata frameMetadata) {
+        return shouldProcess(SystemClock.elapsedRealtime());
+    }
+
+    boolean shouldProcess(long now) {
+        boolean pass;
+        if (now - lastFaceSeenMillis <= holdMillis) {
+            pass = true;
+        } else if (now - lastRefreshMillis >= refreshMillis) {
+            lastRefreshMillis = now;
+            pass = true;
+        } else {
+            pass = false;
+        }
+        synchronized (this) {
+            if (pass) {
+                framesPassed++;
+            } else {
+                framesSkipped++;
+            }
+        }
+        return pass;
+    }
+
+    /**
+     * Returns the faces last reported by the HAL, in the coordinates of a frame of the given
+     * size, clipped to it.
+     */
+    @Override
+    public List<Rect> getRegionsOfInterest(int frameWidth, int frameHeight) {
+        float[] current = faces;
+        ViewTransform transform = viewTransform;
+        float[] mapped = new float[4];
+        List<Rect> regions = new ArrayList<>(current.length / 4);
+        for (int i = 0; i < current.length; i += 4) {
+            System.arraycopy(current, i, mapped, 0, 4);
+            if (transform != null) {
+                transform.toView(mapped, 0);
+            }
+            Rect region = new Rect();
+            region.left = Math.round(Math.max(0f, mapped[0]) * frameWidth);
+            region.top = Math.round(Math.max(0f, mapped[1]) * frameHeight);
+            region.right = Math.round(Math.min(1f, mapped[2]) * frameWidth);
+            region.bottom = Math.round(Math.min(1f, mapped[3]) * frameHeight);
+            if (region.right > region.left && region.bottom > region.top) {
+                regions.add(region);
+            }
+        }
+        return regions;
+    }
+
+    /** Fraction of frames that never reached the detector. */
+    public synchronized float getSkipRatio() {
+        long total = framesPassed + framesSkipped;
+        return total == 0 ? 0f : framesSkipped / (float) total;
+    }
+}
@@ -0,0 +1,137 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Times a {@link ParallelFrameDecoder} on a recorded stream with 1 up to N decode threads, to
+ * see how decode throughput scales with cores. One untimed pass per thread count warms up the
+ * decoders, the rest are averaged. Nothing is checked, the numbers depend on the device.
+ */
+public final class DecodeBenchmark {
+    private static final String TAG = DecodeBenchmark.class.getSimpleName();
+
+    // Frames that may wait for a slower earlier one, as IpCameraSource uses.
+    private static final int REORDER_WINDOW = 4;
+    private static final long PASS_TIMEOUT_MILLIS = 60000;
+
+    /** Decode throughput for each thread count. */
+    public static final class Result {
+        public final int frames;
+        public final int rounds;
+        /** framesPerSecond[i] was measured with i + 1 decode threads. */
+        public final double[] framesPerSecond;
+        public final long framesLate;
+
+        Result(int frames, int rounds, double[] framesPerSecond, long framesLate) {
+            this.frames = frames;
+            this.rounds = rounds;
+            this.framesPerSecond = framesPerSecond;
+            this.framesLate = framesLate;
+        }
+
+        /** Throughput with the given number of threads relative to one thread. */
+        public double getSpeedup(int threads) {
+            return framesPerSecond[0] > 0
+                    ? framesPerSecond[threads - 1] / framesPerSecond[0] : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < framesPerSecond.length; i++) {
+                builder.append(String.format(Locale.US, "%d threads %.1f frames/s (%.2fx), ",
+                        i + 1, framesPerSecond[i], getSpeedup(i + 1)));
+            }
+            builder.append(String.format(Locale.US, "%d frames over %d rounds, %d late",
+                    frames, rounds, framesLate));
+            return builder.toString();
+        }
+    }
+
+    /** Counts frames coming out of the decoder, delivered or skipped. */
+    private static class Counter<T> implements ParallelFrameDecoder.Listener<T> {
+        private int count;
+
+        @Override
+        public synchronized void onFrame(T frame, long sequence) {
+            count++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFrameDropped(T frame, long sequence) {
+            count++;
+            notifyAll();
+        }
+
+        synchronized void await(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + PASS_TIMEOUT_MILLIS;
+            while (count < expected) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new IllegalStateException("Decoded " + count + " of " + expected);
+                }
+                wait(left);
+            }
+        }
+    }
+
+    private DecodeBenchmark() {
+    }
+
+    /**
+     * Runs the decoder with 1 to maxThreads threads and logs the result. Frames are submitted as
+     * fast as the decoder takes them, none are dropped for backlog.
+     *
+     * @param stream the encoded frames, in stream order; they are only read
+     */
+    public static <T> Result run(List<ByteBuffer> stream,
+                                 ParallelFrameDecoder.FrameDecoderFactory<T> decoders,
+                                 int maxThreads, int rounds) throws InterruptedException {
+        if (rounds < 1 || maxThreads < 1 || stream.isEmpty()) {
+            throw new IllegalArgumentException("rounds " + rounds + ", threads " + maxThreads);
+        }
+        // Frames are not the pool's, with nothing pooled they are simply let go after decoding.
+        BufferPool pool = new BufferPool(0, 0);
+        double[] framesPerSecond = new double[maxThreads];
+        long late = 0;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            Counter<T> counter = new Counter<>();
+            ParallelFrameDecoder<T> decoder =
+                    new ParallelFrameDecoder<>(threads, REORDER_WINDOW, decoders, counter);
+            try {
+                decodePass(decoder, stream, pool);
+                counter.await(stream.size());
+
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    decodePass(decoder, stream, pool);
+                }
+                counter.await(stream.size() * (rounds + 1));
+                double seconds = (System.nanoTime() - start) / 1e9;
+                framesPerSecond[threads - 1] = stream.size() * rounds / seconds;
+                late += decoder.getFramesLate();
+            } finally {
+                decoder.shutdown();
+            }
+        }
+        Result result = new Result(stream.size(), rounds, framesPerSecond, late);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private static void decodePass(ParallelFrameDecoder<?> decoder, List<ByteBuffer> stream,
+                                   BufferPool pool) throws InterruptedException {
+        for (ByteBuffer frame : stream) {
+            while (decoder.submit(frame.duplicate(), pool) < 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
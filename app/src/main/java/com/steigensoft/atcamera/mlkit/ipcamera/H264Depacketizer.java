@@ -0,0 +1,252 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rebuilds H.264 access units from in-order RTP packets (RFC 6184). Single NAL unit packets,
+ * STAP-A aggregates and FU-A fragments are supported, which covers what IP cameras send in
+ * non-interleaved mode. Each access unit is written in Annex B form, every NAL unit preceded by a
+ * start code, ready for a decoder.
+ *
+ * <p>An access unit that lost a packet is dropped, and so is everything after it up to the next
+ * IDR picture, since those frames would only decode into garbage.
+ */
+public class H264Depacketizer implements JitterBuffer.PacketListener {
+
+    /** Receives complete access units. The listener must release the buffer to the pool. */
+    public interface AccessUnitListener {
+        void onAccessUnit(ByteBuffer accessUnit, long rtpTimestamp, boolean keyFrame);
+    }
+
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR = 5;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    private static final int NAL_STAP_A = 24;
+    private static final int NAL_FU_A = 28;
+
+    private static final int MAX_ACCESS_UNIT_BYTES = 8 * 1024 * 1024;
+
+    private final BufferPool pool;
+    private final AccessUnitListener listener;
+
+    private ByteBuffer accessUnit;
+    private long timestamp;
+    private boolean keyFrame;
+    private boolean parameterSets;
+    private boolean corrupt;
+    private boolean fragmentOpen;
+    private boolean waitingForKeyFrame = true;
+
+    private long accessUnitsEmitted;
+    private long accessUnitsDropped;
+
+    public H264Depacketizer(BufferPool pool, AccessUnitListener listener) {
+        this.pool = pool;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onPacket(RtpPacket packet) {
+        if (accessUnit != null && packet.getTimestamp() != timestamp) {
+            // The previous access unit ended without a marker bit, e.g. its last packet was lost.
+            finishAccessUnit();
+        }
+        if (accessUnit == null) {
+            accessUnit = pool.acquire(0);
+            timestamp = packet.getTimestamp();
+            keyFrame = false;
+            parameterSets = false;
+            corrupt = false;
+            fragmentOpen = false;
+        }
+        byte[] data = packet.getData();
+        int offset = packet.getPayloadOffset();
+        int length = packet.getPayloadLength();
+        if (length > 0) {
+            int type = data[offset] & 0x1f;
+            if (type >= 1 && type <= 23) {
+                appendNal(data, offset, length);
+            } else if (type == NAL_STAP_A) {
+                readAggregate(data, offset + 1, length - 1);
+            } else if (type == NAL_FU_A) {
+                readFragment(data, offset, length);
+            } else {
+                // STAP-B, MTAP and FU-B only occur in interleaved mode, which we do not negotiate.
+                corrupt = true;
+            }
+        }
+        if (packet.isMarker()) {
+            finishAccessUnit();
+        }
+    }
+
+    @Override
+    public void onPacketsLost(int count) {
+        if (accessUnit != null) {
+            corrupt = true;
+        }
+        // Even if the loss fell between access units, the missing packets may have been a
+        // whole reference frame.
+        waitingForKeyFrame = true;
+        fragmentOpen = false;
+    }
+
+    /**
+     * Drops a partial access unit, returning its buffer to the pool, and waits for the next key
+     * frame, e.g. when the connection the packets came over is closed.
+     */
+    public void reset() {
+        onPacketsLost(0);
+        if (accessUnit != null) {
+            finishAccessUnit();
+        }
+    }
+
+    private void readAggregate(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (offset + 2 <= end) {
+            int size = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+            offset += 2;
+            if (size == 0 || offset + size > end) {
+                corrupt = true;
+                return;
+            }
+            appendNal(data, offset, size);
+            offset += size;
+        }
+    }
+
+    private void readFragment(byte[] data, int offset, int length) {
+        if (length < 2) {
+            corrupt = true;
+            return;
+        }
+        int indicator = data[offset] & 0xff;
+        int header = data[offset + 1] & 0xff;
+        boolean start = (header & 0x80) != 0;
+        boolean end = (header & 0x40) != 0;
+        if (start) {
+            int type = header & 0x1f;
+            noteNalType(type);
+            if (!ensureCapacity(5 + length - 2)) {
+                return;
+            }
+            accessUnit.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+            accessUnit.put((byte) ((indicator & 0xe0) | type));
+            fragmentOpen = true;
+        } else if (!fragmentOpen) {
+            // The start of this NAL unit never arrived.
+            corrupt = true;
+            return;
+        }
+        if (!ensureCapacity(length - 2)) {
+            return;
+        }
+        accessUnit.put(data, offset + 2, length - 2);
+        if (end) {
+            fragmentOpen = false;
+        }
+    }
+
+    private void appendNal(byte[] data, int offset, int length) {
+        noteNalType(data[offset] & 0x1f);
+        if (!ensureCapacity(4 + length)) {
+            return;
+        }
+        accessUnit.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+        accessUnit.put(data, offset, length);
+    }
+
+    private void noteNalType(int type) {
+        if (type == NAL_IDR) {
+            keyFrame = true;
+        } else if (type == NAL_SPS || type == NAL_PPS) {
+            parameterSets = true;
+        }
+    }
+
+    private boolean ensureCapacity(int bytes) {
+        if (accessUnit.remaining() >= bytes) {
+            return true;
+        }
+        int needed = accessUnit.position() + bytes;
+        if (needed > MAX_ACCESS_UNIT_BYTES) {
+            corrupt = true;
+            return false;
+        }
+        ByteBuffer larger = pool.acquire(Math.max(needed, accessUnit.capacity() * 2));
+        accessUnit.flip();
+        larger.put(accessUnit);
+        pool.release(accessUnit);
+        accessUnit = larger;
+        return true;
+    }
+
+    private void finishAccessUnit() {
+        ByteBuffer unit = accessUnit;
+        accessUnit = null;
+        fragmentOpen = false;
+        if (corrupt || unit.position() == 0) {
+            waitingForKeyFrame |= corrupt;
+            pool.release(unit);
+            accessUnitsDropped++;
+            return;
+        }
+        if (waitingForKeyFrame) {
+            if (!keyFrame && !parameterSets) {
+                pool.release(unit);
+                accessUnitsDropped++;
+                return;
+            }
+            // Parameter sets sent on their own do not reference anything, let them through.
+            waitingForKeyFrame = !keyFrame;
+        }
+        unit.flip();
+        accessUnitsEmitted++;
+        listener.onAccessUnit(unit, timestamp, keyFrame);
+    }
+
+    public long getAccessUnitsEmitted() {
+        return accessUnitsEmitted;
+    }
+
+    /** Access units lost to packet loss, or skipped while waiting for the next IDR picture. */
+    public long getAccessUnitsDropped() {
+        return accessUnitsDropped;
+    }
+
+    /**
+     * Finds the first NAL unit of the given type in an Annex B buffer and returns it with its
+     * start code, or null. The buffer position is not changed.
+     */
+    public static ByteBuffer findNal(ByteBuffer annexB, int type) {
+        int limit = annexB.limit();
+        int start = -1;
+        for (int i = annexB.position(); i + 3 <= limit; i++) {
+            if (annexB.get(i) != 0 || annexB.get(i + 1) != 0 || annexB.get(i + 2) != 1) {
+                continue;
+            }
+            int codeStart = i > annexB.position() && annexB.get(i - 1) == 0 ? i - 1 : i;
+            if (start >= 0) {
+                return slice(annexB, start, codeStart);
+            }
+            if (i + 3 < limit && (annexB.get(i + 3) & 0x1f) == type) {
+                start = codeStart;
+            }
+            i += 2;
+        }
+        return start >= 0 ? slice(annexB, start, limit) : null;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer copy = ByteBuffer.allocate(to - from);
+        for (int i = from; i < to; i++) {
+            copy.put(buffer.get(i));
+        }
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,55 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A network stream read by an {@link IngestSelectorThread}. Subclasses open their channel in
+ * {@link #connect(Selector)}, register it with themselves as the attachment and consume whatever
+ * is readable in {@link #handle(SelectionKey)}.
+ */
+public abstract class IngestConnection {
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    protected final URI uri;
+    protected final StreamMetrics metrics;
+    private long backoffMillis = INITIAL_BACKOFF_MILLIS;
+
+    protected IngestConnection(URI uri, StreamMetrics metrics) {
+        this.uri = uri;
+        this.metrics = metrics;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    public StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Opens the channel and registers it with the selector. */
+    abstract void connect(Selector selector) throws IOException;
+
+    /** Handles readiness of the registered channel. Throws when the connection is lost. */
+    abstract void handle(SelectionKey key) throws IOException;
+
+    abstract void close();
+
+    /** Returns the delay before the next reconnect and doubles it for the one after. */
+    long nextBackoffMillis() {
+        long delay = backoffMillis;
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        return delay;
+    }
+
+    /** Called once the stream delivers a frame again, so the next failure retries quickly. */
+    protected void resetBackoff() {
+        backoffMillis = INITIAL_BACKOFF_MILLIS;
+    }
+}
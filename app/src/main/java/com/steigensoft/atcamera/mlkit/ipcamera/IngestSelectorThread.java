@@ -0,0 +1,186 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread multiplexing any number of {@link IngestConnection}s over one NIO selector.
+ * Lost connections are reopened with the connection's own backoff.
+ */
+public class IngestSelectorThread implements Runnable {
+    private static final String TAG = IngestSelectorThread.class.getSimpleName();
+
+    private final String name;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Connections waiting to be reopened, with the wall clock time to do so. Selector thread only.
+    private final Map<IngestConnection, Long> reconnects = new HashMap<>();
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+    private int connectionCount;
+
+    public IngestSelectorThread(String name) {
+        this.name = name;
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void shutdown() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t == null) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Number of connections currently handled by this thread. */
+    public synchronized int getConnectionCount() {
+        return connectionCount;
+    }
+
+    public void add(final IngestConnection connection) {
+        synchronized (this) {
+            connectionCount++;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                open(connection);
+            }
+        });
+    }
+
+    public void remove(final IngestConnection connection) {
+        synchronized (this) {
+            connectionCount--;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                reconnects.remove(connection);
+                connection.close();
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        tasks.add(task);
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+        }
+    }
+
+    private void open(IngestConnection connection) {
+        try {
+            connection.connect(selector);
+        } catch (IOException e) {
+            scheduleReconnect(connection, e);
+        }
+    }
+
+    private void scheduleReconnect(IngestConnection connection, IOException cause) {
+        connection.close();
+        long delay = connection.nextBackoffMillis();
+        Log.w(TAG, "Connection to " + connection.getUri().getHost() + " lost (" + cause.getMessage()
+                + "), retrying in " + delay + " ms");
+        reconnects.put(connection, System.currentTimeMillis() + delay);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(nextTimeoutMillis());
+            } catch (IOException e) {
+                Log.e(TAG, "Selector failed", e);
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                IngestConnection connection = (IngestConnection) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        connection.handle(key);
+                    }
+                } catch (IOException e) {
+                    key.cancel();
+                    scheduleReconnect(connection, e);
+                }
+            }
+            runDueReconnects();
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((IngestConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to close selector", e);
+        }
+    }
+
+    private long nextTimeoutMillis() {
+        if (reconnects.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        for (long due : reconnects.values()) {
+            next = Math.min(next, due);
+        }
+        return Math.max(1, next - now);
+    }
+
+    private void runDueReconnects() {
+        if (reconnects.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<IngestConnection> due = new ArrayList<>();
+        Iterator<Map.Entry<IngestConnection, Long>> it = reconnects.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<IngestConnection, Long> entry = it.next();
+            if (entry.getValue() <= now) {
+                it.remove();
+                due.add(entry.getKey());
+            }
+        }
+        for (IngestConnection connection : due) {
+            open(connection);
+        }
+    }
+}
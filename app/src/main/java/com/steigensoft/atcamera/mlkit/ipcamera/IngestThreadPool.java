@@ -0,0 +1,65 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A fixed set of {@link IngestSelectorThread}s sharing many connections. Each new connection goes
+ * to the thread with the fewest connections, so a handful of threads serve any number of cameras.
+ */
+public class IngestThreadPool {
+
+    private final IngestSelectorThread[] threads;
+    private final Map<IngestConnection, IngestSelectorThread> assignments = new HashMap<>();
+
+    public IngestThreadPool(String name, int threadCount) {
+        threads = new IngestSelectorThread[Math.max(1, threadCount)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new IngestSelectorThread(name + "-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        for (IngestSelectorThread thread : threads) {
+            thread.start();
+        }
+    }
+
+    public void shutdown() {
+        for (IngestSelectorThread thread : threads) {
+            thread.shutdown();
+        }
+        synchronized (assignments) {
+            assignments.clear();
+        }
+    }
+
+    public void add(IngestConnection connection) {
+        IngestSelectorThread least;
+        synchronized (assignments) {
+            least = threads[0];
+            for (IngestSelectorThread thread : threads) {
+                if (thread.getConnectionCount() < least.getConnectionCount()) {
+                    least = thread;
+                }
+            }
+            assignments.put(connection, least);
+            least.add(connection);
+        }
+    }
+
+    public void remove(IngestConnection connection) {
+        IngestSelectorThread thread;
+        synchronized (assignments) {
+            thread = assignments.remove(connection);
+        }
+        if (thread != null) {
+            thread.remove(connection);
+        }
+    }
+
+    public int getThreadCount() {
+        return threads.length;
+    }
+}
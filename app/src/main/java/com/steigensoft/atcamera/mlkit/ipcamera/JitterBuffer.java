@@ -0,0 +1,178 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Puts RTP packets back into sequence order. Packets are held in a ring indexed by sequence
+ * number; a missing packet is waited for until either {@code maxDelayPackets} later packets have
+ * arrived or it is {@code maxDelayMillis} overdue, after which it is reported lost and delivery
+ * continues behind it. Late and duplicate packets are discarded.
+ *
+ * <p>Not thread safe, it is meant to live on the thread reading the socket.
+ */
+public class JitterBuffer {
+
+    /** Receives packets in order. The packet is recycled once the call returns. */
+    public interface PacketListener {
+        void onPacket(RtpPacket packet);
+
+        /** {@code count} packets before the next delivered one will never arrive. */
+        void onPacketsLost(int count);
+    }
+
+    private static final int CAPACITY = 256;
+
+    private final RtpPacket[] ring = new RtpPacket[CAPACITY];
+    private final ArrayDeque<RtpPacket> free = new ArrayDeque<>();
+    private final int maxDelayPackets;
+    private final long maxDelayMillis;
+    private final PacketListener listener;
+
+    private boolean started;
+    private int nextSequence;
+    private int buffered;
+    // When the packet at nextSequence was first found missing, or -1 while nothing is missing.
+    private long gapSinceMillis = -1;
+
+    private long packetsReceived;
+    private long packetsLost;
+    private long packetsDiscarded;
+
+    /**
+     * @param maxDelayPackets how many packets may queue up behind a missing one, at most 255
+     * @param maxDelayMillis how long a missing packet is waited for
+     */
+    public JitterBuffer(int maxDelayPackets, long maxDelayMillis, PacketListener listener) {
+        this.maxDelayPackets = Math.min(maxDelayPackets, CAPACITY - 1);
+        this.maxDelayMillis = maxDelayMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Parses one datagram into a pooled packet and delivers whatever is now in order.
+     *
+     * @return false if the datagram was not an RTP packet
+     */
+    public boolean offer(ByteBuffer datagram, long nowMillis) {
+        RtpPacket packet = free.pollFirst();
+        if (packet == null) {
+            packet = new RtpPacket();
+        }
+        if (!packet.read(datagram)) {
+            free.addFirst(packet);
+            return false;
+        }
+        insert(packet, nowMillis);
+        return true;
+    }
+
+    private void insert(RtpPacket packet, long nowMillis) {
+        packetsReceived++;
+        int sequence = packet.getSequenceNumber();
+        if (!started) {
+            started = true;
+            nextSequence = sequence;
+        }
+        int distance = (short) (sequence - nextSequence);
+        if (distance < 0) {
+            // Already delivered or given up on.
+            packetsDiscarded++;
+            free.addFirst(packet);
+            return;
+        }
+        if (distance >= CAPACITY) {
+            // The sender jumped far ahead, or restarted. Hand over what we have and resync.
+            flush();
+            nextSequence = sequence;
+        }
+        int slot = sequence & (CAPACITY - 1);
+        if (ring[slot] != null) {
+            packetsDiscarded++;
+            free.addFirst(packet);
+            return;
+        }
+        ring[slot] = packet;
+        buffered++;
+        drain(nowMillis);
+    }
+
+    /** Delivers in-order packets and gives up on missing ones that waited long enough. */
+    public void drain(long nowMillis) {
+        while (buffered > 0) {
+            int slot = nextSequence & (CAPACITY - 1);
+            RtpPacket packet = ring[slot];
+            if (packet != null) {
+                ring[slot] = null;
+                buffered--;
+                deliver(packet);
+                gapSinceMillis = -1;
+                continue;
+            }
+            if (gapSinceMillis < 0) {
+                gapSinceMillis = nowMillis;
+            }
+            if (buffered < maxDelayPackets && nowMillis - gapSinceMillis < maxDelayMillis) {
+                return;
+            }
+            skipGap();
+        }
+    }
+
+    private void skipGap() {
+        int lost = 0;
+        while (ring[nextSequence & (CAPACITY - 1)] == null) {
+            nextSequence = (nextSequence + 1) & 0xffff;
+            lost++;
+        }
+        packetsLost += lost;
+        gapSinceMillis = -1;
+        listener.onPacketsLost(lost);
+    }
+
+    private void flush() {
+        while (buffered > 0) {
+            if (ring[nextSequence & (CAPACITY - 1)] == null) {
+                skipGap();
+            }
+            int slot = nextSequence & (CAPACITY - 1);
+            RtpPacket packet = ring[slot];
+            ring[slot] = null;
+            buffered--;
+            deliver(packet);
+        }
+        gapSinceMillis = -1;
+    }
+
+    private void deliver(RtpPacket packet) {
+        nextSequence = (packet.getSequenceNumber() + 1) & 0xffff;
+        listener.onPacket(packet);
+        free.addFirst(packet);
+    }
+
+    /** Forgets all state, for example after the sender changed. */
+    public void reset() {
+        for (int i = 0; i < CAPACITY; i++) {
+            if (ring[i] != null) {
+                free.addFirst(ring[i]);
+                ring[i] = null;
+            }
+        }
+        buffered = 0;
+        started = false;
+        gapSinceMillis = -1;
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /** Packets that arrived late or twice. */
+    public long getPacketsDiscarded() {
+        return packetsDiscarded;
+    }
+}
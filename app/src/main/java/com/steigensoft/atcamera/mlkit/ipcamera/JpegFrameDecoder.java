@@ -0,0 +1,94 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes JPEG frames at the smallest power of two scale that still covers the detector's target
+ * size. By default decoding alternates between two reused bitmaps, so one can be in the detector
+ * while the next is decoded; callers must not hand more than one frame at a time to the detector.
+ * Callers that keep frames longer turn reuse off.
+ *
+ * <p>Not thread safe.
+ */
+public class JpegFrameDecoder {
+    private static final int BUFFERS = 2;
+
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private final Bitmap[] bitmaps = new Bitmap[BUFFERS];
+    private final int[] size = new int[2];
+    private int next;
+    private boolean reuseBitmaps = true;
+    private int targetWidth;
+    private int targetHeight;
+
+    /**
+     * @param targetWidth smallest width the detector should get, 0 to decode at full size
+     * @param targetHeight smallest height the detector should get, 0 to decode at full size
+     */
+    public JpegFrameDecoder(int targetWidth, int targetHeight) {
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        options.inMutable = true;
+        options.inTempStorage = new byte[16 * 1024];
+    }
+
+    /** Whether to decode into the previously returned bitmaps, true by default. */
+    public void setReuseBitmaps(boolean reuse) {
+        reuseBitmaps = reuse;
+        if (!reuse) {
+            bitmaps[0] = null;
+            bitmaps[1] = null;
+        }
+    }
+
+    public void setTargetSize(int width, int height) {
+        targetWidth = width;
+        targetHeight = height;
+    }
+
+    /**
+     * Decodes the JPEG between the buffer's position and limit, which must be array backed.
+     *
+     * @return the decoded frame, valid until the call after next when reusing bitmaps, or null if
+     *     it was not a JPEG
+     */
+    public Bitmap decode(ByteBuffer jpeg) {
+        options.inSampleSize = JpegHeader.readSize(jpeg, size)
+                ? sampleSize(size[0], size[1], targetWidth, targetHeight) : 1;
+        options.inBitmap = bitmaps[next];
+        Bitmap bitmap;
+        try {
+            bitmap = decodeWithOptions(jpeg);
+        } catch (IllegalArgumentException e) {
+            // The stream changed resolution and the old bitmap is too small to reuse.
+            options.inBitmap = null;
+            bitmap = decodeWithOptions(jpeg);
+        }
+        options.inBitmap = null;
+        if (bitmap != null && reuseBitmaps) {
+            bitmaps[next] = bitmap;
+            next = (next + 1) % BUFFERS;
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeWithOptions(ByteBuffer jpeg) {
+        return BitmapFactory.decodeByteArray(jpeg.array(), jpeg.arrayOffset() + jpeg.position(),
+                jpeg.remaining(), options);
+    }
+
+    /** Largest power of two that keeps the image at least as large as the target. */
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sample = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sample;
+        }
+        while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,67 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the picture size from a JPEG's start of frame segment without decoding anything. Only
+ * the marker segments in front of the SOF are walked, which is a few hundred bytes at most.
+ */
+public final class JpegHeader {
+
+    private JpegHeader() {
+    }
+
+    /**
+     * Finds the frame size of a JPEG.
+     *
+     * @param jpeg the image, from its position to its limit; the position is not changed
+     * @param size receives width and height
+     * @return false if no start of frame segment was found
+     */
+    public static boolean readSize(ByteBuffer jpeg, int[] size) {
+        int limit = jpeg.limit();
+        int offset = jpeg.position();
+        if (offset + 4 > limit || (jpeg.get(offset) & 0xff) != 0xff
+                || (jpeg.get(offset + 1) & 0xff) != 0xd8) {
+            return false;
+        }
+        offset += 2;
+        while (offset + 4 <= limit) {
+            if ((jpeg.get(offset) & 0xff) != 0xff) {
+                return false;
+            }
+            int marker = jpeg.get(offset + 1) & 0xff;
+            if (marker == 0xff) {
+                // Fill byte in front of a marker.
+                offset++;
+                continue;
+            }
+            if (marker == 0xd8 || marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // Markers without a length.
+                offset += 2;
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // End of image or start of scan, there was no frame header before the data.
+                return false;
+            }
+            int length = ((jpeg.get(offset + 2) & 0xff) << 8) | (jpeg.get(offset + 3) & 0xff);
+            if (isStartOfFrame(marker)) {
+                if (offset + 9 > limit) {
+                    return false;
+                }
+                size[1] = ((jpeg.get(offset + 5) & 0xff) << 8) | (jpeg.get(offset + 6) & 0xff);
+                size[0] = ((jpeg.get(offset + 7) & 0xff) << 8) | (jpeg.get(offset + 8) & 0xff);
+                return size[0] > 0 && size[1] > 0;
+            }
+            offset += 2 + length;
+        }
+        return false;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC) which share the range.
+        return marker >= 0xc0 && marker <= 0xcf
+                && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+}
@@ -0,0 +1,181 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 decoding with the platform {@link MediaCodec}, normally backed by the hardware decoder.
+ * The codec is configured from the SPS and PPS of the first key frame. Access units are queued
+ * on the caller's thread without blocking; decoded images are drained on a thread of their own
+ * and handed out as YUV_420_888.
+ *
+ * <p>When the codec has no free input buffer the access unit is dropped, and the following
+ * ones up to the next key frame as well, since they would reference the missing picture.
+ */
+public class MediaCodecVideoDecoder implements VideoDecoder {
+    private static final String TAG = MediaCodecVideoDecoder.class.getSimpleName();
+    private static final long OUTPUT_TIMEOUT_US = 10000;
+
+    private final int maxWidth;
+    private final int maxHeight;
+    private final Object lock = new Object();
+    private MediaCodec codec;
+    private FrameListener listener;
+    private Thread outputThread;
+    private volatile boolean running;
+    private boolean waitingForKeyFrame = true;
+
+    /** The size limits only size the codec's buffers, the stream may be smaller. */
+    public MediaCodecVideoDecoder(int maxWidth, int maxHeight) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    @Override
+    public void start(FrameListener listener) {
+        this.listener = listener;
+        running = true;
+    }
+
+    @Override
+    public boolean decode(ByteBuffer accessUnit, long presentationTimeUs, boolean keyFrame) {
+        synchronized (lock) {
+            if (!running) {
+                return false;
+            }
+            if (codec == null && !(keyFrame && configure(accessUnit))) {
+                return false;
+            }
+            if (waitingForKeyFrame && !keyFrame) {
+                return false;
+            }
+            try {
+                int index = codec.dequeueInputBuffer(0);
+                if (index < 0) {
+                    waitingForKeyFrame = true;
+                    return false;
+                }
+                ByteBuffer input = codec.getInputBuffer(index);
+                int size = accessUnit.remaining();
+                if (input == null || input.capacity() < size) {
+                    codec.queueInputBuffer(index, 0, 0, presentationTimeUs, 0);
+                    waitingForKeyFrame = true;
+                    return false;
+                }
+                input.clear();
+                input.put(accessUnit.duplicate());
+                codec.queueInputBuffer(index, 0, size, presentationTimeUs,
+                        keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                waitingForKeyFrame = false;
+                return true;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "Decoder failed, restarting at the next key frame", e);
+                releaseCodec();
+                return false;
+            }
+        }
+    }
+
+    private boolean configure(ByteBuffer keyFrame) {
+        ByteBuffer sps = H264Depacketizer.findNal(keyFrame, H264Depacketizer.NAL_SPS);
+        ByteBuffer pps = H264Depacketizer.findNal(keyFrame, H264Depacketizer.NAL_PPS);
+        if (sps == null || pps == null) {
+            return false;
+        }
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                maxWidth, maxHeight);
+        format.setByteBuffer("csd-0", sps);
+        format.setByteBuffer("csd-1", pps);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxWidth * maxHeight);
+        try {
+            codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+            codec.configure(format, null, null, 0);
+            codec.start();
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not start H.264 decoder", e);
+            releaseCodec();
+            return false;
+        }
+        waitingForKeyFrame = true;
+        final MediaCodec started = codec;
+        outputThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainOutput(started);
+            }
+        }, "H264Output");
+        outputThread.start();
+        return true;
+    }
+
+    private void drainOutput(MediaCodec codec) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (running) {
+            int index;
+            try {
+                index = codec.dequeueOutputBuffer(info, OUTPUT_TIMEOUT_US);
+            } catch (IllegalStateException e) {
+                // Released from under us.
+                return;
+            }
+            if (index < 0) {
+                continue;
+            }
+            try {
+                Image image = codec.getOutputImage(index);
+                if (image != null) {
+                    try {
+                        listener.onFrame(image, info.presentationTimeUs);
+                    } finally {
+                        image.close();
+                    }
+                }
+                codec.releaseOutputBuffer(index, false);
+            } catch (IllegalStateException e) {
+                return;
+            }
+        }
+    }
+
+    private void releaseCodec() {
+        Thread thread = outputThread;
+        outputThread = null;
+        MediaCodec old = codec;
+        codec = null;
+        if (old == null) {
+            return;
+        }
+        boolean wasRunning = running;
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            old.stop();
+        } catch (IllegalStateException e) {
+            // Already in an error state, release below is all that is left.
+        }
+        old.release();
+        running = wasRunning;
+    }
+
+    @Override
+    public void release() {
+        synchronized (lock) {
+            releaseCodec();
+            running = false;
+        }
+    }
+}
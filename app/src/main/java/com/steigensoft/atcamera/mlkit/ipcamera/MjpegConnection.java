@@ -0,0 +1,206 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.MemoryBudget;
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * One non-blocking HTTP connection to an MJPEG camera. The connection is driven by an
+ * {@link IngestSelectorThread}: it sends a GET request, checks the response headers for the
+ * multipart boundary and then feeds everything it reads to an {@link MjpegParser}.
+ */
+public class MjpegConnection extends IngestConnection {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RESPONSE_HEADER = 8 * 1024;
+    private static final int INITIAL_FRAME_CAPACITY = 256 * 1024;
+    private static final int POOLED_FRAMES = 4;
+
+    private final BufferPool pool;
+    private final MjpegParser.FrameListener listener;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private SocketChannel channel;
+    private ByteBuffer request;
+    private final byte[] responseHeader = new byte[MAX_RESPONSE_HEADER];
+    private int responseHeaderLength;
+    private MjpegParser parser;
+    // Frames the parser dropped that are already counted in the metrics.
+    private long parserDropsCounted;
+
+    /**
+     * @param uri an http:// URL, optionally with user:password for basic authentication
+     * @param listener receives each complete JPEG, and must release it to {@link #getBufferPool()}
+     * @param metrics counts frames and bytes read from the camera
+     */
+    public MjpegConnection(URI uri, MjpegParser.FrameListener listener, StreamMetrics metrics) {
+        super(uri, metrics);
+        this.listener = listener;
+        this.pool = new BufferPool(INITIAL_FRAME_CAPACITY, POOLED_FRAMES,
+                MemoryBudget.getInstance().stage("mjpeg"));
+    }
+
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /** Starts a non-blocking connect and registers the channel with the selector. */
+    @Override
+    void connect(Selector selector) throws IOException {
+        close();
+        int port = uri.getPort() != -1 ? uri.getPort() : 80;
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        request = buildRequest();
+        responseHeaderLength = 0;
+        if (channel.connect(new InetSocketAddress(uri.getHost(), port))) {
+            channel.register(selector, SelectionKey.OP_WRITE, this);
+        } else {
+            channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    private ByteBuffer buildRequest() {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        StringBuilder sb = new StringBuilder();
+        // HTTP/1.0, so the body is never sent with chunked transfer encoding, which the parser
+        // would take as part of the JPEGs.
+        sb.append("GET ").append(path).append(" HTTP/1.0\r\n");
+        sb.append("Host: ").append(uri.getHost());
+        if (uri.getPort() != -1) {
+            sb.append(':').append(uri.getPort());
+        }
+        sb.append("\r\n");
+        if (uri.getRawUserInfo() != null) {
+            sb.append("Authorization: Basic ")
+                    .append(Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(ASCII)))
+                    .append("\r\n");
+        }
+        sb.append("Accept: multipart/x-mixed-replace, image/jpeg\r\n");
+        sb.append("Connection: close\r\n\r\n");
+        return ByteBuffer.wrap(sb.toString().getBytes(ASCII));
+    }
+
+    @Override
+    void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return;
+        }
+        if (key.isWritable()) {
+            channel.write(request);
+            if (!request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                throw new EOFException("Stream closed by " + uri.getHost());
+            }
+            metrics.onBytesReceived(read);
+            readBuffer.flip();
+            if (parser == null) {
+                readResponseHeader();
+            }
+            if (parser != null && readBuffer.hasRemaining()) {
+                parser.feed(readBuffer);
+                // Frames refused by the memory budget or oversized never reach the listener.
+                for (; parserDropsCounted < parser.getFramesDropped(); parserDropsCounted++) {
+                    metrics.onFrameDropped();
+                }
+            }
+        }
+    }
+
+    private void readResponseHeader() throws IOException {
+        while (readBuffer.hasRemaining()) {
+            if (responseHeaderLength == MAX_RESPONSE_HEADER) {
+                throw new IOException("Response header too large from " + uri.getHost());
+            }
+            responseHeader[responseHeaderLength++] = readBuffer.get();
+            if (responseHeaderLength >= 4
+                    && responseHeader[responseHeaderLength - 4] == '\r'
+                    && responseHeader[responseHeaderLength - 3] == '\n'
+                    && responseHeader[responseHeaderLength - 2] == '\r'
+                    && responseHeader[responseHeaderLength - 1] == '\n') {
+                parserDropsCounted = 0;
+                parser = new MjpegParser(parseResponseHeader(), pool, new MjpegParser.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer jpeg) {
+                        resetBackoff();
+                        metrics.onFrameReceived();
+                        listener.onFrame(jpeg);
+                    }
+                });
+                return;
+            }
+        }
+    }
+
+    /** Checks the status line and returns the multipart boundary, or null if there is none. */
+    private String parseResponseHeader() throws IOException {
+        String[] lines = new String(responseHeader, 0, responseHeaderLength, ASCII).split("\r\n");
+        String[] status = lines[0].split(" ");
+        if (status.length < 2 || !status[1].equals("200")) {
+            throw new IOException("Unexpected response from " + uri.getHost() + ": " + lines[0]);
+        }
+        for (String line : lines) {
+            String lower = line.toLowerCase(Locale.US);
+            if (!lower.startsWith("content-type:")) {
+                continue;
+            }
+            int index = lower.indexOf("boundary=");
+            if (index < 0) {
+                return null;
+            }
+            String boundary = line.substring(index + "boundary=".length()).trim();
+            int end = boundary.indexOf(';');
+            if (end >= 0) {
+                boundary = boundary.substring(0, end).trim();
+            }
+            if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                boundary = boundary.substring(1, boundary.length() - 1);
+            }
+            return boundary;
+        }
+        return null;
+    }
+
+    @Override
+    void close() {
+        // A frame cut off by the disconnect still holds a pooled buffer and its budget.
+        if (parser != null) {
+            parser.close();
+            parser = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with a channel that fails to close.
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Incremental parser for multipart/x-mixed-replace MJPEG streams. Bytes can be fed in chunks of
+ * any size, straight from the socket, and each complete JPEG is copied once into a pooled buffer.
+ *
+ * <p>Parts with a Content-Length header are copied in bulk. Parts without one are scanned for the
+ * next boundary. When the stream has no usable boundary at all the parser falls back to cutting
+ * frames at the JPEG start and end of image markers.
+ *
+ * <p>A frame is only started, and only grown, if the pool has room for it in its memory budget.
+ * Refused frames are skipped up to the next boundary or start of image and counted as dropped.
+ * The frame in progress holds a pooled buffer until it completes, so a parser given up on mid
+ * frame has to be {@link #close() closed}.
+ */
+public class MjpegParser {
+
+    /** Receives complete frames. The listener owns the buffer and must release it to the pool. */
+    public interface FrameListener {
+        void onFrame(ByteBuffer jpeg);
+    }
+
+    private enum State {
+        BOUNDARY,
+        BOUNDARY_EOL,
+        HEADERS,
+        BODY,
+        BODY_SCAN,
+        MARKER_SOI,
+        MARKER_BODY,
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_HEADER_LINE = 1024;
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final String CONTENT_LENGTH = "content-length:";
+
+    private final BufferPool pool;
+    private final FrameListener listener;
+    private final ByteMatcher boundaryMatcher;
+
+    private State state;
+    private final byte[] line = new byte[MAX_HEADER_LINE];
+    private int lineLength;
+    private int contentLength = -1;
+    private ByteBuffer frame;
+    private int previous = -1;
+
+    private long framesParsed;
+    private long framesDropped;
+
+    /**
+     * @param boundary the boundary from the Content-Type header, with or without the leading
+     *     dashes, or null to cut frames at JPEG markers
+     */
+    public MjpegParser(String boundary, BufferPool pool, FrameListener listener) {
+        this.pool = pool;
+        this.listener = listener;
+        if (boundary != null && !boundary.isEmpty()) {
+            while (boundary.startsWith("-")) {
+                boundary = boundary.substring(1);
+            }
+            boundaryMatcher = new ByteMatcher(("--" + boundary).getBytes(ASCII));
+            state = State.BOUNDARY;
+        } else {
+            boundaryMatcher = null;
+            state = State.MARKER_SOI;
+        }
+    }
+
+    /** Consumes all remaining bytes of the input. */
+    public void feed(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case BOUNDARY:
+                    while (in.hasRemaining()) {
+                        if (boundaryMatcher.feed(in.get())) {
+                            state = State.BOUNDARY_EOL;
+                            break;
+                        }
+                    }
+                    break;
+                case BOUNDARY_EOL:
+                    while (in.hasRemaining()) {
+                        if (in.get() == '\n') {
+                            state = State.HEADERS;
+                            lineLength = 0;
+                            contentLength = -1;
+                            break;
+                        }
+                    }
+                    break;
+                case HEADERS:
+                    readHeaders(in);
+                    break;
+                case BODY:
+                    readBody(in);
+                    break;
+                case BODY_SCAN:
+                    scanBody(in);
+                    break;
+                case MARKER_SOI:
+                    scanStartOfImage(in);
+                    break;
+                case MARKER_BODY:
+                    scanEndOfImage(in);
+                    break;
+            }
+        }
+    }
+
+    private void readHeaders(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                    lineLength--;
+                }
+                if (lineLength == 0) {
+                    startBody();
+                    return;
+                }
+                parseHeader();
+                lineLength = 0;
+            } else if (lineLength < MAX_HEADER_LINE) {
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private void parseHeader() {
+        String header = new String(line, 0, lineLength, ASCII);
+        if (header.toLowerCase(Locale.US).startsWith(CONTENT_LENGTH)) {
+            try {
+                contentLength = Integer.parseInt(header.substring(CONTENT_LENGTH.length()).trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+        }
+    }
+
+    private void startBody() {
+        if (contentLength > MAX_FRAME_BYTES) {
+            contentLength = -1;
+        }
+        frame = pool.tryAcquire(Math.max(contentLength, 0));
+        boundaryMatcher.reset();
+        if (frame == null) {
+            framesDropped++;
+            state = State.BOUNDARY;
+        } else if (contentLength >= 0) {
+            frame.limit(contentLength);
+            state = State.BODY;
+        } else {
+            state = State.BODY_SCAN;
+        }
+    }
+
+    private void readBody(ByteBuffer in) {
+        int count = Math.min(in.remaining(), frame.remaining());
+        int inLimit = in.limit();
+        in.limit(in.position() + count);
+        frame.put(in);
+        in.limit(inLimit);
+        if (!frame.hasRemaining()) {
+            emit();
+            boundaryMatcher.reset();
+            state = State.BOUNDARY;
+        }
+    }
+
+    private void scanBody(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (!put(b)) {
+                boundaryMatcher.reset();
+                state = State.BOUNDARY;
+                return;
+            }
+            if (boundaryMatcher.feed(b)) {
+                // Drop the boundary and the line break in front of it.
+                int end = frame.position() - boundaryMatcher.length();
+                while (end > 0 && (frame.get(end - 1) == '\n' || frame.get(end - 1) == '\r')) {
+                    end--;
+                }
+                frame.position(end);
+                emit();
+                state = State.BOUNDARY_EOL;
+                return;
+            }
+        }
+    }
+
+    private void scanStartOfImage(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            int b = in.get() & 0xff;
+            if (previous == 0xff && b == 0xd8) {
+                previous = -1;
+                frame = pool.tryAcquire(0);
+                if (frame == null) {
+                    framesDropped++;
+                    continue;
+                }
+                frame.put((byte) 0xff).put((byte) 0xd8);
+                state = State.MARKER_BODY;
+                return;
+            }
+            previous = b;
+        }
+    }
+
+    private void scanEndOfImage(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            int b = in.get() & 0xff;
+            if (!put((byte) b)) {
+                previous = -1;
+                state = State.MARKER_SOI;
+                return;
+            }
+            if (previous == 0xff && b == 0xd9) {
+                emit();
+                previous = -1;
+                state = State.MARKER_SOI;
+                return;
+            }
+            previous = b;
+        }
+    }
+
+    /**
+     * Appends a byte, growing the frame buffer through the pool. Returns false if the frame is
+     * oversized or the budget has no room to grow it; the frame is dropped then.
+     */
+    private boolean put(byte b) {
+        if (!frame.hasRemaining()) {
+            ByteBuffer larger = frame.capacity() < MAX_FRAME_BYTES
+                    ? pool.tryAcquire(Math.max(frame.capacity() * 2, 64 * 1024)) : null;
+            if (larger == null) {
+                pool.release(frame);
+                frame = null;
+                framesDropped++;
+                return false;
+            }
+            frame.flip();
+            larger.put(frame);
+            pool.release(frame);
+            frame = larger;
+        }
+        frame.put(b);
+        return true;
+    }
+
+    private void emit() {
+        ByteBuffer jpeg = frame;
+        frame = null;
+        jpeg.flip();
+        if (jpeg.remaining() < 2 || (jpeg.get(0) & 0xff) != 0xff || (jpeg.get(1) & 0xff) != 0xd8) {
+            pool.release(jpeg);
+            framesDropped++;
+            return;
+        }
+        framesParsed++;
+        listener.onFrame(jpeg);
+    }
+
+    /**
+     * Gives the buffer of a frame in progress back to the pool, e.g. when the connection drops
+     * in the middle of a frame. The parser starts over at the next part.
+     */
+    public void close() {
+        if (frame != null) {
+            pool.release(frame);
+            frame = null;
+        }
+        lineLength = 0;
+        contentLength = -1;
+        previous = -1;
+        if (boundaryMatcher != null) {
+            boundaryMatcher.reset();
+            state = State.BOUNDARY;
+        } else {
+            state = State.MARKER_SOI;
+        }
+    }
+
+    public long getFramesParsed() {
+        return framesParsed;
+    }
+
+    /** Parts that were not a JPEG or exceeded the size limit. */
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /** Streaming substring matcher (Knuth-Morris-Pratt) fed one byte at a time. */
+    static final class ByteMatcher {
+        private final byte[] pattern;
+        private final int[] failure;
+        private int matched;
+
+        ByteMatcher(byte[] pattern) {
+            this.pattern = pattern;
+            failure = new int[pattern.length];
+            for (int i = 1, k = 0; i < pattern.length; i++) {
+                while (k > 0 && pattern[i] != pattern[k]) {
+                    k = failure[k - 1];
+                }
+                if (pattern[i] == pattern[k]) {
+                    k++;
+                }
+                failure[i] = k;
+            }
+        }
+
+        /** Returns true when the byte completes a match. */
+        boolean feed(byte b) {
+            while (matched > 0 && pattern[matched] != b) {
+                matched = failure[matched - 1];
+            }
+            if (pattern[matched] == b) {
+                matched++;
+            }
+            if (matched == pattern.length) {
+                matched = 0;
+                return true;
+            }
+            return false;
+        }
+
+        void reset() {
+            matched = 0;
+        }
+
+        int length() {
+            return pattern.length;
+        }
+    }
+}
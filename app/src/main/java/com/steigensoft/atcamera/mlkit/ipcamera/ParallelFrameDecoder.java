@@ -0,0 +1,227 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.PriorityThreadFactory;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes compressed frames on several cores and hands them out in stream order.
+ *
+ * <p>Each worker thread has a decoder of its own. Finished frames wait in a small reorder window
+ * until the frames before them are out. When the window fills up behind a frame that is still
+ * decoding, that frame is skipped; if it finishes later it is discarded as late. When all workers
+ * are busy and the backlog is full, new frames are dropped straight away.
+ *
+ * @param <T> the decoded frame type
+ */
+public class ParallelFrameDecoder<T> {
+    private static final String TAG = ParallelFrameDecoder.class.getSimpleName();
+
+    /** Decodes one frame. Each instance is only used by one thread. */
+    public interface FrameDecoder<T> {
+        /** Returns the decoded frame, or null if the data could not be decoded. */
+        T decode(ByteBuffer data);
+    }
+
+    public interface FrameDecoderFactory<T> {
+        FrameDecoder<T> create();
+    }
+
+    /** Receives decoded frames in order. Calls to onFrame() never overlap. */
+    public interface Listener<T> {
+        void onFrame(T frame, long sequence);
+
+        /**
+         * The frame could not be decoded, or finished after later frames were handed out. Called
+         * on the decoding thread.
+         *
+         * @param frame the late frame, so it can be recycled, or null if decoding failed
+         */
+        void onFrameDropped(T frame, long sequence);
+    }
+
+    private final Listener<T> listener;
+    private final FrameDecoderFactory<T> decoderFactory;
+    private final ThreadLocal<FrameDecoder<T>> decoders = new ThreadLocal<FrameDecoder<T>>() {
+        @Override
+        protected FrameDecoder<T> initialValue() {
+            return decoderFactory.create();
+        }
+    };
+    private final ThreadPoolExecutor executor;
+    private final int maxInFlight;
+    private final int reorderWindow;
+
+    // Guarded by lock.
+    private final Object lock = new Object();
+    private final Object[] window;
+    private final boolean[] windowFilled;
+    private long nextSubmit;
+    private long nextDeliver;
+    private int inFlight;
+    private int completed;
+    private boolean delivering;
+    private long framesDecoded;
+    private long framesLate;
+    private long framesDropped;
+
+    /**
+     * @param threads number of decode threads, typically the number of cores
+     * @param reorderWindow how many finished frames may wait for an earlier one
+     */
+    public ParallelFrameDecoder(int threads, int reorderWindow,
+                                FrameDecoderFactory<T> decoderFactory, Listener<T> listener) {
+        this.decoderFactory = decoderFactory;
+        this.listener = listener;
+        threads = Math.max(1, threads);
+        this.reorderWindow = Math.max(1, reorderWindow);
+        // Enough to keep every thread busy with one frame queued behind it.
+        this.maxInFlight = threads * 2;
+        // Every frame between the next one to deliver and the last one submitted has a slot.
+        this.window = new Object[this.reorderWindow + maxInFlight];
+        this.windowFilled = new boolean[window.length];
+        ThreadFactory threadFactory = new PriorityThreadFactory(Process.THREAD_PRIORITY_BACKGROUND);
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Queues a frame for decoding. The buffer is returned to the pool once decoded or dropped.
+     *
+     * @return the frame's sequence number, or -1 if it was dropped because of the backlog
+     */
+    public long submit(final ByteBuffer data, final BufferPool pool) {
+        final long sequence;
+        synchronized (lock) {
+            if (inFlight >= maxInFlight || nextSubmit - nextDeliver >= window.length
+                    || executor.isShutdown()) {
+                framesDropped++;
+                pool.release(data);
+                return -1;
+            }
+            sequence = nextSubmit++;
+            inFlight++;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                T frame = null;
+                try {
+                    frame = decoders.get().decode(data);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to decode frame " + sequence, e);
+                } finally {
+                    pool.release(data);
+                }
+                complete(sequence, frame);
+            }
+        });
+        return sequence;
+    }
+
+    private void complete(long sequence, T frame) {
+        boolean late;
+        synchronized (lock) {
+            inFlight--;
+            late = sequence < nextDeliver;
+            if (late) {
+                framesLate++;
+            } else {
+                int slot = (int) (sequence % window.length);
+                window[slot] = frame;
+                windowFilled[slot] = true;
+                completed++;
+            }
+        }
+        if (late) {
+            listener.onFrameDropped(frame, sequence);
+            return;
+        }
+        deliver();
+    }
+
+    /** Hands out frames that are next in order, on whichever thread gets here first. */
+    private void deliver() {
+        while (true) {
+            long sequence;
+            Object frame;
+            boolean skipped;
+            synchronized (lock) {
+                if (delivering) {
+                    return;
+                }
+                int slot = (int) (nextDeliver % window.length);
+                if (windowFilled[slot]) {
+                    frame = window[slot];
+                    window[slot] = null;
+                    windowFilled[slot] = false;
+                    completed--;
+                    skipped = false;
+                } else if (completed >= reorderWindow) {
+                    // The window is full behind a frame that is still decoding, give up on it. It
+                    // is reported as dropped when it finishes.
+                    frame = null;
+                    skipped = true;
+                } else {
+                    return;
+                }
+                sequence = nextDeliver++;
+                if (!skipped && frame != null) {
+                    framesDecoded++;
+                }
+                delivering = true;
+            }
+            try {
+                if (frame != null) {
+                    @SuppressWarnings("unchecked")
+                    T typed = (T) frame;
+                    listener.onFrame(typed, sequence);
+                } else if (!skipped) {
+                    listener.onFrameDropped(null, sequence);
+                }
+            } finally {
+                synchronized (lock) {
+                    delivering = false;
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Frames handed out in order. */
+    public long getFramesDecoded() {
+        synchronized (lock) {
+            return framesDecoded;
+        }
+    }
+
+    /** Frames that finished after later frames had already been handed out. */
+    public long getFramesLate() {
+        synchronized (lock) {
+            return framesLate;
+        }
+    }
+
+    /** Frames dropped before decoding because every worker was busy. */
+    public long getFramesDropped() {
+        synchronized (lock) {
+            return framesDropped;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.os.SystemClock;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.MemoryBudget;
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Receives an H.264 RTP stream and turns it into access units. Two transports are supported:
+ * <ul>
+ *   <li>{@code rtp://host:port} listens for UDP packets on the given local address, port 0 picks
+ *       a free one (see {@link #getLocalPort()}).
+ *   <li>{@code rtp+tcp://host:port} connects to the given address and reads RTP interleaved in
+ *       the TCP stream, as an RTSP server does once a session is playing over TCP.
+ * </ul>
+ * The RTSP handshake itself (DESCRIBE, SETUP, PLAY) is not part of this class; the session has to
+ * be set up by whoever hands us the address.
+ */
+public class RtpConnection extends IngestConnection implements RtpInterleavedParser.PacketListener {
+    public static final String SCHEME_UDP = "rtp";
+    public static final String SCHEME_TCP = "rtp+tcp";
+
+    private static final int RECEIVE_BUFFER_BYTES = 1024 * 1024;
+    private static final int MAX_DATAGRAM = 64 * 1024;
+    private static final int JITTER_PACKETS = 64;
+    private static final long JITTER_MILLIS = 100;
+    private static final int INITIAL_ACCESS_UNIT_CAPACITY = 64 * 1024;
+    private static final int POOLED_ACCESS_UNITS = 4;
+
+    private final boolean tcp;
+    private final BufferPool pool;
+    private final JitterBuffer jitterBuffer;
+    private final H264Depacketizer depacketizer;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final RtpInterleavedParser interleavedParser;
+
+    private SelectableChannel channel;
+    private volatile int localPort = -1;
+    private int ssrc;
+    private boolean ssrcKnown;
+    private int rtpChannel = -1;
+
+    /**
+     * @param uri where to receive from, see the class description
+     * @param listener receives each access unit, and must release it to {@link #getBufferPool()}
+     * @param metrics counts access units and bytes received
+     */
+    public RtpConnection(URI uri, final H264Depacketizer.AccessUnitListener listener,
+                         final StreamMetrics metrics) {
+        super(uri, metrics);
+        if (SCHEME_TCP.equals(uri.getScheme())) {
+            tcp = true;
+        } else if (SCHEME_UDP.equals(uri.getScheme())) {
+            tcp = false;
+        } else {
+            throw new IllegalArgumentException("Not an RTP address: " + uri);
+        }
+        pool = new BufferPool(INITIAL_ACCESS_UNIT_CAPACITY, POOLED_ACCESS_UNITS,
+                MemoryBudget.getInstance().stage("rtp"));
+        depacketizer = new H264Depacketizer(pool, new H264Depacketizer.AccessUnitListener() {
+            @Override
+            public void onAccessUnit(ByteBuffer accessUnit, long rtpTimestamp, boolean keyFrame) {
+                resetBackoff();
+                metrics.onFrameReceived();
+                listener.onAccessUnit(accessUnit, rtpTimestamp, keyFrame);
+            }
+        });
+        jitterBuffer = new JitterBuffer(JITTER_PACKETS, JITTER_MILLIS, depacketizer);
+        interleavedParser = tcp ? new RtpInterleavedParser(this) : null;
+    }
+
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    public H264Depacketizer getDepacketizer() {
+        return depacketizer;
+    }
+
+    /** The local UDP port once bound, or -1. */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    @Override
+    void connect(Selector selector) throws IOException {
+        close();
+        if (tcp) {
+            SocketChannel socket = SocketChannel.open();
+            channel = socket;
+            socket.configureBlocking(false);
+            if (socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort()))) {
+                socket.register(selector, SelectionKey.OP_READ, this);
+            } else {
+                socket.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } else {
+            DatagramChannel datagram = DatagramChannel.open();
+            channel = datagram;
+            datagram.configureBlocking(false);
+            // Cameras send a whole key frame in one burst, give the kernel room to queue it.
+            datagram.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+            datagram.bind(new InetSocketAddress(uri.getHost(), Math.max(uri.getPort(), 0)));
+            localPort = ((InetSocketAddress) datagram.getLocalAddress()).getPort();
+            datagram.register(selector, SelectionKey.OP_READ, this);
+        }
+    }
+
+    @Override
+    void handle(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (((SocketChannel) channel).finishConnect()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        if (!key.isReadable()) {
+            return;
+        }
+        if (tcp) {
+            readBuffer.clear();
+            int read = ((SocketChannel) channel).read(readBuffer);
+            if (read < 0) {
+                throw new EOFException("Stream closed by " + uri.getHost());
+            }
+            metrics.onBytesReceived(read);
+            readBuffer.flip();
+            interleavedParser.feed(readBuffer);
+        } else {
+            DatagramChannel datagram = (DatagramChannel) channel;
+            while (true) {
+                readBuffer.clear();
+                if (datagram.receive(readBuffer) == null) {
+                    break;
+                }
+                readBuffer.flip();
+                metrics.onBytesReceived(readBuffer.remaining());
+                onRtpPacket(readBuffer);
+            }
+        }
+        jitterBuffer.drain(SystemClock.uptimeMillis());
+    }
+
+    @Override
+    public void onInterleavedPacket(int channel, ByteBuffer packet) {
+        // RTP goes on the even channel of each pair, RTCP on the odd one.
+        if ((channel & 1) != 0) {
+            return;
+        }
+        if (rtpChannel < 0) {
+            rtpChannel = channel;
+        }
+        if (channel == rtpChannel) {
+            onRtpPacket(packet);
+        }
+    }
+
+    private void onRtpPacket(ByteBuffer packet) {
+        if (packet.remaining() < 12) {
+            return;
+        }
+        int packetSsrc = packet.getInt(packet.position() + 8);
+        if (!ssrcKnown || packetSsrc != ssrc) {
+            if (ssrcKnown) {
+                // The camera restarted its stream, sequence numbers start over.
+                jitterBuffer.reset();
+                depacketizer.onPacketsLost(0);
+            }
+            ssrc = packetSsrc;
+            ssrcKnown = true;
+        }
+        jitterBuffer.offer(packet, SystemClock.uptimeMillis());
+    }
+
+    @Override
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to do with a channel that fails to close.
+            }
+            channel = null;
+        }
+        localPort = -1;
+        rtpChannel = -1;
+        // Nothing read so far continues on the next connection: a packet cut short would take
+        // the first bytes of the new one, and a partial access unit would hold its buffer.
+        if (interleavedParser != null) {
+            interleavedParser.reset();
+        }
+        jitterBuffer.reset();
+        depacketizer.reset();
+        ssrcKnown = false;
+    }
+}
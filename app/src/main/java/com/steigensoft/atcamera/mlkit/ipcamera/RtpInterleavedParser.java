@@ -0,0 +1,74 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an RTSP interleaved TCP stream (RFC 2326 section 10.12) into its embedded packets. Each
+ * packet is framed as '$', a channel byte and a 16 bit length. Anything between frames, such as
+ * RTSP replies sharing the connection, is skipped.
+ */
+public class RtpInterleavedParser {
+
+    /** Receives each packet. The buffer is only valid for the duration of the call. */
+    public interface PacketListener {
+        void onInterleavedPacket(int channel, ByteBuffer packet);
+    }
+
+    private static final int HEADER_SIZE = 4;
+
+    private final PacketListener listener;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final ByteBuffer packet = ByteBuffer.allocate(0xffff);
+    private int headerLength;
+    private int channel;
+    private int packetLength = -1;
+
+    public RtpInterleavedParser(PacketListener listener) {
+        this.listener = listener;
+    }
+
+    /** Consumes all remaining bytes of the input. */
+    public void feed(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            if (packetLength < 0) {
+                readHeader(in);
+                continue;
+            }
+            int count = Math.min(in.remaining(), packetLength - packet.position());
+            int inLimit = in.limit();
+            in.limit(in.position() + count);
+            packet.put(in);
+            in.limit(inLimit);
+            if (packet.position() == packetLength) {
+                packet.flip();
+                listener.onInterleavedPacket(channel, packet);
+                packet.clear();
+                packetLength = -1;
+            }
+        }
+    }
+
+    /** Forgets a partly read packet, e.g. when the connection is closed or replaced. */
+    public void reset() {
+        headerLength = 0;
+        packetLength = -1;
+        packet.clear();
+    }
+
+    private void readHeader(ByteBuffer in) {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (headerLength == 0 && b != '$') {
+                continue;
+            }
+            header[headerLength++] = b;
+            if (headerLength == HEADER_SIZE) {
+                headerLength = 0;
+                channel = header[1] & 0xff;
+                packetLength = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+                packet.clear();
+                return;
+            }
+        }
+    }
+}
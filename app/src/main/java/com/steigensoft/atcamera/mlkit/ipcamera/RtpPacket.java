@@ -0,0 +1,106 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One RTP packet (RFC 3550) held in a reusable array. The fixed header, CSRC list, header
+ * extension and padding are parsed away so that {@link #getPayloadOffset()} and
+ * {@link #getPayloadLength()} describe the media payload only.
+ */
+public class RtpPacket {
+    private static final int HEADER_SIZE = 12;
+    private static final int INITIAL_CAPACITY = 1500;
+
+    private byte[] data = new byte[INITIAL_CAPACITY];
+    private int length;
+    private boolean marker;
+    private int payloadType;
+    private int sequenceNumber;
+    private long timestamp;
+    private int ssrc;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * Copies the remaining bytes of the buffer into this packet and parses the header.
+     *
+     * @return false if the bytes are not a valid RTP version 2 packet
+     */
+    public boolean read(ByteBuffer in) {
+        length = in.remaining();
+        if (data.length < length) {
+            data = new byte[length];
+        }
+        in.get(data, 0, length);
+        return parse();
+    }
+
+    private boolean parse() {
+        if (length < HEADER_SIZE || (data[0] & 0xc0) != 0x80) {
+            return false;
+        }
+        boolean padding = (data[0] & 0x20) != 0;
+        boolean extension = (data[0] & 0x10) != 0;
+        int csrcCount = data[0] & 0x0f;
+        marker = (data[1] & 0x80) != 0;
+        payloadType = data[1] & 0x7f;
+        sequenceNumber = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        timestamp = ((long) (data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16)
+                | ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+        ssrc = ((data[8] & 0xff) << 24) | ((data[9] & 0xff) << 16)
+                | ((data[10] & 0xff) << 8) | (data[11] & 0xff);
+
+        int offset = HEADER_SIZE + 4 * csrcCount;
+        if (extension) {
+            if (offset + 4 > length) {
+                return false;
+            }
+            int words = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+            offset += 4 + 4 * words;
+        }
+        int end = length;
+        if (padding) {
+            end -= data[length - 1] & 0xff;
+        }
+        if (offset > end) {
+            return false;
+        }
+        payloadOffset = offset;
+        payloadLength = end - offset;
+        return true;
+    }
+
+    /** The whole packet, header included. Valid until the packet is read into again. */
+    public byte[] getData() {
+        return data;
+    }
+
+    public boolean isMarker() {
+        return marker;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /** The 32 bit media timestamp, 90 kHz for video. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getSsrc() {
+        return ssrc;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
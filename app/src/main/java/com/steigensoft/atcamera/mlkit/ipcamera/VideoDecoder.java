@@ -0,0 +1,28 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes compressed access units into images. {@link MediaCodecVideoDecoder} is the device
+ * implementation; tests on the JVM plug in their own.
+ */
+public interface VideoDecoder {
+
+    /** Receives decoded frames. The image is closed by the decoder once the call returns. */
+    interface FrameListener {
+        void onFrame(Image image, long presentationTimeUs);
+    }
+
+    void start(FrameListener listener);
+
+    /**
+     * Queues one Annex B access unit. The data is copied before this returns.
+     *
+     * @return false if the decoder could not take the access unit
+     */
+    boolean decode(ByteBuffer accessUnit, long presentationTimeUs, boolean keyFrame);
+
+    void release();
+}
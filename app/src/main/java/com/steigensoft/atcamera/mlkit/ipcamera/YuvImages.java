@@ -0,0 +1,64 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/** Copies YUV_420_888 images into NV21, the layout ML Kit takes from byte buffers. */
+public final class YuvImages {
+
+    private YuvImages() {
+    }
+
+    /** Bytes needed for an NV21 frame of the given size. */
+    public static int nv21Size(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Writes the image into the buffer as NV21, from position 0, and flips it.
+     *
+     * @param out must have at least {@link #nv21Size(int, int)} bytes of capacity
+     */
+    public static void toNv21(Image image, ByteBuffer out) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Image.Plane[] planes = image.getPlanes();
+        out.clear();
+        copyPlane(planes[0], width, height, out, 0, 1);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int chromaStart = width * height;
+        // NV21 interleaves V first, then U.
+        copyPlane(planes[2], chromaWidth, chromaHeight, out, chromaStart, 2);
+        copyPlane(planes[1], chromaWidth, chromaHeight, out, chromaStart + 1, 2);
+        out.position(0);
+        out.limit(nv21Size(width, height));
+    }
+
+    private static void copyPlane(Image.Plane plane, int width, int height, ByteBuffer out,
+                                  int offset, int outPixelStride) {
+        ByteBuffer in = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        int base = in.position();
+        if (pixelStride == 1 && outPixelStride == 1) {
+            ByteBuffer row = in.duplicate();
+            for (int y = 0; y < height; y++) {
+                row.limit(base + y * rowStride + width);
+                row.position(base + y * rowStride);
+                out.position(offset + y * width);
+                out.put(row);
+            }
+            return;
+        }
+        int outRowStride = width * outPixelStride;
+        for (int y = 0; y < height; y++) {
+            int inRow = base + y * rowStride;
+            int outRow = offset + y * outRowStride;
+            for (int x = 0; x < width; x++) {
+                out.put(outRow + x * outPixelStride, in.get(inRow + x * pixelStride));
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+/** What a {@link Node} does with an item arriving while its queue is full. */
+public enum DropPolicy {
+    /** Drops the arriving item, keeping what is queued. */
+    DROP_NEWEST,
+    /** Drops the oldest queued item to make room, so the node always works on recent frames. */
+    DROP_OLDEST,
+    /** Makes the sender wait for room, pushing back on the stage upstream. */
+    BLOCK
+}
@@ -0,0 +1,12 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+/** Passes items from a {@link Stage} on to the successors of its node. */
+public interface Emitter {
+
+    /**
+     * Offers the item to every successor, each subject to its own queue and drop policy. A
+     * {@link com.steigensoft.atcamera.mlkit.Frame} is retained once per successor. Blocks only
+     * if a successor uses {@link DropPolicy#BLOCK} and its queue is full.
+     */
+    void emit(Object item);
+}
@@ -0,0 +1,26 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import com.steigensoft.atcamera.mlkit.Frame;
+import com.steigensoft.atcamera.mlkit.FrameGate;
+
+/**
+ * Passes on only the {@link Frame}s a {@link FrameGate} lets through, so that gating runs as a
+ * node of its own ahead of the detector rather than inside it. Other items are passed on.
+ */
+public class GateStage implements Stage {
+
+    private final FrameGate gate;
+
+    public GateStage(FrameGate gate) {
+        this.gate = gate;
+    }
+
+    @Override
+    public void process(Object item, Emitter out) {
+        if (item instanceof Frame && ((Frame) item).getMetadata() != null
+                && !gate.shouldProcess(((Frame) item).getMetadata())) {
+            return;
+        }
+        out.emit(item);
+    }
+}
@@ -0,0 +1,252 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import android.util.Log;
+
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One stage of a {@link Pipeline} with its bounded input queue. Items are taken from the queue
+ * and handed to the {@link Stage} one at a time on the node's executor; a shared executor still
+ * runs a node's items one after another. A full queue is handled by the node's
+ * {@link DropPolicy}.
+ *
+ * <p>The node's {@link StreamMetrics} count items offered, dropped and processed, with the time
+ * from arrival in the queue until the stage is done as latency.
+ */
+public final class Node {
+    private static final String TAG = Node.class.getSimpleName();
+
+    // Items handled per executor task, so nodes sharing an executor take turns.
+    private static final int MAX_BATCH = 16;
+
+    private final String name;
+    private final Stage stage;
+    private final int capacity;
+    private final DropPolicy policy;
+    private final Executor executor;
+    private final StreamMetrics metrics;
+    private List<Node> successors = Collections.emptyList();
+
+    // Ring buffer of queued items and their arrival times, guarded by lock.
+    private final Object lock = new Object();
+    private final Object[] items;
+    private final long[] arrivalNanos;
+    private int head;
+    private int size;
+    private int maxSize;
+    private boolean stopped;
+    private long failures;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Emitter emitter = new Emitter() {
+        @Override
+        public void emit(Object item) {
+            for (Node next : successors) {
+                next.offer(Pipeline.retain(item));
+            }
+        }
+    };
+
+    Node(String name, Stage stage, int capacity, DropPolicy policy, Executor executor) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity of " + name + " must be at least 1");
+        }
+        this.name = name;
+        this.stage = stage;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.executor = executor;
+        this.metrics = new StreamMetrics(name);
+        this.items = new Object[capacity];
+        this.arrivalNanos = new long[capacity];
+    }
+
+    void setSuccessors(List<Node> nodes) {
+        successors = Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    /**
+     * Queues an item, taking over the caller's reference to it.
+     *
+     * @return false if the item was dropped
+     */
+    boolean offer(Object item) {
+        Object dropped = null;
+        boolean queued = false;
+        metrics.onFrameReceived();
+        synchronized (lock) {
+            if (policy == DropPolicy.BLOCK) {
+                while (!stopped && size == capacity) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            if (stopped) {
+                dropped = item;
+            } else if (size < capacity) {
+                push(item);
+                queued = true;
+            } else if (policy == DropPolicy.DROP_OLDEST) {
+                dropped = pop();
+                push(item);
+                queued = true;
+            } else {
+                dropped = item;
+            }
+        }
+        if (dropped != null) {
+            Pipeline.release(dropped);
+            metrics.onFrameDropped();
+        }
+        if (queued) {
+            schedule();
+        }
+        return queued;
+    }
+
+    // Called with lock held.
+    private void push(Object item) {
+        int tail = (head + size) % capacity;
+        items[tail] = item;
+        arrivalNanos[tail] = System.nanoTime();
+        size++;
+        maxSize = Math.max(maxSize, size);
+    }
+
+    // Called with lock held.
+    private Object pop() {
+        Object item = items[head];
+        items[head] = null;
+        head = (head + 1) % capacity;
+        size--;
+        lock.notifyAll();
+        return item;
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(drain);
+        } catch (RejectedExecutionException e) {
+            // The pipeline is shutting down, stop() releases what is left in the queue.
+            scheduled.set(false);
+        }
+    }
+
+    private void drain() {
+        for (int i = 0; i < MAX_BATCH; i++) {
+            Object item;
+            long arrival;
+            synchronized (lock) {
+                if (size == 0 || stopped) {
+                    break;
+                }
+                arrival = arrivalNanos[head];
+                item = pop();
+            }
+            try {
+                stage.process(item, emitter);
+                metrics.onFrameProcessed(System.nanoTime() - arrival);
+            } catch (Exception e) {
+                synchronized (lock) {
+                    failures++;
+                }
+                Log.w(TAG, name + " failed on an item", e);
+            } finally {
+                Pipeline.release(item);
+            }
+        }
+        scheduled.set(false);
+        boolean more;
+        synchronized (lock) {
+            more = size > 0 && !stopped;
+        }
+        if (more) {
+            schedule();
+        }
+    }
+
+    /** Refuses further items and releases those still queued. */
+    void stop() {
+        List<Object> left = new ArrayList<>();
+        synchronized (lock) {
+            stopped = true;
+            while (size > 0) {
+                left.add(pop());
+            }
+            lock.notifyAll();
+        }
+        for (Object item : left) {
+            Pipeline.release(item);
+            metrics.onFrameDropped();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public DropPolicy getDropPolicy() {
+        return policy;
+    }
+
+    public List<Node> getSuccessors() {
+        return successors;
+    }
+
+    public StreamMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getQueueSize() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /** The most items ever queued at once. */
+    public int getMaxQueueSize() {
+        synchronized (lock) {
+            return maxSize;
+        }
+    }
+
+    /** Number of items the stage threw on. */
+    public long getFailureCount() {
+        synchronized (lock) {
+            return failures;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s, queue %d/%d peak %d, %d failed", metrics,
+                getQueueSize(), capacity, getMaxQueueSize(), getFailureCount());
+    }
+}
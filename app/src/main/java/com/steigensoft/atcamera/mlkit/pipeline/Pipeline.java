@@ -0,0 +1,228 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import com.steigensoft.atcamera.mlkit.Frame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A graph of {@link Node}s through which frames flow from a source, e.g. the camera preview,
+ * through stages such as conversion, gating and detection to publishers and renderers. Every
+ * node has a bounded queue with its own {@link DropPolicy} and runs on its own thread unless it
+ * is given a shared executor, so a slow stage only ever drops or delays its own input.
+ *
+ * <p>Items enter through {@link #submit(String, Object)}. {@link Frame} items are reference
+ * counted along the way: each node queue holds one reference, and a frame is freed once the
+ * last node is done with it or drops it.
+ *
+ * <p>Graphs are put together with a {@link Builder}, or from a configuration file with
+ * {@link PipelineConfig}. Nothing here depends on the camera, so pipelines run on the JVM with
+ * stub sources and detectors.
+ */
+public class Pipeline {
+
+    private final Map<String, Node> nodes;
+    private final List<ExecutorService> ownedExecutors;
+
+    private Pipeline(Map<String, Node> nodes, List<ExecutorService> ownedExecutors) {
+        this.nodes = nodes;
+        this.ownedExecutors = ownedExecutors;
+    }
+
+    /**
+     * Hands an item to a node, typically the source, taking over the caller's reference to it.
+     *
+     * @return false if the node dropped it
+     * @throws IllegalArgumentException if there is no such node
+     */
+    public boolean submit(String nodeName, Object item) {
+        return getNode(nodeName).offer(item);
+    }
+
+    /** @throws IllegalArgumentException if there is no such node */
+    public Node getNode(String name) {
+        Node node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("No pipeline node " + name);
+        }
+        return node;
+    }
+
+    /** The nodes in the order they were added. */
+    public List<Node> getNodes() {
+        return new ArrayList<>(nodes.values());
+    }
+
+    /**
+     * Stops all nodes, releases the frames still queued and ends the threads of the nodes
+     * without a shared executor, waiting briefly for the stages running at the moment.
+     */
+    public void shutdown() {
+        for (Node node : nodes.values()) {
+            node.stop();
+        }
+        for (ExecutorService executor : ownedExecutors) {
+            executor.shutdown();
+        }
+        try {
+            for (ExecutorService executor : ownedExecutors) {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static Object retain(Object item) {
+        if (item instanceof Frame) {
+            ((Frame) item).retain();
+        }
+        return item;
+    }
+
+    static void release(Object item) {
+        if (item instanceof Frame) {
+            ((Frame) item).release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Node node : nodes.values()) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(node);
+        }
+        return sb.toString();
+    }
+
+    /** Adds nodes and the edges between them, then checks the graph and builds the pipeline. */
+    public static class Builder {
+
+        private static class NodeSpec {
+            final String name;
+            final Stage stage;
+            final int capacity;
+            final DropPolicy policy;
+            final Executor executor;
+            final List<String> next = new ArrayList<>();
+
+            NodeSpec(String name, Stage stage, int capacity, DropPolicy policy,
+                     Executor executor) {
+                this.name = name;
+                this.stage = stage;
+                this.capacity = capacity;
+                this.policy = policy;
+                this.executor = executor;
+            }
+        }
+
+        private final Map<String, NodeSpec> specs = new LinkedHashMap<>();
+
+        /** Adds a node running on a thread of its own. */
+        public Builder addNode(String name, Stage stage, int capacity, DropPolicy policy) {
+            return addNode(name, stage, capacity, policy, null);
+        }
+
+        /**
+         * Adds a node.
+         *
+         * @param capacity the most items queued in front of the stage
+         * @param executor runs the stage, or null for a thread of its own
+         */
+        public Builder addNode(String name, Stage stage, int capacity, DropPolicy policy,
+                               Executor executor) {
+            if (specs.containsKey(name)) {
+                throw new IllegalArgumentException("Duplicate pipeline node " + name);
+            }
+            specs.put(name, new NodeSpec(name, stage, capacity, policy, executor));
+            return this;
+        }
+
+        /** Makes everything the first node emits go to the second as well. */
+        public Builder connect(String from, String to) {
+            spec(from).next.add(to);
+            spec(to);
+            return this;
+        }
+
+        private NodeSpec spec(String name) {
+            NodeSpec spec = specs.get(name);
+            if (spec == null) {
+                throw new IllegalArgumentException("No pipeline node " + name);
+            }
+            return spec;
+        }
+
+        /** @throws IllegalArgumentException if the graph has a cycle */
+        public Pipeline build() {
+            checkAcyclic();
+            Map<String, Node> nodes = new LinkedHashMap<>();
+            List<ExecutorService> owned = new ArrayList<>();
+            for (NodeSpec spec : specs.values()) {
+                Executor executor = spec.executor;
+                if (executor == null) {
+                    ExecutorService own =
+                            Executors.newSingleThreadExecutor(threadFactory(spec.name));
+                    owned.add(own);
+                    executor = own;
+                }
+                nodes.put(spec.name,
+                        new Node(spec.name, spec.stage, spec.capacity, spec.policy, executor));
+            }
+            for (NodeSpec spec : specs.values()) {
+                List<Node> next = new ArrayList<>();
+                for (String name : spec.next) {
+                    next.add(nodes.get(name));
+                }
+                nodes.get(spec.name).setSuccessors(next);
+            }
+            return new Pipeline(Collections.unmodifiableMap(nodes), owned);
+        }
+
+        // A cycle would let a blocking node wait on itself and frames circle forever.
+        private void checkAcyclic() {
+            Set<String> done = new HashSet<>();
+            for (String name : specs.keySet()) {
+                visit(name, done, new HashSet<String>());
+            }
+        }
+
+        private void visit(String name, Set<String> done, Set<String> path) {
+            if (done.contains(name)) {
+                return;
+            }
+            if (!path.add(name)) {
+                throw new IllegalArgumentException("Pipeline has a cycle through " + name);
+            }
+            for (String next : specs.get(name).next) {
+                visit(next, done, path);
+            }
+            path.remove(name);
+            done.add(name);
+        }
+
+        private static ThreadFactory threadFactory(final String nodeName) {
+            return new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Pipeline-" + nodeName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * Assembles a {@link Pipeline} from a properties file, so that stages can be added, removed,
+ * reordered or resized without touching the code that feeds the pipeline:
+ *
+ * <pre>
+ * nodes=grab,detect,publish
+ * node.grab.stage=grab
+ * node.grab.capacity=2
+ * node.grab.policy=DROP_OLDEST
+ * node.grab.next=detect,publish
+ * node.detect.stage=faces
+ * node.detect.executor=background
+ * node.publish.stage=mjpeg
+ * node.publish.port=8080
+ * </pre>
+ *
+ * <p>{@code stage} names the {@link StageFactory} creating the node's stage and is required.
+ * {@code capacity} defaults to 1 and {@code policy} to {@link DropPolicy#DROP_OLDEST}.
+ * {@code executor} names a shared executor; without it the node gets a thread of its own.
+ * {@code next} lists the nodes the stage emits to. All other keys of a node, such as
+ * {@code port} above, are handed to its factory without the {@code node.<name>.} prefix.
+ */
+public final class PipelineConfig {
+
+    /** Creates the stage of a node from its settings. */
+    public interface StageFactory {
+        Stage create(String nodeName, Properties settings);
+    }
+
+    private static final String NODES = "nodes";
+    private static final String STAGE = "stage";
+    private static final String CAPACITY = "capacity";
+    private static final String POLICY = "policy";
+    private static final String EXECUTOR = "executor";
+    private static final String NEXT = "next";
+
+    private PipelineConfig() {
+    }
+
+    /** Reads a configuration in properties format. */
+    public static Properties read(InputStream in) throws IOException {
+        Properties config = new Properties();
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        return config;
+    }
+
+    /**
+     * Creates the nodes and edges of a configuration. The builder can be extended further
+     * before it is built.
+     *
+     * @param factories the stage factories by the names used in {@code node.<name>.stage}
+     * @param executors the shared executors by the names used in {@code node.<name>.executor}
+     * @throws IllegalArgumentException naming the offending key if the configuration is invalid
+     */
+    public static Pipeline.Builder load(Properties config, Map<String, StageFactory> factories,
+                                        Map<String, Executor> executors) {
+        String[] names = list(config.getProperty(NODES));
+        if (names.length == 0) {
+            throw new IllegalArgumentException("No pipeline nodes in " + NODES);
+        }
+        Pipeline.Builder builder = new Pipeline.Builder();
+        for (String name : names) {
+            String prefix = "node." + name + ".";
+
+            String stageName = config.getProperty(prefix + STAGE);
+            if (stageName == null) {
+                throw new IllegalArgumentException("Missing " + prefix + STAGE);
+            }
+            StageFactory factory = factories.get(stageName.trim());
+            if (factory == null) {
+                throw new IllegalArgumentException(
+                        "Unknown stage " + stageName + " in " + prefix + STAGE);
+            }
+
+            int capacity = 1;
+            String value = config.getProperty(prefix + CAPACITY);
+            if (value != null) {
+                try {
+                    capacity = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid " + prefix + CAPACITY + ": " + value);
+                }
+                if (capacity < 1) {
+                    throw new IllegalArgumentException(
+                            "Invalid " + prefix + CAPACITY + ": " + value);
+                }
+            }
+
+            DropPolicy policy = DropPolicy.DROP_OLDEST;
+            value = config.getProperty(prefix + POLICY);
+            if (value != null) {
+                try {
+                    policy = DropPolicy.valueOf(value.trim().toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid " + prefix + POLICY + ": " + value);
+                }
+            }
+
+            Executor executor = null;
+            value = config.getProperty(prefix + EXECUTOR);
+            if (value != null) {
+                executor = executors.get(value.trim());
+                if (executor == null) {
+                    throw new IllegalArgumentException(
+                            "Unknown executor " + value + " in " + prefix + EXECUTOR);
+                }
+            }
+
+            Stage stage = factory.create(name, settings(config, prefix));
+            builder.addNode(name, stage, capacity, policy, executor);
+        }
+        for (String name : names) {
+            String key = "node." + name + "." + NEXT;
+            for (String next : list(config.getProperty(key))) {
+                try {
+                    builder.connect(name, next);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown node " + next + " in " + key);
+                }
+            }
+        }
+        return builder;
+    }
+
+    // The keys of one node other than those read here, without the prefix.
+    private static Properties settings(Properties config, String prefix) {
+        Properties settings = new Properties();
+        for (String key : config.stringPropertyNames()) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            String setting = key.substring(prefix.length());
+            if (!setting.equals(STAGE) && !setting.equals(CAPACITY) && !setting.equals(POLICY)
+                    && !setting.equals(EXECUTOR) && !setting.equals(NEXT)) {
+                settings.setProperty(setting, config.getProperty(key).trim());
+            }
+        }
+        return settings;
+    }
+
+    private static String[] list(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return new String[0];
+        }
+        String[] items = value.split(",");
+        for (int i = 0; i < items.length; i++) {
+            items[i] = items[i].trim();
+        }
+        return items;
+    }
+}
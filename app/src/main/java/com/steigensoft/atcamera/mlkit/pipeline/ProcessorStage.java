@@ -0,0 +1,101 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import android.util.Log;
+
+import com.google.firebase.ml.common.FirebaseMLException;
+import com.steigensoft.atcamera.mlkit.Frame;
+import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.VisionImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the {@link Frame}s it receives through a {@link VisionImageProcessor}, whichever of
+ * bitmap, NV21 buffer or Image they carry, then emits them on, e.g. to a publisher. Other items
+ * are passed on untouched.
+ *
+ * <p>{@link com.steigensoft.atcamera.mlkit.VisionProcessorBase} detects asynchronously, so the
+ * stage waits for the inference it started before it returns and the frame is released. A frame
+ * whose inference times out is kept until the processor is next seen idle, so an Image or pooled
+ * buffer is never freed while the detector still reads it.
+ *
+ * <p>Sources that schedule frames themselves, like the detector pool, use {@link #detect(Frame)}
+ * directly. Calls must not overlap.
+ */
+public class ProcessorStage implements Stage {
+    private static final String TAG = ProcessorStage.class.getSimpleName();
+
+    /** Longest a call waits for one inference before giving up on the frame. */
+    public static final long DEFAULT_INFERENCE_TIMEOUT_MILLIS = 2000;
+
+    private final VisionImageProcessor processor;
+    private final GraphicOverlay overlay;
+    private final long inferenceTimeoutMillis;
+    // Frames of timed out inferences, each holding a reference until the processor is idle.
+    private final List<Frame> lingering = new ArrayList<>();
+
+    /** @param overlay the overlay results are drawn on, or null */
+    public ProcessorStage(VisionImageProcessor processor, GraphicOverlay overlay) {
+        this(processor, overlay, DEFAULT_INFERENCE_TIMEOUT_MILLIS);
+    }
+
+    /** @param inferenceTimeoutMillis longest to wait for the inference of one frame */
+    public ProcessorStage(VisionImageProcessor processor, GraphicOverlay overlay,
+                          long inferenceTimeoutMillis) {
+        this.processor = processor;
+        this.overlay = overlay;
+        this.inferenceTimeoutMillis = inferenceTimeoutMillis;
+    }
+
+    @Override
+    public void process(Object item, Emitter out) throws Exception {
+        if (item instanceof Frame) {
+            detect((Frame) item);
+        }
+        out.emit(item);
+    }
+
+    /**
+     * Runs the frame through the processor and waits for the inference, if it started one. The
+     * caller holds a reference to the frame for the duration of the call.
+     *
+     * @return false if the inference timed out; the stage then keeps a reference of its own
+     */
+    public boolean detect(Frame frame) throws FirebaseMLException, InterruptedException {
+        releaseLingering(0);
+        if (frame.getBitmap() != null) {
+            processor.process(frame.getBitmap(), overlay);
+        } else if (frame.getBuffer() != null) {
+            processor.process(frame.getBuffer(), frame.getMetadata(), overlay);
+        } else if (frame.getImage() != null) {
+            processor.process(frame.getImage(), frame.getMetadata().getRotation(), overlay);
+        }
+        if (processor.awaitIdle(inferenceTimeoutMillis)) {
+            return true;
+        }
+        Log.w(TAG, "Inference timed out after " + inferenceTimeoutMillis + " ms");
+        lingering.add(frame.retain());
+        return false;
+    }
+
+    /**
+     * Releases the frames kept for timed out inferences once the processor is idle, e.g. before
+     * the source they came from is stopped.
+     *
+     * @return whether none are left
+     */
+    public boolean releaseLingering(long timeoutMillis) throws InterruptedException {
+        if (lingering.isEmpty()) {
+            return true;
+        }
+        if (!processor.awaitIdle(timeoutMillis)) {
+            return false;
+        }
+        for (Frame frame : lingering) {
+            frame.release();
+        }
+        lingering.clear();
+        return true;
+    }
+}
@@ -0,0 +1,21 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+/**
+ * The work of one {@link Node} of a {@link Pipeline}: converting, gating, detecting, publishing
+ * and so on. A node runs its stage on one item at a time, so stages may keep state without
+ * locking.
+ */
+public interface Stage {
+
+    /**
+     * Handles one item and passes whatever should go on through the emitter: the item itself,
+     * something derived from it, or nothing.
+     *
+     * <p>The node holds a reference to a {@link com.steigensoft.atcamera.mlkit.Frame} item for
+     * the duration of the call and releases it afterwards. Emitting it retains it for the
+     * successors. Frames the stage creates itself are its own to release after emitting them.
+     *
+     * @throws Exception on failure; the item is then dropped and counted as failed
+     */
+    void process(Object item, Emitter out) throws Exception;
+}
@@ -0,0 +1,102 @@
+package com.steigensoft.atcamera.mlkit.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.SystemClock;
+
+import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.IpCameraSource;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Draws the overlay graphics onto camera frames and publishes them on a
+ * {@link MjpegPreviewServer}. Frames are encoded at most {@code maxFps} times a second, and not
+ * at all while nobody is watching. The composite bitmap and the JPEG output buffer are reused.
+ *
+ * <p>Can be registered directly as an {@link IpCameraSource.DecodedFrameListener}, or fed with
+ * bitmaps from any other source.
+ */
+public class AnnotatedFrameEncoder implements IpCameraSource.DecodedFrameListener {
+
+    private final MjpegPreviewServer server;
+    private final GraphicOverlay overlay;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final JpegOutputStream jpeg = new JpegOutputStream();
+    private volatile long minIntervalMillis;
+    private volatile int quality;
+    private long lastEncodedMillis;
+    private Bitmap composite;
+    private Canvas canvas;
+    private long framesEncoded;
+
+    /**
+     * @param overlay graphics to draw on the frames, may be null for the plain feed
+     * @param maxFps how many frames per second to encode at most
+     * @param quality JPEG quality from 0 to 100
+     */
+    public AnnotatedFrameEncoder(MjpegPreviewServer server, GraphicOverlay overlay, double maxFps,
+                                 int quality) {
+        this.server = server;
+        this.overlay = overlay;
+        setMaxFps(maxFps);
+        setQuality(quality);
+    }
+
+    public void setMaxFps(double maxFps) {
+        minIntervalMillis = maxFps > 0 ? (long) (1000 / maxFps) : 0;
+    }
+
+    public void setQuality(int quality) {
+        this.quality = Math.max(0, Math.min(100, quality));
+    }
+
+    @Override
+    public void onDecodedFrame(Bitmap frame, long sequence) {
+        onFrame(frame);
+    }
+
+    /** Annotates, encodes and broadcasts the frame, unless it is too soon or nobody is watching. */
+    public synchronized void onFrame(Bitmap frame) {
+        long now = SystemClock.uptimeMillis();
+        if (!server.hasClients() || now - lastEncodedMillis < minIntervalMillis) {
+            return;
+        }
+        lastEncodedMillis = now;
+
+        Bitmap annotated = frame;
+        if (overlay != null) {
+            if (composite == null || composite.getWidth() != frame.getWidth()
+                    || composite.getHeight() != frame.getHeight()) {
+                composite = Bitmap.createBitmap(frame.getWidth(), frame.getHeight(),
+                        Bitmap.Config.ARGB_8888);
+                canvas = new Canvas(composite);
+            }
+            canvas.drawBitmap(frame, 0, 0, paint);
+            overlay.drawGraphics(canvas);
+            annotated = composite;
+        }
+
+        jpeg.reset();
+        if (annotated.compress(Bitmap.CompressFormat.JPEG, quality, jpeg)) {
+            framesEncoded++;
+            server.broadcast(jpeg.buffer(), 0, jpeg.size());
+        }
+    }
+
+    public synchronized long getFramesEncoded() {
+        return framesEncoded;
+    }
+
+    /** Lets the encoded bytes be read without the copy toByteArray() makes. */
+    private static class JpegOutputStream extends ByteArrayOutputStream {
+        JpegOutputStream() {
+            super(256 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
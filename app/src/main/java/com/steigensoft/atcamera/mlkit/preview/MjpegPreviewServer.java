@@ -0,0 +1,282 @@
+package com.steigensoft.atcamera.mlkit.preview;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A small HTTP server streaming JPEG frames to browsers as multipart/x-mixed-replace. Every frame
+ * is wrapped in its part header once and the same bytes are written to all clients from a single
+ * non-blocking selector thread. A client still busy with an earlier frame skips the new one, so a
+ * slow connection costs itself frames but never holds up the others or the caller.
+ */
+public class MjpegPreviewServer implements Runnable {
+    private static final String TAG = MjpegPreviewServer.class.getSimpleName();
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String BOUNDARY = "atcameraframe";
+    private static final int MAX_REQUEST_BYTES = 8 * 1024;
+    private static final byte[] RESPONSE_HEADER = ("HTTP/1.0 200 OK\r\n"
+            + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+            + "Cache-Control: no-cache, no-store\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Connection: close\r\n\r\n").getBytes(ASCII);
+
+    /** One connected browser. Selector thread only. */
+    private static class Client {
+        final SocketChannel channel;
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        boolean requestComplete;
+        ByteBuffer header;
+        ByteBuffer frame;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isWriting() {
+            return (header != null && header.hasRemaining()) || (frame != null && frame.hasRemaining());
+        }
+    }
+
+    private final int requestedPort;
+    private final List<Client> clients = new ArrayList<>();
+    // The newest frame not yet handed to the clients.
+    private final AtomicReference<ByteBuffer> nextFrame = new AtomicReference<>();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int clientCount;
+    private volatile long framesSent;
+    private volatile long framesSkipped;
+
+    /** @param port the port to listen on, 0 for any free one (see {@link #getPort()}) */
+    public MjpegPreviewServer(int port) {
+        this.requestedPort = port;
+    }
+
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(requestedPort));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        thread = new Thread(this, "MjpegPreviewServer");
+        thread.start();
+        Log.d(TAG, "Serving annotated preview on port " + getPort());
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t == null) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** The port the server listens on. */
+    public int getPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    /** Whether anyone is watching, so callers can skip encoding altogether. */
+    public boolean hasClients() {
+        return clientCount > 0;
+    }
+
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /** Frames written to clients, counting each client separately. */
+    public long getFramesSent() {
+        return framesSent;
+    }
+
+    /** Frames a client skipped because it was still receiving an earlier one. */
+    public long getFramesSkipped() {
+        return framesSkipped;
+    }
+
+    /**
+     * Sends a JPEG to every client. The bytes are copied once; the call never blocks on the
+     * network. If the selector thread has not picked up the previous frame yet, it is replaced.
+     */
+    public void broadcast(byte[] jpeg, int offset, int length) {
+        if (!running) {
+            return;
+        }
+        byte[] header = String.format(Locale.US,
+                "--%s\r\nContent-Type: image/jpeg\r\nContent-Length: %d\r\n\r\n", BOUNDARY, length)
+                .getBytes(ASCII);
+        ByteBuffer part = ByteBuffer.allocate(header.length + length + 2);
+        part.put(header).put(jpeg, offset, length).put((byte) '\r').put((byte) '\n');
+        part.flip();
+        nextFrame.set(part);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "Selector failed", e);
+                break;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Client client = (Client) key.attachment();
+                        if (key.isReadable()) {
+                            read(key, client);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key, client);
+                        }
+                    }
+                } catch (IOException e) {
+                    disconnect(key);
+                }
+            }
+            ByteBuffer frame = nextFrame.getAndSet(null);
+            if (frame != null) {
+                dispatch(frame);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // Shutting down anyway.
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Failed to close selector", e);
+        }
+        clients.clear();
+        clientCount = 0;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Client client = new Client(channel);
+        channel.register(selector, SelectionKey.OP_READ, client);
+    }
+
+    /** Waits for the end of the request headers; the path and headers are not looked at. */
+    private void read(SelectionKey key, Client client) throws IOException {
+        if (client.requestComplete) {
+            // Browsers send nothing more, but notice when they hang up.
+            ByteBuffer discard = ByteBuffer.allocate(256);
+            if (client.channel.read(discard) < 0) {
+                throw new IOException("Client closed the connection");
+            }
+            return;
+        }
+        if (client.channel.read(client.request) < 0 || !client.request.hasRemaining()) {
+            throw new IOException("Client closed the connection or sent too much");
+        }
+        ByteBuffer request = client.request;
+        int end = request.position();
+        for (int i = 3; i < end; i++) {
+            if (request.get(i - 3) == '\r' && request.get(i - 2) == '\n'
+                    && request.get(i - 1) == '\r' && request.get(i) == '\n') {
+                client.requestComplete = true;
+                client.header = ByteBuffer.wrap(RESPONSE_HEADER);
+                clients.add(client);
+                clientCount = clients.size();
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private void dispatch(ByteBuffer frame) {
+        for (Client client : clients) {
+            if (client.isWriting()) {
+                framesSkipped++;
+                continue;
+            }
+            client.frame = frame.duplicate();
+            SelectionKey key = client.channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void write(SelectionKey key, Client client) throws IOException {
+        if (client.header != null && client.header.hasRemaining()) {
+            client.channel.write(client.header);
+            if (client.header.hasRemaining()) {
+                return;
+            }
+        }
+        if (client.frame != null) {
+            client.channel.write(client.frame);
+            if (client.frame.hasRemaining()) {
+                return;
+            }
+            client.frame = null;
+            framesSent++;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void disconnect(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Client) {
+            clients.remove(attachment);
+            clientCount = clients.size();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone.
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.steigensoft.atcamera.mlkit.publish;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+import com.steigensoft.atcamera.mlkit.eventlog.DetectionEventCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Forwards detection results to a message endpoint over TCP in batches instead of one message
+ * per result. Register it as a {@link DetectionListener} with any number of processors.
+ *
+ * <p>Results with detections are encoded with {@link DetectionEventCodec} into the open batch,
+ * which is sealed once it holds {@code maxBatchEvents} events, would exceed
+ * {@code maxBatchBytes}, or its first event is {@code maxBatchDelayMillis} old. A sender thread
+ * writes sealed batches in order and holds on to a batch until it was written, reconnecting with
+ * backoff. At most {@code maxQueuedBatches} sealed batches wait for it; beyond that the oldest
+ * are dropped, so a missing endpoint costs a bounded amount of memory and the freshest results
+ * go out first once it returns. All batch buffers are allocated up front.
+ *
+ * <p>On the wire a batch starts with the number of bytes that follow it and the number of events,
+ * then has each event as its length and its encoding. Lengths and counts are big-endian ints.
+ */
+public class DetectionPublisher implements DetectionListener, Runnable {
+    private static final String TAG = DetectionPublisher.class.getSimpleName();
+    private static final int BATCH_HEADER_SIZE = 8;
+    private static final int EVENT_HEADER_SIZE = 4;
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final double LATENCY_SMOOTHING = 0.1;
+
+    private final InetSocketAddress endpoint;
+    private final int maxBatchEvents;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayMillis;
+    private final int maxQueuedBatches;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Batch> free = new ArrayDeque<>();
+    private final ArrayDeque<Batch> queue = new ArrayDeque<>();
+    private Batch open;
+    private Thread thread;
+    private boolean running;
+
+    // Sender thread only.
+    private SocketChannel channel;
+    private long backoffMillis = INITIAL_BACKOFF_MILLIS;
+
+    private long batchesSent;
+    private long eventsSent;
+    private long eventsDropped;
+    private long batchesDropped;
+    private double averageBatchEvents;
+    private double averageLatencyMillis;
+    private double maxLatencyMillis;
+
+    /** One batch buffer and what is known about its contents. */
+    private static final class Batch {
+        final ByteBuffer buffer;
+        int events;
+        long firstEventMillis;
+
+        Batch(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        void clear() {
+            buffer.clear();
+            buffer.position(BATCH_HEADER_SIZE);
+            events = 0;
+        }
+    }
+
+    /**
+     * @param maxBatchEvents events after which a batch is sent
+     * @param maxBatchBytes bytes after which a batch is sent
+     * @param maxBatchDelayMillis how long the first event of a batch waits at most
+     * @param maxQueuedBatches sealed batches kept while the endpoint is slow or away
+     */
+    public DetectionPublisher(InetSocketAddress endpoint, int maxBatchEvents, int maxBatchBytes,
+                              long maxBatchDelayMillis, int maxQueuedBatches) {
+        this.endpoint = endpoint;
+        this.maxBatchEvents = Math.max(1, maxBatchEvents);
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+        this.maxQueuedBatches = Math.max(1, maxQueuedBatches);
+        // Room for a batch that is just under the limit plus one more event.
+        int capacity = BATCH_HEADER_SIZE + maxBatchBytes + EVENT_HEADER_SIZE
+                + DetectionEventCodec.MAX_ENCODED_SIZE;
+        // The queued batches, the one being sent and the one being filled.
+        for (int i = 0; i < this.maxQueuedBatches + 2; i++) {
+            free.add(new Batch(capacity));
+        }
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (thread != null) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this, "DetectionPublisher");
+        }
+        thread.start();
+    }
+
+    /** Stops sending. Batches not sent yet are discarded. */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            t = thread;
+            thread = null;
+            running = false;
+            lock.notifyAll();
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onDetections(@NonNull DetectionEvent event) {
+        if (event.getCount() == 0) {
+            return;
+        }
+        int size = DetectionEventCodec.encodedSize(event);
+        synchronized (lock) {
+            if (open != null && open.events > 0
+                    && open.buffer.position() + EVENT_HEADER_SIZE + size
+                    > BATCH_HEADER_SIZE + maxBatchBytes) {
+                seal();
+            }
+            if (open == null) {
+                // Never empty: the queue is capped below the number of batches.
+                open = free.pollFirst();
+                open.clear();
+                open.firstEventMillis = System.currentTimeMillis();
+                // The sender sleeps until there is a batch to time out.
+                lock.notifyAll();
+            }
+            ByteBuffer buffer = open.buffer;
+            buffer.putInt(size);
+            DetectionEventCodec.encode(event, buffer);
+            open.events++;
+            if (open.events >= maxBatchEvents) {
+                seal();
+            }
+        }
+    }
+
+    private void seal() {
+        Batch batch = open;
+        open = null;
+        batch.buffer.putInt(0, batch.buffer.position() - 4);
+        batch.buffer.putInt(4, batch.events);
+        batch.buffer.flip();
+        queue.addLast(batch);
+        while (queue.size() > maxQueuedBatches) {
+            Batch dropped = queue.pollFirst();
+            batchesDropped++;
+            eventsDropped += dropped.events;
+            free.addLast(dropped);
+        }
+        lock.notifyAll();
+    }
+
+    @Override
+    public void run() {
+        Batch batch = null;
+        while (true) {
+            synchronized (lock) {
+                if (batch == null) {
+                    batch = nextBatch();
+                }
+                if (!running) {
+                    break;
+                }
+            }
+            if (batch == null) {
+                continue;
+            }
+            if (send(batch)) {
+                onSent(batch);
+                batch = null;
+            } else if (!sleep(nextBackoffMillis())) {
+                break;
+            }
+        }
+        closeChannel();
+    }
+
+    /** Waits for a sealed batch, sealing the open one once it is old enough. Holds the lock. */
+    private Batch nextBatch() {
+        while (running && queue.isEmpty()) {
+            long waitMillis = 0;
+            if (open != null) {
+                long age = System.currentTimeMillis() - open.firstEventMillis;
+                if (age >= maxBatchDelayMillis) {
+                    seal();
+                    break;
+                }
+                waitMillis = maxBatchDelayMillis - age;
+            }
+            try {
+                lock.wait(waitMillis);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+        }
+        return queue.pollFirst();
+    }
+
+    private boolean send(Batch batch) {
+        ByteBuffer data = batch.buffer.duplicate();
+        try {
+            if (channel == null) {
+                channel = SocketChannel.open(endpoint);
+                channel.socket().setTcpNoDelay(true);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            backoffMillis = INITIAL_BACKOFF_MILLIS;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to publish to " + endpoint + ": " + e.getMessage());
+            closeChannel();
+            return false;
+        }
+    }
+
+    private void onSent(Batch batch) {
+        double latencyMillis = System.currentTimeMillis() - batch.firstEventMillis;
+        synchronized (lock) {
+            batchesSent++;
+            eventsSent += batch.events;
+            if (batchesSent == 1) {
+                averageBatchEvents = batch.events;
+                averageLatencyMillis = latencyMillis;
+            } else {
+                averageBatchEvents += LATENCY_SMOOTHING * (batch.events - averageBatchEvents);
+                averageLatencyMillis += LATENCY_SMOOTHING * (latencyMillis - averageLatencyMillis);
+            }
+            maxLatencyMillis = Math.max(maxLatencyMillis, latencyMillis);
+            free.addLast(batch);
+        }
+    }
+
+    private long nextBackoffMillis() {
+        long delay = backoffMillis;
+        backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        return delay;
+    }
+
+    /** Returns false if the publisher was stopped meanwhile. */
+    private boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Reconnecting anyway.
+            }
+            channel = null;
+        }
+    }
+
+    public long getBatchesSent() {
+        synchronized (lock) {
+            return batchesSent;
+        }
+    }
+
+    public long getEventsSent() {
+        synchronized (lock) {
+            return eventsSent;
+        }
+    }
+
+    /** Events dropped because the endpoint fell too far behind. */
+    public long getEventsDropped() {
+        synchronized (lock) {
+            return eventsDropped;
+        }
+    }
+
+    public long getBatchesDropped() {
+        synchronized (lock) {
+            return batchesDropped;
+        }
+    }
+
+    /** Moving average of the events per sent batch. */
+    public double getAverageBatchEvents() {
+        synchronized (lock) {
+            return averageBatchEvents;
+        }
+    }
+
+    /** Moving average of the time from the first event of a batch until it was sent. */
+    public double getAverageLatencyMillis() {
+        synchronized (lock) {
+            return averageLatencyMillis;
+        }
+    }
+
+    public double getMaxLatencyMillis() {
+        synchronized (lock) {
+            return maxLatencyMillis;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return String.format(Locale.US,
+                    "%s: sent %d batches (avg %.1f events), %d events, dropped %d, latency avg %.1f ms max %.1f ms",
+                    endpoint, batchesSent, averageBatchEvents, eventsSent, eventsDropped,
+                    averageLatencyMillis, maxLatencyMillis);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.steigensoft.atcamera.mlkit.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Persists the frames of one clip at a time, called from the recorder's writer thread only. */
+public interface ClipWriter {
+
+    /** Starts a new clip whose first frame was taken at the given time. */
+    void beginClip(long startMillis) throws IOException;
+
+    /** Appends one encoded frame. The buffer is reused once this returns. */
+    void writeFrame(ByteBuffer frame, long timestampMillis) throws IOException;
+
+    /** Finishes the current clip. */
+    void endClip() throws IOException;
+}
@@ -0,0 +1,253 @@
+package com.steigensoft.atcamera.mlkit.recording;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+import com.steigensoft.atcamera.mlkit.IpCameraSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last seconds of encoded frames in a {@link FrameRingBuffer} and saves a clip around
+ * every detection: the pre-roll leading up to it, and everything until {@code postRollMillis}
+ * after the last detection. Detections during a clip extend it.
+ *
+ * <p>Frames are only ever copied into the ring on the caller's thread. A writer thread follows
+ * the ring and hands clip frames to the {@link ClipWriter}, so a slow disk never holds up the
+ * stream and memory stays at the size of the ring whatever the event rate. A writer that falls
+ * behind by more than the ring loses the oldest unwritten frames, counted in
+ * {@link #getFramesLost()}; the ring should hold several seconds more than the pre-roll.
+ *
+ * <p>Frame and detection timestamps are both {@link System#currentTimeMillis()}, as used by
+ * {@link DetectionEvent}.
+ */
+public class EventClipRecorder implements DetectionListener, IpCameraSource.EncodedFrameListener,
+        Runnable {
+    private static final String TAG = EventClipRecorder.class.getSimpleName();
+
+    private final FrameRingBuffer ring;
+    private final ClipWriter writer;
+    private final long preRollMillis;
+    private final long postRollMillis;
+    private final Object lock = new Object();
+    // Copy of the frame being written, grown to the largest frame seen. Writer thread only.
+    private ByteBuffer frame = ByteBuffer.allocate(0);
+
+    private Thread thread;
+    private boolean running;
+    private boolean recording;
+    private long nextSequence;
+    private long lastWrittenSequence = -1;
+    private long lastDetectionMillis;
+
+    private long clipsRecorded;
+    private long framesWritten;
+    private long framesLost;
+
+    /**
+     * @param preRollMillis how much footage from before a detection each clip starts with
+     * @param postRollMillis how long a clip continues after the last detection
+     */
+    public EventClipRecorder(FrameRingBuffer ring, ClipWriter writer, long preRollMillis,
+                             long postRollMillis) {
+        this.ring = ring;
+        this.writer = writer;
+        this.preRollMillis = preRollMillis;
+        this.postRollMillis = postRollMillis;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (thread != null) {
+                return;
+            }
+            running = true;
+            thread = new Thread(this, "EventClipRecorder");
+        }
+        thread.start();
+    }
+
+    /** Stops the writer thread, finishing the clip in progress with what has been written. */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            t = thread;
+            thread = null;
+            running = false;
+            lock.notifyAll();
+        }
+        if (t == null) {
+            return;
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(ByteBuffer jpeg, long timestampMillis) {
+        ring.append(jpeg, timestampMillis);
+        synchronized (lock) {
+            if (recording) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void onDetections(@NonNull DetectionEvent event) {
+        if (event.getCount() == 0) {
+            return;
+        }
+        synchronized (lock) {
+            lastDetectionMillis = Math.max(lastDetectionMillis, event.getTimestampMillis());
+            if (!recording) {
+                recording = true;
+                // The pre-roll may reach back into the previous clip; don't save frames twice.
+                nextSequence = Math.max(lastWrittenSequence + 1,
+                        ring.findSequence(event.getTimestampMillis() - preRollMillis));
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Whether a clip is being recorded. */
+    public boolean isRecording() {
+        synchronized (lock) {
+            return recording;
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean clipOpen = false;
+        while (true) {
+            long sequence;
+            synchronized (lock) {
+                while (running && !(recording
+                        && (clipFinished() || nextSequence < ring.getNextSequence()))) {
+                    waitForWork();
+                }
+                if (!running) {
+                    break;
+                }
+                if (clipFinished()) {
+                    recording = false;
+                    sequence = -1;
+                } else {
+                    sequence = nextSequence++;
+                }
+            }
+            if (sequence < 0) {
+                if (clipOpen) {
+                    endClip();
+                    clipOpen = false;
+                }
+                continue;
+            }
+            clipOpen |= writeFrame(sequence, clipOpen);
+        }
+        if (clipOpen) {
+            endClip();
+        }
+        synchronized (lock) {
+            recording = false;
+        }
+    }
+
+    /** Writes one frame from the ring, opening the clip if needed. Returns whether it is open. */
+    private boolean writeFrame(long sequence, boolean clipOpen) {
+        int length = ring.getLength(sequence);
+        if (length > 0 && frame.capacity() < length) {
+            frame = ByteBuffer.allocate(length);
+        }
+        long timestampMillis = ring.getTimestamp(sequence);
+        if (length < 0 || ring.read(sequence, frame) < 0) {
+            // Lapped by the camera, go on with the oldest frame still there.
+            synchronized (lock) {
+                long oldest = ring.getOldestSequence();
+                framesLost += Math.max(1, oldest - sequence);
+                nextSequence = Math.max(nextSequence, oldest);
+            }
+            return clipOpen;
+        }
+        try {
+            if (!clipOpen) {
+                writer.beginClip(timestampMillis);
+                clipOpen = true;
+            }
+            writer.writeFrame(frame, timestampMillis);
+            synchronized (lock) {
+                framesWritten++;
+                lastWrittenSequence = sequence;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write clip frame", e);
+            synchronized (lock) {
+                framesLost++;
+            }
+        }
+        return clipOpen;
+    }
+
+    /**
+     * True once the next frame is past the post-roll. Should the stream stop instead, the clip
+     * ends another post-roll later by the clock.
+     */
+    private boolean clipFinished() {
+        long endMillis = lastDetectionMillis + postRollMillis;
+        if (nextSequence < ring.getNextSequence()) {
+            return ring.getTimestamp(nextSequence) > endMillis;
+        }
+        return System.currentTimeMillis() > endMillis + postRollMillis;
+    }
+
+    private void waitForWork() {
+        try {
+            if (recording) {
+                // Wake up to close the clip should the stream stop.
+                lock.wait(Math.max(1, postRollMillis));
+            } else {
+                lock.wait();
+            }
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+    private void endClip() {
+        try {
+            writer.endClip();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to finish clip", e);
+        }
+        synchronized (lock) {
+            clipsRecorded++;
+        }
+    }
+
+    public long getClipsRecorded() {
+        synchronized (lock) {
+            return clipsRecorded;
+        }
+    }
+
+    public long getFramesWritten() {
+        synchronized (lock) {
+            return framesWritten;
+        }
+    }
+
+    /** Clip frames overwritten before the writer got to them, or that failed to write. */
+    public long getFramesLost() {
+        synchronized (lock) {
+            return framesLost;
+        }
+    }
+}
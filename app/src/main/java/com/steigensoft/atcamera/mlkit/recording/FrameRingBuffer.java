@@ -0,0 +1,202 @@
+package com.steigensoft.atcamera.mlkit.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed size ring of encoded frames. Frame bytes live in one preallocated buffer, either direct
+ * memory or a memory-mapped file, and the index is a set of fixed arrays, so memory use does not
+ * change after construction. When a frame does not fit, the oldest frames are overwritten.
+ *
+ * <p>Every frame gets a sequence number. Readers keep the number of the next frame they want and
+ * find out from {@link #read} when the writer has lapped them.
+ */
+public class FrameRingBuffer {
+
+    private final ByteBuffer storage;
+    private final int capacity;
+    private final int maxFrames;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] timestamps;
+
+    private long oldestSequence;
+    private long nextSequence;
+    private int writePosition;
+    private long lastTimestampMillis = Long.MIN_VALUE;
+    private long framesOverwritten;
+
+    /**
+     * @param storage holds the frame bytes, from position 0 up to its capacity
+     * @param maxFrames most frames indexed at once, whatever their size
+     */
+    public FrameRingBuffer(ByteBuffer storage, int maxFrames) {
+        if (maxFrames <= 0) {
+            throw new IllegalArgumentException("maxFrames must be positive");
+        }
+        this.storage = storage;
+        this.capacity = storage.capacity();
+        this.maxFrames = maxFrames;
+        offsets = new int[maxFrames];
+        lengths = new int[maxFrames];
+        timestamps = new long[maxFrames];
+    }
+
+    /** A ring held in direct memory, outside the Java heap. */
+    public static FrameRingBuffer allocateDirect(int bytes, int maxFrames) {
+        return new FrameRingBuffer(ByteBuffer.allocateDirect(bytes), maxFrames);
+    }
+
+    /**
+     * A ring held in a memory-mapped file, which the kernel can page out instead of the app
+     * being killed for it. The file is created or resized as needed.
+     */
+    public static FrameRingBuffer map(File file, int bytes, int maxFrames) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(bytes);
+            // The mapping stays valid after the channel is closed.
+            return new FrameRingBuffer(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes),
+                    maxFrames);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of the frame into the ring, overwriting the oldest frames as
+     * needed. The frame's position is not changed.
+     *
+     * @return the frame's sequence number, or -1 if it is empty or larger than the whole ring
+     */
+    public synchronized long append(ByteBuffer frame, long timestampMillis) {
+        int length = frame.remaining();
+        if (length == 0 || length > capacity) {
+            return -1;
+        }
+        int position = writePosition;
+        if (position + length > capacity) {
+            // Wrap to the start. Frames stored past the write position are the oldest ones and
+            // the gap they leave at the end would otherwise be left between newer frames.
+            while (size() > 0 && offsets[slot(oldestSequence)] >= writePosition) {
+                evictOldest();
+            }
+            position = 0;
+        }
+        while (size() > 0 && (size() == maxFrames || overlapsOldest(position, length))) {
+            evictOldest();
+        }
+
+        ByteBuffer target = storage.duplicate();
+        target.clear();
+        target.position(position);
+        target.put(frame.duplicate());
+
+        // Keep timestamps in order even if the clock steps back, findSequence() relies on it.
+        lastTimestampMillis = Math.max(lastTimestampMillis, timestampMillis);
+        long sequence = nextSequence++;
+        int slot = slot(sequence);
+        offsets[slot] = position;
+        lengths[slot] = length;
+        timestamps[slot] = lastTimestampMillis;
+        writePosition = position + length;
+        return sequence;
+    }
+
+    private boolean overlapsOldest(int position, int length) {
+        int slot = slot(oldestSequence);
+        return offsets[slot] < position + length && position < offsets[slot] + lengths[slot];
+    }
+
+    private void evictOldest() {
+        oldestSequence++;
+        framesOverwritten++;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % maxFrames);
+    }
+
+    private int size() {
+        return (int) (nextSequence - oldestSequence);
+    }
+
+    /**
+     * Copies a frame into the buffer, which must have room for it, and flips it for reading.
+     *
+     * @return the frame length, or -1 if the frame was overwritten already or not written yet
+     */
+    public synchronized int read(long sequence, ByteBuffer out) {
+        if (sequence < oldestSequence || sequence >= nextSequence) {
+            return -1;
+        }
+        int slot = slot(sequence);
+        ByteBuffer source = storage.duplicate();
+        source.clear();
+        source.position(offsets[slot]);
+        source.limit(offsets[slot] + lengths[slot]);
+        out.clear();
+        out.put(source);
+        out.flip();
+        return lengths[slot];
+    }
+
+    /** Length of a stored frame, or -1 if it is not in the ring. */
+    public synchronized int getLength(long sequence) {
+        if (sequence < oldestSequence || sequence >= nextSequence) {
+            return -1;
+        }
+        return lengths[slot(sequence)];
+    }
+
+    /** Timestamp of a stored frame, or -1 if it is not in the ring. */
+    public synchronized long getTimestamp(long sequence) {
+        if (sequence < oldestSequence || sequence >= nextSequence) {
+            return -1;
+        }
+        return timestamps[slot(sequence)];
+    }
+
+    /**
+     * Returns the first stored frame taken at or after the given time, the oldest frame if all
+     * are newer, or {@link #getNextSequence()} if all are older.
+     */
+    public synchronized long findSequence(long timestampMillis) {
+        long low = oldestSequence;
+        long high = nextSequence;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestamps[slot(mid)] < timestampMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public synchronized long getOldestSequence() {
+        return oldestSequence;
+    }
+
+    /** Sequence number the next appended frame will get. */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    public synchronized int getFrameCount() {
+        return size();
+    }
+
+    public synchronized long getFramesOverwritten() {
+        return framesOverwritten;
+    }
+
+    /** Bytes available for frame data. */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,78 @@
+package com.steigensoft.atcamera.mlkit.recording;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes each clip to its own file in the same multipart MJPEG format the cameras and the preview
+ * server use, with the capture time of every frame in an X-Timestamp header. The files can be
+ * played back as is, or fed through an {@code MjpegParser}.
+ */
+public class MjpegClipWriter implements ClipWriter {
+
+    public static final String BOUNDARY = "atcameraclip";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final File directory;
+    private final SimpleDateFormat fileNames = new SimpleDateFormat("'clip-'yyyyMMdd-HHmmss-SSS'.mjpeg'",
+            Locale.US);
+    private FileChannel channel;
+    private File file;
+
+    public MjpegClipWriter(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void beginClip(long startMillis) throws IOException {
+        endClip();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        file = new File(directory, fileNames.format(new Date(startMillis)));
+        channel = new FileOutputStream(file).getChannel();
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer frame, long timestampMillis) throws IOException {
+        if (channel == null) {
+            throw new IOException("No clip started");
+        }
+        String header = "--" + BOUNDARY + "\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Length: " + frame.remaining() + "\r\n"
+                + "X-Timestamp: " + timestampMillis + "\r\n\r\n";
+        ByteBuffer[] part = {
+                ByteBuffer.wrap(header.getBytes(ASCII)), frame, ByteBuffer.wrap(new byte[] {'\r', '\n'})
+        };
+        while (part[2].hasRemaining()) {
+            channel.write(part);
+        }
+    }
+
+    @Override
+    public void endClip() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** The file of the clip being written, or of the last one. */
+    public File getFile() {
+        return file;
+    }
+}
@@ -13,32 +13,106 @@
 // limitations under the License.
 package com.steigensoft.atcamera.mlkit.textrecognition;
 
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.gms.tasks.Task;
 import com.google.firebase.ml.vision.FirebaseVision;
 import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.common.FirebaseVisionImageMetadata;
 import com.google.firebase.ml.vision.text.FirebaseVisionText;
 import com.google.firebase.ml.vision.text.FirebaseVisionTextRecognizer;
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
 import com.steigensoft.atcamera.mlkit.FrameMetadata;
 import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.LumaSampler;
 import com.steigensoft.atcamera.mlkit.VisionProcessorBase;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import androidx.annotation.NonNull;
 
 /**
  * Processor for the text recognition demo.
+ *
+ * <p>In incremental mode the frame is watched as a grid of tiles on sampled luma (see
+ * {@link TileDiff}). Only the region around tiles that changed, or that hold blocks not yet read
+ * the same twice or read with low confidence, goes to the recognizer; frames where nothing
+ * changed are skipped. Blocks outside that region are kept from earlier passes, graphics
+ * included, and the whole frame is still read every few seconds. Bitmaps and unrotated NV21
+ * frames are handled incrementally, anything else is read whole.
  */
 public class TextRecognitionProcessor extends VisionProcessorBase<FirebaseVisionText> {
 
     private static final String TAG = "TextRecProc";
+    private static final int TILE_COLUMNS = 8;
+    private static final int TILE_ROWS = 6;
+    private static final int SAMPLE_STEP = 8;
+    private static final int CHANGE_THRESHOLD = 6;
+    private static final float LOW_CONFIDENCE = 0.6f;
+    // Blocks count as settled once read with the same text this many times in a row.
+    private static final int SETTLED_READS = 2;
+    // Added around the region so blocks at its edge are read whole.
+    private static final int REGION_MARGIN = 16;
+    // Regions larger than this fraction of the frame are read as the whole frame.
+    private static final float MAX_REGION_AREA = 0.6f;
+    private static final long REFRESH_MILLIS = 5000;
+
     private final FirebaseVisionTextRecognizer detector;
+    private final boolean incremental;
+
+    // Change detection and region planning, on the thread calling process().
+    private final LumaSampler lumaSampler = new LumaSampler(SAMPLE_STEP);
+    private final TileDiff tileDiff = new TileDiff(TILE_COLUMNS, TILE_ROWS, CHANGE_THRESHOLD);
+    private final Rect region = new Rect();
+    private final Rect tileBounds = new Rect();
+    private boolean regionPending;
+    private boolean regionIsWholeFrame;
+    private int regionTileCount;
+    // Tiles reported changed that no started inference has read yet. TileDiff takes a change in
+    // as soon as it reports it, so tiles of a dropped frame are carried over to the next one.
+    private long unreadTiles;
+    private long lastRefreshMillis = Long.MIN_VALUE / 2;
+    private volatile int frameWidth;
+    private volatile int frameHeight;
+
+    // Blocks of the scene in frame coordinates, guarded by itself.
+    private final List<CachedBlock> cache = new ArrayList<>();
+    // Callback thread scratch for merging a pass into the cache.
+    private final List<CachedBlock> replaced = new ArrayList<>();
+    private final Rect scanned = new Rect();
+
+    private final Object statsLock = new Object();
+    private long framesSkipped;
+    private long tilesRead;
+    private long tilesOffered;
+
+    /** A block read on an earlier pass, kept while its part of the frame does not change. */
+    private static class CachedBlock {
+        final Rect box = new Rect();
+        String text;
+        Float confidence;
+        int reads;
+        TextGraphic graphic;
+
+        boolean isSettled() {
+            return reads >= SETTLED_READS && (confidence == null || confidence >= LOW_CONFIDENCE);
+        }
+    }
 
     public TextRecognitionProcessor() {
+        this(false);
+    }
+
+    /** @param incremental whether to read only the parts of the frame that changed */
+    public TextRecognitionProcessor(boolean incremental) {
         detector = FirebaseVision.getInstance().getOnDeviceTextRecognizer();
+        this.incremental = incremental;
     }
 
 
@@ -51,6 +125,149 @@ public class TextRecognitionProcessor extends VisionProcessorBase<FirebaseVision
         }
     }
 
+    @Override
+    public void process(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+        if (incremental && isReadyForFrame()) {
+            lumaSampler.sample(bitmap);
+            if (!planRegion(bitmap.getWidth(), bitmap.getHeight())) {
+                return;
+            }
+        }
+        try {
+            super.process(bitmap, graphicOverlay);
+        } finally {
+            // Started or dropped, the region was for this frame only.
+            regionPending = false;
+        }
+    }
+
+    @Override
+    public void process(Bitmap bitmap) {
+        if (incremental && isReadyForFrame()) {
+            lumaSampler.sample(bitmap);
+            if (!planRegion(bitmap.getWidth(), bitmap.getHeight())) {
+                return;
+            }
+        }
+        try {
+            super.process(bitmap);
+        } finally {
+            // Started or dropped, the region was for this frame only.
+            regionPending = false;
+        }
+    }
+
+    @Override
+    public void process(ByteBuffer data, FrameMetadata frameMetadata,
+                        GraphicOverlay graphicOverlay) {
+        if (incremental && isReadyForFrame()
+                && frameMetadata.getRotation() == FirebaseVisionImageMetadata.ROTATION_0) {
+            lumaSampler.sample(data, frameMetadata.getWidth(), frameMetadata.getHeight());
+            if (!planRegion(frameMetadata.getWidth(), frameMetadata.getHeight())) {
+                return;
+            }
+        }
+        try {
+            super.process(data, frameMetadata, graphicOverlay);
+        } finally {
+            // Started or dropped, the region was for this frame only.
+            regionPending = false;
+        }
+    }
+
+    /**
+     * Works out what part of the frame needs reading.
+     *
+     * @return false when nothing changed and the frame can be skipped
+     */
+    private boolean planRegion(int width, int height) {
+        frameWidth = width;
+        frameHeight = height;
+        long dirty = unreadTiles | tileDiff.update(lumaSampler.getSamples(),
+                lumaSampler.getGridWidth(), lumaSampler.getGridHeight());
+        unreadTiles = dirty;
+        synchronized (cache) {
+            for (int i = 0; i < cache.size(); i++) {
+                CachedBlock block = cache.get(i);
+                if (!block.isSettled()) {
+                    dirty |= tileDiff.tilesCovering(block.box.left, block.box.top,
+                            block.box.right, block.box.bottom, width, height);
+                }
+            }
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean refresh = now - lastRefreshMillis >= REFRESH_MILLIS;
+        if (dirty == 0 && !refresh) {
+            synchronized (statsLock) {
+                framesSkipped++;
+                tilesOffered += tileDiff.getTileCount();
+            }
+            return false;
+        }
+        regionPending = true;
+        regionIsWholeFrame = refresh || !unionOfTiles(dirty, width, height);
+        regionTileCount = regionIsWholeFrame ? tileDiff.getTileCount() : Long.bitCount(dirty);
+        synchronized (statsLock) {
+            tilesOffered += tileDiff.getTileCount();
+        }
+        return true;
+    }
+
+    /** The planned region is being read: its tiles are no longer unread. */
+    @Override
+    protected void onInferenceStarted() {
+        if (!regionPending) {
+            return;
+        }
+        if (regionIsWholeFrame) {
+            lastRefreshMillis = SystemClock.elapsedRealtime();
+        }
+        synchronized (statsLock) {
+            tilesRead += regionTileCount;
+        }
+        unreadTiles = 0;
+    }
+
+    /**
+     * Sets the region to the dirty tiles, grown to hold the cached blocks they cut into.
+     *
+     * @return false if that region covers most of the frame
+     */
+    private boolean unionOfTiles(long dirty, int width, int height) {
+        region.setEmpty();
+        for (int tile = 0; tile < tileDiff.getTileCount(); tile++) {
+            if ((dirty & (1L << tile)) != 0) {
+                tileDiff.getTileBounds(tile, width, height, tileBounds);
+                region.union(tileBounds);
+            }
+        }
+        synchronized (cache) {
+            for (int i = 0; i < cache.size(); i++) {
+                Rect box = cache.get(i).box;
+                if (Rect.intersects(region, box)) {
+                    region.union(box);
+                }
+            }
+        }
+        region.left = Math.max(0, region.left - REGION_MARGIN) & ~1;
+        region.top = Math.max(0, region.top - REGION_MARGIN) & ~1;
+        region.right = Math.min(width, region.right + REGION_MARGIN) & ~1;
+        region.bottom = Math.min(height, region.bottom + REGION_MARGIN) & ~1;
+        return region.width() * (long) region.height() <= MAX_REGION_AREA * width * (long) height;
+    }
+
+    @Override
+    protected float planCrop(int frameWidth, int frameHeight, Rect outCrop) {
+        if (!regionPending) {
+            return super.planCrop(frameWidth, frameHeight, outCrop);
+        }
+        if (regionIsWholeFrame) {
+            return 0f;
+        }
+        outCrop.set(region);
+        return 1f;
+    }
+
     @Override
     protected Task<FirebaseVisionText> detectInImage(FirebaseVisionImage image) {
         return detector.processImage(image);
@@ -63,10 +280,14 @@ public class TextRecognitionProcessor extends VisionProcessorBase<FirebaseVision
             GraphicOverlay graphicOverlay, FirebaseVisionImage image) {
 
         //image.getBitmapForDebugging();
+        List<FirebaseVisionText.TextBlock> blocks = results.getTextBlocks();
+        if (incremental) {
+            mergeIntoCache(blocks, frameMetadata, graphicOverlay);
+            return;
+        }
         if (graphicOverlay != null) {
             graphicOverlay.clear();
         }
-        List<FirebaseVisionText.TextBlock> blocks = results.getTextBlocks();
 
 
 
@@ -78,6 +299,103 @@ public class TextRecognitionProcessor extends VisionProcessorBase<FirebaseVision
         }
     }
 
+    /** Replaces the cached blocks of the region just read with what was found there. */
+    private void mergeIntoCache(List<FirebaseVisionText.TextBlock> blocks,
+                                FrameMetadata frameMetadata, GraphicOverlay graphicOverlay) {
+        if (frameMetadata != null) {
+            frameMetadata.getCropRegion(scanned);
+        } else {
+            scanned.set(0, 0, frameWidth, frameHeight);
+        }
+        synchronized (cache) {
+            replaced.clear();
+            for (int i = cache.size() - 1; i >= 0; i--) {
+                CachedBlock block = cache.get(i);
+                if (scanned.contains(block.box.centerX(), block.box.centerY())) {
+                    cache.remove(i);
+                    replaced.add(block);
+                    if (graphicOverlay != null && block.graphic != null) {
+                        graphicOverlay.remove(block.graphic);
+                    }
+                }
+            }
+            for (FirebaseVisionText.TextBlock found : blocks) {
+                if (found.getBoundingBox() == null) {
+                    continue;
+                }
+                CachedBlock block = new CachedBlock();
+                block.box.set(found.getBoundingBox());
+                if (frameMetadata != null) {
+                    frameMetadata.mapToFrame(block.box);
+                }
+                block.text = found.getText();
+                block.confidence = found.getConfidence();
+                CachedBlock previous = findSameText(block);
+                block.reads = previous != null ? previous.reads + 1 : 1;
+                if (graphicOverlay != null) {
+                    block.graphic = new TextGraphic(graphicOverlay, found);
+                    block.graphic.setSourceCrop(frameMetadata);
+                    graphicOverlay.add(block.graphic);
+                }
+                cache.add(block);
+            }
+            replaced.clear();
+        }
+    }
+
+    private CachedBlock findSameText(CachedBlock block) {
+        for (int i = 0; i < replaced.size(); i++) {
+            CachedBlock candidate = replaced.get(i);
+            if (Rect.intersects(candidate.box, block.box) && block.text != null
+                    && block.text.equals(candidate.text)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /** Text of the blocks currently known, in incremental mode. */
+    public List<String> getCachedText() {
+        synchronized (cache) {
+            List<String> text = new ArrayList<>(cache.size());
+            for (CachedBlock block : cache) {
+                text.add(block.text);
+            }
+            return text;
+        }
+    }
+
+    /** Frames skipped in incremental mode because nothing changed. */
+    public long getFramesSkipped() {
+        synchronized (statsLock) {
+            return framesSkipped;
+        }
+    }
+
+    /** Share of tiles read in incremental mode, over all tiles of the frames seen. */
+    public float getTileReadRatio() {
+        synchronized (statsLock) {
+            return tilesOffered == 0 ? 0f : tilesRead / (float) tilesOffered;
+        }
+    }
+
+    @Override
+    protected void describeResults(
+            @NonNull FirebaseVisionText results, @NonNull DetectionEvent event) {
+        // In incremental mode only the blocks read on this pass, cached ones are not repeated.
+        event.setDetectorType(DetectionEvent.DETECTOR_TEXT);
+        for (FirebaseVisionText.TextBlock block : results.getTextBlocks()) {
+            if (block.getBoundingBox() == null) {
+                continue;
+            }
+            int index = event.add(block.getBoundingBox());
+            if (index < 0) {
+                break;
+            }
+            event.setRawValue(index, block.getText());
+        }
+    }
+
     @Override
     protected void onFailure(@NonNull Exception e) {
         Log.w(TAG, "Text detection failed." + e);
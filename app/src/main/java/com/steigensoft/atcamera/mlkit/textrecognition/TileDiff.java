@@ -0,0 +1,149 @@
+package com.steigensoft.atcamera.mlkit.textrecognition;
+
+import android.graphics.Rect;
+
+/**
+ * Tells which tiles of a frame changed, from a grid of luma samples (see
+ * {@link com.steigensoft.atcamera.mlkit.LumaSampler}). Each tile keeps a reference copy of its
+ * samples and a hash of them quantized to 32 levels. An equal hash means unchanged without
+ * looking further; otherwise the tile changed when its mean absolute difference from the
+ * reference exceeds the threshold, so sensor noise does not count. The reference is only
+ * replaced when a change is reported, so slow drift adds up until it does. Not thread safe.
+ */
+public class TileDiff {
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final int columns;
+    private final int rows;
+    private final int threshold;
+    private final int[] hashes;
+    private byte[] reference = new byte[0];
+    private int gridWidth;
+    private int gridHeight;
+
+    /**
+     * @param columns tiles across, columns times rows at most 64
+     * @param rows tiles down
+     * @param threshold mean absolute luma difference above which a tile changed
+     */
+    public TileDiff(int columns, int rows, int threshold) {
+        if (columns < 1 || rows < 1 || columns * rows > Long.SIZE) {
+            throw new IllegalArgumentException(columns + "x" + rows + " tiles");
+        }
+        this.columns = columns;
+        this.rows = rows;
+        this.threshold = threshold;
+        hashes = new int[columns * rows];
+    }
+
+    public int getTileCount() {
+        return columns * rows;
+    }
+
+    /** Returns a mask with bit {@code row * columns + column} set for each tile that changed. */
+    public long update(byte[] samples, int gridWidth, int gridHeight) {
+        if (gridWidth != this.gridWidth || gridHeight != this.gridHeight
+                || reference.length != samples.length) {
+            // First frame or a new size: everything changed.
+            this.gridWidth = gridWidth;
+            this.gridHeight = gridHeight;
+            reference = samples.clone();
+            for (int tile = 0; tile < hashes.length; tile++) {
+                hashes[tile] = hash(samples, tile);
+            }
+            return allTiles();
+        }
+        long changed = 0;
+        for (int tile = 0; tile < hashes.length; tile++) {
+            int hash = hash(samples, tile);
+            if (hash == hashes[tile] || !differs(samples, tile)) {
+                continue;
+            }
+            hashes[tile] = hash;
+            copy(samples, tile);
+            changed |= 1L << tile;
+        }
+        return changed;
+    }
+
+    private long allTiles() {
+        return hashes.length == Long.SIZE ? -1L : (1L << hashes.length) - 1;
+    }
+
+    private int startX(int tile) {
+        return (tile % columns) * gridWidth / columns;
+    }
+
+    private int endX(int tile) {
+        return (tile % columns + 1) * gridWidth / columns;
+    }
+
+    private int startY(int tile) {
+        return (tile / columns) * gridHeight / rows;
+    }
+
+    private int endY(int tile) {
+        return (tile / columns + 1) * gridHeight / rows;
+    }
+
+    private int hash(byte[] samples, int tile) {
+        int hash = FNV_OFFSET;
+        for (int y = startY(tile); y < endY(tile); y++) {
+            for (int x = startX(tile), i = y * gridWidth + x; x < endX(tile); x++, i++) {
+                hash = (hash ^ ((samples[i] & 0xff) >> 3)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    private boolean differs(byte[] samples, int tile) {
+        long sum = 0;
+        int count = 0;
+        for (int y = startY(tile); y < endY(tile); y++) {
+            for (int x = startX(tile), i = y * gridWidth + x; x < endX(tile); x++, i++) {
+                sum += Math.abs((samples[i] & 0xff) - (reference[i] & 0xff));
+                count++;
+            }
+        }
+        return count > 0 && sum > (long) threshold * count;
+    }
+
+    private void copy(byte[] samples, int tile) {
+        for (int y = startY(tile); y < endY(tile); y++) {
+            int from = y * gridWidth + startX(tile);
+            System.arraycopy(samples, from, reference, from, endX(tile) - startX(tile));
+        }
+    }
+
+    /** Writes the bounds of a tile in a frame of the given size. */
+    public void getTileBounds(int tile, int frameWidth, int frameHeight, Rect out) {
+        out.left = (tile % columns) * frameWidth / columns;
+        out.right = (tile % columns + 1) * frameWidth / columns;
+        out.top = (tile / columns) * frameHeight / rows;
+        out.bottom = (tile / columns + 1) * frameHeight / rows;
+    }
+
+    /** Returns the mask of the tiles a box in frame coordinates overlaps. */
+    public long tilesCovering(int left, int top, int right, int bottom, int frameWidth,
+                              int frameHeight) {
+        if (right <= left || bottom <= top || frameWidth <= 0 || frameHeight <= 0) {
+            return 0;
+        }
+        int firstColumn = clamp(left * columns / frameWidth, columns);
+        int lastColumn = clamp((right - 1) * columns / frameWidth, columns);
+        int firstRow = clamp(top * rows / frameHeight, rows);
+        int lastRow = clamp((bottom - 1) * rows / frameHeight, rows);
+        long mask = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                mask |= 1L << (row * columns + column);
+            }
+        }
+        return mask;
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+}
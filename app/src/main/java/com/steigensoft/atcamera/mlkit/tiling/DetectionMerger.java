@@ -0,0 +1,120 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges the detections of overlapping tiles into one set for the still.
+ *
+ * <p>Objects inside an overlap are found by every tile covering them: a detection lying mostly
+ * within a larger one of the same content is a duplicate and dropped. A text block cut by a tile
+ * border shows up as a shorter block whose text is part of the whole, and is dropped the same
+ * way. Blocks wider than the overlap are cut in every tile; two cut pieces that overlap are
+ * joined into one box, their texts joined where they repeat.
+ */
+public final class DetectionMerger {
+    // Fraction of the smaller box that has to lie within the larger to count as the same object.
+    private static final float CONTAINED = 0.6f;
+
+    private static final Comparator<StillDetection> LARGEST_FIRST = new Comparator<StillDetection>() {
+        @Override
+        public int compare(StillDetection a, StillDetection b) {
+            return Long.compare(b.area(), a.area());
+        }
+    };
+
+    private DetectionMerger() {
+    }
+
+    /** Returns the merged detections, largest first. The input list is reordered. */
+    public static List<StillDetection> merge(List<StillDetection> detections) {
+        Collections.sort(detections, LARGEST_FIRST);
+        List<StillDetection> kept = new ArrayList<>(detections.size());
+        for (StillDetection candidate : detections) {
+            boolean absorbed = false;
+            for (int i = 0; i < kept.size() && !absorbed; i++) {
+                absorbed = absorb(kept.get(i), candidate);
+            }
+            if (!absorbed) {
+                kept.add(candidate);
+            }
+        }
+        return kept;
+    }
+
+    /** Folds the candidate into the kept detection if both are the same object. */
+    private static boolean absorb(StillDetection kept, StillDetection candidate) {
+        if (kept.kind != candidate.kind) {
+            return false;
+        }
+        long overlap = intersection(kept, candidate);
+        if (overlap <= 0) {
+            return false;
+        }
+        boolean contained = overlap >= CONTAINED * Math.min(kept.area(), candidate.area());
+        if (candidate.kind == DetectionEvent.DETECTOR_BARCODE) {
+            return contained && kept.format == candidate.format && equal(kept.text, candidate.text);
+        }
+        if (contained && (contains(kept.text, candidate.text) || contains(candidate.text, kept.text))) {
+            if (length(candidate.text) > length(kept.text)) {
+                kept.text = candidate.text;
+            }
+            return true;
+        }
+        if (kept.clipped && candidate.clipped) {
+            join(kept, candidate);
+            return true;
+        }
+        return false;
+    }
+
+    private static void join(StillDetection kept, StillDetection candidate) {
+        // Read order: side by side pieces left to right, stacked ones top to bottom.
+        boolean sideBySide = Math.abs(candidate.left - kept.left) >= Math.abs(candidate.top - kept.top);
+        boolean keptFirst = sideBySide ? kept.left <= candidate.left : kept.top <= candidate.top;
+        kept.text = keptFirst ? joinText(kept.text, candidate.text, sideBySide)
+                : joinText(candidate.text, kept.text, sideBySide);
+        kept.left = Math.min(kept.left, candidate.left);
+        kept.top = Math.min(kept.top, candidate.top);
+        kept.right = Math.max(kept.right, candidate.right);
+        kept.bottom = Math.max(kept.bottom, candidate.bottom);
+    }
+
+    /** Joins two pieces of text, dropping the longest end of the first repeated by the second. */
+    static String joinText(String first, String second, boolean sameLine) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        for (int repeat = Math.min(first.length(), second.length()); repeat > 0; repeat--) {
+            if (first.regionMatches(first.length() - repeat, second, 0, repeat)) {
+                return first + second.substring(repeat);
+            }
+        }
+        return first + (sameLine ? " " : "\n") + second;
+    }
+
+    private static long intersection(StillDetection a, StillDetection b) {
+        long width = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        long height = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        return width > 0 && height > 0 ? width * height : 0;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static boolean contains(String whole, String part) {
+        return whole != null && part != null && whole.contains(part.trim());
+    }
+
+    private static int length(String text) {
+        return text == null ? 0 : text.length();
+    }
+}
@@ -0,0 +1,93 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.firebase.ml.vision.FirebaseVision;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetector;
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcodeDetectorOptions;
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+import com.google.firebase.ml.vision.text.FirebaseVisionText;
+import com.google.firebase.ml.vision.text.FirebaseVisionTextRecognizer;
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the ML Kit on-device text recognizer and/or barcode detector on one tile, waiting for the
+ * results on the calling worker thread. Each instance owns its detectors.
+ */
+public class MlKitTileRecognizer implements TileRecognizer {
+    private static final String TAG = MlKitTileRecognizer.class.getSimpleName();
+
+    private final FirebaseVisionTextRecognizer textRecognizer;
+    private final FirebaseVisionBarcodeDetector barcodeDetector;
+
+    /**
+     * @param text whether to recognize text
+     * @param barcodeFormats the {@code FirebaseVisionBarcode.FORMAT_*} flags to scan for, or 0
+     *     for no barcode scanning
+     */
+    public MlKitTileRecognizer(boolean text, int barcodeFormats) {
+        textRecognizer = text ? FirebaseVision.getInstance().getOnDeviceTextRecognizer() : null;
+        barcodeDetector = barcodeFormats != 0
+                ? FirebaseVision.getInstance().getVisionBarcodeDetector(
+                        new FirebaseVisionBarcodeDetectorOptions.Builder()
+                                .setBarcodeFormats(barcodeFormats)
+                                .build())
+                : null;
+    }
+
+    @Override
+    public List<StillDetection> recognize(Bitmap still, Tile tile) throws Exception {
+        Bitmap bitmap = tile.width() == still.getWidth() && tile.height() == still.getHeight()
+                ? still : Bitmap.createBitmap(still, tile.left, tile.top, tile.width(), tile.height());
+        try {
+            FirebaseVisionImage image = FirebaseVisionImage.fromBitmap(bitmap);
+            List<StillDetection> detections = new ArrayList<>();
+            if (textRecognizer != null) {
+                FirebaseVisionText text = Tasks.await(textRecognizer.processImage(image));
+                for (FirebaseVisionText.TextBlock block : text.getTextBlocks()) {
+                    Rect box = block.getBoundingBox();
+                    if (box != null) {
+                        detections.add(new StillDetection(DetectionEvent.DETECTOR_TEXT, 0,
+                                block.getText(), box.left, box.top, box.right, box.bottom));
+                    }
+                }
+            }
+            if (barcodeDetector != null) {
+                for (FirebaseVisionBarcode barcode : Tasks.await(barcodeDetector.detectInImage(image))) {
+                    Rect box = barcode.getBoundingBox();
+                    if (box != null && barcode.getRawValue() != null) {
+                        detections.add(new StillDetection(DetectionEvent.DETECTOR_BARCODE,
+                                barcode.getFormat(), barcode.getRawValue(), box.left, box.top,
+                                box.right, box.bottom));
+                    }
+                }
+            }
+            return detections;
+        } finally {
+            if (bitmap != still) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    public void close() {
+        try {
+            if (textRecognizer != null) {
+                textRecognizer.close();
+            }
+            if (barcodeDetector != null) {
+                barcodeDetector.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Exception thrown while trying to close detectors: " + e);
+        }
+    }
+}
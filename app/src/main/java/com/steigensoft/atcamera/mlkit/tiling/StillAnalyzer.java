@@ -0,0 +1,127 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.firebase.ml.vision.barcode.FirebaseVisionBarcode;
+import com.steigensoft.atcamera.mlkit.DefaultExecutorSupplier;
+import com.steigensoft.atcamera.mlkit.MemoryBudget;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Recognizes text and barcodes on the full resolution JPEG stills of the camera's capture
+ * ImageReader. The JPEG is copied out so the Image goes back to the reader at once, then decoded
+ * and tiled on background threads with one {@link MlKitTileRecognizer} per core. Stills arriving
+ * while one is still being recognized are dropped, as are stills the {@link MemoryBudget} has no
+ * room for.
+ */
+public class StillAnalyzer implements ImageReader.OnImageAvailableListener {
+    private static final String TAG = StillAnalyzer.class.getSimpleName();
+
+    /** Receives the merged results of each still, on a background thread. */
+    public interface Listener {
+        void onStillRecognized(List<StillDetection> detections, int width, int height,
+                               long elapsedMillis);
+    }
+
+    private final List<MlKitTileRecognizer> recognizers = new ArrayList<>();
+    private final TiledStillRecognizer tiled;
+    private final Listener listener;
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final MemoryBudget.Stage budget = MemoryBudget.getInstance().stage("still");
+    private volatile boolean closed;
+
+    /** @param listener receives the results, may be null to only log them */
+    public StillAnalyzer(Listener listener) {
+        this.listener = listener;
+        List<TileRecognizer> workers = new ArrayList<>();
+        for (int i = 0; i < DefaultExecutorSupplier.NUMBER_OF_CORES; i++) {
+            MlKitTileRecognizer recognizer =
+                    new MlKitTileRecognizer(true, FirebaseVisionBarcode.FORMAT_ALL_FORMATS);
+            recognizers.add(recognizer);
+            workers.add(recognizer);
+        }
+        tiled = new TiledStillRecognizer(workers,
+                DefaultExecutorSupplier.getInstance().forBackgroundTasks(),
+                TiledStillRecognizer.DEFAULT_TILE_SIZE, TiledStillRecognizer.DEFAULT_OVERLAP);
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        final byte[] jpeg;
+        try {
+            if (closed || !busy.compareAndSet(false, true)) {
+                Log.d(TAG, "Still dropped, previous one still being recognized");
+                return;
+            }
+            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+            jpeg = new byte[buffer.remaining()];
+            buffer.get(jpeg);
+        } finally {
+            image.close();
+        }
+        DefaultExecutorSupplier.getInstance().forLightWeightBackgroundTasks().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recognize(jpeg);
+                } finally {
+                    busy.set(false);
+                }
+            }
+        });
+    }
+
+    private void recognize(byte[] jpeg) {
+        long start = SystemClock.elapsedRealtime();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+        long bytes = MemoryBudget.bitmapBytes(bounds.outWidth, bounds.outHeight);
+        if (!budget.tryReserve(bytes)) {
+            Log.d(TAG, "Still dropped, no memory budget left for " + bounds.outWidth + "x"
+                    + bounds.outHeight);
+            return;
+        }
+        Bitmap still = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        if (still == null) {
+            budget.release(bytes);
+            Log.w(TAG, "Could not decode still of " + jpeg.length + " bytes");
+            return;
+        }
+        try {
+            List<StillDetection> detections = tiled.recognize(still);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "Recognized " + detections.size() + " objects on " + still.getWidth() + "x"
+                    + still.getHeight() + " still in " + elapsed + " ms");
+            if (listener != null) {
+                listener.onStillRecognized(detections, still.getWidth(), still.getHeight(), elapsed);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            still.recycle();
+            budget.release(bytes);
+        }
+    }
+
+    /** Releases the detectors. Stills still being recognized fail their remaining tiles. */
+    public void close() {
+        closed = true;
+        for (MlKitTileRecognizer recognizer : recognizers) {
+            recognizer.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Times tiled recognition of a still against a single pass over the whole still with the same
+ * kind of recognizer. One untimed round of each warms up the detectors, the rest are averaged.
+ */
+public final class StillBenchmark {
+    private static final String TAG = StillBenchmark.class.getSimpleName();
+
+    /** Average wall clock times and what each approach found. */
+    public static final class Result {
+        public final int rounds;
+        public final double singlePassMillis;
+        public final double tiledMillis;
+        public final int singlePassDetections;
+        public final int tiledDetections;
+
+        Result(int rounds, double singlePassMillis, double tiledMillis, int singlePassDetections,
+               int tiledDetections) {
+            this.rounds = rounds;
+            this.singlePassMillis = singlePassMillis;
+            this.tiledMillis = tiledMillis;
+            this.singlePassDetections = singlePassDetections;
+            this.tiledDetections = tiledDetections;
+        }
+
+        /** How many times faster the tiled run was, below 1 when it was slower. */
+        public double getSpeedup() {
+            return tiledMillis > 0 ? singlePassMillis / tiledMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "single pass %.1f ms (%d found), tiled %.1f ms (%d found), speedup %.2fx over %d rounds",
+                    singlePassMillis, singlePassDetections, tiledMillis, tiledDetections,
+                    getSpeedup(), rounds);
+        }
+    }
+
+    private StillBenchmark() {
+    }
+
+    /** Runs the comparison on the calling thread and logs the result. */
+    public static Result run(Bitmap still, TileRecognizer singlePass, TiledStillRecognizer tiled,
+                             int rounds) throws Exception {
+        return run(still, still.getWidth(), still.getHeight(), singlePass, tiled, rounds);
+    }
+
+    static Result run(Bitmap still, int width, int height, TileRecognizer singlePass,
+                      TiledStillRecognizer tiled, int rounds) throws Exception {
+        if (rounds < 1) {
+            throw new IllegalArgumentException("rounds " + rounds);
+        }
+        Tile whole = new Tile(0, 0, 0, width, height);
+        int singleFound = singlePass.recognize(still, whole).size();
+        int tiledFound = tiled.recognize(still, width, height).size();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            singleFound = singlePass.recognize(still, whole).size();
+        }
+        double singleMillis = (System.nanoTime() - start) / 1e6 / rounds;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            tiledFound = tiled.recognize(still, width, height).size();
+        }
+        double tiledMillis = (System.nanoTime() - start) / 1e6 / rounds;
+
+        Result result = new Result(rounds, singleMillis, tiledMillis, singleFound, tiledFound);
+        Log.i(TAG, width + "x" + height + ": " + result);
+        return result;
+    }
+}
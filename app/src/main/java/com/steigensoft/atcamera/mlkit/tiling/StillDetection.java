@@ -0,0 +1,60 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Rect;
+
+/**
+ * A text block or barcode found on a still, independent of the ML Kit result classes so that
+ * results from different tiles can be moved and merged.
+ */
+public final class StillDetection {
+    /** One of the {@code DetectionEvent.DETECTOR_*} types. */
+    public final int kind;
+    public final int format;
+    public String text;
+    public int left;
+    public int top;
+    public int right;
+    public int bottom;
+    // Set while merging when the box touches an interior edge of the tile it came from.
+    boolean clipped;
+
+    /**
+     * @param kind {@code DetectionEvent.DETECTOR_TEXT} or {@code DetectionEvent.DETECTOR_BARCODE}
+     * @param format the barcode format, or 0 for text
+     * @param text the recognized text or raw barcode value
+     */
+    public StillDetection(int kind, int format, String text, int left, int top, int right,
+                          int bottom) {
+        this.kind = kind;
+        this.format = format;
+        this.text = text;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public void offset(int dx, int dy) {
+        left += dx;
+        right += dx;
+        top += dy;
+        bottom += dy;
+    }
+
+    long area() {
+        return Math.max(0, right - left) * (long) Math.max(0, bottom - top);
+    }
+
+    public void getBox(Rect out) {
+        out.left = left;
+        out.top = top;
+        out.right = right;
+        out.bottom = bottom;
+    }
+
+    @Override
+    public String toString() {
+        return "StillDetection{kind=" + kind + ", format=" + format + ", text='" + text + "', box=["
+                + left + "," + top + "][" + right + "," + bottom + "]}";
+    }
+}
@@ -0,0 +1,85 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One rectangle of a still cut into overlapping tiles, see {@link #split(int, int, int, int)}.
+ * Edges shared with a neighbouring tile are interior: an object touching one may be cut off there
+ * and is seen whole by the neighbour, provided it is smaller than the overlap.
+ */
+public final class Tile {
+    public final int index;
+    public final int left;
+    public final int top;
+    public final int right;
+    public final int bottom;
+
+    Tile(int index, int left, int top, int right, int bottom) {
+        this.index = index;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public int width() {
+        return right - left;
+    }
+
+    public int height() {
+        return bottom - top;
+    }
+
+    /**
+     * Returns whether a box in still coordinates comes within {@code slack} pixels of an edge of
+     * this tile that lies inside the still.
+     */
+    public boolean touchesInteriorEdge(int boxLeft, int boxTop, int boxRight, int boxBottom,
+                                       int stillWidth, int stillHeight, int slack) {
+        return (left > 0 && boxLeft - left <= slack)
+                || (top > 0 && boxTop - top <= slack)
+                || (right < stillWidth && right - boxRight <= slack)
+                || (bottom < stillHeight && bottom - boxBottom <= slack);
+    }
+
+    /**
+     * Cuts a still into tiles of at most {@code tileSize} pixels square, neighbours overlapping by
+     * at least {@code overlap} pixels. The last row and column are shifted back to end at the
+     * border, so every tile is full size on stills larger than a tile.
+     */
+    public static List<Tile> split(int width, int height, int tileSize, int overlap) {
+        if (tileSize <= overlap || overlap < 0) {
+            throw new IllegalArgumentException("tileSize " + tileSize + ", overlap " + overlap);
+        }
+        int[] xs = starts(width, tileSize, overlap);
+        int[] ys = starts(height, tileSize, overlap);
+        List<Tile> tiles = new ArrayList<>(xs.length * ys.length);
+        for (int y : ys) {
+            for (int x : xs) {
+                tiles.add(new Tile(tiles.size(), x, y, Math.min(width, x + tileSize),
+                        Math.min(height, y + tileSize)));
+            }
+        }
+        return tiles;
+    }
+
+    private static int[] starts(int length, int tileSize, int overlap) {
+        if (length <= tileSize) {
+            return new int[] {0};
+        }
+        int step = tileSize - overlap;
+        int count = (length - overlap + step - 1) / step;
+        int[] starts = new int[count];
+        for (int i = 0; i < count - 1; i++) {
+            starts[i] = i * step;
+        }
+        starts[count - 1] = length - tileSize;
+        return starts;
+    }
+
+    @Override
+    public String toString() {
+        return "Tile " + index + " [" + left + "," + top + "][" + right + "," + bottom + "]";
+    }
+}
@@ -0,0 +1,15 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Bitmap;
+
+import java.util.List;
+
+/**
+ * Recognizes what is on one tile of a still. Called on a worker thread of a
+ * {@link TiledStillRecognizer} and may block; every worker has its own instance.
+ */
+public interface TileRecognizer {
+
+    /** Returns the detections on the tile, with boxes relative to the tile's top left corner. */
+    List<StillDetection> recognize(Bitmap still, Tile tile) throws Exception;
+}
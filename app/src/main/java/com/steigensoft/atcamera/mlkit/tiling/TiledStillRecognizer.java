@@ -0,0 +1,115 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs recognition on a full resolution still by cutting it into overlapping tiles and working
+ * through them on several threads at once, then merging the results across tile borders with
+ * {@link DetectionMerger}. Small print stays readable because no tile is downscaled, and the
+ * tiles keep every core busy where a single pass over the whole still would use one.
+ *
+ * <p>Each {@link TileRecognizer} is one worker: tiles are taken from a shared counter, so the
+ * workers stay busy until the last tile whatever their individual speed. One still is recognized
+ * at a time.
+ */
+public class TiledStillRecognizer {
+    private static final String TAG = TiledStillRecognizer.class.getSimpleName();
+
+    public static final int DEFAULT_TILE_SIZE = 1024;
+    public static final int DEFAULT_OVERLAP = 128;
+    // Boxes this close to an interior tile edge are taken to be cut off there.
+    private static final int EDGE_SLACK = 4;
+
+    private final List<TileRecognizer> workers;
+    private final Executor executor;
+    private final int tileSize;
+    private final int overlap;
+
+    private long tilesRecognized;
+    private long tilesFailed;
+
+    /**
+     * @param workers one recognizer per worker thread, at least one
+     * @param executor runs the workers, needs as many threads as there are workers
+     * @param tileSize side of the square tiles in pixels
+     * @param overlap pixels shared by neighbouring tiles, should exceed the largest expected object
+     */
+    public TiledStillRecognizer(List<TileRecognizer> workers, Executor executor, int tileSize,
+                                int overlap) {
+        if (workers.isEmpty() || tileSize <= overlap) {
+            throw new IllegalArgumentException("workers " + workers.size() + ", tileSize " + tileSize
+                    + ", overlap " + overlap);
+        }
+        this.workers = new ArrayList<>(workers);
+        this.executor = executor;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+    }
+
+    /** Recognizes the still, blocking until every tile is done. Failed tiles are logged. */
+    public List<StillDetection> recognize(Bitmap still) throws InterruptedException {
+        return recognize(still, still.getWidth(), still.getHeight());
+    }
+
+    synchronized List<StillDetection> recognize(final Bitmap still, final int width,
+                                                final int height) throws InterruptedException {
+        final List<Tile> tiles = Tile.split(width, height, tileSize, overlap);
+        final List<StillDetection> found = new ArrayList<>();
+        final AtomicInteger nextTile = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        int workerCount = Math.min(workers.size(), tiles.size());
+        final CountDownLatch done = new CountDownLatch(workerCount);
+        for (int w = 0; w < workerCount; w++) {
+            final TileRecognizer worker = workers.get(w);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+                        while ((index = nextTile.getAndIncrement()) < tiles.size()) {
+                            Tile tile = tiles.get(index);
+                            List<StillDetection> results;
+                            try {
+                                results = worker.recognize(still, tile);
+                            } catch (Exception e) {
+                                failed.incrementAndGet();
+                                Log.w(TAG, "Recognition failed on " + tile, e);
+                                continue;
+                            }
+                            for (StillDetection detection : results) {
+                                detection.offset(tile.left, tile.top);
+                                detection.clipped = tile.touchesInteriorEdge(detection.left,
+                                        detection.top, detection.right, detection.bottom, width,
+                                        height, EDGE_SLACK);
+                            }
+                            synchronized (found) {
+                                found.addAll(results);
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        tilesRecognized += tiles.size() - failed.get();
+        tilesFailed += failed.get();
+        return DetectionMerger.merge(found);
+    }
+
+    public synchronized long getTilesRecognized() {
+        return tilesRecognized;
+    }
+
+    public synchronized long getTilesFailed() {
+        return tilesFailed;
+    }
+}
@@ -0,0 +1,98 @@
+package com.steigensoft.atcamera;
+
+import org.junit.Test;
+
+import static com.steigensoft.atcamera.CameraRecovery.NO_REOPEN;
+import static org.junit.Assert.*;
+
+public class CameraRecoveryTest {
+
+    private static final long STALL = 3000;
+
+    private final CameraRecovery recovery = new CameraRecovery(STALL);
+
+    public CameraRecoveryTest() {
+        recovery.start();
+    }
+
+    @Test
+    public void noStallBeforeThePreviewIsConfigured() {
+        // The surface arrives late, the session is configured only after ten seconds.
+        for (long now = 1000; now < 10000; now += 1000) {
+            assertEquals(NO_REOPEN, recovery.checkFrames(now, 0));
+        }
+        recovery.onPreviewStarted(10000);
+        assertEquals(NO_REOPEN, recovery.checkFrames(12000, 0));
+        assertEquals(0, recovery.getFailureCount(Camera2Source.Failure.STALLED));
+    }
+
+    @Test
+    public void stalledPreviewIsReopened() {
+        recovery.onPreviewStarted(0);
+        assertEquals(NO_REOPEN, recovery.checkFrames(1000, 900));
+        assertEquals(NO_REOPEN, recovery.checkFrames(3900, 900));
+        assertEquals(CameraRecovery.INITIAL_BACKOFF_MILLIS, recovery.checkFrames(4000, 900));
+        assertTrue(recovery.isRecovering());
+        assertEquals(1, recovery.getFailureCount(Camera2Source.Failure.STALLED));
+    }
+
+    @Test
+    public void backoffDoublesUntilFramesArrive() {
+        recovery.onPreviewStarted(0);
+        assertEquals(250, recovery.onFailure(Camera2Source.Failure.DISCONNECTED, 1000));
+        // Further failures while the reopen is pending only count.
+        assertEquals(NO_REOPEN, recovery.onFailure(Camera2Source.Failure.DEVICE_ERROR, 1100));
+        assertTrue(recovery.onReopen(1250));
+
+        // The reopen produced no frames.
+        assertEquals(NO_REOPEN, recovery.checkFrames(4000, 0));
+        assertEquals(500, recovery.checkFrames(4300, 0));
+        assertTrue(recovery.onReopen(4800));
+        assertEquals(1000, recovery.onFailure(Camera2Source.Failure.OPEN_FAILED, 4900));
+        assertTrue(recovery.onReopen(5900));
+
+        assertEquals(NO_REOPEN, recovery.checkFrames(6500, 6400));
+        assertFalse(recovery.isRecovering());
+        assertEquals(1, recovery.getRecoveryCount());
+        assertEquals(5400, recovery.getLastRecoveryMillis());
+
+        // The next failure starts over at the initial backoff.
+        assertEquals(250, recovery.onFailure(Camera2Source.Failure.DISCONNECTED, 9000));
+    }
+
+    @Test
+    public void backoffIsCapped() {
+        long now = 0;
+        long delay = 0;
+        for (int i = 0; i < 20; i++) {
+            delay = recovery.onFailure(Camera2Source.Failure.OPEN_FAILED, now);
+            now += delay;
+            assertTrue(recovery.onReopen(now));
+        }
+        assertEquals(CameraRecovery.MAX_BACKOFF_MILLIS, delay);
+    }
+
+    @Test
+    public void averagesRecoveryTimes() {
+        recovery.onFailure(Camera2Source.Failure.DISCONNECTED, 1000);
+        recovery.onReopen(1250);
+        recovery.checkFrames(2000, 1500);
+        recovery.onFailure(Camera2Source.Failure.DISCONNECTED, 5000);
+        recovery.onReopen(5250);
+        recovery.checkFrames(6000, 6500);
+        assertEquals(2, recovery.getRecoveryCount());
+        assertEquals(1000, recovery.getAverageRecoveryMillis());
+    }
+
+    @Test
+    public void stoppedCameraIsNotReopened() {
+        recovery.onPreviewStarted(0);
+        assertEquals(250, recovery.onFailure(Camera2Source.Failure.DISCONNECTED, 1000));
+        recovery.stop();
+        assertFalse(recovery.onReopen(1250));
+        assertEquals(NO_REOPEN, recovery.onFailure(Camera2Source.Failure.DISCONNECTED, 2000));
+        assertEquals(NO_REOPEN, recovery.checkFrames(10000, 0));
+        // Failures still count.
+        assertEquals(2, recovery.getFailureCount(Camera2Source.Failure.DISCONNECTED));
+    }
+}
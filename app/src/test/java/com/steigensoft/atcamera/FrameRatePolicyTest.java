@@ -0,0 +1,48 @@
+package com.steigensoft.atcamera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameRatePolicyTest {
+
+    // A typical back camera: fixed 15 and 30, and variable ranges for low light.
+    private static final int[] LOWERS = {15, 7, 30, 15, 24};
+    private static final int[] UPPERS = {15, 30, 30, 30, 24};
+
+    @Test
+    public void noTargetBeforeTheFirstInference() {
+        assertEquals(FrameRatePolicy.UNKNOWN, FrameRatePolicy.targetFps(0, Double.MAX_VALUE), 0);
+    }
+
+    @Test
+    public void targetLeavesHeadroomOverTheInferenceRate() {
+        // 50 ms per inference is 20 fps.
+        assertEquals(25.0, FrameRatePolicy.targetFps(50, Double.MAX_VALUE), 1e-9);
+    }
+
+    @Test
+    public void targetIsCappedAndBounded() {
+        assertEquals(2.0, FrameRatePolicy.targetFps(50, 2.0), 1e-9);
+        // A detector taking seconds still gets a frame per second.
+        assertEquals(FrameRatePolicy.MIN_FPS,
+                FrameRatePolicy.targetFps(5000, Double.MAX_VALUE), 1e-9);
+    }
+
+    @Test
+    public void choosesTheSlowestRangeCoveringTheRate() {
+        assertEquals(0, FrameRatePolicy.chooseFpsRange(LOWERS, UPPERS, 10));
+        assertEquals(4, FrameRatePolicy.chooseFpsRange(LOWERS, UPPERS, 23.5));
+    }
+
+    @Test
+    public void prefersTheHighestLowerBound() {
+        assertEquals(2, FrameRatePolicy.chooseFpsRange(LOWERS, UPPERS, 25));
+    }
+
+    @Test
+    public void fallsBackToTheFastestRange() {
+        assertEquals(1, FrameRatePolicy.chooseFpsRange(LOWERS, UPPERS, 60));
+        assertEquals(-1, FrameRatePolicy.chooseFpsRange(new int[0], new int[0], 30));
+    }
+}
@@ -0,0 +1,71 @@
+package com.steigensoft.atcamera;
+
+import org.junit.Test;
+
+import static com.steigensoft.atcamera.MeteringPolicy.Action.NONE;
+import static com.steigensoft.atcamera.MeteringPolicy.Action.RESET;
+import static com.steigensoft.atcamera.MeteringPolicy.Action.UPDATE;
+import static org.junit.Assert.*;
+
+public class MeteringPolicyTest {
+
+    private static final long INTERVAL = 500;
+    private static final long RESET_AFTER = 3000;
+
+    private final MeteringPolicy policy = new MeteringPolicy(INTERVAL, RESET_AFTER);
+
+    @Test
+    public void updatesAreRateLimited() {
+        assertEquals(UPDATE, policy.onResults(1, 1000));
+        assertEquals(NONE, policy.onResults(2, 1200));
+        assertEquals(NONE, policy.onResults(2, 1499));
+        assertEquals(UPDATE, policy.onResults(2, 1500));
+        assertTrue(policy.isMeteringOnRegions());
+    }
+
+    @Test
+    public void resetsAfterAWhileWithoutDetections() {
+        assertEquals(UPDATE, policy.onResults(1, 1000));
+        assertEquals(NONE, policy.onResults(0, 2000));
+        assertEquals(NONE, policy.onResults(0, 3999));
+        assertEquals(RESET, policy.onResults(0, 4000));
+        assertFalse(policy.isMeteringOnRegions());
+        // Only once.
+        assertEquals(NONE, policy.onResults(0, 5000));
+    }
+
+    @Test
+    public void resetsOnFailure() {
+        assertEquals(NONE, policy.onFailure(500));
+        assertEquals(UPDATE, policy.onResults(1, 1000));
+        assertEquals(RESET, policy.onFailure(1100));
+        assertFalse(policy.isMeteringOnRegions());
+        assertEquals(NONE, policy.onFailure(1200));
+        // Detections after the failure meter on regions again, rate limited from the reset.
+        assertEquals(NONE, policy.onResults(1, 1300));
+        assertEquals(UPDATE, policy.onResults(1, 1600));
+    }
+
+    @Test
+    public void resetsWhenResultsStopArriving() {
+        assertEquals(MeteringPolicy.NOT_ON_REGIONS, policy.millisUntilStale(0));
+        assertEquals(UPDATE, policy.onResults(1, 1000));
+        assertEquals(RESET_AFTER, policy.millisUntilStale(1000));
+        // Results without detections keep the regions fresh until the detection reset.
+        assertEquals(NONE, policy.onResults(0, 2000));
+        assertEquals(2000, policy.millisUntilStale(3000));
+        assertEquals(NONE, policy.checkStale(4999));
+        assertEquals(RESET, policy.checkStale(5000));
+        assertEquals(MeteringPolicy.NOT_ON_REGIONS, policy.millisUntilStale(5000));
+        assertEquals(NONE, policy.checkStale(9000));
+    }
+
+    @Test
+    public void disableForgetsTheRegions() {
+        assertFalse(policy.disable());
+        assertEquals(UPDATE, policy.onResults(1, 1000));
+        assertTrue(policy.disable());
+        assertFalse(policy.isMeteringOnRegions());
+        assertEquals(NONE, policy.checkStale(10000));
+    }
+}
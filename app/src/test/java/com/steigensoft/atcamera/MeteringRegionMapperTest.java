@@ -0,0 +1,123 @@
+package com.steigensoft.atcamera;
+
+import android.graphics.Rect;
+
+import com.steigensoft.atcamera.mlkit.ViewTransform;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MeteringRegionMapperTest {
+
+    private static final int VIEW_WIDTH = 400;
+    private static final int VIEW_HEIGHT = 300;
+
+    private final MeteringRegionMapper mapper = new MeteringRegionMapper();
+    private final Rect out = new Rect();
+
+    private static Rect rect(int left, int top, int right, int bottom) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = right;
+        rect.bottom = bottom;
+        return rect;
+    }
+
+    private static void assertRect(int left, int top, int right, int bottom, Rect actual) {
+        assertEquals("left", left, actual.left);
+        assertEquals("top", top, actual.top);
+        assertEquals("right", right, actual.right);
+        assertEquals("bottom", bottom, actual.bottom);
+    }
+
+    /** Values of a matrix rotating by degrees, a multiple of 90, around the view center. */
+    private static float[] rotation(int degrees) {
+        float cos = Math.round(Math.cos(Math.toRadians(degrees)));
+        float sin = Math.round(Math.sin(Math.toRadians(degrees)));
+        float cx = VIEW_WIDTH / 2f;
+        float cy = VIEW_HEIGHT / 2f;
+        return new float[]{
+                cos, -sin, cx - cos * cx + sin * cy,
+                sin, cos, cy - sin * cx - cos * cy,
+                0, 0, 1};
+    }
+
+    private static float[] identity() {
+        return new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+    }
+
+    @Before
+    public void setUp() {
+        mapper.setSensor(rect(0, 0, 4000, 3000), 0);
+    }
+
+    @Test
+    public void nothingIsMappedBeforeTheSensorIsKnown() {
+        MeteringRegionMapper unknown = new MeteringRegionMapper();
+        assertFalse(unknown.hasSensor());
+        assertFalse(unknown.map(rect(0, 0, 10, 10), 100, 100, out));
+    }
+
+    @Test
+    public void scalesTheFrameToTheActiveArray() {
+        mapper.setViewTransform(new ViewTransform(identity(), VIEW_WIDTH, VIEW_HEIGHT));
+        // The frame may be grabbed at a lower resolution than the view.
+        assertTrue(mapper.map(rect(50, 30, 100, 90), 200, 150, out));
+        assertRect(1000, 600, 2000, 1800, out);
+    }
+
+    @Test
+    public void undoesTheSensorOrientation() {
+        mapper.setSensor(rect(100, 0, 4100, 3000), 90);
+        mapper.clearViewTransform();
+        // Top left quarter of the upright image is the bottom left quarter of the sensor image.
+        assertTrue(mapper.map(rect(0, 0, 50, 50), 100, 100, out));
+        assertRect(100, 1500, 2100, 3000, out);
+
+        mapper.setSensor(rect(0, 0, 4000, 3000), 270);
+        assertTrue(mapper.map(rect(0, 0, 50, 50), 100, 100, out));
+        assertRect(2000, 0, 4000, 1500, out);
+
+        mapper.setSensor(rect(0, 0, 4000, 3000), 180);
+        assertTrue(mapper.map(rect(0, 0, 50, 50), 100, 100, out));
+        assertRect(2000, 1500, 4000, 3000, out);
+    }
+
+    @Test
+    public void undoesTheViewRotation() {
+        // Display upside down: the top left corner of the view shows the bottom right corner of
+        // the camera image.
+        mapper.setViewTransform(new ViewTransform(rotation(180), VIEW_WIDTH, VIEW_HEIGHT));
+        assertTrue(mapper.map(rect(0, 0, 100, 75), VIEW_WIDTH, VIEW_HEIGHT, out));
+        assertRect(3000, 2250, 4000, 3000, out);
+    }
+
+    @Test
+    public void undoesAQuarterTurnOfTheView() {
+        mapper.setViewTransform(new ViewTransform(rotation(90), VIEW_WIDTH, VIEW_HEIGHT));
+        // The view shows x' = 350 - y, y' = x - 50, so the view box (200, 100)-(250, 150) comes
+        // from x in [150, 200] and y in [100, 150] of the image.
+        assertTrue(mapper.map(rect(200, 100, 250, 150), VIEW_WIDTH, VIEW_HEIGHT, out));
+        assertRect(1500, 1000, 2000, 1500, out);
+    }
+
+    @Test
+    public void clipsBoxesToTheImage() {
+        mapper.setViewTransform(new ViewTransform(identity(), VIEW_WIDTH, VIEW_HEIGHT));
+        assertTrue(mapper.map(rect(-40, -30, 200, 150), VIEW_WIDTH, VIEW_HEIGHT, out));
+        assertRect(0, 0, 2000, 1500, out);
+        assertFalse(mapper.map(rect(-40, -30, -10, -5), VIEW_WIDTH, VIEW_HEIGHT, out));
+    }
+
+    @Test
+    public void ignoresSingularTransforms() {
+        float[] singular = {0, 0, 0, 0, 0, 0, 0, 0, 1};
+        mapper.setViewTransform(new ViewTransform(singular, VIEW_WIDTH, VIEW_HEIGHT));
+        // Falls back to the frame coordinates.
+        assertTrue(mapper.map(rect(0, 0, 50, 50), 100, 100, out));
+        assertRect(0, 0, 2000, 1500, out);
+    }
+}
@@ -0,0 +1,109 @@
+package com.steigensoft.atcamera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PresenceControllerTest {
+
+    private static final int SAMPLES = 40 * 30;
+
+    private final PresenceController controller = new PresenceController(1000, 2.0, 0.01f);
+    private final List<PresenceController.State> transitions = new ArrayList<>();
+
+    public PresenceControllerTest() {
+        controller.setListener(new PresenceController.Listener() {
+            @Override
+            public void onStateChanged(PresenceController.State state) {
+                transitions.add(state);
+            }
+        });
+    }
+
+    private static byte[] frame(int luma) {
+        byte[] samples = new byte[SAMPLES];
+        Arrays.fill(samples, (byte) luma);
+        return samples;
+    }
+
+    /** Runs the controller idle, with its first motion reference taken at the given time. */
+    private void goIdle(long now) {
+        controller.shouldAnalyze(0);
+        assertTrue(controller.shouldAnalyze(now));
+        assertTrue(controller.isIdle());
+        assertFalse(controller.onIdleSamples(frame(100), SAMPLES, now));
+    }
+
+    @Test
+    public void staysActiveWhileFacesAreSeen() {
+        controller.shouldAnalyze(0);
+        for (long now = 0; now < 5000; now += 100) {
+            controller.onHardwareFaces(1, now);
+            assertTrue(controller.shouldAnalyze(now));
+        }
+        assertEquals(PresenceController.State.ACTIVE, controller.getState());
+        assertTrue(transitions.isEmpty());
+    }
+
+    @Test
+    public void goesIdleAndThrottlesFrames() {
+        goIdle(1000);
+        assertEquals(Arrays.asList(PresenceController.State.IDLE), transitions);
+        // 2 fps idle rate: one frame per 500 ms.
+        assertFalse(controller.shouldAnalyze(1100));
+        assertFalse(controller.shouldAnalyze(1499));
+        assertTrue(controller.shouldAnalyze(1500));
+        assertFalse(controller.shouldAnalyze(1600));
+    }
+
+    @Test
+    public void motionWakesUp() {
+        goIdle(1000);
+        byte[] next = frame(100);
+        // A small object entering a corner of the scene, well above noise.
+        for (int i = 0; i < SAMPLES / 20; i++) {
+            next[i] = (byte) 200;
+        }
+        assertTrue(controller.onIdleSamples(next, SAMPLES, 1500));
+        assertEquals(PresenceController.State.ACTIVE, controller.getState());
+        assertEquals(1, controller.getWakeCount());
+        // The very next camera frame is analysed in full.
+        assertTrue(controller.shouldAnalyze(1533));
+        assertTrue(controller.shouldAnalyze(1566));
+    }
+
+    @Test
+    public void noiseAndSlowChangesDoNotWake() {
+        goIdle(1000);
+        for (int i = 1; i <= 20; i++) {
+            // Dusk: the scene darkens by a few levels per idle frame.
+            assertFalse(controller.onIdleSamples(frame(100 - 2 * i), SAMPLES, 1000 + 500 * i));
+        }
+        assertTrue(controller.isIdle());
+    }
+
+    @Test
+    public void hardwareFacesWakeUp() {
+        goIdle(1000);
+        controller.onHardwareFaces(0, 1100);
+        assertTrue(controller.isIdle());
+        controller.onHardwareFaces(2, 1133);
+        assertFalse(controller.isIdle());
+        assertEquals(Arrays.asList(PresenceController.State.IDLE, PresenceController.State.ACTIVE),
+                transitions);
+    }
+
+    @Test
+    public void goesIdleAgainAfterWakeUp() {
+        goIdle(1000);
+        controller.onHardwareFaces(1, 2000);
+        assertTrue(controller.shouldAnalyze(2999));
+        assertFalse(controller.isIdle());
+        assertTrue(controller.shouldAnalyze(3000));
+        assertTrue(controller.isIdle());
+    }
+}
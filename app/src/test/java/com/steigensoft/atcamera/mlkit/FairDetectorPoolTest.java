@@ -0,0 +1,263 @@
+package com.steigensoft.atcamera.mlkit;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FairDetectorPoolTest {
+
+    /** Keeps its lane busy by submitting a successor every time it runs. */
+    private static class BusyJob implements FairDetectorPool.Job {
+        private final FairDetectorPool pool;
+        private final String lane;
+        private final AtomicInteger runs;
+        private final CountDownLatch total;
+
+        BusyJob(FairDetectorPool pool, String lane, AtomicInteger runs, CountDownLatch total) {
+            this.pool = pool;
+            this.lane = lane;
+            this.runs = runs;
+            this.total = total;
+        }
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+            total.countDown();
+            if (total.getCount() > 0) {
+                pool.submit(lane, new BusyJob(pool, lane, runs, total));
+            }
+        }
+
+        @Override
+        public void discard() {
+        }
+    }
+
+    /**
+     * Holds its worker for a simulated inference, as camera jobs wait for the detector, and
+     * resubmits itself a number of times each run, as a camera delivers frames meanwhile.
+     */
+    private static class InferenceJob implements FairDetectorPool.Job {
+        private final FairDetectorPool pool;
+        private final String lane;
+        private final int framesPerInference;
+        private final AtomicInteger runs;
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+        private final CountDownLatch total;
+
+        InferenceJob(FairDetectorPool pool, String lane, int framesPerInference,
+                     AtomicInteger runs, AtomicInteger running, AtomicInteger maxRunning,
+                     CountDownLatch total) {
+            this.pool = pool;
+            this.lane = lane;
+            this.framesPerInference = framesPerInference;
+            this.runs = runs;
+            this.running = running;
+            this.maxRunning = maxRunning;
+            this.total = total;
+        }
+
+        @Override
+        public void run() {
+            int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            runs.incrementAndGet();
+            total.countDown();
+            if (total.getCount() > 0) {
+                for (int i = 0; i < framesPerInference; i++) {
+                    pool.submit(lane, new InferenceJob(pool, lane, framesPerInference, runs,
+                            running, maxRunning, total));
+                }
+            }
+        }
+
+        @Override
+        public void discard() {
+        }
+    }
+
+    /**
+     * Occupies the worker of a single worker pool until the returned latch is counted down, so
+     * that lanes submitted meanwhile all start out queued.
+     */
+    private static CountDownLatch holdWorker(FairDetectorPool pool) throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        pool.submit("hold", new FairDetectorPool.Job() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void discard() {
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void floodingCameraCannotStarveAQuietOne() throws Exception {
+        FairDetectorPool pool = new FairDetectorPool(1);
+        AtomicInteger flood = new AtomicInteger();
+        AtomicInteger quiet = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch total = new CountDownLatch(60);
+
+        CountDownLatch release = holdWorker(pool);
+        pool.submit("flood", new InferenceJob(pool, "flood", 5, flood, running, maxRunning,
+                total));
+        pool.submit("quiet", new InferenceJob(pool, "quiet", 1, quiet, running, maxRunning,
+                total));
+        release.countDown();
+        assertTrue(total.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertTrue(flood.get() + " vs " + quiet.get(), Math.abs(flood.get() - quiet.get()) <= 2);
+    }
+
+    @Test
+    public void inferencesNeverOutnumberWorkers() throws Exception {
+        FairDetectorPool pool = new FairDetectorPool(2);
+        String[] lanes = {"a", "b", "c", "d"};
+        AtomicInteger[] runs = new AtomicInteger[lanes.length];
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch total = new CountDownLatch(80);
+
+        for (int i = 0; i < lanes.length; i++) {
+            runs[i] = new AtomicInteger();
+            pool.submit(lanes[i], new InferenceJob(pool, lanes[i], 3, runs[i], running,
+                    maxRunning, total));
+        }
+        assertTrue(total.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertTrue("max " + maxRunning.get(), maxRunning.get() <= 2);
+        for (AtomicInteger laneRuns : runs) {
+            assertTrue("runs " + laneRuns.get(), laneRuns.get() >= 15);
+        }
+    }
+
+    @Test
+    public void sharesTurnsByWeight() throws Exception {
+        FairDetectorPool pool = new FairDetectorPool(1);
+        pool.setWeight("heavy", 2);
+        pool.setWeight("light", 1);
+        AtomicInteger heavy = new AtomicInteger();
+        AtomicInteger light = new AtomicInteger();
+        CountDownLatch total = new CountDownLatch(300);
+
+        CountDownLatch release = holdWorker(pool);
+        pool.submit("heavy", new BusyJob(pool, "heavy", heavy, total));
+        pool.submit("light", new BusyJob(pool, "light", light, total));
+        release.countDown();
+        assertTrue(total.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        double ratio = heavy.get() / (double) light.get();
+        assertTrue("ratio " + ratio, ratio > 1.8 && ratio < 2.2);
+    }
+
+    @Test
+    public void equalWeightsAlternate() throws Exception {
+        FairDetectorPool pool = new FairDetectorPool(1);
+        AtomicInteger a = new AtomicInteger();
+        AtomicInteger b = new AtomicInteger();
+        CountDownLatch total = new CountDownLatch(100);
+
+        CountDownLatch release = holdWorker(pool);
+        pool.submit("a", new BusyJob(pool, "a", a, total));
+        pool.submit("b", new BusyJob(pool, "b", b, total));
+        release.countDown();
+        assertTrue(total.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertTrue(Math.abs(a.get() - b.get()) <= 2);
+    }
+
+    @Test
+    public void tokenBucketCapsRate() throws Exception {
+        FairDetectorPool pool = new FairDetectorPool(2);
+        pool.setTokenBucket(new InferenceTokenBucket(50, 1));
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch total = new CountDownLatch(20);
+
+        long start = System.nanoTime();
+        pool.submit("a", new BusyJob(pool, "a", runs, total));
+        pool.submit("b", new BusyJob(pool, "b", runs, total));
+        assertTrue(total.await(5, TimeUnit.SECONDS));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        pool.shutdown();
+
+        // One token up front, then 19 more at 50 per second.
+        assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 300);
+    }
+
+    @Test
+    public void newerJobReplacesPending() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger discarded = new AtomicInteger();
+        final AtomicInteger ran = new AtomicInteger();
+        FairDetectorPool pool = new FairDetectorPool(1);
+        pool.submit("a", new FairDetectorPool.Job() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void discard() {
+            }
+        });
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        final CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 3; i++) {
+            pool.submit("a", new FairDetectorPool.Job() {
+                @Override
+                public void run() {
+                    ran.incrementAndGet();
+                    done.countDown();
+                }
+
+                @Override
+                public void discard() {
+                    discarded.incrementAndGet();
+                }
+            });
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertEquals(1, ran.get());
+        assertEquals(2, discarded.get());
+    }
+}
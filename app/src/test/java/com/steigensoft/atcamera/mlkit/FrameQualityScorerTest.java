@@ -0,0 +1,190 @@
+package com.steigensoft.atcamera.mlkit;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameQualityScorerTest {
+
+    // Analysis resolution of the camera pipeline.
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private final FrameQualityScorer scorer = new FrameQualityScorer();
+
+    /** Random texture, 8 pixel blocks of mid-range luma. */
+    private static ByteBuffer texture(long seed) {
+        Random random = new Random(seed);
+        byte[] blocks = new byte[(WIDTH / 8) * (HEIGHT / 8)];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = (byte) (40 + random.nextInt(176));
+        }
+        ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3 / 2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame.put(y * WIDTH + x, blocks[(y / 8) * (WIDTH / 8) + x / 8]);
+            }
+        }
+        return frame;
+    }
+
+    /** Box blur over a window of the given radius, as a stand in for motion blur or defocus. */
+    private static ByteBuffer blur(ByteBuffer frame, int radius) {
+        ByteBuffer out = ByteBuffer.allocateDirect(frame.capacity());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        int sx = Math.max(0, Math.min(WIDTH - 1, x + dx));
+                        int sy = Math.max(0, Math.min(HEIGHT - 1, y + dy));
+                        sum += frame.get(sy * WIDTH + sx) & 0xff;
+                        count++;
+                    }
+                }
+                out.put(y * WIDTH + x, (byte) (sum / count));
+            }
+        }
+        return out;
+    }
+
+    private static ByteBuffer flat(int luma) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3 / 2);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            frame.put(i, (byte) luma);
+        }
+        return frame;
+    }
+
+    private void score(ByteBuffer frame) {
+        scorer.score(frame, WIDTH, HEIGHT, WIDTH);
+    }
+
+    @Test
+    public void blurLowersSharpness() {
+        ByteBuffer sharp = texture(1);
+        score(sharp);
+        float sharpScore = scorer.getSharpness();
+        assertTrue(scorer.isAcceptable());
+
+        // Blurred this much the texture is useless, thresholds are tuned per scene.
+        scorer.setMinSharpness(sharpScore / 10);
+        score(blur(sharp, 6));
+        float blurredScore = scorer.getSharpness();
+        assertTrue(sharpScore + " vs " + blurredScore, blurredScore * 10 < sharpScore);
+        assertFalse(sharpScore + " vs " + blurredScore, scorer.isAcceptable());
+    }
+
+    @Test
+    public void flatFrameHasNoSharpness() {
+        score(flat(128));
+        assertEquals(0f, scorer.getSharpness(), 1e-3f);
+        assertEquals(128f, scorer.getMeanLuma(), 1e-3f);
+        assertEquals(0f, scorer.getDarkFraction(), 0f);
+        assertEquals(0f, scorer.getBrightFraction(), 0f);
+    }
+
+    @Test
+    public void measuresClipping() {
+        ByteBuffer frame = texture(2);
+        // Top quarter black, bottom quarter white.
+        for (int i = 0; i < WIDTH * HEIGHT / 4; i++) {
+            frame.put(i, (byte) 0);
+            frame.put(WIDTH * HEIGHT - 1 - i, (byte) 255);
+        }
+        score(frame);
+        assertEquals(0.25f, scorer.getDarkFraction(), 0.01f);
+        assertEquals(0.25f, scorer.getBrightFraction(), 0.01f);
+        assertTrue(scorer.isAcceptable());
+
+        scorer.setMaxDarkFraction(0.2f);
+        assertFalse(scorer.isAcceptable());
+    }
+
+    @Test
+    public void dropsUnderexposedFrames() {
+        score(flat(5));
+        assertEquals(1f, scorer.getDarkFraction(), 0f);
+        assertFalse(scorer.isAcceptable());
+    }
+
+    @Test
+    public void storesScoresInMetadata() {
+        score(texture(3));
+        FrameMetadata metadata = scorer.applyTo(new FrameMetadata.Builder().setWidth(WIDTH)).build();
+        assertTrue(metadata.hasQuality());
+        assertEquals(scorer.getSharpness(), metadata.getSharpness(), 0f);
+        assertEquals(WIDTH, new FrameMetadata.Builder(metadata).build().getWidth());
+        assertFalse(new FrameMetadata.Builder().build().hasQuality());
+    }
+
+    @Test
+    public void picksSharpestFrameOfBurst() {
+        ByteBuffer sharp = texture(4);
+        ByteBuffer[] burst = {blur(sharp, 3), sharp, blur(sharp, 1), blur(sharp, 6)};
+        int best = -1;
+        float bestScore = -1f;
+        for (int i = 0; i < burst.length; i++) {
+            score(burst[i]);
+            float quality = scorer.applyTo(new FrameMetadata.Builder()).build().getQualityScore();
+            if (quality > bestScore) {
+                bestScore = quality;
+                best = i;
+            }
+        }
+        assertEquals(1, best);
+    }
+
+    @Test
+    public void scoresWithoutAllocating() {
+        ByteBuffer frame = texture(5);
+        for (int i = 0; i < 2000; i++) {
+            score(frame);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threads);
+        for (int i = 0; i < 1000; i++) {
+            score(frame);
+        }
+        long allocated = allocatedBytes(threads) - allocatedBefore;
+        if (allocatedBefore >= 0) {
+            assertEquals(0, allocated);
+        }
+    }
+
+    /**
+     * Reports the per-frame cost at the largest preview size. Not a check: the time depends on
+     * the machine, the number is for reading off the log.
+     */
+    @Test
+    public void benchmarkScoringAtPreviewResolution() {
+        int width = 1920;
+        int height = 1080;
+        ByteBuffer frame = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        Random random = new Random(7);
+        for (int i = 0; i < width * height; i++) {
+            frame.put(i, (byte) (40 + random.nextInt(176)));
+        }
+
+        FrameQualityBenchmark.Result result =
+                FrameQualityBenchmark.run(scorer, frame, width, height, width, 200);
+
+        assertEquals(200, result.rounds);
+        assertTrue(result.toString(), result.microsPerFrame > 0);
+    }
+
+    /** Bytes allocated by this thread so far, or -1 where the JVM does not tell. */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
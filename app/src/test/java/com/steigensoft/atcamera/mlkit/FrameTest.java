@@ -0,0 +1,114 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Bitmap;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameTest {
+
+    private final MemoryBudget budget = new MemoryBudget(1 << 20);
+    private final BufferPool pool = new BufferPool(100, 4, budget.stage("frames"));
+    private int bitmapReleases;
+
+    @After
+    public void disableLeakDetection() {
+        Frame.setLeakDetection(false);
+    }
+
+    private Frame bitmapFrame() {
+        return Frame.ofBitmap(null, null, new Frame.Releaser() {
+            @Override
+            public void release(Bitmap bitmap) {
+                bitmapReleases++;
+            }
+        });
+    }
+
+    @Test
+    public void lastReleaseFreesOnce() {
+        Frame frame = bitmapFrame();
+        frame.retain();
+        frame.retain();
+        assertEquals(3, frame.getRefCount());
+        assertFalse(frame.release());
+        assertFalse(frame.release());
+        assertEquals(0, bitmapReleases);
+        assertTrue(frame.release());
+        assertEquals(1, bitmapReleases);
+    }
+
+    @Test
+    public void bufferGoesBackToItsPool() {
+        ByteBuffer buffer = pool.acquire(0);
+        Frame frame = Frame.ofBuffer(buffer, pool, null);
+        assertSame(buffer, frame.getBuffer());
+        frame.retain();
+        frame.release();
+        frame.release();
+        // The next frame reuses the buffer instead of allocating.
+        assertSame(buffer, pool.acquire(0));
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void retainAfterReleaseFails() {
+        Frame frame = bitmapFrame();
+        frame.release();
+        try {
+            frame.retain();
+            fail("retained a released frame");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void extraReleaseFailsWithoutFreeingTwice() {
+        Frame frame = bitmapFrame();
+        frame.release();
+        try {
+            frame.release();
+            fail("released a frame twice");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        assertEquals(1, bitmapReleases);
+        assertEquals(0, frame.getRefCount());
+    }
+
+    @Test
+    public void releasedFramesAreNotTracked() {
+        Frame.setLeakDetection(true);
+        int before = Frame.getTrackedCount();
+        Frame frame = bitmapFrame();
+        assertEquals(before + 1, Frame.getTrackedCount());
+        frame.release();
+        assertEquals(before, Frame.getTrackedCount());
+    }
+
+    @Test
+    public void reportsAndFreesLeakedFrames() throws InterruptedException {
+        Frame.setLeakDetection(true);
+        int leaks = Frame.reportLeaks();
+        ByteBuffer buffer = pool.acquire(0);
+        leak(buffer);
+        for (int i = 0; i < 50 && Frame.reportLeaks() == leaks; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(leaks + 1, Frame.reportLeaks());
+        // The leaked buffer went back to the pool after all.
+        assertSame(buffer, pool.acquire(0));
+    }
+
+    private void leak(ByteBuffer buffer) {
+        Frame frame = Frame.ofBuffer(buffer, pool, null);
+        frame.retain();
+        frame.release();
+    }
+}
@@ -0,0 +1,127 @@
+package com.steigensoft.atcamera.mlkit;
+
+import com.steigensoft.atcamera.mlkit.ipcamera.MjpegParser;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    private final MemoryBudget budget = new MemoryBudget(1000);
+
+    @Test
+    public void refusesAboveCeiling() {
+        MemoryBudget.Stage grab = budget.stage("grab");
+        MemoryBudget.Stage inference = budget.stage("inference");
+        assertTrue(grab.tryReserve(600));
+        assertTrue(inference.tryReserve(400));
+        assertFalse(grab.tryReserve(1));
+        assertEquals(1, grab.getRefusedCount());
+        assertEquals(0, inference.getRefusedCount());
+        assertEquals(1, budget.getRefusedCount());
+        inference.release(400);
+        assertTrue(grab.tryReserve(400));
+        assertEquals(1000, budget.getLiveBytes());
+    }
+
+    @Test
+    public void tracksHighWaterPerStage() {
+        MemoryBudget.Stage grab = budget.stage("grab");
+        MemoryBudget.Stage still = budget.stage("still");
+        grab.tryReserve(300);
+        grab.tryReserve(300);
+        grab.release(600);
+        still.tryReserve(500);
+        assertEquals(0, grab.getLiveBytes());
+        assertEquals(600, grab.getHighWaterBytes());
+        assertEquals(500, still.getLiveBytes());
+        assertEquals(500, still.getHighWaterBytes());
+        assertEquals(600, budget.getHighWaterBytes());
+        assertSame(grab, budget.stage("grab"));
+        assertEquals(2, budget.getStages().size());
+    }
+
+    @Test
+    public void unconditionalReservationsCountTowardCeiling() {
+        MemoryBudget.Stage stream = budget.stage("mjpeg");
+        stream.reserve(1200);
+        assertEquals(1200, budget.getLiveBytes());
+        assertFalse(budget.stage("grab").tryReserve(1));
+        stream.release(1200);
+        assertTrue(budget.stage("grab").tryReserve(1));
+    }
+
+    @Test
+    public void overReleaseIsClamped() {
+        MemoryBudget.Stage grab = budget.stage("grab");
+        grab.tryReserve(100);
+        grab.release(150);
+        assertEquals(0, grab.getLiveBytes());
+        assertEquals(0, budget.getLiveBytes());
+    }
+
+    @Test
+    public void poolAccountsAllocatedBuffers() {
+        MemoryBudget.Stage stage = budget.stage("pool");
+        BufferPool pool = new BufferPool(100, 2, stage);
+        ByteBuffer first = pool.acquire(0);
+        ByteBuffer second = pool.acquire(0);
+        assertEquals(200, stage.getLiveBytes());
+        pool.release(first);
+        pool.release(second);
+        // Pooled buffers are still live, reusing them costs nothing.
+        assertEquals(200, stage.getLiveBytes());
+        assertSame(first, pool.tryAcquire(0));
+        pool.release(first);
+        // Growing drops the pooled buffers.
+        ByteBuffer larger = pool.acquire(300);
+        assertEquals(300, stage.getLiveBytes());
+        pool.release(larger);
+        pool.clear();
+        assertEquals(0, stage.getLiveBytes());
+    }
+
+    @Test
+    public void poolRefusesWhenBudgetIsFull() {
+        MemoryBudget.Stage stage = budget.stage("pool");
+        BufferPool pool = new BufferPool(400, 4, stage);
+        List<ByteBuffer> held = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            held.add(pool.tryAcquire(0));
+        }
+        assertNull(pool.tryAcquire(0));
+        pool.release(held.remove(0));
+        assertNotNull(pool.tryAcquire(0));
+        assertEquals(2, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void parserSkipsFramesTheBudgetHasNoRoomFor() {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        final BufferPool pool = new BufferPool(300, 1, budget.stage("mjpeg"));
+        MjpegParser parser = new MjpegParser("frame", pool, new MjpegParser.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer jpeg) {
+                frames.add(jpeg);
+            }
+        });
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            stream.append("--frame\r\nContent-Type: image/jpeg\r\nContent-Length: 4\r\n\r\n")
+                    .append("\u00ff\u00d8").append((char) ('0' + i)).append("\u00d9\r\n");
+        }
+        byte[] bytes = stream.toString().getBytes(Charset.forName("ISO-8859-1"));
+        parser.feed(ByteBuffer.wrap(bytes));
+        // Nobody releases the frames, so the budget fills after three of them.
+        assertEquals(3, frames.size());
+        assertEquals(2, parser.getFramesDropped());
+        assertEquals('2', (char) frames.get(2).get(2));
+        assertEquals(900, budget.getLiveBytes());
+    }
+}
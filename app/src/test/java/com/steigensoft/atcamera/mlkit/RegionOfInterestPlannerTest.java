@@ -0,0 +1,146 @@
+package com.steigensoft.atcamera.mlkit;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RegionOfInterestPlannerTest {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+
+    private final RegionOfInterestPlanner planner =
+            new RegionOfInterestPlanner(4, 500, 0.5f, 120, 2f);
+    private final Rect crop = new Rect();
+
+    private float plan(long now) {
+        return planner.plan(WIDTH, HEIGHT, null, now, crop);
+    }
+
+    private void report(boolean fullFrame, long now, int... boxes) {
+        planner.beginResults();
+        for (int i = 0; i < boxes.length; i += 4) {
+            planner.addResult(boxes[i], boxes[i + 1], boxes[i + 2], boxes[i + 3]);
+        }
+        planner.endResults(fullFrame, now);
+    }
+
+    private static Rect rect(int left, int top, int right, int bottom) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = right;
+        rect.bottom = bottom;
+        return rect;
+    }
+
+    private void assertCrop(int left, int top, int right, int bottom) {
+        assertEquals(left, crop.left);
+        assertEquals(top, crop.top);
+        assertEquals(right, crop.right);
+        assertEquals(bottom, crop.bottom);
+    }
+
+    @Test
+    public void scansWholeFrameWithoutResults() {
+        assertEquals(0f, plan(0), 0f);
+        report(true, 0);
+        assertEquals(0f, plan(10), 0f);
+        assertEquals(2, planner.getFullScanCount());
+        assertEquals(0, planner.getCropCount());
+    }
+
+    @Test
+    public void cropsAroundResultsWithMargin() {
+        plan(0);
+        report(true, 0, 300, 200, 500, 400, 600, 250, 720, 370);
+        assertEquals(1f, plan(10), 0f);
+        // Union 300..720 x 200..400, half of its size added on each side.
+        assertCrop(90, 100, 930, 500);
+    }
+
+    @Test
+    public void alignsCropToEvenPixels() {
+        plan(0);
+        report(true, 0, 301, 201, 503, 403);
+        plan(10);
+        assertEquals(0, crop.left & 1);
+        assertEquals(0, crop.top & 1);
+        assertEquals(0, crop.right & 1);
+        assertEquals(0, crop.bottom & 1);
+    }
+
+    @Test
+    public void upscalesSmallObjects() {
+        plan(0);
+        report(true, 0, 600, 300, 660, 360);
+        // 60 pixels against a 120 pixel target.
+        assertEquals(2f, plan(10), 1e-6f);
+        report(false, 10, 600, 300, 700, 400);
+        assertEquals(1.2f, plan(20), 1e-6f);
+        report(false, 20, 600, 300, 20 + 600, 20 + 300);
+        // Would need 6x, capped.
+        assertEquals(2f, plan(30), 1e-6f);
+    }
+
+    @Test
+    public void scansWholeFrameOnSchedule() {
+        plan(0);
+        for (int i = 1; i <= 3; i++) {
+            report(true, i, 300, 200, 400, 300);
+            assertTrue(plan(i) > 0f);
+        }
+        report(false, 4, 300, 200, 400, 300);
+        assertEquals(0f, plan(4), 0f);
+        assertEquals(3, planner.getCropCount());
+        assertEquals(2, planner.getFullScanCount());
+    }
+
+    @Test
+    public void emptyCropTriggersFullScan() {
+        plan(0);
+        report(true, 0, 300, 200, 400, 300);
+        assertTrue(plan(10) > 0f);
+        report(false, 10);
+        assertEquals(0f, plan(20), 0f);
+    }
+
+    @Test
+    public void forgetsStaleResults() {
+        plan(0);
+        report(true, 0, 300, 200, 400, 300);
+        assertEquals(0f, plan(501), 0f);
+    }
+
+    @Test
+    public void scansWholeFrameWhenCropIsLarge() {
+        plan(0);
+        report(true, 0, 100, 100, 900, 600);
+        assertEquals(0f, plan(10), 0f);
+    }
+
+    @Test
+    public void usesSeedsWhileNothingIsKnown() {
+        List<Rect> seeds = new ArrayList<>();
+        seeds.add(rect(1000, 100, 1200, 300));
+        plan(0);
+        report(true, 0);
+        assertEquals(1f, planner.plan(WIDTH, HEIGHT, seeds, 10, crop), 0f);
+        assertCrop(900, 0, 1280, 400);
+    }
+
+    @Test
+    public void prefersOwnResultsOverSeeds() {
+        List<Rect> seeds = new ArrayList<>();
+        seeds.add(rect(1000, 100, 1200, 300));
+        plan(0);
+        report(true, 0, 300, 200, 500, 400);
+        planner.plan(WIDTH, HEIGHT, seeds, 10, crop);
+        assertCrop(200, 100, 600, 500);
+    }
+}
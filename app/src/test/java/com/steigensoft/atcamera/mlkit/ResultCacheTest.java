@@ -0,0 +1,104 @@
+package com.steigensoft.atcamera.mlkit;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private final PerceptualHash hasher = new PerceptualHash();
+
+    /** Random texture of 32 pixel blocks, with sensor noise of up to the given amplitude. */
+    private static ByteBuffer scene(long seed, int noise, long noiseSeed) {
+        Random random = new Random(seed);
+        byte[] blocks = new byte[(WIDTH / 32) * (HEIGHT / 32)];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = (byte) (40 + random.nextInt(176));
+        }
+        Random grain = new Random(noiseSeed);
+        ByteBuffer frame = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 3 / 2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int luma = (blocks[(y / 32) * (WIDTH / 32) + x / 32] & 0xff)
+                        + (noise > 0 ? grain.nextInt(2 * noise + 1) - noise : 0);
+                frame.put(y * WIDTH + x, (byte) luma);
+            }
+        }
+        return frame;
+    }
+
+    private long hash(ByteBuffer frame) {
+        return hasher.hash(frame, WIDTH, HEIGHT, WIDTH);
+    }
+
+    @Test
+    public void noiseKeepsHashClose() {
+        long clean = hash(scene(1, 0, 0));
+        for (int i = 1; i <= 5; i++) {
+            int distance = PerceptualHash.distance(clean, hash(scene(1, 4, i)));
+            assertTrue("distance " + distance, distance <= ResultCache.DEFAULT_MAX_DISTANCE);
+        }
+    }
+
+    @Test
+    public void differentSceneHashesFarApart() {
+        long first = hash(scene(1, 0, 0));
+        long second = hash(scene(2, 0, 0));
+        assertTrue(PerceptualHash.distance(first, second) > 16);
+    }
+
+    @Test
+    public void hashIgnoresBufferPosition() {
+        ByteBuffer frame = scene(3, 0, 0);
+        long hash = hash(frame);
+        frame.position(0);
+        assertEquals(hash, hash(frame));
+        assertEquals(0, PerceptualHash.distance(hash, hash));
+    }
+
+    @Test
+    public void reusesResultOnNearIdenticalFrame() {
+        ResultCache<String> cache = new ResultCache<>();
+        long hash = hash(scene(1, 0, 0));
+        assertNull(cache.lookup(hash, 0));
+        cache.store(hash, "faces", null, 0, 30000000L);
+        assertEquals("faces", cache.lookup(hash(scene(1, 4, 7)), 100));
+        assertNull(cache.lookup(hash(scene(2, 0, 0)), 200));
+    }
+
+    @Test
+    public void expiresOldResults() {
+        ResultCache<String> cache = new ResultCache<>(4, 1000);
+        cache.store(42L, "faces", null, 0, 1000000L);
+        assertEquals("faces", cache.lookup(42L, 1000));
+        assertNull(cache.lookup(42L, 1001));
+    }
+
+    @Test
+    public void clearForgetsResult() {
+        ResultCache<String> cache = new ResultCache<>();
+        cache.store(42L, "faces", null, 0, 1000000L);
+        cache.clear();
+        assertNull(cache.lookup(42L, 0));
+    }
+
+    @Test
+    public void countsHitsAndSavedTime() {
+        ResultCache<String> cache = new ResultCache<>();
+        cache.lookup(1L, 0);
+        cache.store(1L, "faces", null, 0, 20000000L);
+        cache.lookup(1L, 10);
+        cache.lookup(~1L, 20);
+        cache.lookup(1L, 30);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0.5f, cache.getHitRate(), 1e-6f);
+        assertEquals(40.0, cache.getSavedMillis(), 1e-6);
+    }
+}
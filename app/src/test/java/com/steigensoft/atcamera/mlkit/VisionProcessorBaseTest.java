@@ -0,0 +1,133 @@
+package com.steigensoft.atcamera.mlkit;
+
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.firebase.ml.vision.common.FirebaseVisionImage;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class VisionProcessorBaseTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    /** Records what it is given. Inferences complete through {@link #inference}, if set. */
+    private static class StubProcessor extends VisionProcessorBase<String> {
+        final List<String> results = new ArrayList<>();
+        final List<FirebaseVisionImage> images = new ArrayList<>();
+        TaskCompletionSource<String> inference;
+        int inferences;
+        int started;
+
+        @Override
+        protected void onInferenceStarted() {
+            started++;
+        }
+
+        @Override
+        protected Task<String> detectInImage(FirebaseVisionImage image) {
+            inferences++;
+            if (inference == null) {
+                throw new AssertionError("cached frame went to the detector");
+            }
+            return inference.getTask();
+        }
+
+        @Override
+        protected void onSuccess(String results, FrameMetadata frameMetadata,
+                                 GraphicOverlay graphicOverlay, FirebaseVisionImage image) {
+            this.results.add(results);
+            images.add(image);
+        }
+
+        @Override
+        protected void onFailure(Exception e) {
+            fail(e.toString());
+        }
+    }
+
+    private static ByteBuffer frame() {
+        ByteBuffer data = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                data.put(y * WIDTH + x, (byte) (x < WIDTH / 2 ? 30 : 220));
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void cacheHitIsDeliveredWithoutThrottling() throws Exception {
+        StubProcessor processor = new StubProcessor();
+        processor.setCachedResultExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        });
+        ResultCache<String> cache = new ResultCache<>();
+        processor.setResultCache(cache);
+        ByteBuffer data = frame();
+        FrameMetadata metadata =
+                new FrameMetadata.Builder().setWidth(WIDTH).setHeight(HEIGHT).build();
+        long hash = new PerceptualHash().hash(data, WIDTH, HEIGHT, WIDTH);
+        cache.store(hash, "two faces", metadata, System.currentTimeMillis(), 1000000);
+
+        processor.process(data, metadata, null);
+        assertTrue(processor.isReadyForFrame());
+        // The next frame is not dropped as throttled either.
+        processor.process(data, metadata, null);
+        assertTrue(processor.isReadyForFrame());
+
+        assertEquals(0, processor.inferences);
+        assertEquals(0, processor.started);
+        assertEquals(2, processor.results.size());
+        assertEquals("two faces", processor.results.get(1));
+        assertNull(processor.images.get(0));
+        assertEquals(0, processor.getInferenceMetrics().getFramesDropped());
+        // Reused results are not inferences.
+        assertEquals(0, processor.getInferenceCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void awaitIdleWaitsForTheRunningInference() throws Exception {
+        StubProcessor processor = new StubProcessor();
+        processor.inference = new TaskCompletionSource<>();
+        ByteBuffer data = frame();
+        FrameMetadata metadata =
+                new FrameMetadata.Builder().setWidth(WIDTH).setHeight(HEIGHT).build();
+        assertTrue(processor.awaitIdle(0));
+
+        processor.process(data, metadata, null);
+        assertEquals(1, processor.inferences);
+        assertEquals(1, processor.started);
+        assertFalse(processor.isReadyForFrame());
+        // Dropped by the throttle, the next frame does not start an inference.
+        processor.process(data, metadata, null);
+        assertEquals(1, processor.started);
+        assertFalse(processor.awaitIdle(10));
+
+        final TaskCompletionSource<String> inference = processor.inference;
+        Thread detector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                inference.setResult("one face");
+            }
+        });
+        detector.start();
+        assertTrue(processor.awaitIdle(5000));
+        detector.join();
+
+        assertTrue(processor.isReadyForFrame());
+        assertEquals("one face", processor.results.get(0));
+        assertEquals(1, processor.getInferenceCount());
+    }
+}
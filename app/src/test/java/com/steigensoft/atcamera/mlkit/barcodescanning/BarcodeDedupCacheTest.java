@@ -0,0 +1,129 @@
+package com.steigensoft.atcamera.mlkit.barcodescanning;
+
+import android.graphics.Rect;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BarcodeDedupCacheTest {
+
+    private static final int QR = 256;
+    private static final int EAN_13 = 32;
+
+    private static Rect box(int left, int top) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = left + 100;
+        rect.bottom = top + 100;
+        return rect;
+    }
+
+    /** One result set holding a single code. */
+    private static BarcodeDedupCache.Entry frame(BarcodeDedupCache cache, String value, Rect box,
+                                                 long now) {
+        cache.beginFrame();
+        BarcodeDedupCache.Entry entry = cache.onSighting(value, QR, box, now);
+        cache.endFrame(now);
+        return entry;
+    }
+
+    @Test
+    public void repeatsWithinTtlAreHits() {
+        BarcodeDedupCache cache = new BarcodeDedupCache(16, 1000, 500);
+        assertTrue(frame(cache, "hello", box(0, 0), 0).isNew());
+        for (int t = 33; t < 900; t += 33) {
+            BarcodeDedupCache.Entry entry = frame(cache, "hello", box(t / 33, 0), t);
+            assertFalse(entry.isNew());
+            assertEquals(t, entry.getLastSeenMillis());
+            assertEquals(t / 33, entry.getBox().left);
+        }
+        assertEquals(1, cache.getMissCount());
+        assertEquals(27, cache.getHitCount());
+        assertEquals(27 / 28f, cache.getHitRate(), 0.001);
+
+        // Same value in another format is another code.
+        cache.beginFrame();
+        assertTrue(cache.onSighting("hello", EAN_13, box(0, 0), 900).isNew());
+        cache.endFrame(900);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void codesExpireAfterTtl() {
+        BarcodeDedupCache cache = new BarcodeDedupCache(16, 1000, 500);
+        frame(cache, "a", box(0, 0), 0);
+        frame(cache, "b", box(0, 0), 800);
+        assertEquals(2, cache.size());
+        // "a" was last seen 1500 ms ago.
+        frame(cache, "b", box(0, 0), 1500);
+        assertEquals(1, cache.size());
+        BarcodeDedupCache.Entry entry = frame(cache, "a", box(0, 0), 1600);
+        assertTrue(entry.isNew());
+        assertEquals(1600, entry.getFirstSeenMillis());
+    }
+
+    @Test
+    public void forgetsLeastRecentlySeenBeyondLimit() {
+        BarcodeDedupCache cache = new BarcodeDedupCache(3, 10000, 500);
+        frame(cache, "a", box(0, 0), 0);
+        frame(cache, "b", box(0, 0), 1);
+        frame(cache, "c", box(0, 0), 2);
+        frame(cache, "a", box(0, 0), 3);
+        frame(cache, "d", box(0, 0), 4);
+        assertEquals(3, cache.size());
+        assertFalse(frame(cache, "a", box(0, 0), 5).isNew());
+        assertTrue(frame(cache, "b", box(0, 0), 6).isNew());
+    }
+
+    @Test
+    public void slowsScanningWhileCodesStayPut() {
+        BarcodeDedupCache cache = new BarcodeDedupCache(16, 2000, 500);
+        long t = 0;
+        // Confirmed, but not yet in place for long.
+        for (; t < 1000; t += 50) {
+            assertTrue(cache.shouldScan(t));
+            frame(cache, "hello", box(0, 0), t);
+        }
+        assertTrue(frame(cache, "hello", box(2, 0), t).isSettled(t));
+        assertTrue(cache.isViewSettled());
+
+        int scans = 0;
+        for (t += 50; t < 3000; t += 50) {
+            if (cache.shouldScan(t)) {
+                scans++;
+                frame(cache, "hello", box(2, 0), t);
+            }
+        }
+        assertEquals(4, scans);
+
+        // Moving the code brings back the full rate.
+        while (!cache.shouldScan(t)) {
+            t += 50;
+        }
+        frame(cache, "hello", box(60, 0), t);
+        assertFalse(cache.isViewSettled());
+        assertTrue(cache.shouldScan(t + 50));
+        assertTrue(cache.shouldScan(t + 100));
+
+        // So does a scan that finds nothing.
+        cache.beginFrame();
+        cache.endFrame(t + 100);
+        assertFalse(cache.isViewSettled());
+    }
+
+    @Test
+    public void newCodeInViewKeepsFullRate() {
+        BarcodeDedupCache cache = new BarcodeDedupCache(16, 2000, 500);
+        for (long t = 0; t <= 1500; t += 50) {
+            frame(cache, "hello", box(0, 0), t);
+        }
+        assertTrue(cache.isViewSettled());
+        cache.beginFrame();
+        cache.onSighting("hello", QR, box(0, 0), 1550);
+        cache.onSighting("world", QR, box(300, 0), 1550);
+        cache.endFrame(1550);
+        assertFalse(cache.isViewSettled());
+    }
+}
@@ -0,0 +1,84 @@
+package com.steigensoft.atcamera.mlkit.barcodescanning;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BarcodeFormatLearnerTest {
+
+    private static final int QR = 256;
+    private static final int EAN_13 = 32;
+    private static final int CODE_128 = 1;
+    private static final int ALL = QR | EAN_13 | CODE_128;
+
+    private final BarcodeFormatLearner learner = new BarcodeFormatLearner(ALL, 10, 5, 60000);
+
+    /** Scans the given number of frames finding the formats, returns how often the set changed. */
+    private int scan(int frames, int found, long now) {
+        int changes = 0;
+        for (int i = 0; i < frames; i++) {
+            if (learner.onScan(found, now)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void narrowsToFormatsSeen() {
+        assertEquals(ALL, learner.getActiveFormats());
+        assertEquals(0, scan(5, QR, 0));
+        assertEquals(0, scan(3, EAN_13, 0));
+        assertEquals(1, scan(2, 0, 0));
+        assertTrue(learner.isNarrowed());
+        assertEquals(QR | EAN_13, learner.getActiveFormats());
+    }
+
+    @Test
+    public void staysWideWithoutSightings() {
+        assertEquals(0, scan(30, 0, 0));
+        assertFalse(learner.isNarrowed());
+        assertEquals(ALL, learner.getActiveFormats());
+    }
+
+    @Test
+    public void staysWideWhenEveryFormatShowsUp() {
+        assertEquals(0, scan(10, ALL, 0));
+        assertFalse(learner.isNarrowed());
+    }
+
+    @Test
+    public void widensOnMissStreak() {
+        scan(10, QR, 0);
+        assertEquals(QR, learner.getActiveFormats());
+        assertEquals(0, scan(4, 0, 0));
+        // A hit breaks the streak.
+        assertEquals(0, scan(1, QR, 0));
+        assertEquals(0, scan(4, 0, 0));
+        assertEquals(1, scan(1, 0, 0));
+        assertEquals(ALL, learner.getActiveFormats());
+
+        // And learns again, this time another format is in view.
+        assertEquals(1, scan(10, CODE_128, 0));
+        assertEquals(CODE_128, learner.getActiveFormats());
+        assertEquals(2, learner.getNarrowingCount());
+        assertEquals(1, learner.getWideningCount());
+    }
+
+    @Test
+    public void widensPeriodically() {
+        scan(10, QR, 0);
+        assertTrue(learner.isNarrowed());
+        assertEquals(0, scan(100, QR, 59999));
+        assertEquals(1, scan(1, QR, 60000));
+        assertFalse(learner.isNarrowed());
+        assertEquals(1, scan(10, QR, 60000));
+        assertEquals(QR, learner.getActiveFormats());
+    }
+
+    @Test
+    public void ignoresFormatsOutsideTheSet() {
+        scan(10, QR | 4096, 0);
+        assertEquals(QR, learner.getActiveFormats());
+    }
+}
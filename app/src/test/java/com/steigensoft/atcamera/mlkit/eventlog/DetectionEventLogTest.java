@@ -0,0 +1,209 @@
+package com.steigensoft.atcamera.mlkit.eventlog;
+
+import androidx.annotation.NonNull;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.DetectionListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DetectionEventLogTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final long T0 = 1500000000000L;
+
+    private File directory;
+    private final DetectionEvent event = new DetectionEvent();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("events").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private DetectionEvent event(int i) {
+        event.reset(DetectionEvent.DETECTOR_BARCODE, T0 + i * 10L, 1280, 720);
+        event.setCameraId(i % 3);
+        for (int d = 0; d < 3; d++) {
+            int index = event.add(d, d, d + 10, d + 10);
+            event.setTrackingId(index, i * 10 + d);
+            event.setFormat(index, 256);
+            event.setRawValue(index, d == 2 ? null : "code-" + i + "-" + d);
+        }
+        return event;
+    }
+
+    /** Collects copies of what the reader passes on. */
+    private static class Collector implements DetectionListener {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Integer> cameras = new ArrayList<>();
+        final List<String> rawValues = new ArrayList<>();
+
+        @Override
+        public void onDetections(@NonNull DetectionEvent event) {
+            timestamps.add(event.getTimestampMillis());
+            cameras.add(event.getCameraId());
+            rawValues.add(event.getRawValue(0));
+            assertEquals(3, event.getCount());
+            assertNull(event.getRawValue(2));
+        }
+    }
+
+    @Test
+    public void codecRoundTrips() {
+        DetectionEvent original = new DetectionEvent();
+        original.reset(DetectionEvent.DETECTOR_FACE, T0, 1920, 1080);
+        original.setCameraId(7);
+        original.add(-12, 2, 300, 1079);
+        original.setTrackingId(0, 42);
+        original.setProbabilities(0, 0.5f, 0.25f, DetectionEvent.UNCOMPUTED);
+        original.add(5, 6, 1920, 1080);
+        original.setFormat(1, 256);
+        original.setRawValue(1, "Gr\u00fc\u00dfe \ud83d\ude00");
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            longValue.append('x');
+        }
+        original.add(0, 0, 1, 1);
+        original.setRawValue(2, longValue.toString());
+
+        ByteBuffer buffer = ByteBuffer.allocate(DetectionEventCodec.MAX_ENCODED_SIZE);
+        DetectionEventCodec.encode(original, buffer);
+        assertEquals(DetectionEventCodec.encodedSize(original), buffer.position());
+        buffer.flip();
+
+        DetectionEvent decoded = new DetectionEvent();
+        assertTrue(DetectionEventCodec.decode(buffer, decoded));
+        assertFalse(buffer.hasRemaining());
+        assertEquals(T0, decoded.getTimestampMillis());
+        assertEquals(7, decoded.getCameraId());
+        assertEquals(DetectionEvent.DETECTOR_FACE, decoded.getDetectorType());
+        assertEquals(1920, decoded.getFrameWidth());
+        assertEquals(1080, decoded.getFrameHeight());
+        assertEquals(3, decoded.getCount());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(original.getBox(i).left, decoded.getBox(i).left);
+            assertEquals(original.getBox(i).top, decoded.getBox(i).top);
+            assertEquals(original.getBox(i).right, decoded.getBox(i).right);
+            assertEquals(original.getBox(i).bottom, decoded.getBox(i).bottom);
+            assertEquals(original.getTrackingId(i), decoded.getTrackingId(i));
+            assertEquals(original.getFormat(i), decoded.getFormat(i));
+            assertEquals(original.getSmilingProbability(i), decoded.getSmilingProbability(i), 0);
+            assertEquals(original.getLeftEyeOpenProbability(i),
+                    decoded.getLeftEyeOpenProbability(i), 0);
+            assertEquals(original.getRightEyeOpenProbability(i),
+                    decoded.getRightEyeOpenProbability(i), 0);
+        }
+        assertEquals(-12, decoded.getBox(0).left);
+        assertEquals(1079, decoded.getBox(0).bottom);
+        assertEquals(1920, decoded.getBox(1).right);
+        assertEquals(42, decoded.getTrackingId(0));
+        assertEquals(256, decoded.getFormat(1));
+        assertEquals(DetectionEvent.UNCOMPUTED, decoded.getFormat(0));
+        assertEquals(0.5f, decoded.getSmilingProbability(0), 0);
+        assertEquals(0.25f, decoded.getLeftEyeOpenProbability(0), 0);
+        assertEquals(DetectionEvent.UNCOMPUTED, decoded.getRightEyeOpenProbability(0), 0);
+        assertEquals(DetectionEvent.UNCOMPUTED, decoded.getSmilingProbability(1), 0);
+        assertNull(decoded.getRawValue(0));
+        assertEquals("Gr\u00fc\u00dfe \ud83d\ude00", decoded.getRawValue(1));
+        assertEquals(DetectionEventCodec.MAX_RAW_VALUE_BYTES, decoded.getRawValue(2).length());
+
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+        assertFalse(DetectionEventCodec.decode(buffer, decoded));
+    }
+
+    @Test
+    public void readsBackByTimeRangeAcrossSegments() throws Exception {
+        DetectionEventLog log = new DetectionEventLog(directory, SEGMENT_SIZE, 100);
+        for (int i = 0; i < 2000; i++) {
+            log.onDetections(event(i));
+        }
+        // Empty results are not logged.
+        event.reset(DetectionEvent.DETECTOR_FACE, T0, 640, 480);
+        log.onDetections(event);
+        log.close();
+        assertEquals(2000, log.getEventsWritten());
+        assertTrue(LogSegment.list(directory).length > 2);
+
+        Collector collector = new Collector();
+        long count = new DetectionEventLogReader(directory).read(T0 + 5000, T0 + 9990, collector);
+        assertEquals(500, count);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(T0 + 5000 + i * 10L, (long) collector.timestamps.get(i));
+            assertEquals((500 + i) % 3, (int) collector.cameras.get(i));
+            assertEquals("code-" + (500 + i) + "-0", collector.rawValues.get(i));
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheNewestSegments() throws Exception {
+        DetectionEventLog log = new DetectionEventLog(directory, SEGMENT_SIZE, 2);
+        for (int i = 0; i < 3000; i++) {
+            log.append(event(i));
+        }
+        log.close();
+        assertEquals(2, LogSegment.list(directory).length);
+
+        Collector collector = new Collector();
+        long count = new DetectionEventLogReader(directory).read(0, Long.MAX_VALUE, collector);
+        assertTrue(count > 0 && count < 3000);
+        assertEquals(T0 + 2999 * 10L, (long) collector.timestamps.get((int) count - 1));
+        assertEquals(T0 + (3000 - count) * 10L, (long) collector.timestamps.get(0));
+    }
+
+    @Test
+    public void recoversFromTornRecord() throws Exception {
+        DetectionEventLog log = new DetectionEventLog(directory, SEGMENT_SIZE, 10);
+        int tail = LogSegment.HEADER_SIZE;
+        for (int i = 0; i < 10; i++) {
+            tail += LogSegment.RECORD_HEADER_SIZE + DetectionEventCodec.encodedSize(event(i));
+            log.append(event(i));
+        }
+        log.close();
+
+        // A record whose length made it to the file but whose payload didn't.
+        File segment = LogSegment.list(directory)[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.seek(tail);
+        raf.writeInt(200);
+        raf.writeInt(12345);
+        raf.write(new byte[] {1, 2, 3, 4, 5});
+        raf.close();
+
+        Collector collector = new Collector();
+        assertEquals(10, new DetectionEventLogReader(directory).read(0, Long.MAX_VALUE, collector));
+
+        log = new DetectionEventLog(directory, SEGMENT_SIZE, 10);
+        for (int i = 10; i < 15; i++) {
+            log.append(event(i));
+        }
+        log.close();
+        assertEquals(1, LogSegment.list(directory).length);
+
+        collector = new Collector();
+        assertEquals(15, new DetectionEventLogReader(directory).read(0, Long.MAX_VALUE, collector));
+        assertEquals(T0 + 140, (long) collector.timestamps.get(14));
+    }
+}
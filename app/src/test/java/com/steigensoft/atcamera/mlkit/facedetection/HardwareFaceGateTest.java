@@ -0,0 +1,142 @@
+package com.steigensoft.atcamera.mlkit.facedetection;
+
+import android.graphics.Rect;
+
+import com.steigensoft.atcamera.mlkit.ViewTransform;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HardwareFaceGateTest {
+
+    private static final long HOLD = 500;
+    private static final long REFRESH = 2000;
+    private static final int VIEW_WIDTH = 400;
+    private static final int VIEW_HEIGHT = 300;
+
+    private final HardwareFaceGate gate = new HardwareFaceGate(HOLD, REFRESH);
+
+    private static Rect rect(int left, int top, int right, int bottom) {
+        Rect rect = new Rect();
+        rect.left = left;
+        rect.top = top;
+        rect.right = right;
+        rect.bottom = bottom;
+        return rect;
+    }
+
+    private static final Rect ACTIVE_ARRAY = rect(0, 0, 4000, 3000);
+
+    /** Values of a matrix rotating by degrees, a multiple of 90, around the view center. */
+    private static float[] rotation(int degrees) {
+        float cos = Math.round(Math.cos(Math.toRadians(degrees)));
+        float sin = Math.round(Math.sin(Math.toRadians(degrees)));
+        float cx = VIEW_WIDTH / 2f;
+        float cy = VIEW_HEIGHT / 2f;
+        return new float[]{
+                cos, -sin, cx - cos * cx + sin * cy,
+                sin, cos, cy - sin * cx - cos * cy,
+                0, 0, 1};
+    }
+
+    private static void assertRect(int left, int top, int right, int bottom, Rect actual) {
+        assertEquals("left", left, actual.left);
+        assertEquals("top", top, actual.top);
+        assertEquals("right", right, actual.right);
+        assertEquals("bottom", bottom, actual.bottom);
+    }
+
+    @Test
+    public void emptySceneOnlyPassesOncePerRefresh() {
+        assertTrue(gate.shouldProcess(0));
+        assertFalse(gate.shouldProcess(100));
+        assertFalse(gate.shouldProcess(1999));
+        assertTrue(gate.shouldProcess(2000));
+        assertFalse(gate.shouldProcess(2100));
+        assertEquals(3 / 5f, gate.getSkipRatio(), 1e-6f);
+    }
+
+    @Test
+    public void facesPassUntilTheHoldRunsOut() {
+        assertTrue(gate.shouldProcess(0));
+        gate.onHardwareFaces(new Rect[]{rect(1000, 1000, 2000, 2000)}, ACTIVE_ARRAY, 0, 1000);
+        assertTrue(gate.shouldProcess(1000));
+        // The HAL lost the face, the detector keeps running for the hold time.
+        gate.onHardwareFaces(new Rect[0], ACTIVE_ARRAY, 0, 1100);
+        assertTrue(gate.shouldProcess(1500));
+        assertFalse(gate.shouldProcess(1501));
+        assertTrue(gate.getRegionsOfInterest(400, 300).isEmpty());
+    }
+
+    @Test
+    public void mapsFacesToTheFrame() {
+        gate.onHardwareFaces(new Rect[]{rect(0, 0, 2000, 1500), rect(3000, 1500, 4000, 3000)},
+                ACTIVE_ARRAY, 0, 0);
+        List<Rect> regions = gate.getRegionsOfInterest(400, 300);
+        assertEquals(2, regions.size());
+        assertRect(0, 0, 200, 150, regions.get(0));
+        assertRect(300, 150, 400, 300, regions.get(1));
+    }
+
+    @Test
+    public void undoesTheSensorOrientation() {
+        // Top left quarter of the sensor image.
+        Rect[] faces = {rect(0, 0, 2000, 1500)};
+        gate.onHardwareFaces(faces, ACTIVE_ARRAY, 90, 0);
+        // Turned clockwise it ends up top right.
+        assertRect(150, 0, 300, 200, gate.getRegionsOfInterest(300, 400).get(0));
+
+        gate.onHardwareFaces(faces, ACTIVE_ARRAY, 180, 0);
+        assertRect(200, 150, 400, 300, gate.getRegionsOfInterest(400, 300).get(0));
+
+        gate.onHardwareFaces(faces, ACTIVE_ARRAY, 270, 0);
+        assertRect(0, 200, 150, 400, gate.getRegionsOfInterest(300, 400).get(0));
+    }
+
+    @Test
+    public void followsTheViewTransformOfARotatedDisplay() {
+        // Top left quarter of the camera image.
+        Rect[] faces = {rect(0, 0, 2000, 1500)};
+        gate.onHardwareFaces(faces, ACTIVE_ARRAY, 0, 0);
+
+        // Display upside down: the view shows it in the bottom right corner.
+        gate.setViewTransform(new ViewTransform(rotation(180), VIEW_WIDTH, VIEW_HEIGHT));
+        assertRect(200, 150, 400, 300, gate.getRegionsOfInterest(VIEW_WIDTH, VIEW_HEIGHT).get(0));
+        // Grabbed at half the view size.
+        assertRect(100, 75, 200, 150, gate.getRegionsOfInterest(200, 150).get(0));
+
+        // The view shows x' = 350 - y, y' = x - 50, so x in [150, 200] and y in [100, 150] of
+        // the image end up at (200, 100)-(250, 150), where MeteringRegionMapper takes them from.
+        gate.onHardwareFaces(new Rect[]{rect(1500, 1000, 2000, 1500)}, ACTIVE_ARRAY, 0, 0);
+        gate.setViewTransform(new ViewTransform(rotation(90), VIEW_WIDTH, VIEW_HEIGHT));
+        assertRect(200, 100, 250, 150, gate.getRegionsOfInterest(VIEW_WIDTH, VIEW_HEIGHT).get(0));
+
+        gate.setViewTransform(null);
+        assertRect(150, 100, 200, 150, gate.getRegionsOfInterest(VIEW_WIDTH, VIEW_HEIGHT).get(0));
+    }
+
+    @Test
+    public void regionsOutsideTheViewAreDropped() {
+        gate.onHardwareFaces(new Rect[]{rect(0, 0, 400, 3000)}, ACTIVE_ARRAY, 0, 0);
+        // The quarter turn crops the sides of the image off the view.
+        gate.setViewTransform(new ViewTransform(rotation(90), VIEW_WIDTH, VIEW_HEIGHT));
+        assertTrue(gate.getRegionsOfInterest(VIEW_WIDTH, VIEW_HEIGHT).isEmpty());
+    }
+
+    @Test
+    public void activeArrayOffsetIsRemoved() {
+        gate.onHardwareFaces(new Rect[]{rect(1100, 100, 2100, 1100)}, rect(100, 100, 4100, 3100),
+                0, 0);
+        assertRect(100, 0, 200, 100, gate.getRegionsOfInterest(400, 300).get(0));
+    }
+
+    @Test
+    public void missingActiveArrayClearsTheFaces() {
+        gate.onHardwareFaces(new Rect[]{rect(0, 0, 2000, 1500)}, ACTIVE_ARRAY, 0, 0);
+        gate.onHardwareFaces(new Rect[]{rect(0, 0, 2000, 1500)}, null, 0, 100);
+        assertTrue(gate.getRegionsOfInterest(400, 300).isEmpty());
+    }
+}
@@ -0,0 +1,354 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a synthetic H.264 RTP capture: parameter sets in a STAP-A, an IDR picture split into
+ * FU-A fragments and P slices as single NAL unit packets.
+ */
+public class H264DepacketizerTest {
+    private static final int MTU = 200;
+    private static final int SSRC = 0x1234abcd;
+
+    private int sequence = 65530; // wraps around during the capture
+
+    @Test
+    public void reassemblesAccessUnits() {
+        List<byte[]> accessUnits = new ArrayList<>();
+        List<byte[]> packets = record(accessUnits, 6);
+
+        List<byte[]> received = depacketize(packets);
+
+        assertUnits(accessUnits, received);
+    }
+
+    @Test
+    public void reordersPackets() {
+        List<byte[]> accessUnits = new ArrayList<>();
+        List<byte[]> packets = record(accessUnits, 6);
+        Collections.swap(packets, 1, 3);
+        Collections.swap(packets, 7, 8);
+
+        List<byte[]> received = depacketize(packets);
+
+        assertUnits(accessUnits, received);
+    }
+
+    @Test
+    public void dropsUntilNextKeyFrameAfterLoss() {
+        List<byte[]> accessUnits = new ArrayList<>();
+        List<byte[]> packets = record(accessUnits, 4);
+        List<byte[]> secondGop = new ArrayList<>();
+        packets.addAll(record(secondGop, 2));
+        // Lose a fragment from the middle of the first IDR picture.
+        packets.remove(2);
+
+        final List<byte[]> received = new ArrayList<>();
+        final BufferPool pool = new BufferPool(1024, 2);
+        H264Depacketizer depacketizer = new H264Depacketizer(pool, collector(pool, received));
+        JitterBuffer jitter = new JitterBuffer(4, 100, depacketizer);
+        for (byte[] packet : packets) {
+            jitter.offer(ByteBuffer.wrap(packet), 0);
+        }
+
+        assertEquals(1, jitter.getPacketsLost());
+        assertUnits(secondGop, received);
+        assertEquals(4, depacketizer.getAccessUnitsDropped());
+    }
+
+    @Test
+    public void resetReturnsThePartialAccessUnit() {
+        List<byte[]> accessUnits = new ArrayList<>();
+        List<byte[]> packets = record(accessUnits, 2);
+        List<byte[]> nextGop = new ArrayList<>();
+        List<byte[]> nextPackets = record(nextGop, 2);
+
+        final int[] outstanding = new int[1];
+        final BufferPool pool = new BufferPool(1024, 2) {
+            @Override
+            public synchronized ByteBuffer acquire(int minCapacity) {
+                outstanding[0]++;
+                return super.acquire(minCapacity);
+            }
+
+            @Override
+            public synchronized void release(ByteBuffer buffer) {
+                outstanding[0]--;
+                super.release(buffer);
+            }
+        };
+        List<byte[]> received = new ArrayList<>();
+        H264Depacketizer depacketizer = new H264Depacketizer(pool, collector(pool, received));
+        JitterBuffer jitter = new JitterBuffer(16, 100, depacketizer);
+        // The connection goes away in the middle of the key frame.
+        for (byte[] packet : packets.subList(0, 3)) {
+            jitter.offer(ByteBuffer.wrap(packet), 0);
+        }
+        assertEquals(1, outstanding[0]);
+        jitter.reset();
+        depacketizer.reset();
+        assertEquals(0, outstanding[0]);
+        assertEquals(1, depacketizer.getAccessUnitsDropped());
+
+        for (byte[] packet : nextPackets) {
+            jitter.offer(ByteBuffer.wrap(packet), 0);
+        }
+        assertUnits(nextGop, received);
+        assertEquals(0, outstanding[0]);
+    }
+
+    @Test
+    public void waitsForLatePacketsUntilTimeout() {
+        List<byte[]> accessUnits = new ArrayList<>();
+        List<byte[]> packets = record(accessUnits, 3);
+        byte[] late = packets.remove(1);
+
+        final List<byte[]> received = new ArrayList<>();
+        final BufferPool pool = new BufferPool(1024, 2);
+        H264Depacketizer depacketizer = new H264Depacketizer(pool, collector(pool, received));
+        JitterBuffer jitter = new JitterBuffer(64, 100, depacketizer);
+        for (byte[] packet : packets) {
+            jitter.offer(ByteBuffer.wrap(packet), 10);
+        }
+        assertEquals(0, received.size());
+
+        jitter.drain(50);
+        assertEquals(0, jitter.getPacketsLost());
+        jitter.offer(ByteBuffer.wrap(late), 60);
+        assertUnits(accessUnits, received);
+
+        // A packet that never arrives is given up on once it is overdue.
+        received.clear();
+        List<byte[]> more = record(accessUnits, 3);
+        more.remove(more.size() - 3);
+        for (byte[] packet : more) {
+            jitter.offer(ByteBuffer.wrap(packet), 200);
+        }
+        jitter.drain(400);
+        assertEquals(1, jitter.getPacketsLost());
+    }
+
+    @Test
+    public void findsParameterSets() {
+        List<byte[]> accessUnits = new ArrayList<>();
+        record(accessUnits, 1);
+        ByteBuffer keyFrame = ByteBuffer.wrap(accessUnits.get(0));
+
+        ByteBuffer sps = H264Depacketizer.findNal(keyFrame, H264Depacketizer.NAL_SPS);
+        ByteBuffer pps = H264Depacketizer.findNal(keyFrame, H264Depacketizer.NAL_PPS);
+
+        assertNotNull(sps);
+        assertNotNull(pps);
+        assertEquals(0x67, sps.get(4) & 0xff);
+        assertEquals(4 + 10, sps.remaining());
+        assertEquals(0x68, pps.get(4) & 0xff);
+        assertNull(H264Depacketizer.findNal(keyFrame, 9));
+        assertEquals(0, keyFrame.position());
+    }
+
+    @Test
+    public void receivesOverLocalUdp() throws Exception {
+        List<byte[]> accessUnits = new ArrayList<>();
+        List<byte[]> packets = record(accessUnits, 10);
+        Collections.swap(packets, 4, 5);
+
+        final RecordingDecoder decoder = new RecordingDecoder();
+        decoder.start(null);
+        StreamMetrics metrics = new StreamMetrics("rtp");
+        final RtpConnection[] connection = new RtpConnection[1];
+        connection[0] = new RtpConnection(URI.create("rtp://127.0.0.1:0"),
+                new H264Depacketizer.AccessUnitListener() {
+                    @Override
+                    public void onAccessUnit(ByteBuffer accessUnit, long rtpTimestamp,
+                                             boolean keyFrame) {
+                        decoder.decode(accessUnit, rtpTimestamp, keyFrame);
+                        connection[0].getBufferPool().release(accessUnit);
+                    }
+                }, metrics);
+        IngestSelectorThread ingest = new IngestSelectorThread("test-rtp");
+        ingest.start();
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            ingest.add(connection[0]);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (connection[0].getLocalPort() < 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            int port = connection[0].getLocalPort();
+            assertTrue(port > 0);
+            InetAddress localhost = InetAddress.getByName("127.0.0.1");
+            for (byte[] packet : packets) {
+                socket.send(new DatagramPacket(packet, packet.length, localhost, port));
+            }
+
+            List<byte[]> received = new ArrayList<>();
+            for (int i = 0; i < accessUnits.size(); i++) {
+                byte[] unit = decoder.accessUnits.poll(5, TimeUnit.SECONDS);
+                assertNotNull("access unit " + i + " not received", unit);
+                received.add(unit);
+            }
+            assertUnits(accessUnits, received);
+            assertEquals(accessUnits.size(), metrics.getFramesReceived());
+        } finally {
+            socket.close();
+            ingest.shutdown();
+        }
+    }
+
+    /** Stands in for the hardware decoder on the JVM by keeping what it is given. */
+    private static class RecordingDecoder implements VideoDecoder {
+        final BlockingQueue<byte[]> accessUnits = new LinkedBlockingQueue<>();
+
+        @Override
+        public void start(FrameListener listener) {
+        }
+
+        @Override
+        public boolean decode(ByteBuffer accessUnit, long presentationTimeUs, boolean keyFrame) {
+            byte[] copy = new byte[accessUnit.remaining()];
+            accessUnit.duplicate().get(copy);
+            accessUnits.add(copy);
+            return true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    private List<byte[]> depacketize(List<byte[]> packets) {
+        List<byte[]> received = new ArrayList<>();
+        BufferPool pool = new BufferPool(1024, 2);
+        JitterBuffer jitter = new JitterBuffer(16, 100,
+                new H264Depacketizer(pool, collector(pool, received)));
+        for (byte[] packet : packets) {
+            assertTrue(jitter.offer(ByteBuffer.wrap(packet), 0));
+        }
+        return received;
+    }
+
+    private static H264Depacketizer.AccessUnitListener collector(final BufferPool pool,
+                                                                 final List<byte[]> out) {
+        return new H264Depacketizer.AccessUnitListener() {
+            @Override
+            public void onAccessUnit(ByteBuffer accessUnit, long rtpTimestamp, boolean keyFrame) {
+                byte[] copy = new byte[accessUnit.remaining()];
+                accessUnit.get(copy);
+                pool.release(accessUnit);
+                out.add(copy);
+            }
+        };
+    }
+
+    /**
+     * Packetizes a group of pictures starting with a key frame. The expected Annex B access units
+     * are appended to {@code accessUnits}, the RTP packets are returned.
+     */
+    private List<byte[]> record(List<byte[]> accessUnits, int frames) {
+        List<byte[]> packets = new ArrayList<>();
+        for (int f = 0; f < frames; f++) {
+            long timestamp = 3000L * (accessUnits.size() + 1);
+            ByteArrayOutputStream annexB = new ByteArrayOutputStream();
+            if (f == 0) {
+                byte[] sps = nal(0x67, 10, f);
+                byte[] pps = nal(0x68, 4, f);
+                byte[] idr = nal(0x65, 700, f);
+                ByteArrayOutputStream stap = new ByteArrayOutputStream();
+                stap.write(0x78);
+                writeSized(stap, sps);
+                writeSized(stap, pps);
+                packets.add(rtp(stap.toByteArray(), timestamp, false));
+                packets.addAll(fragment(idr, timestamp));
+                appendAnnexB(annexB, sps);
+                appendAnnexB(annexB, pps);
+                appendAnnexB(annexB, idr);
+            } else {
+                byte[] slice = nal(0x41, 50 + f * 13, f);
+                packets.add(rtp(slice, timestamp, true));
+                appendAnnexB(annexB, slice);
+            }
+            accessUnits.add(annexB.toByteArray());
+        }
+        return packets;
+    }
+
+    private List<byte[]> fragment(byte[] nal, long timestamp) {
+        List<byte[]> packets = new ArrayList<>();
+        int offset = 1;
+        int chunk = MTU - 2;
+        while (offset < nal.length) {
+            int length = Math.min(chunk, nal.length - offset);
+            boolean start = offset == 1;
+            boolean end = offset + length == nal.length;
+            byte[] payload = new byte[2 + length];
+            payload[0] = (byte) ((nal[0] & 0xe0) | 28);
+            payload[1] = (byte) ((start ? 0x80 : 0) | (end ? 0x40 : 0) | (nal[0] & 0x1f));
+            System.arraycopy(nal, offset, payload, 2, length);
+            packets.add(rtp(payload, timestamp, end));
+            offset += length;
+        }
+        return packets;
+    }
+
+    private byte[] rtp(byte[] payload, long timestamp, boolean marker) {
+        ByteBuffer packet = ByteBuffer.allocate(12 + payload.length);
+        packet.put((byte) 0x80);
+        packet.put((byte) ((marker ? 0x80 : 0) | 96));
+        packet.putShort((short) sequence);
+        packet.putInt((int) timestamp);
+        packet.putInt(SSRC);
+        packet.put(payload);
+        sequence = (sequence + 1) & 0xffff;
+        return packet.array();
+    }
+
+    private static byte[] nal(int header, int length, int seed) {
+        byte[] nal = new byte[length];
+        nal[0] = (byte) header;
+        for (int i = 1; i < length; i++) {
+            // Avoid emulating start codes, as a real encoder does.
+            nal[i] = (byte) (1 + (i * 7 + seed) % 250);
+        }
+        return nal;
+    }
+
+    private static void writeSized(ByteArrayOutputStream out, byte[] nal) {
+        out.write(nal.length >> 8);
+        out.write(nal.length & 0xff);
+        out.write(nal, 0, nal.length);
+    }
+
+    private static void appendAnnexB(ByteArrayOutputStream out, byte[] nal) {
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(1);
+        out.write(nal, 0, nal.length);
+    }
+
+    private static void assertUnits(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("access unit " + i, expected.get(i), actual.get(i));
+        }
+    }
+}
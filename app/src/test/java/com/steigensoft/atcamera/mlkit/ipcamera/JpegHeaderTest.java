@@ -0,0 +1,48 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class JpegHeaderTest {
+
+    @Test
+    public void readsSizeBehindOtherSegments() {
+        ByteBuffer jpeg = ByteBuffer.allocate(64);
+        jpeg.put((byte) 0xff).put((byte) 0xd8);
+        // APP0 with a 16 byte body.
+        jpeg.put((byte) 0xff).put((byte) 0xe0).putShort((short) 16).put(new byte[14]);
+        // DHT sits in the SOF marker range but is not a frame header.
+        jpeg.put((byte) 0xff).put((byte) 0xc4).putShort((short) 4).put(new byte[2]);
+        // Baseline SOF0, 8 bit, 1080 high and 1920 wide.
+        jpeg.put((byte) 0xff).put((byte) 0xc0).putShort((short) 17).put((byte) 8)
+                .putShort((short) 1080).putShort((short) 1920);
+        jpeg.flip();
+        int[] size = new int[2];
+
+        assertTrue(JpegHeader.readSize(jpeg, size));
+        assertEquals(1920, size[0]);
+        assertEquals(1080, size[1]);
+        assertEquals(0, jpeg.position());
+    }
+
+    @Test
+    public void rejectsTruncatedHeaders() {
+        int[] size = new int[2];
+        assertFalse(JpegHeader.readSize(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) 0xd8}), size));
+        assertFalse(JpegHeader.readSize(ByteBuffer.wrap(new byte[] {
+                (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xda, 0, 2}), size));
+        assertFalse(JpegHeader.readSize(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}), size));
+    }
+
+    @Test
+    public void choosesSampleSizeCoveringTarget() {
+        assertEquals(2, JpegFrameDecoder.sampleSize(1920, 1080, 640, 480));
+        assertEquals(4, JpegFrameDecoder.sampleSize(2560, 1920, 640, 480));
+        assertEquals(1, JpegFrameDecoder.sampleSize(640, 480, 640, 480));
+        assertEquals(1, JpegFrameDecoder.sampleSize(320, 240, 640, 480));
+        assertEquals(1, JpegFrameDecoder.sampleSize(1920, 1080, 0, 0));
+    }
+}
@@ -0,0 +1,343 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.MemoryBudget;
+import com.steigensoft.atcamera.mlkit.StreamMetrics;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses synthetic MJPEG streams, both directly and through a local stand-in for an IP camera.
+ */
+public class MjpegParserTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String BOUNDARY = "myboundary";
+
+    @Test
+    public void parsesContentLengthParts() {
+        List<byte[]> frames = makeFrames(5);
+        List<byte[]> parsed = new ArrayList<>();
+        BufferPool pool = new BufferPool(1024, 2);
+        MjpegParser parser = new MjpegParser(BOUNDARY, pool, collector(pool, parsed));
+
+        parser.feed(ByteBuffer.wrap(makeStream(frames, true)));
+
+        assertFrames(frames, parsed);
+        assertEquals(0, parser.getFramesDropped());
+    }
+
+    @Test
+    public void scansForBoundaryOneByteAtATime() {
+        List<byte[]> frames = makeFrames(5);
+        List<byte[]> parsed = new ArrayList<>();
+        BufferPool pool = new BufferPool(16, 2);
+        MjpegParser parser = new MjpegParser("--" + BOUNDARY, pool, collector(pool, parsed));
+
+        byte[] stream = makeStream(frames, false);
+        for (byte b : stream) {
+            parser.feed(ByteBuffer.wrap(new byte[] {b}));
+        }
+
+        // The last part is only terminated by the boundary that follows it.
+        assertFrames(frames, parsed);
+    }
+
+    @Test
+    public void fallsBackToJpegMarkers() {
+        List<byte[]> frames = makeFrames(3);
+        List<byte[]> parsed = new ArrayList<>();
+        BufferPool pool = new BufferPool(1024, 2);
+        MjpegParser parser = new MjpegParser(null, pool, collector(pool, parsed));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.write(0);
+            out.write(frame, 0, frame.length);
+        }
+        parser.feed(ByteBuffer.wrap(out.toByteArray()));
+
+        assertFrames(frames, parsed);
+    }
+
+    @Test
+    public void reusesPooledBuffers() {
+        List<byte[]> frames = makeFrames(50);
+        List<byte[]> parsed = new ArrayList<>();
+        BufferPool pool = new BufferPool(1024, 2);
+        MjpegParser parser = new MjpegParser(BOUNDARY, pool, collector(pool, parsed));
+
+        parser.feed(ByteBuffer.wrap(makeStream(frames, true)));
+
+        // Frames grow from 100 to 1913 bytes, the pool grows by half each time it is too small.
+        assertEquals(50, parsed.size());
+        assertTrue(pool.getAllocatedCount() <= 3);
+    }
+
+    @Test
+    public void closeMidFrameGivesTheBudgetBack() {
+        MemoryBudget.Stage stage = MemoryBudget.getInstance().stage("mjpeg-test-close");
+        List<byte[]> parsed = new ArrayList<>();
+        BufferPool pool = new BufferPool(1024, 2, stage);
+        MjpegParser parser = new MjpegParser(BOUNDARY, pool, collector(pool, parsed));
+
+        byte[] stream = makeStream(makeFrames(2), false);
+        // The first frame and half of the second, without its closing boundary.
+        parser.feed(ByteBuffer.wrap(stream, 0, stream.length - 150));
+        assertEquals(1, parsed.size());
+        assertTrue(stage.getLiveBytes() > 0);
+
+        parser.close();
+        pool.clear();
+        assertEquals(0, stage.getLiveBytes());
+
+        // The parser starts over at the next part.
+        parser.feed(ByteBuffer.wrap(stream));
+        assertEquals(3, parsed.size());
+    }
+
+    @Test
+    public void dropsFrameWhenTheBudgetRefusesToGrowIt() {
+        MemoryBudget budget = MemoryBudget.getInstance();
+        MemoryBudget.Stage stage = budget.stage("mjpeg-test-grow");
+        long ceiling = budget.getCeilingBytes();
+        // Room for the first buffer of each frame, not for a larger one.
+        budget.setCeilingBytes(budget.getLiveBytes() + 100);
+        try {
+            List<byte[]> parsed = new ArrayList<>();
+            BufferPool pool = new BufferPool(64, 2, stage);
+            MjpegParser parser = new MjpegParser(null, pool, collector(pool, parsed));
+
+            List<byte[]> frames = makeFrames(1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(frames.get(0), 0, frames.get(0).length);
+            parser.feed(ByteBuffer.wrap(out.toByteArray()));
+
+            assertEquals(0, parsed.size());
+            assertEquals(1, parser.getFramesDropped());
+            assertTrue(stage.getLiveBytes() <= 100);
+            pool.clear();
+            assertEquals(0, stage.getLiveBytes());
+        } finally {
+            budget.setCeilingBytes(ceiling);
+        }
+    }
+
+    @Test
+    public void disconnectMidFrameGivesTheBudgetBack() throws Exception {
+        final List<byte[]> frames = makeFrames(2);
+        final byte[] stream = makeStream(frames, true);
+        final int sent = stream.length - 150;
+        final ServerSocket server = new ServerSocket(0);
+        Thread camera = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    readRequest(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary="
+                            + BOUNDARY + "\r\n\r\n").getBytes(ASCII));
+                    // The camera goes away in the middle of the second frame.
+                    out.write(stream, 0, sent);
+                    out.flush();
+                } catch (IOException e) {
+                    // The client closed the connection.
+                }
+            }
+        });
+        MemoryBudget.Stage stage = MemoryBudget.getInstance().stage("mjpeg");
+        long liveBefore = stage.getLiveBytes();
+        camera.start();
+
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        StreamMetrics metrics = new StreamMetrics("local");
+        final MjpegConnection[] connection = new MjpegConnection[1];
+        connection[0] = new MjpegConnection(
+                URI.create("http://127.0.0.1:" + server.getLocalPort() + "/video.mjpg"),
+                new MjpegParser.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer jpeg) {
+                        byte[] copy = new byte[jpeg.remaining()];
+                        jpeg.get(copy);
+                        connection[0].getBufferPool().release(jpeg);
+                        received.add(copy);
+                    }
+                }, metrics);
+        IngestSelectorThread ingest = new IngestSelectorThread("test-ingest");
+        ingest.start();
+        try {
+            ingest.add(connection[0]);
+            assertNotNull(received.poll(5, TimeUnit.SECONDS));
+            camera.join(5000);
+            // Wait for the rest of what was sent, and for the disconnect that follows.
+            long deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getBytesReceived() < sent && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+        } finally {
+            ingest.shutdown();
+            server.close();
+        }
+        assertEquals(0, received.size());
+        connection[0].getBufferPool().clear();
+        assertEquals(liveBefore, stage.getLiveBytes());
+    }
+
+    @Test
+    public void readsFromLocalCamera() throws Exception {
+        final List<byte[]> frames = makeFrames(20);
+        final ServerSocket server = new ServerSocket(0);
+        final AtomicReference<String> request = new AtomicReference<>();
+        Thread camera = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try (Socket socket = server.accept()) {
+                    request.set(readRequest(socket.getInputStream()));
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary="
+                            + BOUNDARY + "\r\n\r\n").getBytes(ASCII));
+                    out.write(makeStream(frames, true));
+                    out.flush();
+                    // Keep the connection open until the client goes away.
+                    socket.getInputStream().read();
+                } catch (IOException e) {
+                    // The client closed the connection.
+                }
+            }
+        });
+        camera.start();
+
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+        StreamMetrics metrics = new StreamMetrics("local");
+        final MjpegConnection[] connection = new MjpegConnection[1];
+        connection[0] = new MjpegConnection(
+                URI.create("http://127.0.0.1:" + server.getLocalPort() + "/video.mjpg"),
+                new MjpegParser.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer jpeg) {
+                        byte[] copy = new byte[jpeg.remaining()];
+                        jpeg.get(copy);
+                        connection[0].getBufferPool().release(jpeg);
+                        received.add(copy);
+                    }
+                }, metrics);
+        IngestSelectorThread ingest = new IngestSelectorThread("test-ingest");
+        ingest.start();
+        try {
+            ingest.add(connection[0]);
+            List<byte[]> parsed = new ArrayList<>();
+            for (int i = 0; i < frames.size(); i++) {
+                byte[] frame = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull("frame " + i + " not received", frame);
+                parsed.add(frame);
+            }
+            assertFrames(frames, parsed);
+            // HTTP/1.0 keeps servers from answering with a chunked body, which is not de-chunked.
+            assertTrue(request.get(), request.get().startsWith("GET /video.mjpg HTTP/1.0\r\n"));
+            assertTrue(request.get(), request.get().contains("\r\nConnection: close\r\n"));
+            assertEquals(frames.size(), metrics.getFramesReceived());
+            assertTrue(metrics.getBytesReceived() > 0);
+        } finally {
+            ingest.shutdown();
+            server.close();
+            camera.join(5000);
+        }
+    }
+
+    private static MjpegParser.FrameListener collector(final BufferPool pool, final List<byte[]> out) {
+        return new MjpegParser.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer jpeg) {
+                byte[] copy = new byte[jpeg.remaining()];
+                jpeg.get(copy);
+                pool.release(jpeg);
+                out.add(copy);
+            }
+        };
+    }
+
+    /** Frames shaped like JPEGs, of different sizes and with CR/LF bytes inside the data. */
+    private static List<byte[]> makeFrames(int count) {
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = new byte[100 + i * 37];
+            for (int j = 0; j < frame.length; j++) {
+                frame[j] = (byte) (j * 31 + i);
+            }
+            frame[0] = (byte) 0xff;
+            frame[1] = (byte) 0xd8;
+            frame[10] = '\r';
+            frame[11] = '\n';
+            frame[12] = '-';
+            frame[13] = '-';
+            for (int j = 2; j < frame.length - 2; j++) {
+                if (frame[j] == (byte) 0xff) {
+                    frame[j] = 0x7f;
+                }
+            }
+            frame[frame.length - 2] = (byte) 0xff;
+            frame[frame.length - 1] = (byte) 0xd9;
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static byte[] makeStream(List<byte[]> frames, boolean withContentLength) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            String header = "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n";
+            if (withContentLength) {
+                header += "Content-Length: " + frame.length + "\r\n";
+            }
+            header += "\r\n";
+            byte[] bytes = header.getBytes(ASCII);
+            out.write(bytes, 0, bytes.length);
+            out.write(frame, 0, frame.length);
+            out.write('\r');
+            out.write('\n');
+        }
+        byte[] end = ("--" + BOUNDARY + "\r\n").getBytes(ASCII);
+        out.write(end, 0, end.length);
+        return out.toByteArray();
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        StringBuilder request = new StringBuilder();
+        int matched = 0;
+        byte[] end = "\r\n\r\n".getBytes(ASCII);
+        while (matched < end.length) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Request ended early");
+            }
+            request.append((char) b);
+            matched = b == end[matched] ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return request.toString();
+    }
+
+    private static void assertFrames(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("frame " + i, expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class ParallelFrameDecoderTest {
+    private static final int STREAM_FRAMES = 48;
+
+    /** Decodes the frame number written into the buffer, taking a random while. */
+    private static class SlowDecoder implements ParallelFrameDecoder.FrameDecoder<Integer> {
+        private final Random random = new Random();
+        private final long slowFrame;
+        private final long slowMillis;
+
+        SlowDecoder(long slowFrame, long slowMillis) {
+            this.slowFrame = slowFrame;
+            this.slowMillis = slowMillis;
+        }
+
+        @Override
+        public Integer decode(ByteBuffer data) {
+            int frame = data.getInt(data.position());
+            try {
+                Thread.sleep(frame == slowFrame ? slowMillis : random.nextInt(4));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return frame;
+        }
+    }
+
+    private static class Recorder<T> implements ParallelFrameDecoder.Listener<T> {
+        final List<T> frames = Collections.synchronizedList(new ArrayList<T>());
+        final List<Long> sequences = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> dropped = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done;
+
+        Recorder(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onFrame(T frame, long sequence) {
+            frames.add(frame);
+            sequences.add(sequence);
+            done.countDown();
+        }
+
+        @Override
+        public void onFrameDropped(T frame, long sequence) {
+            dropped.add(sequence);
+            done.countDown();
+        }
+    }
+
+    private static ParallelFrameDecoder.FrameDecoderFactory<Integer> slow(final long slowFrame,
+                                                                          final long slowMillis) {
+        return new ParallelFrameDecoder.FrameDecoderFactory<Integer>() {
+            @Override
+            public ParallelFrameDecoder.FrameDecoder<Integer> create() {
+                return new SlowDecoder(slowFrame, slowMillis);
+            }
+        };
+    }
+
+    private static void submitAll(ParallelFrameDecoder<?> decoder, List<ByteBuffer> frames,
+                                  BufferPool pool) throws InterruptedException {
+        for (ByteBuffer frame : frames) {
+            // A live stream would drop here; the tests wait so every frame is decoded.
+            while (decoder.submit(frame.duplicate(), pool) < 0) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static List<ByteBuffer> numberedFrames(int count) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ByteBuffer frame = ByteBuffer.allocate(4);
+            frame.putInt(0, i);
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    @Test
+    public void deliversInStreamOrder() throws Exception {
+        Recorder<Integer> recorder = new Recorder<>(200);
+        ParallelFrameDecoder<Integer> decoder =
+                new ParallelFrameDecoder<>(4, 16, slow(-1, 0), recorder);
+
+        submitAll(decoder, numberedFrames(200), new BufferPool(4, 0));
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        decoder.shutdown();
+
+        assertEquals(0, recorder.dropped.size());
+        for (int i = 0; i < recorder.frames.size(); i++) {
+            assertEquals(i, recorder.frames.get(i).intValue());
+            assertEquals(i, recorder.sequences.get(i).longValue());
+        }
+    }
+
+    @Test
+    public void skipsFrameStuckBehindFullWindow() throws Exception {
+        Recorder<Integer> recorder = new Recorder<>(20);
+        ParallelFrameDecoder<Integer> decoder =
+                new ParallelFrameDecoder<>(2, 3, slow(0, 300), recorder);
+
+        submitAll(decoder, numberedFrames(20), new BufferPool(4, 0));
+        assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+        decoder.shutdown();
+
+        assertEquals(Collections.singletonList(0L), recorder.dropped);
+        assertEquals(1, decoder.getFramesLate());
+        long previous = -1;
+        for (long sequence : recorder.sequences) {
+            assertTrue(sequence > previous);
+            previous = sequence;
+        }
+    }
+
+    /**
+     * Decodes a recorded 720p stream with one thread and with all cores. Throughput depends on
+     * the machine and is not checked here, only that the parallel decode gives the same frames.
+     */
+    @Test
+    public void decodesRecordedStreamOnAllCores() throws Exception {
+        List<ByteBuffer> stream = recordStream();
+        int cores = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+        List<BufferedImage> single = decode(stream, 1);
+        List<BufferedImage> parallel = decode(stream, Math.max(2, cores));
+
+        assertEquals(stream.size(), parallel.size());
+        for (int i = 0; i < stream.size(); i++) {
+            assertEquals(1280, parallel.get(i).getWidth());
+            assertEquals(720, parallel.get(i).getHeight());
+            // Same frame in the same place, sampled at the center.
+            assertEquals(single.get(i).getRGB(640, 360), parallel.get(i).getRGB(640, 360));
+        }
+    }
+
+    /**
+     * Reports decode throughput of the recorded stream for 1 up to all cores. Not a check: how
+     * well it scales depends on the machine, the numbers are for reading off the log.
+     */
+    @Test
+    public void benchmarkDecodeThroughputPerThreadCount() throws Exception {
+        List<ByteBuffer> stream = recordStream();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        DecodeBenchmark.Result result = DecodeBenchmark.run(stream, imageIo(), cores, 2);
+
+        assertEquals(STREAM_FRAMES, result.frames);
+        assertEquals(cores, result.framesPerSecond.length);
+        for (double framesPerSecond : result.framesPerSecond) {
+            assertTrue(result.toString(), framesPerSecond > 0);
+        }
+    }
+
+    private static ParallelFrameDecoder.FrameDecoderFactory<BufferedImage> imageIo() {
+        return new ParallelFrameDecoder.FrameDecoderFactory<BufferedImage>() {
+            @Override
+            public ParallelFrameDecoder.FrameDecoder<BufferedImage> create() {
+                return new ParallelFrameDecoder.FrameDecoder<BufferedImage>() {
+                    @Override
+                    public BufferedImage decode(ByteBuffer data) {
+                        try {
+                            return ImageIO.read(new ByteArrayInputStream(data.array(),
+                                    data.arrayOffset() + data.position(), data.remaining()));
+                        } catch (IOException e) {
+                            return null;
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    private List<BufferedImage> decode(List<ByteBuffer> stream, int threads) throws Exception {
+        Recorder<BufferedImage> recorder = new Recorder<>(stream.size());
+        ParallelFrameDecoder<BufferedImage> decoder =
+                new ParallelFrameDecoder<>(threads, 8, imageIo(), recorder);
+
+        submitAll(decoder, stream, new BufferPool(0, 0));
+        assertTrue(recorder.done.await(60, TimeUnit.SECONDS));
+        decoder.shutdown();
+
+        assertEquals(0, recorder.dropped.size());
+        return recorder.frames;
+    }
+
+    /** A moving scene at 1280x720, JPEG encoded like a camera would. */
+    private static List<ByteBuffer> recordStream() throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < STREAM_FRAMES; i++) {
+            BufferedImage image = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(new Color(40, 60, 80));
+            g.fillRect(0, 0, 1280, 720);
+            for (int j = 0; j < 200; j++) {
+                g.setColor(new Color(random.nextInt(0xffffff)));
+                g.fillOval((random.nextInt(1280) + i * 8) % 1280, random.nextInt(720), 40, 40);
+            }
+            g.dispose();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "jpg", out);
+            frames.add(ByteBuffer.wrap(out.toByteArray()));
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,80 @@
+package com.steigensoft.atcamera.mlkit.ipcamera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RtpInterleavedParserTest {
+
+    private final List<byte[]> packets = new ArrayList<>();
+    private final List<Integer> channels = new ArrayList<>();
+    private final RtpInterleavedParser parser =
+            new RtpInterleavedParser(new RtpInterleavedParser.PacketListener() {
+                @Override
+                public void onInterleavedPacket(int channel, ByteBuffer packet) {
+                    byte[] copy = new byte[packet.remaining()];
+                    packet.get(copy);
+                    packets.add(copy);
+                    channels.add(channel);
+                }
+            });
+
+    private static byte[] interleaved(int channel, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('$');
+        out.write(channel);
+        out.write(payload.length >> 8);
+        out.write(payload.length);
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    @Test
+    public void skipsWhatIsBetweenPackets() {
+        byte[] first = payload(300, 1);
+        byte[] second = payload(20, 2);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(interleaved(0, first), 0, 304);
+        byte[] reply = "RTSP/1.0 200 OK\r\nCSeq: 5\r\n\r\n".getBytes();
+        stream.write(reply, 0, reply.length);
+        stream.write(interleaved(1, second), 0, 24);
+        byte[] bytes = stream.toByteArray();
+
+        // Split where a header and a payload are cut in two.
+        parser.feed(ByteBuffer.wrap(bytes, 0, 2));
+        parser.feed(ByteBuffer.wrap(bytes, 2, 100));
+        parser.feed(ByteBuffer.wrap(bytes, 102, bytes.length - 102));
+
+        assertEquals(2, packets.size());
+        assertArrayEquals(first, packets.get(0));
+        assertArrayEquals(second, packets.get(1));
+        assertEquals(1, (int) channels.get(1));
+    }
+
+    @Test
+    public void resetDropsAPacketCutShort() {
+        byte[] stale = interleaved(0, payload(300, 1));
+        byte[] fresh = payload(40, 7);
+
+        // The old connection dropped in the middle of a packet.
+        parser.feed(ByteBuffer.wrap(stale, 0, 150));
+        parser.reset();
+        parser.feed(ByteBuffer.wrap(interleaved(0, fresh)));
+
+        assertEquals(1, packets.size());
+        assertArrayEquals(fresh, packets.get(0));
+    }
+}
@@ -0,0 +1,361 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import android.graphics.Bitmap;
+
+import com.steigensoft.atcamera.mlkit.Frame;
+import com.steigensoft.atcamera.mlkit.FrameMetadata;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+
+    /** Runs tasks only when told to, so tests decide when stages get to work. */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty()) {
+                        return;
+                    }
+                    task = tasks.remove(0);
+                }
+                task.run();
+            }
+        }
+    }
+
+    /** Remembers what it was given and passes it on. */
+    private static class RecordingStage implements Stage {
+        final List<Object> seen = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void process(Object item, Emitter out) {
+            seen.add(item instanceof Frame ? ((Frame) item).getMetadata().getWidth() : item);
+            out.emit(item);
+        }
+    }
+
+    private final AtomicInteger freed = new AtomicInteger();
+
+    private Frame frame(int id) {
+        FrameMetadata metadata = new FrameMetadata.Builder().setWidth(id).build();
+        return Frame.ofBitmap(null, metadata, new Frame.Releaser() {
+            @Override
+            public void release(Bitmap bitmap) {
+                freed.incrementAndGet();
+            }
+        });
+    }
+
+    @Test
+    public void dropOldestKeepsTheLatestFrames() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingStage stage = new RecordingStage();
+        Pipeline pipeline = new Pipeline.Builder()
+                .addNode("detect", stage, 2, DropPolicy.DROP_OLDEST, executor)
+                .build();
+
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(pipeline.submit("detect", frame(i)));
+        }
+        // Frames 1 and 2 made room and were freed at once.
+        assertEquals(2, freed.get());
+        executor.runAll();
+
+        assertEquals(2, stage.seen.size());
+        assertEquals(3, stage.seen.get(0));
+        assertEquals(4, stage.seen.get(1));
+        assertEquals(4, freed.get());
+        Node node = pipeline.getNode("detect");
+        assertEquals(4, node.getMetrics().getFramesReceived());
+        assertEquals(2, node.getMetrics().getFramesDropped());
+        assertEquals(2, node.getMetrics().getFramesProcessed());
+        assertEquals(2, node.getMaxQueueSize());
+        assertEquals(0, node.getQueueSize());
+    }
+
+    @Test
+    public void dropNewestKeepsWhatIsQueued() {
+        ManualExecutor executor = new ManualExecutor();
+        RecordingStage stage = new RecordingStage();
+        Pipeline pipeline = new Pipeline.Builder()
+                .addNode("publish", stage, 1, DropPolicy.DROP_NEWEST, executor)
+                .build();
+
+        assertTrue(pipeline.submit("publish", frame(1)));
+        assertFalse(pipeline.submit("publish", frame(2)));
+        assertEquals(1, freed.get());
+        executor.runAll();
+
+        assertEquals(Collections.<Object>singletonList(1), stage.seen);
+        assertEquals(2, freed.get());
+    }
+
+    @Test
+    public void fanOutFreesTheFrameAfterTheLastSuccessor() {
+        ManualExecutor source = new ManualExecutor();
+        ManualExecutor detect = new ManualExecutor();
+        ManualExecutor publish = new ManualExecutor();
+        RecordingStage detector = new RecordingStage();
+        RecordingStage publisher = new RecordingStage();
+        Pipeline pipeline = new Pipeline.Builder()
+                .addNode("source", new RecordingStage(), 1, DropPolicy.DROP_OLDEST, source)
+                .addNode("detect", detector, 1, DropPolicy.DROP_OLDEST, detect)
+                .addNode("publish", publisher, 1, DropPolicy.DROP_OLDEST, publish)
+                .connect("source", "detect")
+                .connect("source", "publish")
+                .build();
+
+        Frame frame = frame(7);
+        pipeline.submit("source", frame);
+        source.runAll();
+        // One reference queued in front of each successor.
+        assertEquals(2, frame.getRefCount());
+
+        detect.runAll();
+        assertEquals(0, freed.get());
+        publish.runAll();
+        assertEquals(1, freed.get());
+        assertEquals(Collections.<Object>singletonList(7), detector.seen);
+        assertEquals(Collections.<Object>singletonList(7), publisher.seen);
+    }
+
+    @Test
+    public void failingStageCountsAndReleases() {
+        ManualExecutor executor = new ManualExecutor();
+        final RecordingStage after = new RecordingStage();
+        Pipeline pipeline = new Pipeline.Builder()
+                .addNode("broken", new Stage() {
+                    @Override
+                    public void process(Object item, Emitter out) throws Exception {
+                        throw new Exception("detector crashed");
+                    }
+                }, 4, DropPolicy.DROP_OLDEST, executor)
+                .addNode("after", after, 4, DropPolicy.DROP_OLDEST, executor)
+                .connect("broken", "after")
+                .build();
+
+        pipeline.submit("broken", frame(1));
+        pipeline.submit("broken", frame(2));
+        executor.runAll();
+
+        Node node = pipeline.getNode("broken");
+        assertEquals(2, node.getFailureCount());
+        assertEquals(0, node.getMetrics().getFramesProcessed());
+        assertEquals(2, freed.get());
+        assertTrue(after.seen.isEmpty());
+    }
+
+    @Test
+    public void blockingNodePushesBack() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        RecordingStage stage = new RecordingStage();
+        final Pipeline pipeline = new Pipeline.Builder()
+                .addNode("record", stage, 1, DropPolicy.BLOCK, executor)
+                .build();
+        pipeline.submit("record", 1);
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pipeline.submit("record", 2);
+            }
+        });
+        sender.start();
+        sender.join(100);
+        assertTrue("sender waits for room", sender.isAlive());
+
+        executor.runAll();
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        executor.runAll();
+
+        assertEquals(2, stage.seen.size());
+        assertEquals(0, pipeline.getNode("record").getMetrics().getFramesDropped());
+    }
+
+    @Test
+    public void shutdownReleasesQueuedFramesAndRefusesNewOnes() {
+        ManualExecutor executor = new ManualExecutor();
+        Pipeline pipeline = new Pipeline.Builder()
+                .addNode("detect", new RecordingStage(), 3, DropPolicy.BLOCK, executor)
+                .build();
+        pipeline.submit("detect", frame(1));
+        pipeline.submit("detect", frame(2));
+
+        pipeline.shutdown();
+        assertEquals(2, freed.get());
+        assertFalse(pipeline.submit("detect", frame(3)));
+        assertEquals(3, freed.get());
+        executor.runAll();
+        assertEquals(0, pipeline.getNode("detect").getMetrics().getFramesProcessed());
+    }
+
+    @Test
+    public void stubSourceToStubDetectorOnOwnThreads() throws Exception {
+        final int frames = 50;
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger detected = new AtomicInteger();
+        // The source turns frame numbers into frames, as the camera grab does with timestamps.
+        Stage source = new Stage() {
+            @Override
+            public void process(Object item, Emitter out) {
+                Frame frame = frame((Integer) item);
+                try {
+                    out.emit(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        };
+        Stage detector = new Stage() {
+            @Override
+            public void process(Object item, Emitter out) {
+                detected.incrementAndGet();
+                if (((Frame) item).getMetadata().getWidth() == frames) {
+                    done.countDown();
+                }
+            }
+        };
+        Pipeline pipeline = new Pipeline.Builder()
+                .addNode("source", source, frames, DropPolicy.BLOCK)
+                .addNode("detect", detector, 1, DropPolicy.DROP_OLDEST)
+                .connect("source", "detect")
+                .build();
+
+        for (int i = 1; i <= frames; i++) {
+            pipeline.submit("source", i);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+
+        Node detect = pipeline.getNode("detect");
+        assertEquals(detected.get(), detect.getMetrics().getFramesProcessed());
+        assertEquals(frames, detect.getMetrics().getFramesReceived());
+        assertEquals(frames, detected.get() + detect.getMetrics().getFramesDropped());
+        // Every frame freed exactly once, whether detected or dropped.
+        assertEquals(frames, freed.get());
+    }
+
+    @Test
+    public void cycleIsRejected() {
+        Pipeline.Builder builder = new Pipeline.Builder()
+                .addNode("a", new RecordingStage(), 1, DropPolicy.DROP_OLDEST)
+                .addNode("b", new RecordingStage(), 1, DropPolicy.DROP_OLDEST)
+                .connect("a", "b")
+                .connect("b", "a");
+        try {
+            builder.build();
+            fail("built a cycle");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    private static Properties config(String text) throws Exception {
+        return PipelineConfig.read(
+                new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    private final Map<String, Properties> createdWith = new HashMap<>();
+
+    private Map<String, PipelineConfig.StageFactory> factories() {
+        Map<String, PipelineConfig.StageFactory> factories = new HashMap<>();
+        factories.put("stub", new PipelineConfig.StageFactory() {
+            @Override
+            public Stage create(String nodeName, Properties settings) {
+                createdWith.put(nodeName, settings);
+                return new RecordingStage();
+            }
+        });
+        return factories;
+    }
+
+    @Test
+    public void configAssemblesTheGraph() throws Exception {
+        ManualExecutor shared = new ManualExecutor();
+        Map<String, Executor> executors = new HashMap<>();
+        executors.put("background", shared);
+        Pipeline pipeline = PipelineConfig.load(config(
+                "nodes=grab, detect, publish\n"
+                        + "node.grab.stage=stub\n"
+                        + "node.grab.capacity=2\n"
+                        + "node.grab.executor=background\n"
+                        + "node.grab.next=detect,publish\n"
+                        + "node.detect.stage=stub\n"
+                        + "node.detect.policy=drop_newest\n"
+                        + "node.detect.executor=background\n"
+                        + "node.publish.stage=stub\n"
+                        + "node.publish.policy=BLOCK\n"
+                        + "node.publish.executor=background\n"
+                        + "node.publish.port=8080\n"),
+                factories(), executors).build();
+
+        List<Node> nodes = pipeline.getNodes();
+        assertEquals(3, nodes.size());
+        assertEquals("grab", nodes.get(0).getName());
+        Node grab = pipeline.getNode("grab");
+        assertEquals(2, grab.getCapacity());
+        assertEquals(DropPolicy.DROP_OLDEST, grab.getDropPolicy());
+        assertEquals(2, grab.getSuccessors().size());
+        assertSame(pipeline.getNode("publish"), grab.getSuccessors().get(1));
+        assertEquals(1, pipeline.getNode("detect").getCapacity());
+        assertEquals(DropPolicy.DROP_NEWEST, pipeline.getNode("detect").getDropPolicy());
+        assertEquals(DropPolicy.BLOCK, pipeline.getNode("publish").getDropPolicy());
+
+        // Only the stage's own settings reach its factory.
+        assertEquals("8080", createdWith.get("publish").getProperty("port"));
+        assertEquals(1, createdWith.get("publish").size());
+        assertTrue(createdWith.get("grab").isEmpty());
+
+        pipeline.submit("grab", frame(1));
+        shared.runAll();
+        assertEquals(1, pipeline.getNode("detect").getMetrics().getFramesProcessed());
+        assertEquals(1, pipeline.getNode("publish").getMetrics().getFramesProcessed());
+        assertEquals(1, freed.get());
+    }
+
+    private void assertRejected(String text, String key) throws Exception {
+        try {
+            PipelineConfig.load(config(text), factories(), new HashMap<String, Executor>());
+            fail("accepted " + text);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(key));
+        }
+    }
+
+    @Test
+    public void badConfigNamesTheKey() throws Exception {
+        assertRejected("", "nodes");
+        assertRejected("nodes=a\n", "node.a.stage");
+        assertRejected("nodes=a\nnode.a.stage=missing\n", "node.a.stage");
+        assertRejected("nodes=a\nnode.a.stage=stub\nnode.a.capacity=0\n", "node.a.capacity");
+        assertRejected("nodes=a\nnode.a.stage=stub\nnode.a.capacity=x\n", "node.a.capacity");
+        assertRejected("nodes=a\nnode.a.stage=stub\nnode.a.policy=LATEST\n", "node.a.policy");
+        assertRejected("nodes=a\nnode.a.stage=stub\nnode.a.executor=gpu\n", "node.a.executor");
+        assertRejected("nodes=a\nnode.a.stage=stub\nnode.a.next=b\n", "node.a.next");
+    }
+}
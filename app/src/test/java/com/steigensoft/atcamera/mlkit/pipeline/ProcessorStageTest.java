@@ -0,0 +1,136 @@
+package com.steigensoft.atcamera.mlkit.pipeline;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.Frame;
+import com.steigensoft.atcamera.mlkit.FrameMetadata;
+import com.steigensoft.atcamera.mlkit.GraphicOverlay;
+import com.steigensoft.atcamera.mlkit.VisionImageProcessor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ProcessorStageTest {
+
+    /** Detects "asynchronously": the inference is done once the test says so. */
+    private static class FakeProcessor implements VisionImageProcessor {
+        ByteBuffer processing;
+        boolean idle = true;
+        int refCountWhileWaiting = -1;
+        Frame frame;
+
+        @Override
+        public void process(ByteBuffer data, FrameMetadata frameMetadata,
+                            GraphicOverlay graphicOverlay) {
+            processing = data;
+        }
+
+        @Override
+        public void process(Bitmap bitmap, GraphicOverlay graphicOverlay) {
+        }
+
+        @Override
+        public void process(Bitmap bitmap) {
+        }
+
+        @Override
+        public void process(Image bitmap, int rotation, GraphicOverlay graphicOverlay) {
+        }
+
+        @Override
+        public boolean isReadyForFrame() {
+            return idle;
+        }
+
+        @Override
+        public boolean awaitIdle(long timeoutMillis) {
+            if (frame != null) {
+                refCountWhileWaiting = frame.getRefCount();
+            }
+            return idle;
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    private final BufferPool pool = new BufferPool(16, 4);
+    private final FakeProcessor processor = new FakeProcessor();
+    private final ProcessorStage stage = new ProcessorStage(processor, null, 10);
+
+    private Frame bufferFrame() {
+        Frame frame = Frame.ofBuffer(pool.acquire(0), pool, new FrameMetadata.Builder()
+                .setWidth(4)
+                .setHeight(4)
+                .build());
+        processor.frame = frame;
+        return frame;
+    }
+
+    @Test
+    public void frameIsHeldUntilTheInferenceIsDone() throws Exception {
+        Frame frame = bufferFrame();
+        ByteBuffer buffer = frame.getBuffer();
+        assertTrue(stage.detect(frame));
+        assertSame(buffer, processor.processing);
+        // The caller's reference was still there while the stage waited for the inference.
+        assertEquals(1, processor.refCountWhileWaiting);
+        assertEquals(1, frame.getRefCount());
+        frame.release();
+        assertSame(buffer, pool.acquire(0));
+    }
+
+    @Test
+    public void timedOutFrameIsKeptUntilTheProcessorIsIdle() throws Exception {
+        Frame frame = bufferFrame();
+        ByteBuffer buffer = frame.getBuffer();
+        processor.idle = false;
+        assertFalse(stage.detect(frame));
+        frame.release();
+        // The detector may still read the buffer, so it must not be handed out again.
+        assertEquals(1, frame.getRefCount());
+        assertNotSame(buffer, pool.acquire(0));
+        assertFalse(stage.releaseLingering(0));
+        assertEquals(1, frame.getRefCount());
+
+        processor.idle = true;
+        assertTrue(stage.releaseLingering(0));
+        assertEquals(0, frame.getRefCount());
+        assertSame(buffer, pool.acquire(0));
+    }
+
+    @Test
+    public void nextFrameReleasesTheTimedOutOne() throws Exception {
+        Frame first = bufferFrame();
+        processor.idle = false;
+        stage.detect(first);
+        first.release();
+
+        processor.idle = true;
+        Frame second = bufferFrame();
+        assertTrue(stage.detect(second));
+        assertEquals(0, first.getRefCount());
+        second.release();
+    }
+
+    @Test
+    public void pipelineNodeEmitsTheFrameAfterDetection() throws Exception {
+        final Frame frame = bufferFrame();
+        final Object[] emitted = new Object[1];
+        stage.process(frame, new Emitter() {
+            @Override
+            public void emit(Object item) {
+                emitted[0] = item;
+            }
+        });
+        assertSame(frame, emitted[0]);
+        assertEquals(1, processor.refCountWhileWaiting);
+        frame.release();
+    }
+}
@@ -0,0 +1,188 @@
+package com.steigensoft.atcamera.mlkit.preview;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.ipcamera.MjpegParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/** Watches the preview server with plain local HTTP clients. */
+public class MjpegPreviewServerTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private MjpegPreviewServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MjpegPreviewServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /** A browser stand-in collecting the frames of the multipart response. */
+    private class Viewer implements Runnable {
+        final List<byte[]> frames = new CopyOnWriteArrayList<>();
+        final Socket socket;
+        volatile String contentType;
+
+        Viewer(int receiveBuffer) throws IOException {
+            socket = new Socket();
+            if (receiveBuffer > 0) {
+                socket.setReceiveBufferSize(receiveBuffer);
+            }
+            socket.connect(new java.net.InetSocketAddress("127.0.0.1", server.getPort()));
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: test\r\n\r\n".getBytes(ASCII));
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = socket.getInputStream();
+                String header = readHeader(in);
+                contentType = header;
+                String boundary = header.substring(header.indexOf("boundary=") + 9).split("\r\n")[0];
+                final BufferPool pool = new BufferPool(1024, 2);
+                MjpegParser parser = new MjpegParser(boundary, pool, new MjpegParser.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer jpeg) {
+                        byte[] copy = new byte[jpeg.remaining()];
+                        jpeg.get(copy);
+                        pool.release(jpeg);
+                        frames.add(copy);
+                    }
+                });
+                byte[] chunk = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(chunk)) > 0) {
+                    parser.feed(ByteBuffer.wrap(chunk, 0, read));
+                }
+            } catch (IOException e) {
+                // Closed by the test.
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("No response header");
+            }
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static byte[] jpeg(int index, int size) {
+        byte[] frame = new byte[size];
+        Arrays.fill(frame, (byte) index);
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xd8;
+        frame[size - 2] = (byte) 0xff;
+        frame[size - 1] = (byte) 0xd9;
+        return frame;
+    }
+
+    private void awaitClients(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getClientCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, server.getClientCount());
+    }
+
+    private static void awaitFrames(Viewer viewer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (viewer.frames.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void everyViewerGetsTheSameFrames() throws Exception {
+        Viewer first = new Viewer(0);
+        Viewer second = new Viewer(0);
+        new Thread(first).start();
+        new Thread(second).start();
+        awaitClients(2);
+
+        for (int i = 0; i < 5; i++) {
+            server.broadcast(jpeg(i, 1000 + i), 0, 1000 + i);
+            awaitFrames(first, i + 1);
+            awaitFrames(second, i + 1);
+        }
+
+        assertTrue(first.contentType.contains("multipart/x-mixed-replace"));
+        assertEquals(5, first.frames.size());
+        assertEquals(5, second.frames.size());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(jpeg(i, 1000 + i), first.frames.get(i));
+            assertArrayEquals(first.frames.get(i), second.frames.get(i));
+        }
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void slowViewerSkipsFramesWithoutStallingOthers() throws Exception {
+        // Connected, but never reads past the response header.
+        Viewer slow = new Viewer(4096);
+        Viewer fast = new Viewer(0);
+        new Thread(fast).start();
+        awaitClients(2);
+
+        int frameSize = 256 * 1024;
+        long slowestBroadcastNanos = 0;
+        for (int i = 0; i < 50; i++) {
+            byte[] frame = jpeg(i, frameSize);
+            long start = System.nanoTime();
+            server.broadcast(frame, 0, frame.length);
+            slowestBroadcastNanos = Math.max(slowestBroadcastNanos, System.nanoTime() - start);
+            awaitFrames(fast, i + 1);
+        }
+
+        assertEquals(50, fast.frames.size());
+        assertArrayEquals(jpeg(49, frameSize), fast.frames.get(49));
+        assertTrue(server.getFramesSkipped() > 0);
+        assertTrue(slowestBroadcastNanos < 50000000L);
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    public void disconnectedViewersAreDropped() throws Exception {
+        Viewer viewer = new Viewer(0);
+        new Thread(viewer).start();
+        awaitClients(1);
+        assertTrue(server.hasClients());
+
+        viewer.close();
+        server.broadcast(jpeg(1, 100), 0, 100);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.hasClients() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(server.hasClients());
+    }
+}
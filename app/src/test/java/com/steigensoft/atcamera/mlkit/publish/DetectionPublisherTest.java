@@ -0,0 +1,224 @@
+package com.steigensoft.atcamera.mlkit.publish;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.eventlog.DetectionEventCodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/** Publishes to a stand-in endpoint on a local server socket. */
+public class DetectionPublisherTest {
+
+    // FirebaseVisionBarcode.FORMAT_QR_CODE
+    private static final int FORMAT_QR_CODE = 256;
+
+    private final DetectionEvent event = new DetectionEvent();
+    private DetectionPublisher publisher;
+    private Endpoint endpoint;
+
+    /** Accepts connections and decodes the batches it receives. */
+    private static class Endpoint implements Runnable {
+        final ServerSocket server;
+        final List<List<Long>> batches = new CopyOnWriteArrayList<>();
+
+        Endpoint(int port) throws IOException {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress("127.0.0.1", port));
+            new Thread(this).start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    try {
+                        while (true) {
+                            byte[] batch = new byte[in.readInt()];
+                            in.readFully(batch);
+                            batches.add(decode(ByteBuffer.wrap(batch)));
+                        }
+                    } catch (IOException e) {
+                        socket.close();
+                    }
+                }
+            } catch (IOException e) {
+                // Closed by the test.
+            }
+        }
+
+        private static List<Long> decode(ByteBuffer batch) {
+            int count = batch.getInt();
+            List<Long> timestamps = new ArrayList<>();
+            DetectionEvent event = new DetectionEvent();
+            for (int i = 0; i < count; i++) {
+                ByteBuffer encoded = batch.duplicate();
+                encoded.limit(batch.position() + 4 + batch.getInt(batch.position()));
+                encoded.position(batch.position() + 4);
+                assertTrue(DetectionEventCodec.decode(encoded, event));
+                long timestamp = event.getTimestampMillis();
+                assertEquals(DetectionEvent.DETECTOR_BARCODE, event.getDetectorType());
+                assertEquals(640, event.getFrameWidth());
+                assertEquals(480, event.getFrameHeight());
+                assertEquals(1, event.getCount());
+                assertEquals(timestamp, event.getBox(0).left);
+                assertEquals(2, event.getBox(0).top);
+                assertEquals(timestamp + 10, event.getBox(0).right);
+                assertEquals(12, event.getBox(0).bottom);
+                assertEquals(FORMAT_QR_CODE, event.getFormat(0));
+                assertEquals("value-" + timestamp, event.getRawValue(0));
+                timestamps.add(timestamp);
+                batch.position(encoded.limit());
+            }
+            assertFalse(batch.hasRemaining());
+            return timestamps;
+        }
+
+        int events() {
+            int events = 0;
+            for (List<Long> batch : batches) {
+                events += batch.size();
+            }
+            return events;
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (publisher != null) {
+            publisher.stop();
+        }
+        if (endpoint != null) {
+            endpoint.close();
+        }
+    }
+
+    private void publish(long timestamp) {
+        event.reset(DetectionEvent.DETECTOR_BARCODE, timestamp, 640, 480);
+        // The box moves with the timestamp so each event's fields can be checked on arrival.
+        int x = (int) timestamp;
+        int index = event.add(x, 2, x + 10, 12);
+        event.setFormat(index, FORMAT_QR_CODE);
+        event.setRawValue(index, "value-" + timestamp);
+        publisher.onDetections(event);
+    }
+
+    private static void await(Endpoint endpoint, int events) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (endpoint.events() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static InetSocketAddress local(int port) {
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    @Test
+    public void sendsFullBatchesInOrder() throws Exception {
+        endpoint = new Endpoint(0);
+        publisher = new DetectionPublisher(local(endpoint.server.getLocalPort()), 10, 64 * 1024,
+                60000, 16);
+        publisher.start();
+        for (int i = 0; i < 100; i++) {
+            publish(i);
+        }
+        await(endpoint, 100);
+
+        assertEquals(10, endpoint.batches.size());
+        long expected = 0;
+        for (List<Long> batch : endpoint.batches) {
+            assertEquals(10, batch.size());
+            for (long timestamp : batch) {
+                assertEquals(expected++, timestamp);
+            }
+        }
+        assertEquals(100, publisher.getEventsSent());
+        assertEquals(10, publisher.getBatchesSent());
+        assertEquals(10, publisher.getAverageBatchEvents(), 0.001);
+        assertEquals(0, publisher.getEventsDropped());
+    }
+
+    @Test
+    public void limitsBatchBytes() throws Exception {
+        endpoint = new Endpoint(0);
+        publisher = new DetectionPublisher(local(endpoint.server.getLocalPort()), 1000, 200,
+                60000, 16);
+        publisher.start();
+        for (int i = 0; i < 20; i++) {
+            publish(i);
+        }
+        // Nothing seals the last batch but its age, which is a minute here.
+        Thread.sleep(200);
+        assertTrue(endpoint.batches.size() > 1);
+        for (List<Long> batch : endpoint.batches) {
+            assertTrue(batch.size() < 20);
+        }
+        assertTrue(endpoint.events() < 20);
+    }
+
+    @Test
+    public void sendsPartialBatchAfterMaxLatency() throws Exception {
+        endpoint = new Endpoint(0);
+        publisher = new DetectionPublisher(local(endpoint.server.getLocalPort()), 100, 64 * 1024,
+                100, 16);
+        publisher.start();
+        long start = System.currentTimeMillis();
+        publish(1);
+        publish(2);
+        await(endpoint, 2);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(1, endpoint.batches.size());
+        assertEquals(2, endpoint.batches.get(0).size());
+        assertTrue(elapsed >= 100);
+        assertTrue(publisher.getMaxLatencyMillis() >= 100);
+    }
+
+    @Test
+    public void dropsOldestWhileEndpointIsDown() throws Exception {
+        ServerSocket placeholder = new ServerSocket(0);
+        int port = placeholder.getLocalPort();
+        placeholder.close();
+
+        publisher = new DetectionPublisher(local(port), 10, 64 * 1024, 60000, 3);
+        publisher.start();
+        for (int i = 0; i < 10; i++) {
+            publish(i);
+        }
+        // Let the sender take the first batch, it holds on to it for retrying.
+        Thread.sleep(100);
+        for (int i = 10; i < 100; i++) {
+            publish(i);
+        }
+        // Three more wait in the queue.
+        assertEquals(60, publisher.getEventsDropped());
+        assertEquals(6, publisher.getBatchesDropped());
+
+        endpoint = new Endpoint(port);
+        await(endpoint, 40);
+        assertEquals(40, endpoint.events());
+        assertEquals(0L, (long) endpoint.batches.get(0).get(0));
+        // The newest batches survived.
+        assertEquals(70L, (long) endpoint.batches.get(1).get(0));
+        assertEquals(99L, (long) endpoint.batches.get(3).get(9));
+    }
+}
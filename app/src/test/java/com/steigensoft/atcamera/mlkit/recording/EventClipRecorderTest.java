@@ -0,0 +1,222 @@
+package com.steigensoft.atcamera.mlkit.recording;
+
+import android.graphics.Rect;
+
+import com.steigensoft.atcamera.mlkit.BufferPool;
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+import com.steigensoft.atcamera.mlkit.ipcamera.MjpegParser;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventClipRecorderTest {
+
+    private static final long FRAME_MILLIS = 100;
+
+    /** Keeps the timestamps of every clip in memory. */
+    private static class RecordingWriter implements ClipWriter {
+        final List<List<Long>> clips = new ArrayList<>();
+        List<Long> current;
+        volatile int closed;
+
+        @Override
+        public synchronized void beginClip(long startMillis) {
+            current = new ArrayList<>();
+            clips.add(current);
+        }
+
+        @Override
+        public synchronized void writeFrame(ByteBuffer frame, long timestampMillis) {
+            assertEquals(frame.getLong(0), timestampMillis);
+            current.add(timestampMillis);
+        }
+
+        @Override
+        public synchronized void endClip() {
+            current = null;
+            closed++;
+        }
+    }
+
+    private final RecordingWriter writer = new RecordingWriter();
+    private final DetectionEvent event = new DetectionEvent();
+    private EventClipRecorder recorder;
+    private final ByteBuffer frame = ByteBuffer.allocate(1000);
+
+    @After
+    public void tearDown() {
+        if (recorder != null) {
+            recorder.stop();
+        }
+    }
+
+    private void feed(long timestampMillis) {
+        frame.clear();
+        frame.putLong(0, timestampMillis);
+        recorder.onEncodedFrame(frame, timestampMillis);
+    }
+
+    private void detect(long timestampMillis, int count) {
+        event.reset(DetectionEvent.DETECTOR_FACE, timestampMillis, 640, 480);
+        for (int i = 0; i < count; i++) {
+            event.add(new Rect(0, 0, 10, 10));
+        }
+        recorder.onDetections(event);
+    }
+
+    private void awaitClips(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.closed < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, writer.closed);
+    }
+
+    @Test
+    public void recordsPreRollAndPostRoll() throws Exception {
+        recorder = new EventClipRecorder(FrameRingBuffer.allocateDirect(100 * 1000, 100), writer,
+                2000, 1000);
+        recorder.start();
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        detect(t0 + 4900, 1);
+        assertTrue(recorder.isRecording());
+        // A second detection extends the clip.
+        for (int i = 50; i < 60; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        detect(t0 + 5900, 2);
+        for (int i = 60; i < 80; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        awaitClips(1);
+
+        List<Long> clip = writer.clips.get(0);
+        assertEquals(t0 + 2900, (long) clip.get(0));
+        assertEquals(t0 + 6900, (long) clip.get(clip.size() - 1));
+        assertEquals(41, clip.size());
+        assertEquals(0, recorder.getFramesLost());
+        assertFalse(recorder.isRecording());
+    }
+
+    @Test
+    public void ignoresEmptyResults() throws Exception {
+        recorder = new EventClipRecorder(FrameRingBuffer.allocateDirect(100 * 1000, 100), writer,
+                2000, 1000);
+        recorder.start();
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+            detect(t0 + i * FRAME_MILLIS, 0);
+        }
+        assertFalse(recorder.isRecording());
+        assertEquals(0, writer.clips.size());
+    }
+
+    @Test
+    public void startsAnotherClipWithoutRepeatingFrames() throws Exception {
+        recorder = new EventClipRecorder(FrameRingBuffer.allocateDirect(100 * 1000, 100), writer,
+                1000, 500);
+        recorder.start();
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        detect(t0 + 1900, 1);
+        for (int i = 20; i < 30; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        awaitClips(1);
+        // Pre-roll would start at 2000, the first clip already has up to 2400.
+        detect(t0 + 3000, 1);
+        for (int i = 30; i < 40; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        awaitClips(2);
+
+        assertEquals(t0 + 2400, (long) writer.clips.get(0).get(writer.clips.get(0).size() - 1));
+        assertEquals(t0 + 2500, (long) writer.clips.get(1).get(0));
+        assertEquals(t0 + 3500, (long) writer.clips.get(1).get(writer.clips.get(1).size() - 1));
+    }
+
+    @Test
+    public void endsClipWhenStreamStops() throws Exception {
+        recorder = new EventClipRecorder(FrameRingBuffer.allocateDirect(100 * 1000, 100), writer,
+                500, 100);
+        recorder.start();
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < 10; i++) {
+            feed(t0 + i * FRAME_MILLIS);
+        }
+        detect(t0 + 900, 1);
+        awaitClips(1);
+        assertEquals(6, writer.clips.get(0).size());
+    }
+
+    @Test
+    public void slowWriterLosesFramesNotMemory() throws Exception {
+        final ClipWriter slow = new RecordingWriter() {
+            @Override
+            public synchronized void writeFrame(ByteBuffer frame, long timestampMillis) {
+                super.writeFrame(frame, timestampMillis);
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        FrameRingBuffer ring = FrameRingBuffer.allocateDirect(10 * 1000, 100);
+        recorder = new EventClipRecorder(ring, slow, 500, 1000);
+        recorder.start();
+        long t0 = System.currentTimeMillis();
+        detect(t0, 1);
+        for (int i = 0; i < 200; i++) {
+            feed(t0 + i);
+        }
+        assertEquals(10, ring.getFrameCount());
+        Thread.sleep(200);
+        assertTrue(recorder.getFramesLost() > 0);
+    }
+
+    @Test
+    public void mjpegClipsParseBack() throws Exception {
+        File directory = Files.createTempDirectory("clips").toFile();
+        MjpegClipWriter mjpeg = new MjpegClipWriter(directory);
+        mjpeg.beginClip(System.currentTimeMillis());
+        for (int i = 0; i < 3; i++) {
+            byte[] jpeg = new byte[100 + i];
+            jpeg[0] = (byte) 0xff;
+            jpeg[1] = (byte) 0xd8;
+            jpeg[2] = (byte) i;
+            mjpeg.writeFrame(ByteBuffer.wrap(jpeg), i);
+        }
+        mjpeg.endClip();
+
+        final List<ByteBuffer> frames = new ArrayList<>();
+        new MjpegParser(MjpegClipWriter.BOUNDARY, new BufferPool(64, 4),
+                new MjpegParser.FrameListener() {
+                    @Override
+                    public void onFrame(ByteBuffer jpeg) {
+                        frames.add(jpeg);
+                    }
+                }).feed(ByteBuffer.wrap(Files.readAllBytes(mjpeg.getFile().toPath())));
+        assertEquals(3, frames.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(100 + i, frames.get(i).remaining());
+            assertEquals((byte) i, frames.get(i).get(2));
+        }
+        mjpeg.getFile().delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,102 @@
+package com.steigensoft.atcamera.mlkit.recording;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FrameRingBufferTest {
+
+    private static ByteBuffer frame(int value, int length) {
+        byte[] bytes = new byte[length];
+        java.util.Arrays.fill(bytes, (byte) value);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void assertFrame(FrameRingBuffer ring, long sequence, int value, int length) {
+        ByteBuffer out = ByteBuffer.allocate(ring.getCapacity());
+        assertEquals(length, ring.read(sequence, out));
+        assertEquals(length, out.remaining());
+        while (out.hasRemaining()) {
+            assertEquals((byte) value, out.get());
+        }
+    }
+
+    @Test
+    public void overwritesOldestFramesWhenFull() {
+        FrameRingBuffer ring = FrameRingBuffer.allocateDirect(1000, 100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, ring.append(frame(i, 300), i * 100));
+        }
+        // Three 300 byte frames fit in 1000 bytes.
+        assertEquals(3, ring.getFrameCount());
+        assertEquals(7, ring.getOldestSequence());
+        assertEquals(7, ring.getFramesOverwritten());
+        assertEquals(-1, ring.read(6, ByteBuffer.allocate(1000)));
+        for (int i = 7; i < 10; i++) {
+            assertFrame(ring, i, i, 300);
+        }
+    }
+
+    @Test
+    public void wrapsFramesOfMixedSizes() {
+        FrameRingBuffer ring = FrameRingBuffer.allocateDirect(1000, 100);
+        int[] lengths = {400, 350, 200, 500, 100, 999, 1, 250, 250, 250};
+        for (int i = 0; i < lengths.length; i++) {
+            ring.append(frame(i, lengths[i]), i);
+            // Whatever is left in the ring must be intact.
+            for (long s = ring.getOldestSequence(); s < ring.getNextSequence(); s++) {
+                assertFrame(ring, s, (int) s, lengths[(int) s]);
+            }
+        }
+        assertEquals(-1, ring.append(frame(0, 1001), 100));
+        assertEquals(-1, ring.append(frame(0, 0), 100));
+    }
+
+    @Test
+    public void limitsFrameCount() {
+        FrameRingBuffer ring = FrameRingBuffer.allocateDirect(1000, 4);
+        for (int i = 0; i < 10; i++) {
+            ring.append(frame(i, 10), i);
+        }
+        assertEquals(4, ring.getFrameCount());
+        assertEquals(6, ring.getOldestSequence());
+        assertFrame(ring, 9, 9, 10);
+    }
+
+    @Test
+    public void findsFramesByTime() {
+        FrameRingBuffer ring = FrameRingBuffer.allocateDirect(1000, 4);
+        for (int i = 0; i < 6; i++) {
+            ring.append(frame(i, 10), 1000 + i * 100);
+        }
+        // Frames 2 to 5 remain, taken at 1200 to 1500.
+        assertEquals(2, ring.findSequence(0));
+        assertEquals(3, ring.findSequence(1250));
+        assertEquals(3, ring.findSequence(1300));
+        assertEquals(6, ring.findSequence(1600));
+        assertEquals(1300, ring.getTimestamp(3));
+
+        // A clock stepping back doesn't break the order.
+        ring.append(frame(6, 10), 500);
+        assertEquals(1500, ring.getTimestamp(6));
+    }
+
+    @Test
+    public void worksOnMappedFile() throws Exception {
+        File file = File.createTempFile("preroll", ".ring");
+        try {
+            FrameRingBuffer ring = FrameRingBuffer.map(file, 4096, 16);
+            assertEquals(4096, file.length());
+            for (int i = 0; i < 40; i++) {
+                ring.append(frame(i, 500), i);
+            }
+            assertEquals(8, ring.getFrameCount());
+            assertFrame(ring, 39, 39, 500);
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.steigensoft.atcamera.mlkit.textrecognition;
+
+import com.steigensoft.atcamera.mlkit.LumaSampler;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileDiffTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    private final LumaSampler sampler = new LumaSampler(8);
+    // 4 x 3 tiles of 160 x 160 pixels.
+    private final TileDiff diff = new TileDiff(4, 3, 6);
+    private final ByteBuffer frame = ByteBuffer.allocate(WIDTH * HEIGHT * 3 / 2);
+
+    private void fill(int left, int top, int right, int bottom, int luma) {
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                frame.put(y * WIDTH + x, (byte) luma);
+            }
+        }
+    }
+
+    private long update() {
+        sampler.sample(frame, WIDTH, HEIGHT);
+        return diff.update(sampler.getSamples(), sampler.getGridWidth(), sampler.getGridHeight());
+    }
+
+    @Test
+    public void samplesEveryStepPixels() {
+        fill(0, 0, WIDTH, HEIGHT, 10);
+        fill(8, 16, 9, 17, 200);
+        sampler.sample(frame, WIDTH, HEIGHT);
+        assertEquals(80, sampler.getGridWidth());
+        assertEquals(60, sampler.getGridHeight());
+        assertEquals(200, sampler.getSamples()[2 * 80 + 1] & 0xff);
+        assertEquals(10, sampler.getSamples()[0] & 0xff);
+    }
+
+    @Test
+    public void firstFrameChangesEverything() {
+        fill(0, 0, WIDTH, HEIGHT, 100);
+        assertEquals((1L << 12) - 1, update());
+        assertEquals(0, update());
+    }
+
+    @Test
+    public void reportsOnlyChangedTiles() {
+        fill(0, 0, WIDTH, HEIGHT, 100);
+        update();
+        // Inside tile 5: column 1, row 1.
+        fill(200, 200, 300, 300, 250);
+        assertEquals(1L << 5, update());
+        assertEquals(0, update());
+    }
+
+    @Test
+    public void ignoresNoise() {
+        fill(0, 0, WIDTH, HEIGHT, 100);
+        update();
+        Random random = new Random(7);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            frame.put(i, (byte) (100 + random.nextInt(7) - 3));
+        }
+        assertEquals(0, update());
+    }
+
+    @Test
+    public void slowDriftAddsUp() {
+        fill(0, 0, WIDTH, HEIGHT, 100);
+        update();
+        long changed = 0;
+        int steps = 0;
+        for (int luma = 102; changed == 0 && luma < 130; luma += 2) {
+            fill(0, 0, WIDTH, HEIGHT, luma);
+            changed = update();
+            steps++;
+        }
+        assertEquals((1L << 12) - 1, changed);
+        assertEquals(4, steps);
+    }
+
+    @Test
+    public void mapsBoxesToTiles() {
+        assertEquals(1L << 5, diff.tilesCovering(200, 200, 300, 300, WIDTH, HEIGHT));
+        assertEquals((1L << 5) | (1L << 6), diff.tilesCovering(300, 200, 330, 300, WIDTH, HEIGHT));
+        assertEquals(1L << 11, diff.tilesCovering(600, 400, 700, 500, WIDTH, HEIGHT));
+        assertEquals(0, diff.tilesCovering(10, 10, 10, 20, WIDTH, HEIGHT));
+    }
+}
@@ -0,0 +1,198 @@
+package com.steigensoft.atcamera.mlkit.tiling;
+
+import android.graphics.Bitmap;
+
+import com.steigensoft.atcamera.mlkit.DetectionEvent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class TiledStillRecognizerTest {
+
+    private static final String LONG_TEXT = "abcdefghijklmnopqrstuvwxyz0123456789ABCD";
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Finds the objects of a synthetic scene that intersect the tile. Objects cut by the tile come
+     * back with the matching share of their text, and every call takes time in proportion to the
+     * tile area like a real detector.
+     */
+    private static class SceneRecognizer implements TileRecognizer {
+        final List<StillDetection> scene = new ArrayList<>();
+        final double pixelsPerMilli;
+
+        SceneRecognizer(double pixelsPerMilli) {
+            this.pixelsPerMilli = pixelsPerMilli;
+        }
+
+        SceneRecognizer add(int kind, String text, int left, int top, int right, int bottom) {
+            scene.add(new StillDetection(kind, kind == DetectionEvent.DETECTOR_BARCODE ? 256 : 0,
+                    text, left, top, right, bottom));
+            return this;
+        }
+
+        @Override
+        public List<StillDetection> recognize(Bitmap still, Tile tile) throws Exception {
+            if (pixelsPerMilli > 0) {
+                Thread.sleep((long) (tile.width() * (double) tile.height() / pixelsPerMilli));
+            }
+            List<StillDetection> found = new ArrayList<>();
+            for (StillDetection object : scene) {
+                int left = Math.max(object.left, tile.left);
+                int right = Math.min(object.right, tile.right);
+                int top = Math.max(object.top, tile.top);
+                int bottom = Math.min(object.bottom, tile.bottom);
+                if (left >= right || top >= bottom) {
+                    continue;
+                }
+                boolean whole = left == object.left && right == object.right
+                        && top == object.top && bottom == object.bottom;
+                if (!whole && object.kind == DetectionEvent.DETECTOR_BARCODE) {
+                    continue;
+                }
+                String text = object.text;
+                if (!whole) {
+                    double width = object.right - object.left;
+                    int from = (int) Math.floor((left - object.left) / width * text.length());
+                    int to = (int) Math.ceil((right - object.left) / width * text.length());
+                    text = text.substring(from, to);
+                }
+                found.add(new StillDetection(object.kind, object.format, text, left - tile.left,
+                        top - tile.top, right - tile.left, bottom - tile.top));
+            }
+            return found;
+        }
+    }
+
+    private TiledStillRecognizer tiled(SceneRecognizer scene, int workers) {
+        List<TileRecognizer> recognizers = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            recognizers.add(scene);
+        }
+        return new TiledStillRecognizer(recognizers, executor, 1024, 128);
+    }
+
+    private static StillDetection find(List<StillDetection> detections, String text) {
+        for (StillDetection detection : detections) {
+            if (text.equals(detection.text)) {
+                return detection;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void splitsIntoOverlappingFullSizeTiles() {
+        List<Tile> tiles = Tile.split(4000, 3000, 1024, 128);
+        assertEquals(5 * 4, tiles.size());
+        Tile last = tiles.get(tiles.size() - 1);
+        assertEquals(4000, last.right);
+        assertEquals(3000, last.bottom);
+        for (Tile tile : tiles) {
+            assertEquals(1024, tile.width());
+            assertEquals(1024, tile.height());
+        }
+        for (int i = 1; i < 5; i++) {
+            assertTrue(tiles.get(i - 1).right - tiles.get(i).left >= 128);
+        }
+    }
+
+    @Test
+    public void smallStillIsOneTile() {
+        List<Tile> tiles = Tile.split(640, 480, 1024, 128);
+        assertEquals(1, tiles.size());
+        assertEquals(640, tiles.get(0).right);
+        assertEquals(480, tiles.get(0).bottom);
+    }
+
+    @Test
+    public void dropsDuplicatesFromOverlap() throws Exception {
+        // Tiles [0, 1024) and [896, 1920) across, one row.
+        SceneRecognizer scene = new SceneRecognizer(0)
+                .add(DetectionEvent.DETECTOR_TEXT, "inside overlap", 950, 100, 1010, 140)
+                .add(DetectionEvent.DETECTOR_TEXT, "crossing edge", 1000, 300, 1100, 340)
+                .add(DetectionEvent.DETECTOR_BARCODE, "qr", 900, 500, 1000, 600)
+                .add(DetectionEvent.DETECTOR_TEXT, "left", 100, 100, 300, 140)
+                .add(DetectionEvent.DETECTOR_TEXT, "right", 1500, 100, 1700, 140);
+
+        List<StillDetection> result = tiled(scene, 2).recognize(null, 1920, 1024);
+
+        assertEquals(5, result.size());
+        StillDetection crossing = find(result, "crossing edge");
+        assertNotNull(crossing);
+        assertEquals(1000, crossing.left);
+        assertEquals(1100, crossing.right);
+        assertNotNull(find(result, "qr"));
+        assertNotNull(find(result, "inside overlap"));
+    }
+
+    @Test
+    public void joinsBlocksWiderThanOverlap() throws Exception {
+        SceneRecognizer scene = new SceneRecognizer(0)
+                .add(DetectionEvent.DETECTOR_TEXT, LONG_TEXT, 600, 200, 1400, 240);
+
+        List<StillDetection> result = tiled(scene, 2).recognize(null, 1920, 1024);
+
+        assertEquals(1, result.size());
+        StillDetection block = result.get(0);
+        assertEquals(LONG_TEXT, block.text);
+        assertEquals(600, block.left);
+        assertEquals(1400, block.right);
+    }
+
+    @Test
+    public void joinsTextOnRepeatedPart() {
+        assertEquals("Hello world", DetectionMerger.joinText("Hello wor", "world", true));
+        assertEquals("Hello world", DetectionMerger.joinText("Hello", "world", true));
+        assertEquals("Hello\nworld", DetectionMerger.joinText("Hello", "world", false));
+    }
+
+    @Test
+    public void countsFailedTiles() throws Exception {
+        List<TileRecognizer> recognizers = new ArrayList<>();
+        recognizers.add(new TileRecognizer() {
+            @Override
+            public List<StillDetection> recognize(Bitmap still, Tile tile) throws Exception {
+                if (tile.index == 1) {
+                    throw new Exception("detector gone");
+                }
+                return new ArrayList<>();
+            }
+        });
+        TiledStillRecognizer tiled = new TiledStillRecognizer(recognizers, executor, 1024, 128);
+        tiled.recognize(null, 1920, 1024);
+        assertEquals(1, tiled.getTilesRecognized());
+        assertEquals(1, tiled.getTilesFailed());
+    }
+
+    @Test
+    public void tiledRunBeatsSinglePass() throws Exception {
+        // About 50 ms for a 12 megapixel single pass.
+        SceneRecognizer scene = new SceneRecognizer(250000);
+        for (int i = 0; i < 40; i++) {
+            int x = 100 + (i % 8) * 480;
+            int y = 100 + (i / 8) * 560;
+            scene.add(DetectionEvent.DETECTOR_TEXT, "word " + i, x, y, x + 120, y + 30);
+        }
+
+        StillBenchmark.Result result =
+                StillBenchmark.run(null, 4096, 3072, scene, tiled(scene, 4), 3);
+
+        assertEquals(40, result.singlePassDetections);
+        assertEquals(40, result.tiledDetections);
+        assertTrue(result.toString(), result.getSpeedup() > 1.5);
+    }
+}